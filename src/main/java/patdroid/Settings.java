@@ -32,4 +32,9 @@ public class Settings {
      * The report mode generates a JSON output
      */
     public static boolean enableReportMode = logLevel >= Log.MODE_REPORT;
+    /**
+     * The number of worker threads used by parallel analyses, 1 to run everything
+     * on the calling thread
+     */
+    public static int nThreads = Runtime.getRuntime().availableProcessors();
 }
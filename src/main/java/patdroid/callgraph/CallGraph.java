@@ -0,0 +1,176 @@
+package patdroid.callgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+
+/**
+ * A call graph over the methods of a scope, identified by their dense ids
+ * (see {@link MethodInfo#getId()}).
+ * <p>
+ * Edges are stored in compressed sparse row layout: the outgoing edges of method m are
+ * the entries [edgeStart[m], edgeStart[m+1]) of the target and call site arrays.
+ * A call site is the index of the invoke instruction in the caller's instructions; a
+ * virtual call site may have several edges, one per possible dispatch target.
+ * Call graphs are created by {@link CallGraphBuilder} and are immutable. Looking up
+ * methods in a graph throws an {@link IllegalStateException} once its scope gave the ids
+ * back, see {@link Scope#getIdGeneration()}.
+ * </p>
+ */
+public final class CallGraph {
+    public final Scope scope;
+    private final int idGeneration;
+    private final int methodCount;
+    private final int[] edgeStart;
+    private final int[] edgeTarget;
+    private final int[] edgeSite;
+    private final int[] callerStart;
+    private final int[] callers;
+
+    CallGraph(Scope scope, int idGeneration, int methodCount, int[] edgeStart, int[] edgeTarget, int[] edgeSite) {
+        this.scope = scope;
+        this.idGeneration = idGeneration;
+        this.methodCount = methodCount;
+        this.edgeStart = edgeStart;
+        this.edgeTarget = edgeTarget;
+        this.edgeSite = edgeSite;
+
+        // reverse edges, each caller listed once per callee
+        final int n = methodCount;
+        final int[] stamp = new int[n];
+        callerStart = new int[n + 1];
+        for (int m = 0; m < n; ++m) {
+            for (int e = edgeStart[m]; e < edgeStart[m + 1]; ++e) {
+                final int t = edgeTarget[e];
+                if (stamp[t] != m + 1) {
+                    stamp[t] = m + 1;
+                    ++callerStart[t + 1];
+                }
+            }
+        }
+        for (int m = 0; m < n; ++m) {
+            callerStart[m + 1] += callerStart[m];
+        }
+        callers = new int[callerStart[n]];
+        final int[] fill = new int[n];
+        Arrays.fill(stamp, 0);
+        for (int m = 0; m < n; ++m) {
+            for (int e = edgeStart[m]; e < edgeStart[m + 1]; ++e) {
+                final int t = edgeTarget[e];
+                if (stamp[t] != m + 1) {
+                    stamp[t] = m + 1;
+                    callers[callerStart[t] + fill[t]++] = m;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of methods in the graph, i.e. methods of the scope registered
+     * before the graph was built
+     */
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    /**
+     * @param id the method id
+     * @return the method
+     */
+    public MethodInfo getMethod(int id) {
+        scope.checkIdGeneration(idGeneration);
+        return scope.getMethodById(id);
+    }
+
+    /**
+     * @param mi the method
+     * @return the id of the method, or -1 if the method is not in the graph
+     */
+    public int getId(MethodInfo mi) {
+        scope.checkIdGeneration(idGeneration);
+        final int id = mi.getId();
+        return id < methodCount && mi.type.scope == scope ? id : -1;
+    }
+
+    /**
+     * @return the total number of edges
+     */
+    public int getEdgeCount() {
+        return edgeTarget.length;
+    }
+
+    /**
+     * @param id the caller id
+     * @return the index of the first outgoing edge of the method
+     */
+    public int getEdgeStart(int id) {
+        return edgeStart[id];
+    }
+
+    /**
+     * @param id the caller id
+     * @return the index after the last outgoing edge of the method
+     */
+    public int getEdgeEnd(int id) {
+        return edgeStart[id + 1];
+    }
+
+    /**
+     * @param edge the edge index
+     * @return the id of the called method
+     */
+    public int getEdgeTarget(int edge) {
+        return edgeTarget[edge];
+    }
+
+    /**
+     * @param edge the edge index
+     * @return the index of the invoke instruction in the caller
+     */
+    public int getEdgeSite(int edge) {
+        return edgeSite[edge];
+    }
+
+    /**
+     * @param id the callee id
+     * @return the ids of the distinct methods calling the method, do not modify
+     */
+    public int[] getCallers(int id) {
+        final int[] r = new int[callerStart[id + 1] - callerStart[id]];
+        System.arraycopy(callers, callerStart[id], r, 0, r.length);
+        return r;
+    }
+
+    /**
+     * @param mi the caller
+     * @return the methods possibly called, one entry per edge
+     */
+    public List<MethodInfo> getCallees(MethodInfo mi) {
+        final ArrayList<MethodInfo> r = new ArrayList<MethodInfo>();
+        final int id = getId(mi);
+        if (id != -1) {
+            for (int e = edgeStart[id]; e < edgeStart[id + 1]; ++e) {
+                r.add(scope.getMethodById(edgeTarget[e]));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param mi the callee
+     * @return the distinct methods possibly calling the method
+     */
+    public List<MethodInfo> getCallers(MethodInfo mi) {
+        final ArrayList<MethodInfo> r = new ArrayList<MethodInfo>();
+        final int id = getId(mi);
+        if (id != -1) {
+            for (int k = callerStart[id]; k < callerStart[id + 1]; ++k) {
+                r.add(scope.getMethodById(callers[k]));
+            }
+        }
+        return r;
+    }
+}
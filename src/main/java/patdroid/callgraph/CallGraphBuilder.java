@@ -0,0 +1,244 @@
+package patdroid.callgraph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.Pair;
+import patdroid.util.Parallel;
+
+/**
+ * Build a {@link CallGraph} from the resolved invocations of all methods in a scope.
+ * <p>
+ * Static, direct and super calls have exactly the resolved target. Virtual and
+ * interface calls are expanded by class hierarchy analysis (CHA) to the methods that
+ * every concrete subtype of the static receiver type dispatches to, i.e. of the class
+ * named by the method reference ({@link Invocation#owner}) rather than the class declaring
+ * the target, so that a call resolving to Object.toString on a receiver of class A only
+ * reaches the overriders below A. With rapid
+ * type analysis (RTA), only subtypes instantiated by a new-instance instruction (or
+ * declared by {@link #addInstantiatedClass(ClassInfo)}) are considered; framework classes
+ * are always assumed to be instantiated, since the framework creates objects on its own.
+ * </p>
+ * <p>
+ * Methods are scanned in parallel on {@link patdroid.Settings#nThreads} threads.
+ * Class hierarchy must not change while building, and the scope is not modified.
+ * </p>
+ */
+public final class CallGraphBuilder {
+    private static final MethodInfo[] NO_METHODS = new MethodInfo[0];
+
+    private final Scope scope;
+    private boolean rta = false;
+    private final Set<ClassInfo> declaredInstantiated = new HashSet<ClassInfo>();
+    /**
+     * The declared classes and the classes instantiated by the code, found by each build
+     */
+    private final Set<ClassInfo> instantiated =
+            Collections.newSetFromMap(new ConcurrentHashMap<ClassInfo, Boolean>());
+    /**
+     * The targets of virtual calls by receiver type and resolved target, for one build
+     */
+    private final Map<Pair<ClassInfo, MethodInfo>, MethodInfo[]> dispatchCache =
+            new ConcurrentHashMap<Pair<ClassInfo, MethodInfo>, MethodInfo[]>();
+    private OverrideIndex overrides;
+
+    /**
+     * @param scope the scope whose methods are the callers
+     */
+    public CallGraphBuilder(Scope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * @param rta true to filter virtual call targets by instantiated types
+     * @return this builder
+     */
+    public CallGraphBuilder setRapidTypeAnalysis(boolean rta) {
+        this.rta = rta;
+        return this;
+    }
+
+    /**
+     * Enumerate the targets of virtual calls from an index instead of walking the
+     * subclasses of each receiver, when not using rapid type analysis. The targets may then
+     * include a method of an abstract class that all its concrete subclasses override.
+     * @param overrides the index of the scope, or null to walk the subclasses
+     * @return this builder
+     */
+    public CallGraphBuilder setOverrideIndex(OverrideIndex overrides) {
+        this.overrides = overrides;
+        return this;
+    }
+
+    /**
+     * Declare a class as instantiated, for classes created reflectively or by the framework
+     * (e.g. activities and services of an app)
+     * @param ci the class
+     * @return this builder
+     */
+    public CallGraphBuilder addInstantiatedClass(ClassInfo ci) {
+        declaredInstantiated.add(ci);
+        return this;
+    }
+
+    /**
+     * Build the call graph. The scope is only read: the graph is over the methods that
+     * have an id, i.e. the methods of the classes loaded when the build starts and the
+     * registered phantoms, and calls to other methods (e.g. created by hand and never
+     * registered) are left out. Classes that are not loaded are not loaded on demand. A
+     * sealed scope can therefore be used.
+     * @return the call graph
+     */
+    public CallGraph build() {
+        final int idGeneration = scope.getIdGeneration();
+        final ArrayList<ClassInfo> classes;
+        synchronized (scope) {
+            classes = new ArrayList<ClassInfo>(scope.getAllClasses());
+        }
+        final ArrayList<MethodInfo> callers = new ArrayList<MethodInfo>();
+        for (ClassInfo ci : classes) {
+            if (!ci.isLoaded()) {
+                continue;
+            }
+            for (MethodInfo mi : ci.mutableDetail.methods.values()) {
+                if (mi.getId() != -1) {
+                    callers.add(mi);
+                }
+            }
+        }
+        instantiated.clear();
+        instantiated.addAll(declaredInstantiated);
+        dispatchCache.clear();
+        if (rta) {
+            Parallel.forEach(callers, new Parallel.Body<MethodInfo>() {
+                @Override
+                public void run(MethodInfo mi) {
+                    if (mi.insns == null) return;
+                    for (Instruction i : mi.insns) {
+                        if (i.opcode == Instruction.OP_NEW && i.opcode_aux == Instruction.OP_NEW_INSTANCE) {
+                            instantiated.add(i.type);
+                        }
+                    }
+                }
+            });
+        }
+
+        // resolve the call sites of every method into its own slot
+        final int n = callers.size();
+        final MethodInfo[][] targets = new MethodInfo[n][];
+        final int[][] sites = new int[n][];
+        Parallel.forRange(n, new Parallel.RangeBody() {
+            @Override
+            public void run(int slot) {
+                final MethodInfo mi = callers.get(slot);
+                final ArrayList<MethodInfo> t = new ArrayList<MethodInfo>();
+                final ArrayList<Integer> s = new ArrayList<Integer>();
+                if (mi.insns != null) {
+                    for (int idx = 0; idx < mi.insns.length; ++idx) {
+                        final Instruction i = mi.insns[idx];
+                        if (i.opcode != Instruction.OP_INVOKE_OP) continue;
+                        for (MethodInfo callee : resolve(i)) {
+                            if (callee.getId() == -1) continue;
+                            t.add(callee);
+                            s.add(idx);
+                        }
+                    }
+                }
+                targets[slot] = t.toArray(new MethodInfo[t.size()]);
+                sites[slot] = new int[s.size()];
+                for (int k = 0; k < sites[slot].length; ++k) {
+                    sites[slot][k] = s.get(k);
+                }
+            }
+        });
+
+        int nEdges = 0;
+        for (int k = 0; k < n; ++k) {
+            nEdges += targets[k].length;
+        }
+        final int nMethods = scope.getMethodCount();
+        final int[] edgeStart = new int[nMethods + 1];
+        for (int k = 0; k < n; ++k) {
+            edgeStart[callers.get(k).getId() + 1] = targets[k].length;
+        }
+        for (int m = 0; m < nMethods; ++m) {
+            edgeStart[m + 1] += edgeStart[m];
+        }
+        final int[] edgeTarget = new int[nEdges];
+        final int[] edgeSite = new int[nEdges];
+        for (int k = 0; k < n; ++k) {
+            int e = edgeStart[callers.get(k).getId()];
+            for (int j = 0; j < targets[k].length; ++j, ++e) {
+                edgeTarget[e] = targets[k][j].getId();
+                edgeSite[e] = sites[k][j];
+            }
+        }
+        return new CallGraph(scope, idGeneration, nMethods, edgeStart, edgeTarget, edgeSite);
+    }
+
+    private MethodInfo[] resolve(Instruction i) {
+        final Invocation invocation = (Invocation) i.extra;
+        final MethodInfo target = invocation.target;
+        if (target == null) {
+            return NO_METHODS;
+        }
+        switch (i.opcode_aux) {
+        case Instruction.OP_INVOKE_VIRTUAL:
+        case Instruction.OP_INVOKE_INTERFACE:
+            final ClassInfo owner = invocation.owner == null ? target.type : invocation.owner;
+            final Pair<ClassInfo, MethodInfo> key = new Pair<ClassInfo, MethodInfo>(owner, target);
+            MethodInfo[] r = dispatchCache.get(key);
+            if (r == null) {
+                r = dispatch(owner, target);
+                dispatchCache.put(key, r);
+            }
+            return r;
+        default:
+            return new MethodInfo[] {target};
+        }
+    }
+
+    /**
+     * Find the methods a virtual call to a method on a receiver type might dispatch to
+     */
+    private MethodInfo[] dispatch(ClassInfo owner, MethodInfo target) {
+        if (overrides != null && !rta) {
+            return overrides.getDispatchTargets(owner, target);
+        }
+        // a receiver type not known to inherit the target, e.g. a missing class, is ignored
+        final ClassInfo receiver = OverrideIndex.isLoadedSubtype(owner, target.type) ? owner : target.type;
+        final List<MethodInfo> r = new ArrayList<MethodInfo>();
+        final IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+        addDispatchTarget(receiver, target, r, seen);
+        for (ClassInfo sub : receiver.mutableDetail.derivedClasses) {
+            addDispatchTarget(sub, target, r, seen);
+        }
+        if (r.isEmpty()) {
+            // nothing known to be instantiated, keep the declared target
+            r.add(target);
+        }
+        return r.toArray(new MethodInfo[r.size()]);
+    }
+
+    private void addDispatchTarget(ClassInfo ci, MethodInfo target, List<MethodInfo> r,
+                                   IdentityHashMap<Object, Boolean> seen) {
+        if (seen.put(ci, Boolean.TRUE) != null) return;
+        if (ci.isInterface() || ci.isAbstract()) return;
+        if (rta && !ci.isFrameworkClass() && !instantiated.contains(ci)) return;
+        final MethodInfo m = ci.findMethod(target.signature);
+        if (m != null && !m.isAbstract() && seen.put(m, Boolean.TRUE) == null) {
+            r.add(m);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package patdroid.callgraph;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import patdroid.core.ClassDetail;
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+
+/**
+ * The methods overriding every method of the loaded classes of a scope, the reverse of
+ * {@link MethodInfo#getOverridingMethod()} closed over the whole hierarchy, so that the
+ * targets of a virtual call are listed without walking the subclasses of the receiver.
+ * <p>
+ * A method m overrides a method s if a class declaring m is a subtype of the class
+ * declaring s, with the same signature, both being neither static, private nor
+ * constructors. A class also makes the method it inherits from a base class override the
+ * methods of the interfaces it implements, as in
+ * <pre>
+ * class B { public void run() {} }
+ * class C extends B implements Runnable {}
+ * </pre>
+ * where B.run overrides Runnable.run for receivers of class C. The index is built in one
+ * pass over the declared methods of every class and the supertypes of the class, and is
+ * stored in compressed sparse row layout over the method ids of the scope.
+ * </p>
+ * <p>
+ * An index is immutable and reflects the hierarchy at the time it was built; see
+ * {@link #isCurrent()}. Its lookups throw an {@link IllegalStateException} once the scope
+ * gave ids back, see {@link Scope#getIdGeneration()}.
+ * </p>
+ */
+public final class OverrideIndex {
+    public final Scope scope;
+    private final int hierarchyVersion;
+    private final int idGeneration;
+    private final int[] start;
+    private final int[] overriders;
+
+    private OverrideIndex(Scope scope, int hierarchyVersion, int idGeneration, int[] start, int[] overriders) {
+        this.scope = scope;
+        this.hierarchyVersion = hierarchyVersion;
+        this.idGeneration = idGeneration;
+        this.start = start;
+        this.overriders = overriders;
+    }
+
+    /**
+     * @param scope the scope
+     * @return the index of the loaded classes of the scope
+     */
+    public static OverrideIndex build(Scope scope) {
+        final int version = scope.getHierarchyVersion();
+        final int idGeneration = scope.getIdGeneration();
+        // pairs of overridden method and overriding method
+        final ArrayList<MethodInfo> pairs = new ArrayList<MethodInfo>();
+        final Map<ClassInfo, List<ClassInfo>> memo = new IdentityHashMap<ClassInfo, List<ClassInfo>>();
+        for (ClassInfo ci : scope.getAllClasses()) {
+            if (!ci.isLoaded()) {
+                continue;
+            }
+            final List<ClassInfo> supertypes = getSupertypes(ci, memo);
+            final ClassDetail detail = ci.mutableDetail;
+            for (MethodInfo m : detail.methods.values()) {
+                if (!isVirtual(m)) {
+                    continue;
+                }
+                for (ClassInfo s : supertypes) {
+                    final MethodInfo overridden = s.mutableDetail.methods.get(m.signature);
+                    if (overridden != null && isVirtual(overridden)) {
+                        pairs.add(overridden);
+                        pairs.add(m);
+                    }
+                }
+            }
+            if (!ci.isInterface()) {
+                addInheritedImplementations(ci, supertypes, pairs, memo);
+            }
+        }
+
+        for (MethodInfo mi : pairs) {
+            scope.registerMethod(mi);
+        }
+        final int n = scope.getMethodCount();
+        final int[] count = new int[n + 1];
+        for (int k = 0; k < pairs.size(); k += 2) {
+            ++count[pairs.get(k).getId() + 1];
+        }
+        for (int m = 0; m < n; ++m) {
+            count[m + 1] += count[m];
+        }
+        final int[] values = new int[pairs.size() / 2];
+        final int[] fill = new int[n];
+        for (int k = 0; k < pairs.size(); k += 2) {
+            final int key = pairs.get(k).getId();
+            values[count[key] + fill[key]++] = pairs.get(k + 1).getId();
+        }
+        // sort and drop the duplicates of each method, e.g. from diamond interfaces
+        final int[] start = new int[n + 1];
+        int size = 0;
+        for (int m = 0; m < n; ++m) {
+            Arrays.sort(values, count[m], count[m + 1]);
+            for (int e = count[m]; e < count[m + 1]; ++e) {
+                if (e == count[m] || values[e] != values[e - 1]) {
+                    values[size++] = values[e];
+                }
+            }
+            start[m + 1] = size;
+        }
+        return new OverrideIndex(scope, version, idGeneration, start, Arrays.copyOf(values, size));
+    }
+
+    /**
+     * Pair the interface methods a class does not declare with the implementation it
+     * inherits, when that comes from a class not implementing the interface
+     */
+    private static void addInheritedImplementations(ClassInfo ci, List<ClassInfo> supertypes,
+            List<MethodInfo> pairs, Map<ClassInfo, List<ClassInfo>> memo) {
+        for (ClassInfo s : supertypes) {
+            if (!s.isInterface()) {
+                continue;
+            }
+            for (MethodInfo im : s.mutableDetail.methods.values()) {
+                if (!isVirtual(im) || ci.mutableDetail.methods.containsKey(im.signature)) {
+                    continue;
+                }
+                final MethodInfo impl = findInClasses(ci.mutableDetail.baseType, im);
+                if (impl != null && !getSupertypes(impl.type, memo).contains(s)) {
+                    pairs.add(im);
+                    pairs.add(impl);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the method declared by the class or its closest base class, or null
+     */
+    private static MethodInfo findInClasses(ClassInfo ci, MethodInfo im) {
+        for (ClassInfo c = ci; c != null && c.isLoaded(); c = c.mutableDetail.baseType) {
+            final MethodInfo m = c.mutableDetail.methods.get(im.signature);
+            if (m != null) {
+                return isVirtual(m) ? m : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the loaded base classes and interfaces of a class, transitively
+     */
+    private static List<ClassInfo> getSupertypes(ClassInfo ci, Map<ClassInfo, List<ClassInfo>> memo) {
+        List<ClassInfo> r = memo.get(ci);
+        if (r != null) {
+            return r;
+        }
+        final IdentityHashMap<ClassInfo, Boolean> seen = new IdentityHashMap<ClassInfo, Boolean>();
+        r = new ArrayList<ClassInfo>();
+        final ArrayDeque<ClassInfo> q = new ArrayDeque<ClassInfo>();
+        q.add(ci);
+        while (!q.isEmpty()) {
+            final ClassDetail d = q.poll().mutableDetail;
+            final ArrayList<ClassInfo> direct = new ArrayList<ClassInfo>(d.interfaces);
+            if (d.baseType != null) {
+                direct.add(0, d.baseType);
+            }
+            for (ClassInfo s : direct) {
+                if (s.isLoaded() && seen.put(s, Boolean.TRUE) == null) {
+                    r.add(s);
+                    q.add(s);
+                }
+            }
+        }
+        memo.put(ci, r);
+        return r;
+    }
+
+    /**
+     * @return true if a class is a type or a subtype of it through loaded classes, without
+     * loading classes on demand
+     */
+    static boolean isLoadedSubtype(ClassInfo ci, ClassInfo type) {
+        if (ci == type) {
+            return true;
+        }
+        if (!ci.isLoaded()) {
+            return false;
+        }
+        final ClassDetail d = ci.mutableDetail;
+        if (d.baseType != null && isLoadedSubtype(d.baseType, type)) {
+            return true;
+        }
+        for (ClassInfo i : d.interfaces) {
+            if (isLoadedSubtype(i, type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVirtual(MethodInfo mi) {
+        return !mi.isStatic() && !mi.isConstructor() && !Modifier.isPrivate(mi.modifiers);
+    }
+
+    /**
+     * @return true if the hierarchy and the ids of the scope did not change since the index
+     * was built
+     */
+    public boolean isCurrent() {
+        return scope.getHierarchyVersion() == hierarchyVersion && scope.getIdGeneration() == idGeneration;
+    }
+
+    /**
+     * @param mi a method
+     * @return the methods overriding the method, directly or not
+     */
+    public List<MethodInfo> getOverriders(MethodInfo mi) {
+        scope.checkIdGeneration(idGeneration);
+        final int id = mi.getId();
+        if (id == -1 || id + 1 >= start.length) {
+            return Collections.emptyList();
+        }
+        final ArrayList<MethodInfo> r = new ArrayList<MethodInfo>(start[id + 1] - start[id]);
+        for (int e = start[id]; e < start[id + 1]; ++e) {
+            final MethodInfo m = scope.getMethodById(overriders[e]);
+            if (m != null) {
+                r.add(m);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param target the resolved target of a virtual or interface call on a receiver of
+     * the class declaring the target
+     * @return the methods the call may dispatch to: the target and its overriders that are
+     * not abstract, or the target alone if all are
+     */
+    public MethodInfo[] getDispatchTargets(MethodInfo target) {
+        return getDispatchTargets(target.type, target);
+    }
+
+    /**
+     * @param owner the static type of the receiver, the class of the method reference
+     * of the call, see {@link patdroid.dalvik.Invocation#owner}
+     * @param target the resolved target of the call, declared by the owner or inherited
+     * @return the methods the call may dispatch to: the target and its overriders that are
+     * not abstract and may be reached from a receiver of the owner, or the target alone if
+     * there are none
+     */
+    public MethodInfo[] getDispatchTargets(ClassInfo owner, MethodInfo target) {
+        // an owner not known to inherit the target, e.g. a missing class, is ignored
+        final boolean narrow = owner != target.type && isLoadedSubtype(owner, target.type);
+        final ArrayList<MethodInfo> r = new ArrayList<MethodInfo>();
+        if (!target.isAbstract()) {
+            r.add(target);
+        }
+        for (MethodInfo m : getOverriders(target)) {
+            // a class not implementing the interface of the target only overrides it for
+            // its subclasses that do, which may implement the owner
+            if (!m.isAbstract() && (!narrow || isLoadedSubtype(m.type, owner)
+                    || !isLoadedSubtype(m.type, target.type))) {
+                r.add(m);
+            }
+        }
+        if (r.isEmpty()) {
+            r.add(target);
+        }
+        return r.toArray(new MethodInfo[r.size()]);
+    }
+
+    /**
+     * @return the number of pairs of overridden and overriding methods
+     */
+    public int size() {
+        return overriders.length;
+    }
+}
@@ -0,0 +1,184 @@
+package patdroid.callgraph;
+
+import java.util.Arrays;
+
+/**
+ * The strongly connected components of a call graph, i.e. its sets of mutually recursive
+ * methods, and the acyclic graph of calls between them.
+ * <p>
+ * Components are numbered in reverse topological order: a component only calls
+ * components with a smaller number, or itself, so that processing them by increasing
+ * number visits the callees before the callers. The members of component c are the
+ * entries [memberStart[c], memberStart[c+1]) of the member array, and the components it
+ * calls and is called by are stored the same way.
+ * </p>
+ */
+public final class StronglyConnectedComponents {
+    public final CallGraph graph;
+    private final int[] component;
+    private final int[] memberStart;
+    private final int[] members;
+    private final boolean[] recursive;
+    private final int[] calleeStart;
+    private final int[] callees;
+    private final int[] callerStart;
+    private final int[] callers;
+
+    /**
+     * Find the components with Tarjan's algorithm, made iterative so that long call chains
+     * do not overflow the stack
+     * @param graph the call graph
+     */
+    public StronglyConnectedComponents(CallGraph graph) {
+        this.graph = graph;
+        final int n = graph.getMethodCount();
+        component = new int[n];
+        members = new int[n];
+        memberStart = new int[n + 1];
+        final int[] index = new int[n];
+        final int[] low = new int[n];
+        final boolean[] onStack = new boolean[n];
+        final int[] stack = new int[n];
+        final int[] callStack = new int[n];
+        final int[] cursor = new int[n];
+        Arrays.fill(index, -1);
+        int nextIndex = 0, sp = 0, nComponents = 0, nMembers = 0;
+        for (int root = 0; root < n; ++root) {
+            if (index[root] != -1) {
+                continue;
+            }
+            int depth = 0;
+            index[root] = low[root] = nextIndex++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            callStack[depth] = root;
+            cursor[depth++] = graph.getEdgeStart(root);
+            while (depth > 0) {
+                final int v = callStack[depth - 1];
+                final int e = cursor[depth - 1];
+                if (e < graph.getEdgeEnd(v)) {
+                    ++cursor[depth - 1];
+                    final int w = graph.getEdgeTarget(e);
+                    if (index[w] == -1) {
+                        index[w] = low[w] = nextIndex++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callStack[depth] = w;
+                        cursor[depth++] = graph.getEdgeStart(w);
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                --depth;
+                if (low[v] == index[v]) {
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        component[w] = nComponents;
+                        members[nMembers++] = w;
+                    } while (w != v);
+                    memberStart[++nComponents] = nMembers;
+                }
+                if (depth > 0) {
+                    final int parent = callStack[depth - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+
+        recursive = new boolean[nComponents];
+        for (int c = 0; c < nComponents; ++c) {
+            recursive[c] = memberStart[c + 1] - memberStart[c] > 1;
+        }
+        // distinct edges between components, self loops mark a recursive method
+        final int[] stamp = new int[nComponents];
+        final int[] calleeCount = new int[nComponents + 1];
+        final int[] callerCount = new int[nComponents + 1];
+        for (int c = 0; c < nComponents; ++c) {
+            for (int k = memberStart[c]; k < memberStart[c + 1]; ++k) {
+                for (int e = graph.getEdgeStart(members[k]); e < graph.getEdgeEnd(members[k]); ++e) {
+                    final int t = component[graph.getEdgeTarget(e)];
+                    if (t == c) {
+                        recursive[c] = true;
+                    } else if (stamp[t] != c + 1) {
+                        stamp[t] = c + 1;
+                        ++calleeCount[c + 1];
+                        ++callerCount[t + 1];
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < nComponents; ++c) {
+            calleeCount[c + 1] += calleeCount[c];
+            callerCount[c + 1] += callerCount[c];
+        }
+        calleeStart = calleeCount;
+        callerStart = callerCount;
+        callees = new int[calleeStart[nComponents]];
+        callers = new int[callerStart[nComponents]];
+        final int[] callerFill = new int[nComponents];
+        int nCallees = 0;
+        Arrays.fill(stamp, 0);
+        for (int c = 0; c < nComponents; ++c) {
+            for (int k = memberStart[c]; k < memberStart[c + 1]; ++k) {
+                for (int e = graph.getEdgeStart(members[k]); e < graph.getEdgeEnd(members[k]); ++e) {
+                    final int t = component[graph.getEdgeTarget(e)];
+                    if (t != c && stamp[t] != c + 1) {
+                        stamp[t] = c + 1;
+                        callees[nCallees++] = t;
+                        callers[callerStart[t] + callerFill[t]++] = c;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of components
+     */
+    public int getComponentCount() {
+        return recursive.length;
+    }
+
+    /**
+     * @param id the method id
+     * @return the component of the method
+     */
+    public int getComponent(int id) {
+        return component[id];
+    }
+
+    /**
+     * @param c the component
+     * @return the ids of the methods of the component
+     */
+    public int[] getMembers(int c) {
+        return Arrays.copyOfRange(members, memberStart[c], memberStart[c + 1]);
+    }
+
+    /**
+     * @param c the component
+     * @return true if the component has several methods, or a method calling itself
+     */
+    public boolean isRecursive(int c) {
+        return recursive[c];
+    }
+
+    /**
+     * @param c the component
+     * @return the distinct other components called by the component
+     */
+    public int[] getCallees(int c) {
+        return Arrays.copyOfRange(callees, calleeStart[c], calleeStart[c + 1]);
+    }
+
+    /**
+     * @param c the component
+     * @return the distinct other components calling the component
+     */
+    public int[] getCallers(int c) {
+        return Arrays.copyOfRange(callers, callerStart[c], callerStart[c + 1]);
+    }
+}
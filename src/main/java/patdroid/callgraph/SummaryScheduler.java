@@ -0,0 +1,193 @@
+package patdroid.callgraph;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import patdroid.Settings;
+import patdroid.core.MethodInfo;
+
+/**
+ * Compute a summary of every method of a call graph bottom-up, the summaries of the
+ * callees being available when a method is summarized.
+ * <p>
+ * The methods are grouped in {@link StronglyConnectedComponents}. A component is scheduled
+ * once all the components it calls are done, and as many components run in parallel as
+ * the dependencies allow, on {@link Settings#nThreads} threads. The methods of a
+ * recursive component are summarized again and again until none of their summaries
+ * changes, so the analysis must reach a fixpoint, e.g. by only growing its summaries
+ * over a domain of finite height. Summaries are updated in place, Gauss-Seidel style: a
+ * method sees the summaries computed earlier in the same iteration, which usually saves
+ * iterations, but makes the intermediate summaries depend on the order of the members.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre>
+ * Summaries&lt;Set&lt;String&gt;&gt; s = new SummaryScheduler(graph).run(analysis);
+ * Set&lt;String&gt; summary = s.get(method);
+ * </pre>
+ * </p>
+ */
+public final class SummaryScheduler {
+    public final StronglyConnectedComponents components;
+
+    /**
+     * The work of summarizing one method
+     * @param <S> the type of the summaries
+     */
+    public interface Analysis<S> {
+        /**
+         * Called on one thread at a time per component, but on several components
+         * concurrently
+         * @param mi the method, possibly without instructions
+         * @param summaries the summaries of the callees; in a recursive component, the
+         * latest summaries of the component, from this iteration for the members
+         * summarized before this method and from the previous one for the others, null
+         * at first
+         * @return the summary of the method, compared with {@link Object#equals(Object)}
+         * to the previous one to detect the fixpoint
+         */
+        S summarize(MethodInfo mi, Summaries<S> summaries);
+    }
+
+    /**
+     * The summaries of the methods of a call graph
+     * @param <S> the type of the summaries
+     */
+    public static final class Summaries<S> {
+        private final CallGraph graph;
+        // written before the component is marked done, and read after, see run()
+        private final Object[] values;
+
+        private Summaries(CallGraph graph) {
+            this.graph = graph;
+            this.values = new Object[graph.getMethodCount()];
+        }
+
+        /**
+         * @param mi a method
+         * @return its summary, or null if the method is not in the graph or is not
+         * summarized yet
+         */
+        @SuppressWarnings("unchecked")
+        public S get(MethodInfo mi) {
+            final int id = graph.getId(mi);
+            return id == -1 ? null : (S) values[id];
+        }
+    }
+
+    /**
+     * @param graph the call graph
+     */
+    public SummaryScheduler(CallGraph graph) {
+        this(new StronglyConnectedComponents(graph));
+    }
+
+    /**
+     * @param components the components of a call graph, e.g. computed for an earlier run
+     */
+    public SummaryScheduler(StronglyConnectedComponents components) {
+        this.components = components;
+    }
+
+    /**
+     * Summarize all methods of the call graph and wait for the summaries
+     * @param analysis the analysis
+     * @return the summaries
+     * @throws RuntimeException the first exception thrown by the analysis
+     */
+    public <S> Summaries<S> run(final Analysis<S> analysis) {
+        final Summaries<S> summaries = new Summaries<S>(components.graph);
+        final int n = components.getComponentCount();
+        if (Settings.nThreads <= 1 || n <= 1) {
+            // the components are numbered callees first
+            for (int c = 0; c < n; ++c) {
+                summarize(c, analysis, summaries);
+            }
+            return summaries;
+        }
+
+        // the number of callee components not done yet; the atomic decrement of the last
+        // one orders the summaries of the callees before their reads by the caller
+        final AtomicInteger[] pending = new AtomicInteger[n];
+        for (int c = 0; c < n; ++c) {
+            pending[c] = new AtomicInteger(components.getCallees(c).length);
+        }
+        final AtomicInteger remaining = new AtomicInteger(n);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(Settings.nThreads);
+        final class Task implements Runnable {
+            final int c;
+
+            Task(int c) {
+                this.c = c;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    summarize(c, analysis, summaries);
+                    for (int caller : components.getCallers(c)) {
+                        if (pending[caller].decrementAndGet() == 0) {
+                            pool.execute(new Task(caller));
+                        }
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        done.countDown();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    done.countDown();
+                }
+            }
+        }
+        // find the leaves before starting any, a running task may bring a caller to zero
+        final ArrayList<Integer> leaves = new ArrayList<Integer>();
+        for (int c = 0; c < n; ++c) {
+            if (pending[c].get() == 0) {
+                leaves.add(c);
+            }
+        }
+        try {
+            for (int c : leaves) {
+                pool.execute(new Task(c));
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        final Throwable cause = failure.get();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        if (cause != null) throw new RuntimeException(cause);
+        return summaries;
+    }
+
+    private <S> void summarize(int c, Analysis<S> analysis, Summaries<S> summaries) {
+        final CallGraph graph = components.graph;
+        final int[] members = components.getMembers(c);
+        boolean changed;
+        do {
+            changed = false;
+            for (int id : members) {
+                final MethodInfo mi = graph.getMethod(id);
+                if (mi == null) {
+                    continue;
+                }
+                final S s = analysis.summarize(mi, summaries);
+                final Object old = summaries.values[id];
+                if (s == null ? old != null : !s.equals(old)) {
+                    summaries.values[id] = s;
+                    changed = true;
+                }
+            }
+        } while (changed && components.isRecursive(c));
+    }
+}
@@ -0,0 +1,44 @@
+package patdroid.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The key of an attribute attached to the elements of a scope, see {@link AttributeStore}.
+ * <p>
+ * An analysis typically creates its keys once, as static final fields, so that its
+ * results never collide with those of other analyses. Keys compare by identity.
+ *
+ * @param <T> the type of the attribute values
+ */
+public final class AttributeKey<T> {
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+
+    /**
+     * The name of the attribute, for debugging only
+     */
+    public final String name;
+    /**
+     * The dense index of the key, used to find its table in an attribute store
+     */
+    final int index;
+
+    private AttributeKey(String name) {
+        this.name = name;
+        this.index = nextIndex.getAndIncrement();
+    }
+
+    /**
+     * Create a new key
+     * @param name the name of the attribute
+     * @param <T> the type of the attribute values
+     * @return a key different from all other keys
+     */
+    public static <T> AttributeKey<T> create(String name) {
+        return new AttributeKey<T>(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,264 @@
+package patdroid.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import patdroid.dalvik.Instruction;
+
+/**
+ * Typed attributes attached to the classes, methods and instructions of a scope.
+ * <p>
+ * Unlike the single {@link MethodInfo#extra} and {@link Instruction#extra} slots, any
+ * number of analyses can annotate the same elements, each with its own
+ * {@link AttributeKey}. Values are kept in arrays indexed by the dense ids of the scope
+ * (see {@link MethodInfo#getId()} and {@link ClassInfo#id}), so a lookup is two array
+ * reads. The arrays are allocated in pages that never move, which makes concurrent
+ * reads and writes safe without locking.
+ * <p>
+ * Instruction attributes are tied to the instruction stream of their method: once
+ * {@link MethodInfo#insns} is replaced, the old values are no longer visible.
+ */
+public final class AttributeStore {
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final Scope scope;
+    private volatile Table[] tables = new Table[0];
+
+    AttributeStore(Scope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * @param key the attribute
+     * @param ci the class
+     * @param <T> the type of the attribute
+     * @return the value of the attribute on the class, or null if not set
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(AttributeKey<T> key, ClassInfo ci) {
+        final Table t = getTable(key);
+        return t == null ? null : (T) t.classes.get(ci.id);
+    }
+
+    /**
+     * @param key the attribute
+     * @param ci the class
+     * @param value the new value, null to remove the attribute
+     * @param <T> the type of the attribute
+     */
+    public <T> void set(AttributeKey<T> key, ClassInfo ci, T value) {
+        getOrCreateTable(key).classes.set(ci.id, value);
+    }
+
+    /**
+     * @param key the attribute
+     * @param mi the method
+     * @param <T> the type of the attribute
+     * @return the value of the attribute on the method, or null if not set
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(AttributeKey<T> key, MethodInfo mi) {
+        final Table t = getTable(key);
+        final int id = mi.getId();
+        return t == null || id == -1 ? null : (T) t.methods.get(id);
+    }
+
+    /**
+     * Set an attribute of a method, registering the method in the scope if necessary
+     * @param key the attribute
+     * @param mi the method
+     * @param value the new value, null to remove the attribute
+     * @param <T> the type of the attribute
+     * @throws IllegalStateException if the method has no id and the scope is sealed
+     */
+    public <T> void set(AttributeKey<T> key, MethodInfo mi, T value) {
+        getOrCreateTable(key).methods.set(scope.registerMethod(mi), value);
+    }
+
+    /**
+     * @param key the attribute
+     * @param mi the method
+     * @param index the index of the instruction in the method
+     * @param <T> the type of the attribute
+     * @return the value of the attribute on the instruction, or null if not set
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(AttributeKey<T> key, MethodInfo mi, int index) {
+        final Table t = getTable(key);
+        final int id = mi.getId();
+        if (t == null || id == -1) {
+            return null;
+        }
+        final InstructionValues v = (InstructionValues) t.instructions.get(id);
+        return v == null || v.insns != mi.insns ? null : (T) v.values.get(index);
+    }
+
+    /**
+     * Set an attribute of an instruction, registering the method in the scope if necessary
+     * @param key the attribute
+     * @param mi the method
+     * @param index the index of the instruction in the method
+     * @param value the new value, null to remove the attribute
+     * @param <T> the type of the attribute
+     * @throws IllegalStateException if the method has no id and the scope is sealed
+     */
+    public <T> void set(AttributeKey<T> key, MethodInfo mi, int index, T value) {
+        final Instruction[] insns = mi.insns;
+        if (insns == null) {
+            throw new IllegalArgumentException("method has no instructions: " + mi);
+        }
+        final PagedArray instructions = getOrCreateTable(key).instructions;
+        final int id = scope.registerMethod(mi);
+        InstructionValues v = (InstructionValues) instructions.get(id);
+        while (v == null || v.insns != insns) {
+            final InstructionValues fresh = new InstructionValues(insns);
+            if (instructions.compareAndSet(id, v, fresh)) {
+                v = fresh;
+            } else {
+                v = (InstructionValues) instructions.get(id);
+            }
+        }
+        v.values.set(index, value);
+    }
+
+    /**
+     * Drop all values of an attribute, e.g. when an analysis is done or its results are
+     * invalidated
+     * @param key the attribute
+     */
+    public synchronized void clear(AttributeKey<?> key) {
+        if (key.index < tables.length) {
+            final Table[] t = tables.clone();
+            t[key.index] = null;
+            tables = t;
+        }
+    }
+
+    /**
+     * Drop all attributes
+     */
+    public synchronized void clear() {
+        tables = new Table[0];
+    }
+
+    /**
+     * Drop the values of all attributes of a class, whose id may be reused
+     */
+    void remove(ClassInfo ci) {
+        for (Table t : tables) {
+            if (t != null) {
+                t.classes.set(ci.id, null);
+            }
+        }
+    }
+
+    /**
+     * Drop the values of all attributes of a method and its instructions, whose id may be reused
+     */
+    void remove(MethodInfo mi) {
+        final int id = mi.getId();
+        if (id == -1) {
+            return;
+        }
+        for (Table t : tables) {
+            if (t != null) {
+                t.methods.set(id, null);
+                t.instructions.set(id, null);
+            }
+        }
+    }
+
+    private Table getTable(AttributeKey<?> key) {
+        final Table[] t = tables;
+        return key.index < t.length ? t[key.index] : null;
+    }
+
+    private Table getOrCreateTable(AttributeKey<?> key) {
+        final Table t = getTable(key);
+        return t != null ? t : createTable(key);
+    }
+
+    private synchronized Table createTable(AttributeKey<?> key) {
+        Table[] t = tables;
+        if (key.index >= t.length) {
+            t = Arrays.copyOf(t, Math.max(key.index + 1, t.length * 2));
+        } else if (t[key.index] != null) {
+            return t[key.index];
+        } else {
+            t = t.clone();
+        }
+        final Table table = new Table();
+        t[key.index] = table;
+        tables = t;
+        return table;
+    }
+
+    /**
+     * The values of one attribute
+     */
+    private static final class Table {
+        final PagedArray classes = new PagedArray();
+        final PagedArray methods = new PagedArray();
+        final PagedArray instructions = new PagedArray();
+    }
+
+    /**
+     * The values of an attribute for the instructions of a method
+     */
+    private static final class InstructionValues {
+        final Instruction[] insns;
+        final AtomicReferenceArray<Object> values;
+
+        InstructionValues(Instruction[] insns) {
+            this.insns = insns;
+            this.values = new AtomicReferenceArray<Object>(insns.length);
+        }
+    }
+
+    /**
+     * A growable array indexed by id, allocated in fixed-size pages
+     */
+    private static final class PagedArray {
+        private volatile Object[] pages = new Object[0];
+
+        @SuppressWarnings("unchecked")
+        private AtomicReferenceArray<Object> page(int id, boolean create) {
+            final Object[] p = pages;
+            final int k = id >>> PAGE_BITS;
+            if (k < p.length && p[k] != null) {
+                return (AtomicReferenceArray<Object>) p[k];
+            }
+            return create ? allocate(k) : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized AtomicReferenceArray<Object> allocate(int k) {
+            Object[] p = pages;
+            if (k < p.length && p[k] != null) {
+                return (AtomicReferenceArray<Object>) p[k];
+            }
+            p = Arrays.copyOf(p, Math.max(k + 1, p.length));
+            final AtomicReferenceArray<Object> page = new AtomicReferenceArray<Object>(PAGE_SIZE);
+            p[k] = page;
+            pages = p;
+            return page;
+        }
+
+        Object get(int id) {
+            final AtomicReferenceArray<Object> page = page(id, false);
+            return page == null ? null : page.get(id & (PAGE_SIZE - 1));
+        }
+
+        void set(int id, Object value) {
+            final AtomicReferenceArray<Object> page = page(id, value != null);
+            if (page != null) {
+                page.set(id & (PAGE_SIZE - 1), value);
+            }
+        }
+
+        boolean compareAndSet(int id, Object expect, Object update) {
+            return page(id, true).compareAndSet(id & (PAGE_SIZE - 1), expect, update);
+        }
+    }
+}
@@ -38,33 +38,50 @@ public final class ClassDetail {
     public final ImmutableList<ClassInfo> interfaces;
     public final int accessFlags;
     /**
-     * Primary index, from a full method signature (with return type) to exactly one possible method
+     * Primary index, from a full method signature (with return type) to exactly one possible method.
+     * Like the field maps, it is an unmodifiable view, array-backed for a few entries and an
+     * {@link com.google.common.collect.ImmutableMap} above, whose iteration order is the order
+     * the methods were set in.
      */
-    public final ImmutableMap<FullMethodSignature, MethodInfo> methods;
+    public final Map<FullMethodSignature, MethodInfo> methods;
     /**
-     * Secondary index, from a method signature (without return type) to multiple possible methods
+     * Secondary index, built on first use, see {@link #getMethodsIndex()}
      */
-    public final ImmutableMultimap<MethodSignature, MethodInfo> methodsIndex;
-    public final ImmutableMap<String, ClassInfo> fields;
-    public final ImmutableMap<String, ClassInfo> staticFields;
+    volatile ImmutableMultimap<MethodSignature, MethodInfo> methodsIndex;
+    private volatile Map<String, MethodInfo[]> methodsByName;
+    /**
+     * The non-static fields declared by the class, from name to type, unmodifiable
+     */
+    public final Map<String, ClassInfo> fields;
+    /**
+     * The static fields declared by the class, from name to type, unmodifiable
+     */
+    public final Map<String, ClassInfo> staticFields;
     public final boolean isFrameworkClass;
+    /**
+     * Immutable copies of the member maps handed out by {@link ClassInfo}, made on first use
+     */
+    private volatile ImmutableMap<String, ClassInfo> immutableFields;
+    private volatile ImmutableMap<String, ClassInfo> immutableStaticFields;
+    private volatile ImmutableMap<FullMethodSignature, MethodInfo> immutableMethods;
 
     public static final class Builder {
         ClassInfo baseType;
         ImmutableList<ClassInfo> interfaces;
         int accessFlags;
-        ImmutableMap<FullMethodSignature, MethodInfo> methods;
+        Map<FullMethodSignature, MethodInfo> methods;
         ImmutableMultimap<MethodSignature, MethodInfo> methodsIndex;
-        ImmutableMap<String, ClassInfo> fields;
-        ImmutableMap<String, ClassInfo> staticFields;
+        Map<String, ClassInfo> fields;
+        Map<String, ClassInfo> staticFields;
         boolean isFrameworkClass;
         public Builder() {
             baseType = null;
             interfaces = ImmutableList.<ClassInfo>of();
             accessFlags = 0;
-            methods = ImmutableMap.<FullMethodSignature, MethodInfo>of();
-            methodsIndex = ImmutableMultimap.<MethodSignature, MethodInfo>of();
-            fields = ImmutableMap.<String, ClassInfo>of();
+            methods = Collections.emptyMap();
+            methodsIndex = null;
+            fields = Collections.emptyMap();
+            staticFields = Collections.emptyMap();
             isFrameworkClass = true;
         }
 
@@ -81,19 +98,18 @@ public final class ClassDetail {
             return this;
         }
         public Builder setAllMethods(List<MethodInfo> methods) {
-            // build secondary index
-            ImmutableMultimap.Builder<MethodSignature, MethodInfo> indexBuilder = ImmutableMultimap.builder();
-            ImmutableMap.Builder<FullMethodSignature, MethodInfo> methodsBuilder = ImmutableMap.builder();
+            LinkedHashMap<FullMethodSignature, MethodInfo> m = new LinkedHashMap<FullMethodSignature, MethodInfo>();
             for (MethodInfo method : methods) {
-                methodsBuilder.put(method.signature, method);
-                indexBuilder.put(method.signature.partialSignature, method);
+                if (m.put(method.signature, method) != null) {
+                    throw new IllegalArgumentException("duplicate method: " + method);
+                }
             }
-            this.methods = methodsBuilder.build();
-            this.methodsIndex = indexBuilder.build();
+            this.methods = SmallMap.copyOf(m);
+            this.methodsIndex = null;
             return this;
         }
         public Builder setMethods(Map<FullMethodSignature, MethodInfo> methods) {
-            this.methods = ImmutableMap.copyOf(methods);
+            this.methods = SmallMap.copyOf(methods);
             return this;
         }
         public Builder setMethodsIndex(Multimap<MethodSignature, MethodInfo> methodsIndex) {
@@ -101,11 +117,11 @@ public final class ClassDetail {
             return this;
         }
         public Builder setFields(Map<String, ClassInfo> fields) {
-            this.fields = ImmutableMap.copyOf(fields);
+            this.fields = SmallMap.copyOf(fields);
             return this;
         }
         public Builder setStaticFields(Map<String, ClassInfo> staticFields) {
-            this.staticFields = ImmutableMap.copyOf(staticFields);
+            this.staticFields = SmallMap.copyOf(staticFields);
             return this;
         }
         public Builder setIsFrameworkClass(boolean isFrameworkClass) {
@@ -138,6 +154,78 @@ public final class ClassDetail {
         this.isFrameworkClass = builder.isFrameworkClass;
     }
 
+    /**
+     * Get the secondary index of the methods, from a method signature (without return type)
+     * to multiple possible methods. It is built on first use, as few classes ever need it.
+     * @return the index
+     */
+    public ImmutableMultimap<MethodSignature, MethodInfo> getMethodsIndex() {
+        ImmutableMultimap<MethodSignature, MethodInfo> index = methodsIndex;
+        if (index == null) {
+            ImmutableMultimap.Builder<MethodSignature, MethodInfo> indexBuilder = ImmutableMultimap.builder();
+            for (MethodInfo method : methods.values()) {
+                indexBuilder.put(method.signature.partialSignature, method);
+            }
+            index = indexBuilder.build();
+            methodsIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return the methods as an immutable map, as the {@link #methods} field was once typed
+     * @deprecated read {@link #methods}, which is no longer copied
+     */
+    @Deprecated
+    public ImmutableMap<FullMethodSignature, MethodInfo> getMethodsMap() {
+        return immutableMethods();
+    }
+
+    /**
+     * @return the non-static fields as an immutable map, as the {@link #fields} field was once typed
+     * @deprecated read {@link #fields}, which is no longer copied
+     */
+    @Deprecated
+    public ImmutableMap<String, ClassInfo> getFieldsMap() {
+        return immutableFields();
+    }
+
+    /**
+     * @return the static fields as an immutable map, as the {@link #staticFields} field was once typed
+     * @deprecated read {@link #staticFields}, which is no longer copied
+     */
+    @Deprecated
+    public ImmutableMap<String, ClassInfo> getStaticFieldsMap() {
+        return immutableStaticFields();
+    }
+
+    ImmutableMap<FullMethodSignature, MethodInfo> immutableMethods() {
+        ImmutableMap<FullMethodSignature, MethodInfo> r = immutableMethods;
+        if (r == null) {
+            r = ImmutableMap.copyOf(methods);
+            immutableMethods = r;
+        }
+        return r;
+    }
+
+    ImmutableMap<String, ClassInfo> immutableFields() {
+        ImmutableMap<String, ClassInfo> r = immutableFields;
+        if (r == null) {
+            r = ImmutableMap.copyOf(fields);
+            immutableFields = r;
+        }
+        return r;
+    }
+
+    ImmutableMap<String, ClassInfo> immutableStaticFields() {
+        ImmutableMap<String, ClassInfo> r = immutableStaticFields;
+        if (r == null) {
+            r = ImmutableMap.copyOf(staticFields);
+            immutableStaticFields = r;
+        }
+        return r;
+    }
+
     /**
      * Get the type of a non-static field. This functions will look into the base class.
      * @param fieldName the field name
@@ -152,7 +240,7 @@ public final class ClassDetail {
                 Log.warnwarn("failed to find field: "+ fieldName);
                 return null;
             }
-            return baseType.mutableDetail.getFieldType(fieldName);
+            return baseType.getDetail().getFieldType(fieldName);
         }
     }
 
@@ -170,7 +258,7 @@ public final class ClassDetail {
                 Log.warnwarn("failed to find static field: "+ fieldName);
                 return null;
             }
-            return baseType.mutableDetail.getStaticFieldType(fieldName);
+            return baseType.getDetail().getStaticFieldType(fieldName);
         }
     }
 
@@ -190,9 +278,9 @@ public final class ClassDetail {
                 return mi;
             }
             if (detail.baseType != null)
-                q.push(detail.baseType.mutableDetail);
+                q.push(detail.baseType.getDetail());
             for (ClassInfo i : detail.interfaces)
-                q.push(i.mutableDetail);
+                q.push(i.getDetail());
         }
         return null;
     }
@@ -204,15 +292,26 @@ public final class ClassDetail {
      */
     public MethodInfo[] findMethods(String name) {
         ArrayList<MethodInfo> result = new ArrayList<MethodInfo>();
+        // only methods of the same signature can override each other
+        HashMap<FullMethodSignature, ArrayList<MethodInfo>> found = new HashMap<FullMethodSignature, ArrayList<MethodInfo>>();
+        Set<ClassDetail> visited = Collections.newSetFromMap(new IdentityHashMap<ClassDetail, Boolean>());
         ArrayDeque<ClassDetail> q = new ArrayDeque<ClassDetail>();
         q.push(this);
         while (!q.isEmpty()) {
             ClassDetail detail = q.pop();
+            if (!visited.add(detail)) {
+                continue;
+            }
             MethodInfo[] mis = detail.findMethodsHere(name);
 
             for (MethodInfo mi : mis) {
+                ArrayList<MethodInfo> same = found.get(mi.signature);
+                if (same == null) {
+                    same = new ArrayList<MethodInfo>(1);
+                    found.put(mi.signature, same);
+                }
                 boolean overrided = false;
-                for (MethodInfo mi0 : result) {
+                for (MethodInfo mi0 : same) {
                     // N.B. mi and mi0 may belong to different super class or
                     // interfaces that have no inheritance relationship
                     if (mi0.canOverride(mi)) {
@@ -220,14 +319,16 @@ public final class ClassDetail {
                         break;
                     }
                 }
-                if (!overrided)
+                if (!overrided) {
+                    same.add(mi);
                     result.add(mi);
+                }
             }
 
             if (detail.baseType != null)
-                q.push(detail.baseType.mutableDetail);
+                q.push(detail.baseType.getDetail());
             for (ClassInfo i : detail.interfaces)
-                q.push(i.mutableDetail);
+                q.push(i.getDetail());
         }
         return result.toArray(new MethodInfo[result.size()]);
     }
@@ -238,13 +339,42 @@ public final class ClassDetail {
      * @return The real methods
      */
     public MethodInfo[] findMethodsHere(String name) {
-        ArrayList<MethodInfo> result = new ArrayList<MethodInfo>();
-        for (MethodInfo m : methods.values()) {
-            if (m.signature.partialSignature.name.equals(name)) {
-                result.add(m);
+        if (methods.size() <= SmallMap.MAX_SIZE) {
+            ArrayList<MethodInfo> result = new ArrayList<MethodInfo>();
+            for (MethodInfo m : methods.values()) {
+                if (m.signature.partialSignature.name.equals(name)) {
+                    result.add(m);
+                }
             }
+            return result.toArray(new MethodInfo[result.size()]);
         }
-        return result.toArray(new MethodInfo[result.size()]);
+        MethodInfo[] r = getMethodsByName().get(name);
+        return r == null ? new MethodInfo[0] : r.clone();
+    }
+
+    /**
+     * The methods by name, built on first use for classes with too many methods to scan
+     */
+    private Map<String, MethodInfo[]> getMethodsByName() {
+        Map<String, MethodInfo[]> index = methodsByName;
+        if (index == null) {
+            HashMap<String, ArrayList<MethodInfo>> m = new HashMap<String, ArrayList<MethodInfo>>();
+            for (MethodInfo mi : methods.values()) {
+                ArrayList<MethodInfo> l = m.get(mi.signature.partialSignature.name);
+                if (l == null) {
+                    l = new ArrayList<MethodInfo>(1);
+                    m.put(mi.signature.partialSignature.name, l);
+                }
+                l.add(mi);
+            }
+            HashMap<String, MethodInfo[]> r = new HashMap<String, MethodInfo[]>();
+            for (Map.Entry<String, ArrayList<MethodInfo>> e : m.entrySet()) {
+                r.put(e.getKey(), e.getValue().toArray(new MethodInfo[e.getValue().size()]));
+            }
+            index = r;
+            methodsByName = index;
+        }
+        return index;
     }
 
     /**
@@ -255,7 +385,7 @@ public final class ClassDetail {
      * @return if this class can be converted to the other.
      */
     public final boolean isConvertibleTo(ClassInfo type) {
-        ClassDetail that = type.mutableDetail;
+        ClassDetail that = type.getDetail();
         if (this == that) {
             return true;
         }
@@ -274,11 +404,11 @@ public final class ClassDetail {
 
     public ClassDetail changeBaseType(ClassInfo baseType) {
         Builder builder = new Builder();
+        builder.methodsIndex = methodsIndex;
         ClassDetail details = builder.setBaseType(baseType)
                 .setInterfaces(interfaces)
                 .setAccessFlags(accessFlags)
                 .setMethods(methods)
-                .setMethodsIndex(methodsIndex)
                 .setFields(fields)
                 .setStaticFields(staticFields)
                 .setIsFrameworkClass(isFrameworkClass)
@@ -290,18 +420,18 @@ public final class ClassDetail {
     public final void updateDerivedClasses(ClassInfo ci) {
         ArrayDeque<ClassDetail> a = new ArrayDeque<ClassDetail>();
         if (baseType != null)
-            a.add(baseType.mutableDetail);
+            a.add(baseType.getDetail());
         for (ClassInfo i : interfaces) {
-            a.add(i.mutableDetail);
+            a.add(i.getDetail());
         }
         while (!a.isEmpty()) {
             ClassDetail detail = a.pop();
             detail.derivedClasses.add(ci);
             detail.derivedClasses.addAll(derivedClasses);
             if (detail.baseType != null)
-                a.add(detail.baseType.mutableDetail);
+                a.add(detail.baseType.getDetail());
             for (ClassInfo i : detail.interfaces) {
-                a.add(i.mutableDetail);
+                a.add(i.getDetail());
             }
         }
     }
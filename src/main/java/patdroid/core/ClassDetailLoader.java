@@ -43,8 +43,12 @@ public class ClassDetailLoader {
      * @param detail the detailed info about the class
      */
     protected static void setDetail(ClassInfo type, ClassDetail detail) {
+        type.scope.checkNotSealed();
         Log.warnwarn(type.mutableDetail == null, "class is already loaded" + type);
         type.mutableDetail = detail;
+        type.scope.registerMembers(type, detail);
         detail.updateDerivedClasses(type);
+        type.scope.hierarchyChanged();
+        type.scope.phantoms.upgrade(type);
     }
 }
@@ -21,6 +21,7 @@
 package patdroid.core;
 
 import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
@@ -46,19 +47,116 @@ public final class ClassInfo {
 
     public final Scope scope;
     public final String fullName;
+    /**
+     * The dense id of the class in its scope
+     */
+    public final int id;
     public ClassDetail mutableDetail = MISSING_DETAIL;
+    /**
+     * The order in which the details of the class were set in its scope, -1 if they were not
+     */
+    int loadStamp = -1;
+    /**
+     * The results of {@link #findMethods(String)}, valid for one version of the class hierarchy
+     */
+    private volatile MethodLookup methodLookup;
+    /**
+     * The package of the class, for an array the package of its element class
+     */
+    private final PackageInfo pkg;
+    /**
+     * The position of the last '$' in the name, -1 if none
+     */
+    private final int outerEnd;
+    /**
+     * The number of dimensions of an array class, 0 if not an array
+     */
+    private final byte arrayDepth;
 
     /**
+     * The ids of the fields declared by the class, null until its details are set
+     */
+    Scope.FieldIds fieldIds;
+
+    /**
+     * Create a class that has an id in a scope but is not found by name there.
      * @param scope the scope that this ClassInfo belongs to
      * @param fullName the full name of the class
+     * @deprecated use {@link Scope#findOrCreateClass(String)}, which returns the class
+     * of the scope with the name
      */
+    @Deprecated
     public ClassInfo(Scope scope, String fullName) {
+        this(scope, fullName, scope.reserveClassId(), false);
+        scope.bindClassId(this);
+    }
+
+    /**
+     * @param scope the scope that this ClassInfo belongs to
+     * @param fullName the full name of the class
+     * @param id the id assigned by the scope
+     */
+    ClassInfo(Scope scope, String fullName, int id) {
+        this(scope, fullName, id, true);
+    }
+
+    /**
+     * @param listed true if the class is listed in its package, the caller holding the lock
+     * of the scope, false if it only refers to its package without changing the tree
+     */
+    private ClassInfo(Scope scope, String fullName, int id, boolean listed) {
         this.scope = scope;
         this.fullName = fullName;
+        this.id = id;
+        int depth = 0;
+        while (depth < fullName.length() && fullName.charAt(depth) == '[') {
+            ++depth;
+        }
+        this.arrayDepth = (byte) depth;
+        this.outerEnd = fullName.lastIndexOf('$');
+        final String packaged;
+        if (depth == 0) {
+            packaged = fullName;
+        } else if (depth < fullName.length() && fullName.charAt(depth) == 'L') {
+            packaged = fullName.substring(depth + 1, fullName.length() - 1);
+        } else {
+            packaged = null;
+        }
+        if (packaged == null) {
+            this.pkg = scope.getRootPackage();
+        } else {
+            this.pkg = listed ? scope.findOrCreatePackageOf(packaged) : scope.findPackageOfUnlisted(packaged);
+        }
         this.DEFAULT_CONSTRUCTOR = new FullMethodSignature(scope.primitiveVoid, MethodInfo.CONSTRUCTOR, this);
         this.STATIC_INITIALIZER = new FullMethodSignature(scope.primitiveVoid, MethodInfo.STATIC_INITIALIZER);
     }
 
+    boolean isMissingDetail() {
+        return mutableDetail == MISSING_DETAIL;
+    }
+
+    /**
+     * Drop the details of the class, which becomes missing
+     */
+    void unsetDetail() {
+        mutableDetail = MISSING_DETAIL;
+        loadStamp = -1;
+        methodLookup = null;
+        scope.hierarchyChanged();
+    }
+
+    /**
+     * Get the details of the class, loading them through the on-demand loaders of the scope
+     * (see {@link Scope#addOnDemandLoader(ClassDetailLoader)}) on first query
+     * @return the details, or the shared missing detail
+     */
+    ClassDetail getDetail() {
+        if (mutableDetail == MISSING_DETAIL && scope.hasOnDemandLoaders()) {
+            scope.loadOnDemand(this);
+        }
+        return mutableDetail;
+    }
+
     /**
      * A framework class is a class that is not found in the apk being parsed
      * <p>
@@ -66,16 +164,26 @@ public final class ClassInfo {
      * @return if the class is a framework class
      */
     public boolean isFrameworkClass() {
-        return mutableDetail.isFrameworkClass;
+        return getDetail().isFrameworkClass;
     }
 
     /**
      * Sometimes the apk has missing classes. A missing class is not
      * a framework class and cannot be found in the apk
+     * <p>
+     * <b>Note:</b> this might start class loading if the class is not loaded yet
      * @return if this class is missing
      */
     public boolean isMissing() {
-        return mutableDetail == MISSING_DETAIL;
+        return getDetail() == MISSING_DETAIL;
+    }
+
+    /**
+     * Unlike {@link #isMissing()}, this never starts class loading
+     * @return true if the details of the class are loaded
+     */
+    public boolean isLoaded() {
+        return mutableDetail != MISSING_DETAIL;
     }
 
     /**
@@ -86,7 +194,7 @@ public final class ClassInfo {
      * @return the type, or null if not found or the class is missing
      */
     public ClassInfo getFieldType(String fieldName) {
-        return mutableDetail.getFieldType(fieldName);
+        return getDetail().getFieldType(fieldName);
     }
 
     /**
@@ -97,7 +205,7 @@ public final class ClassInfo {
      * @return the type of the static field, or null if not found or the class is missing
      */
     public ClassInfo getStaticFieldType(String fieldName) {
-        return mutableDetail.getStaticFieldType(fieldName);
+        return getDetail().getStaticFieldType(fieldName);
     }
 
     /**
@@ -107,7 +215,7 @@ public final class ClassInfo {
      * @return a key-value store mapping field name to their types
      */
     public ImmutableMap<String, ClassInfo> getAllFieldsHere() {
-        return mutableDetail.fields;
+        return getDetail().immutableFields();
     }
 
     /**
@@ -117,7 +225,7 @@ public final class ClassInfo {
      * @return a key-value store mapping static field name to their types
      */
     public ImmutableMap<String, ClassInfo> getAllStaticFieldsHere() {
-        return mutableDetail.staticFields;
+        return getDetail().immutableStaticFields();
     }
 
     /**
@@ -125,7 +233,7 @@ public final class ClassInfo {
      * @return all methods in the class
      */
     public ImmutableCollection<MethodInfo> getAllMethods() {
-        return mutableDetail.methods.values();
+        return getDetail().immutableMethods().values();
     }
 
     /**
@@ -136,7 +244,7 @@ public final class ClassInfo {
      * @return the method in this class, or null if not found or the class is missing
      */
     public MethodInfo findMethodHere(FullMethodSignature signature) {
-        return mutableDetail.methods.get(signature);
+        return getDetail().methods.get(signature);
     }
 
     /**
@@ -148,7 +256,7 @@ public final class ClassInfo {
      * An empty array will be returned in case of not finding any method
      */
     public MethodInfo[] findMethodsHere(String name) {
-        return mutableDetail.findMethodsHere(name);
+        return getDetail().findMethodsHere(name);
     }
 
     /**
@@ -160,7 +268,31 @@ public final class ClassInfo {
      * An empty array will be returned in case of not finding any method
      */
     public MethodInfo[] findMethods(String name) {
-        return mutableDetail.findMethods(name);
+        final int version = scope.getHierarchyVersion();
+        MethodLookup lookup = methodLookup;
+        if (lookup == null || lookup.version != version) {
+            lookup = new MethodLookup(version);
+            methodLookup = lookup;
+        }
+        MethodInfo[] r = lookup.byName.get(name);
+        if (r == null) {
+            // loading classes on the way makes the result stale, but still right for this version
+            r = getDetail().findMethods(name);
+            lookup.byName.put(name, r);
+        }
+        return r.clone();
+    }
+
+    /**
+     * Memoized method lookups of a class, see {@link Scope#getHierarchyVersion()}
+     */
+    private static final class MethodLookup {
+        final int version;
+        final ConcurrentHashMap<String, MethodInfo[]> byName = new ConcurrentHashMap<String, MethodInfo[]>(4);
+
+        MethodLookup(int version) {
+            this.version = version;
+        }
     }
 
     /**
@@ -171,7 +303,7 @@ public final class ClassInfo {
      * @return  the method representation, or null if not found or the class is missing
      */
     public MethodInfo findMethod(FullMethodSignature signature) {
-        return mutableDetail.findMethod(signature);
+        return getDetail().findMethod(signature);
     }
 
     /**
@@ -186,7 +318,7 @@ public final class ClassInfo {
         if (type.isPrimitive()) {
             return (type == scope.primitiveVoid || isPrimitive());
         } else {
-            return mutableDetail.isConvertibleTo(type);
+            return getDetail().isConvertibleTo(type);
         }
     }
 
@@ -199,7 +331,28 @@ public final class ClassInfo {
      * @return if this class is an array type
      */
     public boolean isArray() {
-        return fullName.startsWith("[");
+        return arrayDepth != 0;
+    }
+
+    /**
+     * @return the number of dimensions of this array type, 0 if this class is not an array type
+     */
+    public int getArrayDepth() {
+        return arrayDepth & 0xff;
+    }
+
+    /**
+     * @return the package of the class, for an array type the package of its element class
+     */
+    public PackageInfo getPackage() {
+        return pkg;
+    }
+
+    /**
+     * @return the full name of the package of the class, see {@link #getPackage()}
+     */
+    public String getPackageName() {
+        return pkg.name;
     }
 
     /**
@@ -233,14 +386,14 @@ public final class ClassInfo {
      * @return the base type, or null if this class is java.lang.Object
      */
     public ClassInfo getBaseType() {
-        return mutableDetail.baseType;
+        return getDetail().baseType;
     }
 
     /**
      * Get the interfaces that the current class implements
      * @return interfaces
      */
-    public ImmutableList<ClassInfo> getInterfaces() { return mutableDetail.interfaces; }
+    public ImmutableList<ClassInfo> getInterfaces() { return getDetail().interfaces; }
 
     /**
      * Change the super class of this class to a new super class, the
@@ -248,17 +401,19 @@ public final class ClassInfo {
      * @param baseType new super class for this class
      */
     public void setBaseType(ClassInfo baseType) {
+        scope.checkNotSealed();
         ClassDetail origDetails = mutableDetail;
         origDetails.removeDerivedClasses(this);
         mutableDetail = origDetails.changeBaseType(baseType);
         mutableDetail.updateDerivedClasses(this);
+        scope.hierarchyChanged();
     }
 
     /**
      * @return if this class is an inner class
      */
     public boolean isInnerClass() {
-        return fullName.lastIndexOf('$') != -1;
+        return outerEnd != -1;
     }
 
     /**
@@ -266,7 +421,7 @@ public final class ClassInfo {
      */
     public ClassInfo getOuterClass() {
         checkState(isInnerClass(), "Try getting the outer class from a non-inner class" + this);
-        return scope.findOrCreateClass(fullName.substring(0, fullName.lastIndexOf('$')));
+        return scope.findOrCreateClass(fullName.substring(0, outerEnd));
     }
 
     /**
@@ -280,18 +435,18 @@ public final class ClassInfo {
      * @return if the class is final
      */
     public boolean isFinal() {
-        return Modifier.isFinal(mutableDetail.accessFlags);
+        return Modifier.isFinal(getDetail().accessFlags);
     }
 
     /**
      * @return if the class is an interface
      */
     public boolean isInterface() {
-        return Modifier.isInterface(mutableDetail.accessFlags);
+        return Modifier.isInterface(getDetail().accessFlags);
     }
 
     public boolean isAbstract() {
-        return Modifier.isAbstract(mutableDetail.accessFlags);
+        return Modifier.isAbstract(getDetail().accessFlags);
     }
 
     /**
@@ -320,6 +475,9 @@ public final class ClassInfo {
      * @return the short name
      */
     public String getShortName() {
+        if (arrayDepth == 0) {
+            return pkg.isDefault() ? fullName : fullName.substring(pkg.name.length() + 1);
+        }
         final int idx = fullName.lastIndexOf('.');
         if (idx == -1) {
             return fullName;
@@ -333,6 +491,6 @@ public final class ClassInfo {
      * @return if a class is "almost final"
      */
     public boolean isAlmostFinal() {
-        return mutableDetail.derivedClasses.isEmpty();
+        return getDetail().derivedClasses.isEmpty();
     }
 }
@@ -20,8 +20,9 @@
 
 package patdroid.core;
 
+import java.util.Map;
+
 import com.google.common.base.Objects;
-import com.google.common.collect.ImmutableMap;
 import patdroid.util.Log;
 
 /**
@@ -76,7 +77,7 @@ public final class FieldInfo {
     public FieldInfo bind() {
         ClassInfo type = owner;
         while (true) {
-            ImmutableMap<String, ClassInfo> fields = type.getAllFieldsHere();
+            Map<String, ClassInfo> fields = type.getAllFieldsHere();
             if (fields != null && fields.containsKey(fieldName))
                 return new FieldInfo(type, fieldName);
             final ClassInfo baseType = type.getBaseType();
@@ -0,0 +1,437 @@
+package patdroid.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.collect.ImmutableMultimap;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.JSONWriter;
+import patdroid.util.Pair;
+import patdroid.util.Parallel;
+
+/**
+ * An estimate of the heap retained by the classes, methods and instructions of a scope,
+ * by category, by package and optionally by origin (e.g. by DEX file).
+ * <p>
+ * Sizes are computed from the fields of the objects, assuming a 64-bit JVM with compressed
+ * references (12-byte object headers, 16-byte array headers, 4-byte references, 8-byte
+ * alignment) and strings backed by char arrays. Objects shared by several owners, such as
+ * strings and class lists, are counted once per owner, so the figures are upper bounds
+ * meant for telling where the memory goes rather than for matching a heap dump.
+ */
+public final class HeapFootprint {
+    public enum Category {
+        /**
+         * Classes, their details and member tables, and their entries in the scope
+         */
+        CLASSES,
+        /**
+         * Methods, without their signatures and instructions
+         */
+        METHODS,
+        /**
+         * Instruction arrays, instructions and their operands, and try blocks
+         */
+        INSTRUCTIONS,
+        /**
+         * Method signatures and their parameter lists
+         */
+        SIGNATURES,
+        /**
+         * Class, method and field names, and string constants
+         */
+        STRINGS,
+        /**
+         * The lists of derived classes
+         */
+        DERIVED_CLASSES,
+        /**
+         * Phantom methods, their signatures and call site lists
+         */
+        PHANTOMS
+    }
+
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REF = 4;
+    private static final int CLASS_INFO = align(HEADER + 7 * REF + 3 * 4 + 1);
+    private static final int CLASS_DETAIL = align(HEADER + 11 * REF + 4 + 1);
+    private static final int METHOD_INFO = align(HEADER + 5 * REF + 2 * 4 + 1);
+    private static final int INSTRUCTION = align(HEADER + 2 + 3 * 2 + 2 * REF);
+    private static final int FULL_SIGNATURE = align(HEADER + 2 * REF);
+    private static final int SIGNATURE = align(HEADER + 2 * REF + 4);
+    private static final int INVOCATION = align(HEADER + 1 + 3 * REF);
+    private static final int PRIMITIVE = align(HEADER + REF + 2 * 4);
+    private static final int PAIR = align(HEADER + 2 * REF);
+    private static final int FIELD_INFO = align(HEADER + 2 * REF);
+    private static final int TRY_BLOCK = align(HEADER + 2 * 4 + REF);
+    private static final int HANDLER = align(HEADER + REF + 4);
+    private static final int BOXED_INTEGER = align(HEADER + 4);
+    private static final int STRING = align(HEADER + REF + 4);
+    private static final int ARRAY_LIST = align(HEADER + 2 * 4 + REF);
+    private static final int HASH_MAP = align(HEADER + 4 * 4 + 4 * REF + 4);
+    private static final int HASH_MAP_ENTRY = align(HEADER + 3 * REF + 4);
+    private static final int IMMUTABLE_MAP = align(HEADER + 3 * REF);
+    private static final int IMMUTABLE_MAP_ENTRY = align(HEADER + 2 * REF);
+    private static final int SMALL_MAP = align(HEADER + 3 * REF);
+    private static final int IMMUTABLE_LIST = align(HEADER + 2 * REF + 4);
+    /**
+     * A class name entry in the table of the scope, and its slot in the id table
+     */
+    private static final int SCOPE_ENTRY = HASH_MAP_ENTRY + 2 * REF;
+    private static final int N = Category.values().length;
+
+    private final long[] total = new long[N];
+    private final TreeMap<String, long[]> byPackage = new TreeMap<String, long[]>();
+    private final TreeMap<String, long[]> byOrigin = new TreeMap<String, long[]>();
+    private int classCount = 0;
+    private int methodCount = 0;
+    private long instructionCount = 0;
+
+    private HeapFootprint() {
+    }
+
+    /**
+     * Measure the loaded classes of a scope, in parallel
+     * @param scope the scope
+     * @return the footprint
+     */
+    public static HeapFootprint measure(Scope scope) {
+        return measure(scope, null);
+    }
+
+    /**
+     * Measure the loaded classes of a scope, in parallel, grouping them by an attribute
+     * as well as by package
+     * @param scope the scope
+     * @param origin the attribute telling where each class comes from, e.g. the DEX file name,
+     *               null for no grouping; classes without the attribute go into an empty group
+     * @return the footprint
+     */
+    public static HeapFootprint measure(final Scope scope, final AttributeKey<String> origin) {
+        final int n = scope.getClassCount();
+        final List<Integer> chunks = new ArrayList<Integer>();
+        final int chunkSize = 256;
+        for (int start = 0; start < n; start += chunkSize) {
+            chunks.add(start);
+        }
+        final List<HeapFootprint> parts = Collections.synchronizedList(new ArrayList<HeapFootprint>());
+        Parallel.forEach(chunks, new Parallel.Body<Integer>() {
+            @Override
+            public void run(Integer start) {
+                final HeapFootprint part = new HeapFootprint();
+                final int end = Math.min(start + chunkSize, n);
+                for (int id = start; id < end; ++id) {
+                    final ClassInfo ci = scope.getClassById(id);
+                    if (ci != null) {
+                        part.addClass(ci, origin == null ? null : scope.attributes.get(origin, ci));
+                    }
+                }
+                parts.add(part);
+            }
+        });
+        final HeapFootprint r = new HeapFootprint();
+        for (HeapFootprint part : parts) {
+            r.merge(part);
+        }
+        r.addPhantoms(scope);
+        return r;
+    }
+
+    /**
+     * @return the estimated bytes of all categories
+     */
+    public long getTotal() {
+        long sum = 0;
+        for (long v : total) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the estimated bytes of a category
+     */
+    public long get(Category c) {
+        return total[c.ordinal()];
+    }
+
+    /**
+     * @return the estimated bytes of all categories by package, the default package being the empty string
+     */
+    public Map<String, Long> getByPackage() {
+        return sums(byPackage);
+    }
+
+    /**
+     * @return the estimated bytes of all categories by origin, empty if not measured by origin
+     */
+    public Map<String, Long> getByOrigin() {
+        return sums(byOrigin);
+    }
+
+    /**
+     * @return the number of classes measured, missing classes included
+     */
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * @return the number of methods of loaded classes
+     */
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    /**
+     * @return the number of instructions of loaded classes
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Write the footprint as a JSON object, with the totals, the categories, and the
+     * categories of every package and origin
+     * @param w the writer
+     * @param k the key of the object, null if it is not in an object
+     */
+    public void writeJSON(JSONWriter w, String k) throws IOException {
+        if (k == null) {
+            w.writeStartObject();
+        } else {
+            w.writeStartObject(k);
+        }
+        w.write("total", getTotal());
+        w.write("classes", classCount);
+        w.write("methods", methodCount);
+        w.write("instructions", instructionCount);
+        writeCategories(w, "categories", total);
+        w.writeStartObject("packages");
+        for (Map.Entry<String, long[]> e : byPackage.entrySet()) {
+            writeCategories(w, e.getKey(), e.getValue());
+        }
+        w.writeEnd();
+        if (!byOrigin.isEmpty()) {
+            w.writeStartObject("origins");
+            for (Map.Entry<String, long[]> e : byOrigin.entrySet()) {
+                writeCategories(w, e.getKey(), e.getValue());
+            }
+            w.writeEnd();
+        }
+        w.writeEnd();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("total=").append(getTotal());
+        for (Category c : Category.values()) {
+            sb.append(' ').append(c.name().toLowerCase()).append('=').append(total[c.ordinal()]);
+        }
+        return sb.toString();
+    }
+
+    private static void writeCategories(JSONWriter w, String k, long[] values) throws IOException {
+        w.writeStartObject(k);
+        long sum = 0;
+        for (Category c : Category.values()) {
+            w.write(c.name().toLowerCase(), values[c.ordinal()]);
+            sum += values[c.ordinal()];
+        }
+        w.write("total", sum);
+        w.writeEnd();
+    }
+
+    private static Map<String, Long> sums(TreeMap<String, long[]> groups) {
+        final TreeMap<String, Long> r = new TreeMap<String, Long>();
+        for (Map.Entry<String, long[]> e : groups.entrySet()) {
+            long sum = 0;
+            for (long v : e.getValue()) {
+                sum += v;
+            }
+            r.put(e.getKey(), sum);
+        }
+        return r;
+    }
+
+    private void merge(HeapFootprint other) {
+        add(total, other.total);
+        mergeGroups(byPackage, other.byPackage);
+        mergeGroups(byOrigin, other.byOrigin);
+        classCount += other.classCount;
+        methodCount += other.methodCount;
+        instructionCount += other.instructionCount;
+    }
+
+    private static void mergeGroups(TreeMap<String, long[]> to, TreeMap<String, long[]> from) {
+        for (Map.Entry<String, long[]> e : from.entrySet()) {
+            final long[] v = to.get(e.getKey());
+            if (v == null) {
+                to.put(e.getKey(), e.getValue().clone());
+            } else {
+                add(v, e.getValue());
+            }
+        }
+    }
+
+    private static void add(long[] to, long[] from) {
+        for (int i = 0; i < N; ++i) {
+            to[i] += from[i];
+        }
+    }
+
+    private void addClass(ClassInfo ci, String origin) {
+        final long[] v = new long[N];
+        ++classCount;
+        v[Category.CLASSES.ordinal()] += CLASS_INFO + SCOPE_ENTRY;
+        v[Category.STRINGS.ordinal()] += string(ci.fullName);
+        // the signatures of the static initializer and the default constructor
+        v[Category.SIGNATURES.ordinal()] += 2 * (FULL_SIGNATURE + SIGNATURE) + 2 * list(0) + list(1);
+        if (ci.isLoaded()) {
+            final ClassDetail detail = ci.mutableDetail;
+            v[Category.CLASSES.ordinal()] += CLASS_DETAIL
+                    + list(detail.interfaces.size())
+                    + map(detail.methods)
+                    + map(detail.fields)
+                    + map(detail.staticFields);
+            final ImmutableMultimap<MethodSignature, MethodInfo> index = detail.methodsIndex;
+            if (index != null) {
+                v[Category.CLASSES.ordinal()] += immutableMap(index.keySet().size()) + list(index.size());
+            }
+            v[Category.DERIVED_CLASSES.ordinal()] += arrayList(detail.derivedClasses.size());
+            for (String name : detail.fields.keySet()) {
+                v[Category.STRINGS.ordinal()] += string(name);
+            }
+            for (String name : detail.staticFields.keySet()) {
+                v[Category.STRINGS.ordinal()] += string(name);
+            }
+            for (MethodInfo mi : detail.methods.values()) {
+                addMethod(mi, v);
+            }
+        }
+        add(total, v);
+        addToGroup(byPackage, ci.getPackageName(), v);
+        if (origin != null) {
+            addToGroup(byOrigin, origin, v);
+        }
+    }
+
+    private void addMethod(MethodInfo mi, long[] v) {
+        ++methodCount;
+        v[Category.METHODS.ordinal()] += METHOD_INFO;
+        v[Category.SIGNATURES.ordinal()] += signature(mi.signature);
+        v[Category.STRINGS.ordinal()] += string(mi.signature.partialSignature.name);
+        if (mi.insns != null) {
+            instructionCount += mi.insns.length;
+            v[Category.INSTRUCTIONS.ordinal()] += array(mi.insns.length, REF);
+            for (Instruction i : mi.insns) {
+                v[Category.INSTRUCTIONS.ordinal()] += INSTRUCTION;
+                addExtra(i.extra, v);
+            }
+        }
+        if (mi.tbs != null) {
+            v[Category.INSTRUCTIONS.ordinal()] += array(mi.tbs.length, REF);
+            for (TryBlockInfo tb : mi.tbs) {
+                v[Category.INSTRUCTIONS.ordinal()] += TRY_BLOCK + array(tb.handlers.length, REF)
+                        + tb.handlers.length * HANDLER;
+            }
+        }
+    }
+
+    private static void addExtra(Object extra, long[] v) {
+        final int insns = Category.INSTRUCTIONS.ordinal();
+        if (extra == null || extra instanceof ClassInfo) {
+            return;
+        }
+        if (extra instanceof String) {
+            v[Category.STRINGS.ordinal()] += string((String) extra);
+        } else if (extra instanceof PrimitiveInfo) {
+            v[insns] += PRIMITIVE;
+        } else if (extra instanceof Invocation) {
+            v[insns] += INVOCATION + array(((Invocation) extra).args.length, 4);
+        } else if (extra instanceof int[]) {
+            v[insns] += array(((int[]) extra).length, 4);
+        } else if (extra instanceof Integer) {
+            v[insns] += BOXED_INTEGER;
+        } else if (extra instanceof FieldInfo) {
+            v[insns] += FIELD_INFO;
+        } else if (extra instanceof Pair) {
+            v[insns] += PAIR;
+        } else if (extra instanceof PrimitiveInfo[]) {
+            v[insns] += array(((PrimitiveInfo[]) extra).length, REF) + ((PrimitiveInfo[]) extra).length * PRIMITIVE;
+        } else if (extra instanceof Map) {
+            final int size = ((Map<?, ?>) extra).size();
+            v[insns] += HASH_MAP + array(tableSize(size), REF) + size * (HASH_MAP_ENTRY + 2 * BOXED_INTEGER);
+        }
+    }
+
+    private void addPhantoms(Scope scope) {
+        final long[] v = new long[N];
+        for (MethodInfo mi : scope.phantoms.getPhantoms()) {
+            v[Category.PHANTOMS.ordinal()] += METHOD_INFO + signature(mi.signature)
+                    + string(mi.signature.partialSignature.name)
+                    + HASH_MAP_ENTRY * 2 + arrayList(scope.phantoms.getSiteCount(mi));
+        }
+        add(total, v);
+    }
+
+    private static void addToGroup(TreeMap<String, long[]> groups, String key, long[] v) {
+        long[] g = groups.get(key);
+        if (g == null) {
+            g = new long[N];
+            groups.put(key, g);
+        }
+        add(g, v);
+    }
+
+    private static long signature(FullMethodSignature s) {
+        return FULL_SIGNATURE + SIGNATURE + list(s.partialSignature.paramTypes.size());
+    }
+
+    private static long string(String s) {
+        return STRING + array(s.length(), 2);
+    }
+
+    private static long list(int n) {
+        return n == 0 ? 0 : IMMUTABLE_LIST + array(n, REF);
+    }
+
+    private static long arrayList(int n) {
+        return ARRAY_LIST + array(n, REF);
+    }
+
+    private static long map(Map<?, ?> m) {
+        if (m instanceof SmallMap) {
+            return SMALL_MAP + array(m.size() * 2, REF);
+        }
+        return immutableMap(m.size());
+    }
+
+    private static long immutableMap(int n) {
+        return n == 0 ? 0 : IMMUTABLE_MAP + array(n, REF) + array(tableSize(n), REF) + n * IMMUTABLE_MAP_ENTRY;
+    }
+
+    private static int tableSize(int n) {
+        return Integer.highestOneBit(Math.max(1, n) * 2 - 1) * 2;
+    }
+
+    private static long array(int n, int elementSize) {
+        return align(ARRAY_HEADER + (long) n * elementSize);
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+
+    private static long align(long n) {
+        return (n + 7) & ~7L;
+    }
+}
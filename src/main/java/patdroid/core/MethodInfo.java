@@ -66,9 +66,14 @@ public final class MethodInfo {
      */
     public TryBlockInfo[] tbs;
     /**
-     * Anything that should be attached to the method, no guarantee of thread-safe update of this field
+     * Anything that should be attached to the method, no guarantee of thread-safe update of this field.
+     * Analyses should prefer {@link Scope#attributes}, which several of them can use at once
      */
     public Object extra;
+    /**
+     * The dense id in the scope, assigned on registration
+     */
+    int id = -1;
 
     /**
      * Create a method info that is part of a class
@@ -83,6 +88,14 @@ public final class MethodInfo {
         this.isSynthetic = isSynthetic;
     }
 
+    /**
+     * @return the dense id of the method in the scope of its class, or -1 if not registered
+     * (see {@link Scope#registerMethod(MethodInfo)})
+     */
+    public int getId() {
+        return id;
+    }
+
     /**
      * Get the method in the superclass/interfaces that is overridden by the current method.
      * If the current method is non-virtual, the result will be null.
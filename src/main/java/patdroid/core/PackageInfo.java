@@ -0,0 +1,174 @@
+package patdroid.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A package in the package tree of a scope, see {@link Scope#findPackage(String)}.
+ * <p>
+ * Every class of the scope is listed in its package, so that the classes of a package and
+ * its subpackages are found by walking the tree instead of comparing the names of all
+ * classes. Array classes belong to the package of their element class, but are not listed.
+ * The name of a package is kept once here and shared by its classes, see
+ * {@link ClassInfo#getPackageName()}.
+ */
+public final class PackageInfo {
+    private final Scope scope;
+    /**
+     * The full name of the package, e.g. "java.lang", or "" for the default package
+     */
+    public final String name;
+    /**
+     * The enclosing package, or null for the default package
+     */
+    public final PackageInfo parent;
+    private HashMap<String, PackageInfo> subpackages;
+    private ArrayList<ClassInfo> classes;
+
+    PackageInfo(Scope scope, PackageInfo parent, String name) {
+        this.scope = scope;
+        this.parent = parent;
+        this.name = name;
+    }
+
+    /**
+     * @return the last part of the name, e.g. "lang" for "java.lang"
+     */
+    public String getSimpleName() {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return true if this is the default package, the root of the tree
+     */
+    public boolean isDefault() {
+        return parent == null;
+    }
+
+    /**
+     * @return the classes directly in this package
+     */
+    public List<ClassInfo> getClasses() {
+        if (scope.isSealed()) {
+            return classes == null ? Collections.<ClassInfo>emptyList() : Collections.unmodifiableList(classes);
+        }
+        synchronized (scope) {
+            return classes == null ? Collections.<ClassInfo>emptyList() : new ArrayList<ClassInfo>(classes);
+        }
+    }
+
+    /**
+     * @return the packages directly in this package
+     */
+    public List<PackageInfo> getSubpackages() {
+        if (scope.isSealed()) {
+            return subpackagesUnlocked();
+        }
+        synchronized (scope) {
+            return subpackagesUnlocked();
+        }
+    }
+
+    /**
+     * @return the classes in this package and all its subpackages
+     */
+    public List<ClassInfo> getAllClasses() {
+        if (scope.isSealed()) {
+            return allClassesUnlocked();
+        }
+        synchronized (scope) {
+            return allClassesUnlocked();
+        }
+    }
+
+    /**
+     * @param ci a class of the same scope
+     * @return true if the class is in this package or one of its subpackages
+     */
+    public boolean contains(ClassInfo ci) {
+        for (PackageInfo p = ci.getPackage(); p != null; p = p.parent) {
+            if (p == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private List<PackageInfo> subpackagesUnlocked() {
+        return subpackages == null ? Collections.<PackageInfo>emptyList()
+                : new ArrayList<PackageInfo>(subpackages.values());
+    }
+
+    private List<ClassInfo> allClassesUnlocked() {
+        final ArrayList<ClassInfo> r = new ArrayList<ClassInfo>();
+        final ArrayDeque<PackageInfo> q = new ArrayDeque<PackageInfo>();
+        q.push(this);
+        while (!q.isEmpty()) {
+            final PackageInfo p = q.pop();
+            if (p.classes != null) {
+                r.addAll(p.classes);
+            }
+            if (p.subpackages != null) {
+                q.addAll(p.subpackages.values());
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param simpleName the last part of the name of a subpackage
+     * @return the subpackage, or null if there is none
+     */
+    PackageInfo getSubpackage(String simpleName) {
+        return subpackages == null ? null : subpackages.get(simpleName);
+    }
+
+    /**
+     * Find or create a subpackage, the caller holding the lock of the scope
+     */
+    PackageInfo findOrCreateSubpackage(String simpleName) {
+        PackageInfo p = getSubpackage(simpleName);
+        if (p == null) {
+            if (subpackages == null) {
+                subpackages = new HashMap<String, PackageInfo>(4);
+            }
+            p = new PackageInfo(scope, this, isDefault() ? simpleName : name + "." + simpleName);
+            subpackages.put(simpleName, p);
+        }
+        return p;
+    }
+
+    /**
+     * List a class in this package, the caller holding the lock of the scope
+     */
+    void add(ClassInfo ci) {
+        if (classes == null) {
+            classes = new ArrayList<ClassInfo>(4);
+        }
+        classes.add(ci);
+    }
+
+    /**
+     * Remove a class from this package, and the package from the tree if it becomes empty,
+     * the caller holding the lock of the scope
+     */
+    void remove(ClassInfo ci) {
+        if (classes == null || !classes.remove(ci)) {
+            return;
+        }
+        PackageInfo p = this;
+        while (p.parent != null && (p.classes == null || p.classes.isEmpty())
+                && (p.subpackages == null || p.subpackages.isEmpty())) {
+            p.parent.subpackages.remove(p.getSimpleName());
+            p = p.parent;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package patdroid.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import patdroid.dalvik.Invocation;
+
+/**
+ * The placeholder (phantom) methods of a scope.
+ * <p>
+ * An invocation whose target cannot be found, typically because the defining class is
+ * missing, points to a phantom method instead. There is exactly one phantom per class and
+ * signature, so call sites of the same missing API share their target and can be grouped
+ * by identity. The registry remembers the invocations referencing each phantom; when the
+ * defining class gets loaded, these invocations are retargeted to the real method and
+ * marked as resolved.
+ * <p>
+ * The registry is guarded by the lock of its scope rather than its own: it is reached
+ * both from translators, which register phantoms in the scope, and from loaders defining
+ * classes under the locks of the scope and the loader, so a lock of its own could be
+ * taken in either order with the lock of the scope.
+ * </p>
+ */
+public final class PhantomMethodRegistry {
+    private final Scope scope;
+    private final HashMap<ClassInfo, HashMap<FullMethodSignature, MethodInfo>> phantoms =
+            new HashMap<ClassInfo, HashMap<FullMethodSignature, MethodInfo>>();
+    private final IdentityHashMap<MethodInfo, ArrayList<Invocation>> sites =
+            new IdentityHashMap<MethodInfo, ArrayList<Invocation>>();
+
+    PhantomMethodRegistry(Scope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Get the phantom method of a signature, creating it on first request
+     * @param owner the class expected to define the method
+     * @param signature the method signature
+     * @return the phantom method, registered in the scope
+     * @throws IllegalStateException if the phantom method is new and the scope is sealed
+     */
+    public MethodInfo intern(ClassInfo owner, FullMethodSignature signature) {
+        synchronized (scope) {
+            HashMap<FullMethodSignature, MethodInfo> m = phantoms.get(owner);
+            MethodInfo mi = m == null ? null : m.get(signature);
+            if (mi == null) {
+                mi = new MethodInfo(owner, signature, 0, false);
+                scope.registerMethod(mi);
+                if (m == null) {
+                    m = new HashMap<FullMethodSignature, MethodInfo>();
+                    phantoms.put(owner, m);
+                }
+                m.put(signature, mi);
+                sites.put(mi, new ArrayList<Invocation>());
+            }
+            return mi;
+        }
+    }
+
+    /**
+     * Create an unresolved invocation of a phantom method and remember it as a call site
+     * @param owner the class expected to define the method
+     * @param signature the method signature
+     * @param args the argument registers
+     * @return the invocation
+     * @throws IllegalStateException if the phantom method is new and the scope is sealed
+     */
+    public Invocation createInvocation(ClassInfo owner, FullMethodSignature signature, int[] args) {
+        synchronized (scope) {
+            final MethodInfo mi = intern(owner, signature);
+            final Invocation invocation = new Invocation(false, owner, mi, args);
+            sites.get(mi).add(invocation);
+            return invocation;
+        }
+    }
+
+    /**
+     * @param mi a method
+     * @return true if the method is a phantom method that has not been upgraded yet
+     */
+    public boolean isPhantom(MethodInfo mi) {
+        synchronized (scope) {
+            return sites.containsKey(mi);
+        }
+    }
+
+    /**
+     * @param mi a phantom method
+     * @return the number of call sites referencing the phantom method, 0 if it is not a phantom
+     */
+    public int getSiteCount(MethodInfo mi) {
+        synchronized (scope) {
+            final ArrayList<Invocation> l = sites.get(mi);
+            return l == null ? 0 : l.size();
+        }
+    }
+
+    /**
+     * @return the number of phantom methods
+     */
+    public int size() {
+        synchronized (scope) {
+            return sites.size();
+        }
+    }
+
+    /**
+     * @return all phantom methods
+     */
+    public List<MethodInfo> getPhantoms() {
+        synchronized (scope) {
+            return new ArrayList<MethodInfo>(sites.keySet());
+        }
+    }
+
+    /**
+     * Retarget the call sites of the phantom methods of a class whose real method can now be
+     * found, e.g. after the class has been loaded
+     * @param owner the class
+     * @return the number of call sites upgraded
+     */
+    public int upgrade(ClassInfo owner) {
+        synchronized (scope) {
+            final HashMap<FullMethodSignature, MethodInfo> m = phantoms.get(owner);
+            if (m == null) {
+                return 0;
+            }
+            int count = 0;
+            final Iterator<Map.Entry<FullMethodSignature, MethodInfo>> it = m.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<FullMethodSignature, MethodInfo> e = it.next();
+                final MethodInfo real = owner.findMethod(e.getKey());
+                if (real == null) {
+                    continue;
+                }
+                for (Invocation invocation : sites.remove(e.getValue())) {
+                    invocation.target = real;
+                    invocation.isResolved = true;
+                    ++count;
+                }
+                it.remove();
+            }
+            if (m.isEmpty()) {
+                phantoms.remove(owner);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Forget the call sites in unloaded code and the phantom methods of unloaded classes,
+     * see {@link Scope#unload(java.util.Collection)}
+     * @param owners the unloaded classes
+     * @param unloadedSites the unresolved invocations found in the unloaded code
+     * @return the phantom methods no longer referenced by any remaining call site
+     */
+    List<MethodInfo> release(Set<ClassInfo> owners, List<Invocation> unloadedSites) {
+        synchronized (scope) {
+            final ArrayList<MethodInfo> freed = new ArrayList<MethodInfo>();
+            final Set<Invocation> dropped = Collections.newSetFromMap(new IdentityHashMap<Invocation, Boolean>());
+            dropped.addAll(unloadedSites);
+            final Iterator<Map.Entry<ClassInfo, HashMap<FullMethodSignature, MethodInfo>>> it = phantoms.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<ClassInfo, HashMap<FullMethodSignature, MethodInfo>> e = it.next();
+                final boolean ownerUnloaded = owners.contains(e.getKey());
+                final Iterator<MethodInfo> mit = e.getValue().values().iterator();
+                while (mit.hasNext()) {
+                    final MethodInfo mi = mit.next();
+                    final ArrayList<Invocation> l = sites.get(mi);
+                    final int before = l.size();
+                    final Iterator<Invocation> sit = l.iterator();
+                    while (sit.hasNext()) {
+                        if (dropped.contains(sit.next())) {
+                            sit.remove();
+                        }
+                    }
+                    // a phantom interned without call sites is kept unless its owner goes
+                    if (ownerUnloaded || (l.isEmpty() && before > 0)) {
+                        sites.remove(mi);
+                        mit.remove();
+                        freed.add(mi);
+                    } else {
+                        l.trimToSize();
+                    }
+                }
+                if (e.getValue().isEmpty()) {
+                    it.remove();
+                }
+            }
+            return freed;
+        }
+    }
+
+    /**
+     * Retry all phantom methods, useful when base classes of their owners were loaded
+     * @return the number of call sites upgraded
+     */
+    public int upgradeAll() {
+        synchronized (scope) {
+            int count = 0;
+            for (ClassInfo owner : new ArrayList<ClassInfo>(phantoms.keySet())) {
+                count += upgrade(owner);
+            }
+            return count;
+        }
+    }
+}
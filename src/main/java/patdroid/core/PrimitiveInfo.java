@@ -51,6 +51,17 @@ public final class PrimitiveInfo {
         this.high32 = (int)(l >> 32);
     }
 
+    /**
+     * Rebuild a value from its raw representation, e.g. when reading it back from a file
+     * @param type the value type
+     * @param low32 the low 32 bits
+     * @param high32 the high 32 bits
+     * @return a PrimitiveInfo
+     */
+    public static PrimitiveInfo fromBits(ClassInfo type, int low32, int high32) {
+        return new PrimitiveInfo(type, low32, high32);
+    }
+
     public static PrimitiveInfo fromInt(Scope scope, int value) {
         return new PrimitiveInfo(scope.primitiveInt, value, 0);
     }
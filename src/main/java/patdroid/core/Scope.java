@@ -3,9 +3,22 @@ package patdroid.core;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
 
 /**
  * A scope is a container of classes. A scope can be used to represent different entities, which
@@ -15,9 +28,46 @@ import java.util.List;
  * Java core library classes (java.*), 3rd party library code (e.g. with a specific package name).
  * <p>
  * Overall it is suggested multiple scopes stay disjoint.
+ * <p>
+ * Every class, method and field registered in a scope gets a dense integer id, starting
+ * from 0 in registration order, so analyses can keep side tables in arrays and bitsets
+ * indexed by id. Classes are registered when created, methods and fields when the details
+ * of their class are set by a loader.
+ * <p>
+ * Classes can be unloaded again, e.g. by a long-running worker analyzing one app after
+ * another on top of the same framework classes: take a {@link #mark()} before loading an
+ * app and {@link #unload(Layer)} it afterwards, which also gives the ids of the app back.
+ * <p>
+ * Once loading is done, a scope that is only read can be {@link #seal()}ed, after which
+ * lookups by name and by id no longer take the lock of the scope.
  */
 public class Scope {
     private final HashMap<String, ClassInfo> classes = new HashMap<String, ClassInfo>();
+    private final ArrayList<ClassInfo> classById = new ArrayList<ClassInfo>();
+    private final ArrayList<MethodInfo> methodById = new ArrayList<MethodInfo>();
+    private final ArrayList<FieldInfo> fieldById = new ArrayList<FieldInfo>();
+    private final ArrayList<ClassDetailLoader> onDemandLoaders = new ArrayList<ClassDetailLoader>();
+    private final BitSet onDemandTried = new BitSet();
+    private volatile boolean hasOnDemandLoaders = false;
+    private int loadCount = 0;
+    private final AtomicInteger hierarchyVersion = new AtomicInteger();
+    /**
+     * Incremented by {@link #unload(Layer)}, which gives ids back
+     */
+    private volatile int idGeneration = 0;
+    /**
+     * The read-only tables of a sealed scope, null until {@link #seal()}
+     */
+    private volatile Sealed sealed;
+    private final PackageInfo rootPackage = new PackageInfo(this, null, "");
+    /**
+     * The attributes attached to the classes, methods and instructions of this scope by analyses
+     */
+    public final AttributeStore attributes = new AttributeStore(this);
+    /**
+     * The placeholders of methods invoked but not found in this scope
+     */
+    public final PhantomMethodRegistry phantoms = new PhantomMethodRegistry(this);
     public final ClassInfo rootObject = findOrCreateClass(java.lang.Object.class);
     public final ClassInfo primitiveWide = findOrCreateClass("AndroidWide");
     public final ClassInfo primitiveVoid = findOrCreateClass(void.class);
@@ -43,33 +93,663 @@ public class Scope {
                     primitiveFloat);
 
     public ClassInfo findClass(String fullName) {
-        return classes.get(fullName);
+        final Sealed s = sealed;
+        if (s != null) {
+            return s.classes.get(fullName);
+        }
+        synchronized (this) {
+            return classes.get(fullName);
+        }
     }
 
-    private ClassInfo createClass(String fullName) {
-        ClassInfo ci = new ClassInfo(this, fullName);
+    /**
+     * Give an id to a class created outside of this scope, see {@link ClassInfo#ClassInfo(Scope, String)}
+     */
+    synchronized int reserveClassId() {
+        checkNotSealed();
+        classById.add(null);
+        return classById.size() - 1;
+    }
+
+    synchronized void bindClassId(ClassInfo ci) {
+        classById.set(ci.id, ci);
+    }
+
+    private synchronized ClassInfo createClass(String fullName) {
+        checkNotSealed();
+        ClassInfo ci = new ClassInfo(this, fullName, classById.size());
         classes.put(fullName, ci);
+        classById.add(ci);
         if (ci.isArray()) {
-            findOrCreateClass(fullName.substring(1));
+            // creates the element class by its own name, e.g. java.lang.Object of [Ljava.lang.Object;
+            ci.getElementClass();
+        } else {
+            ci.getPackage().add(ci);
         }
         return ci;
     }
 
     public boolean hasClass(ClassInfo ci) {
+        final Sealed s = sealed;
+        if (s != null) {
+            return ci.scope == this && s.classById[ci.id] == ci;
+        }
         return classes.containsValue(ci);
     }
 
     public Collection<ClassInfo> getAllClasses() {
-        return classes.values();
+        final Sealed s = sealed;
+        return s != null ? s.allClasses : classes.values();
     }
 
     public Collection<String> getAllClassNames() {
-        return classes.keySet();
+        final Sealed s = sealed;
+        return s != null ? s.allClassNames : classes.keySet();
+    }
+
+    /**
+     * @return the default package, the root of the package tree
+     */
+    public PackageInfo getRootPackage() {
+        return rootPackage;
+    }
+
+    /**
+     * Find a package of the package tree, which has a package for every prefix of the
+     * package names of the classes in this scope
+     * @param name the full name of the package, e.g. "com.google" or "com.google.",
+     *             the empty string for the default package
+     * @return the package, or null if no class is in it or in its subpackages
+     */
+    public PackageInfo findPackage(String name) {
+        if (sealed != null) {
+            return findPackageUnlocked(name);
+        }
+        synchronized (this) {
+            return findPackageUnlocked(name);
+        }
+    }
+
+    private PackageInfo findPackageUnlocked(String name) {
+        PackageInfo p = rootPackage;
+        int start = 0;
+        while (p != null && start < name.length()) {
+            int end = name.indexOf('.', start);
+            if (end == -1) {
+                end = name.length();
+            }
+            p = p.getSubpackage(name.substring(start, end));
+            start = end + 1;
+        }
+        return p;
+    }
+
+    /**
+     * Get all classes in a package and its subpackages, e.g. all classes under "com.google."
+     * @param packageName the full name of the package, see {@link #findPackage(String)}
+     * @return the classes, not including array classes
+     */
+    public List<ClassInfo> getClassesUnder(String packageName) {
+        final PackageInfo p = findPackage(packageName);
+        return p == null ? Collections.<ClassInfo>emptyList() : p.getAllClasses();
+    }
+
+    /**
+     * Find or create the package of a class being created, the caller holding the lock
+     * @param className the full name of a class, not an array
+     */
+    PackageInfo findOrCreatePackageOf(String className) {
+        PackageInfo p = rootPackage;
+        int start = 0;
+        int end;
+        while ((end = className.indexOf('.', start)) != -1) {
+            p = p.findOrCreateSubpackage(className.substring(start, end));
+            start = end + 1;
+        }
+        return p;
+    }
+
+    /**
+     * Find the package of a class that is not listed in the tree, e.g. created by the
+     * deprecated {@link ClassInfo#ClassInfo(Scope, String)}: the package of the tree if it
+     * exists, or else a package of the same name outside the tree, so that the tree gets
+     * no package without classes
+     * @param className the full name of a class, not an array
+     */
+    synchronized PackageInfo findPackageOfUnlisted(String className) {
+        final int last = className.lastIndexOf('.');
+        if (last == -1) {
+            return rootPackage;
+        }
+        final String name = className.substring(0, last);
+        final PackageInfo p = findPackageUnlocked(name);
+        return p != null ? p : new PackageInfo(this, findPackageOfUnlisted(name), name);
+    }
+
+    /**
+     * Freeze this scope once loading is done: the class table becomes a read-only perfect
+     * hash, and classes, methods and fields are looked up without locking. Anything that
+     * would change the scope from then on, such as creating or loading classes, registering
+     * new methods or unloading, throws an {@link IllegalStateException}. Classes missing at
+     * this point stay missing, on-demand loaders are no longer asked.
+     * <p>
+     * Attributes can still be set, on classes and on methods that have an id. A method
+     * without one, e.g. created by hand after sealing, cannot be registered: setting its
+     * attributes throws, and so does creating a new phantom method, e.g. when translating
+     * more code. Sealing a sealed scope does nothing.
+     */
+    public synchronized void seal() {
+        if (sealed != null) {
+            return;
+        }
+        hasOnDemandLoaders = false;
+        sealed = new Sealed(classes, classById, methodById, fieldById);
+    }
+
+    /**
+     * @return true if the scope is sealed, see {@link #seal()}
+     */
+    public boolean isSealed() {
+        return sealed != null;
+    }
+
+    void checkNotSealed() {
+        if (sealed != null) {
+            throw new IllegalStateException("the scope is sealed");
+        }
+    }
+
+    /**
+     * The tables of a sealed scope, never modified once built
+     */
+    private static final class Sealed {
+        final SealedClassTable classes;
+        final ClassInfo[] classById;
+        final MethodInfo[] methodById;
+        final FieldInfo[] fieldById;
+        final Collection<ClassInfo> allClasses;
+        final Collection<String> allClassNames;
+
+        Sealed(HashMap<String, ClassInfo> classes, List<ClassInfo> classById, List<MethodInfo> methodById,
+               List<FieldInfo> fieldById) {
+            this.classes = new SealedClassTable(classes.values());
+            this.classById = classById.toArray(new ClassInfo[classById.size()]);
+            this.methodById = methodById.toArray(new MethodInfo[methodById.size()]);
+            this.fieldById = fieldById.toArray(new FieldInfo[fieldById.size()]);
+            this.allClasses = Collections.unmodifiableCollection(new ArrayList<ClassInfo>(classes.values()));
+            this.allClassNames = Collections.unmodifiableCollection(new ArrayList<String>(classes.keySet()));
+        }
+    }
+
+    /**
+     * The version of the class hierarchy, which changes whenever the details of a class are
+     * set, dropped or given another base type. Results derived from the hierarchy, e.g. the
+     * method lookups of {@link ClassInfo#findMethods(String)}, are valid as long as it stays the same.
+     * @return the version
+     */
+    public int getHierarchyVersion() {
+        return hierarchyVersion.get();
+    }
+
+    void hierarchyChanged() {
+        hierarchyVersion.incrementAndGet();
+    }
+
+    /**
+     * The generation of the ids of this scope, which changes whenever {@link #unload(Layer)}
+     * gives ids back, after which an id taken before may name another class, method or
+     * field. Tables indexed by id, e.g. a {@link patdroid.callgraph.CallGraph}, are valid as
+     * long as it stays the same.
+     * @return the generation
+     */
+    public int getIdGeneration() {
+        return idGeneration;
+    }
+
+    /**
+     * @param generation the id generation at which a table indexed by id was built
+     * @throws IllegalStateException if ids were given back since, see {@link #getIdGeneration()}
+     */
+    public void checkIdGeneration(int generation) {
+        if (generation != idGeneration) {
+            throw new IllegalStateException("ids were given back since the table was built");
+        }
+    }
+
+    /**
+     * @return the number of classes, i.e. the upper bound (exclusive) of class ids
+     */
+    public int getClassCount() {
+        final Sealed s = sealed;
+        if (s != null) {
+            return s.classById.length;
+        }
+        synchronized (this) {
+            return classById.size();
+        }
+    }
+
+    /**
+     * @param id the class id
+     * @return the class with the id, or null if it was unloaded
+     */
+    public ClassInfo getClassById(int id) {
+        final Sealed s = sealed;
+        if (s != null) {
+            return s.classById[id];
+        }
+        synchronized (this) {
+            return classById.get(id);
+        }
+    }
+
+    /**
+     * @return the number of registered methods, i.e. the upper bound (exclusive) of method ids
+     */
+    public int getMethodCount() {
+        final Sealed s = sealed;
+        if (s != null) {
+            return s.methodById.length;
+        }
+        synchronized (this) {
+            return methodById.size();
+        }
+    }
+
+    /**
+     * @param id the method id
+     * @return the method with the id, or null if its class was unloaded
+     */
+    public MethodInfo getMethodById(int id) {
+        final Sealed s = sealed;
+        if (s != null) {
+            return s.methodById[id];
+        }
+        synchronized (this) {
+            return methodById.get(id);
+        }
+    }
+
+    /**
+     * @return the number of registered fields, i.e. the upper bound (exclusive) of field ids
+     */
+    public int getFieldCount() {
+        final Sealed s = sealed;
+        if (s != null) {
+            return s.fieldById.length;
+        }
+        synchronized (this) {
+            return fieldById.size();
+        }
+    }
+
+    /**
+     * @param id the field id
+     * @return the field with the id, or null if its class was unloaded
+     */
+    public FieldInfo getFieldById(int id) {
+        final Sealed s = sealed;
+        if (s != null) {
+            return s.fieldById[id];
+        }
+        synchronized (this) {
+            return fieldById.get(id);
+        }
+    }
+
+    /**
+     * @param field the field, bound to its declaring class (see {@link FieldInfo#bind()})
+     * @return the id of the field, or -1 if it is not declared by a loaded class
+     */
+    public int getFieldId(FieldInfo field) {
+        if (field.owner.scope != this) {
+            return -1;
+        }
+        if (sealed != null) {
+            return getFieldIdUnlocked(field);
+        }
+        synchronized (this) {
+            return getFieldIdUnlocked(field);
+        }
+    }
+
+    private static int getFieldIdUnlocked(FieldInfo field) {
+        final FieldIds t = field.owner.fieldIds;
+        return t == null ? -1 : t.get(field.fieldName);
+    }
+
+    /**
+     * The ids of the fields declared by a class, by name, kept on the class so that a
+     * field id is found without hashing the field
+     */
+    static final class FieldIds {
+        /**
+         * The field names, sorted
+         */
+        final String[] names;
+        final int[] ids;
+
+        FieldIds(String[] names, int[] ids) {
+            this.names = names;
+            this.ids = ids;
+        }
+
+        int get(String name) {
+            final int k = Arrays.binarySearch(names, name);
+            return k < 0 ? -1 : ids[k];
+        }
+    }
+
+    /**
+     * Give a method an id in this scope. Methods of loaded classes are registered
+     * automatically, this is for methods that do not belong to a loaded class,
+     * e.g. placeholders of unresolved invocations.
+     * Registering a method twice does nothing.
+     * @param mi the method, which must belong to a class of this scope
+     * @return the id of the method
+     */
+    public int registerMethod(MethodInfo mi) {
+        if (sealed != null && mi.id != -1) {
+            return mi.id;
+        }
+        return registerNewMethod(mi);
+    }
+
+    private synchronized int registerNewMethod(MethodInfo mi) {
+        if (mi.id == -1) {
+            checkNotSealed();
+            mi.id = methodById.size();
+            methodById.add(mi);
+        }
+        return mi.id;
+    }
+
+    /**
+     * Register the methods and fields of a class, called when its details are set
+     */
+    synchronized void registerMembers(ClassInfo owner, ClassDetail detail) {
+        checkNotSealed();
+        owner.loadStamp = loadCount++;
+        for (MethodInfo mi : detail.methods.values()) {
+            registerMethod(mi);
+        }
+        final TreeMap<String, Integer> ids = new TreeMap<String, Integer>();
+        final FieldIds old = owner.fieldIds;
+        if (old != null) {
+            for (int k = 0; k < old.names.length; ++k) {
+                ids.put(old.names[k], old.ids[k]);
+            }
+        }
+        registerFields(owner, detail.fields.keySet(), ids);
+        registerFields(owner, detail.staticFields.keySet(), ids);
+        final String[] names = new String[ids.size()];
+        final int[] values = new int[ids.size()];
+        int k = 0;
+        for (Map.Entry<String, Integer> e : ids.entrySet()) {
+            names[k] = e.getKey();
+            values[k++] = e.getValue();
+        }
+        owner.fieldIds = new FieldIds(names, values);
+    }
+
+    private void registerFields(ClassInfo owner, Collection<String> names, TreeMap<String, Integer> ids) {
+        for (String name : names) {
+            if (!ids.containsKey(name)) {
+                ids.put(name, fieldById.size());
+                fieldById.add(new FieldInfo(owner, name));
+            }
+        }
+    }
+
+    /**
+     * The classes, methods and fields of a scope at some point, see {@link #mark()}
+     */
+    public static final class Layer {
+        final int classCount;
+        final int methodCount;
+        final int fieldCount;
+        final int loadCount;
+
+        Layer(int classCount, int methodCount, int fieldCount, int loadCount) {
+            this.classCount = classCount;
+            this.methodCount = methodCount;
+            this.fieldCount = fieldCount;
+            this.loadCount = loadCount;
+        }
+    }
+
+    /**
+     * Remember the current classes, methods and fields, so that whatever is created or
+     * loaded from now on can be unloaded with {@link #unload(Layer)}
+     * @return the mark
+     */
+    public synchronized Layer mark() {
+        return new Layer(classById.size(), methodById.size(), fieldById.size(), loadCount);
+    }
+
+    /**
+     * Unload every class created or loaded since a mark, including framework classes
+     * loaded on demand in between, and give their ids back: the next class, method and
+     * field registered get the ids they would have got right after the mark.
+     * Classes created before the mark but loaded since become missing again and may
+     * be loaded on demand again.
+     * <p>
+     * Classes loaded before the mark should not refer to the unloaded classes, which
+     * holds when the mark separates the framework classes from an app. Tables indexed by
+     * id built before, such as call graphs and cross references, must be built again, see
+     * {@link #getIdGeneration()}.
+     * @param layer the mark, taken on this scope
+     * @return the number of classes unloaded
+     */
+    public synchronized int unload(Layer layer) {
+        checkNotSealed();
+        final ArrayList<ClassInfo> l = new ArrayList<ClassInfo>();
+        for (int id = 0; id < classById.size(); ++id) {
+            final ClassInfo ci = classById.get(id);
+            if (ci != null && (id >= layer.classCount || ci.loadStamp >= layer.loadCount)) {
+                l.add(ci);
+            }
+        }
+        unload(l, layer.classCount);
+        classById.subList(layer.classCount, classById.size()).clear();
+        fieldById.subList(layer.fieldCount, fieldById.size()).clear();
+        // phantoms created since but still called from earlier code get new ids
+        final ArrayList<MethodInfo> kept = new ArrayList<MethodInfo>();
+        for (MethodInfo mi : methodById.subList(layer.methodCount, methodById.size())) {
+            if (mi != null) {
+                attributes.remove(mi);
+                mi.id = -1;
+                kept.add(mi);
+            }
+        }
+        methodById.subList(layer.methodCount, methodById.size()).clear();
+        for (MethodInfo mi : kept) {
+            registerMethod(mi);
+        }
+        loadCount = layer.loadCount;
+        ++idGeneration;
+        return l.size();
+    }
+
+    /**
+     * Unload classes: detach them from the class hierarchy, drop their details, methods,
+     * instructions, attributes and the phantom methods only they refer to, and remove
+     * them from this scope. Their ids are not reused.
+     * <p>
+     * The array types of the unloaded classes are removed as well.
+     * A remaining class that still refers to an unloaded class, e.g. as base class, field
+     * type or invocation target, keeps the detached class; looking up the name of an
+     * unloaded class creates a new class.
+     * @param targets the classes to unload, from this scope
+     */
+    public synchronized void unload(Collection<ClassInfo> targets) {
+        checkNotSealed();
+        unload(targets, 0);
+    }
+
+    /**
+     * @param keepNamesBelow classes with smaller ids are only made missing, not removed
+     */
+    private void unload(Collection<ClassInfo> targets, int keepNamesBelow) {
+        final Set<ClassInfo> unloaded = Collections.newSetFromMap(new IdentityHashMap<ClassInfo, Boolean>());
+        unloaded.addAll(targets);
+        // every ancestor lists all its loaded descendants
+        final Set<ClassDetail> ancestors = Collections.newSetFromMap(new IdentityHashMap<ClassDetail, Boolean>());
+        final ArrayDeque<ClassDetail> queue = new ArrayDeque<ClassDetail>();
+        for (ClassInfo ci : unloaded) {
+            if (ci.isLoaded()) {
+                queue.add(ci.mutableDetail);
+            }
+        }
+        while (!queue.isEmpty()) {
+            final ClassDetail detail = queue.pop();
+            if (detail.baseType != null && ancestors.add(detail.baseType.mutableDetail)) {
+                queue.add(detail.baseType.mutableDetail);
+            }
+            for (ClassInfo i : detail.interfaces) {
+                if (ancestors.add(i.mutableDetail)) {
+                    queue.add(i.mutableDetail);
+                }
+            }
+        }
+        for (ClassDetail detail : ancestors) {
+            detail.derivedClasses.removeAll(unloaded);
+            detail.derivedClasses.trimToSize();
+        }
+
+        final ArrayList<Invocation> sites = new ArrayList<Invocation>();
+        for (ClassInfo ci : unloaded) {
+            final ClassDetail detail = ci.mutableDetail;
+            if (ci.isLoaded()) {
+                for (MethodInfo mi : detail.methods.values()) {
+                    collectUnresolvedInvocations(mi, sites);
+                    mi.insns = null;
+                    mi.tbs = null;
+                    mi.extra = null;
+                    unregisterMethod(mi);
+                }
+                unregisterFields(ci);
+                ci.unsetDetail();
+            }
+            attributes.remove(ci);
+            onDemandTried.clear(ci.id);
+        }
+        for (MethodInfo mi : phantoms.release(unloaded, sites)) {
+            unregisterMethod(mi);
+        }
+        for (ClassInfo ci : unloaded) {
+            if (ci.id >= keepNamesBelow && !primitives.contains(ci) && ci != rootObject) {
+                classes.remove(ci.fullName);
+                classById.set(ci.id, null);
+                ci.getPackage().remove(ci);
+                if (!ci.isArray()) {
+                    removeArrayClasses(ci);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the array types of a removed class, which are not listed in its package but
+     * refer to it, as the package may be pruned
+     */
+    private void removeArrayClasses(ClassInfo element) {
+        String name = "[L" + element.fullName + ";";
+        ClassInfo array;
+        while ((array = classes.remove(name)) != null) {
+            attributes.remove(array);
+            onDemandTried.clear(array.id);
+            classById.set(array.id, null);
+            name = "[" + name;
+        }
+    }
+
+    private static void collectUnresolvedInvocations(MethodInfo mi, ArrayList<Invocation> sites) {
+        if (mi.insns == null) {
+            return;
+        }
+        for (Instruction i : mi.insns) {
+            if (i.extra instanceof Invocation && !((Invocation) i.extra).isResolved) {
+                sites.add((Invocation) i.extra);
+            }
+        }
+    }
+
+    private void unregisterMethod(MethodInfo mi) {
+        if (mi.id != -1) {
+            attributes.remove(mi);
+            methodById.set(mi.id, null);
+        }
+    }
+
+    private void unregisterFields(ClassInfo ci) {
+        final FieldIds t = ci.fieldIds;
+        if (t == null) {
+            return;
+        }
+        for (int id : t.ids) {
+            if (id < fieldById.size()) {
+                fieldById.set(id, null);
+            }
+        }
+        ci.fieldIds = null;
+    }
+
+    /**
+     * Add a loader that is asked for the details of a missing class the first time the class
+     * is queried, e.g. to load framework classes only when an app refers to them.
+     * Loaders are tried in the order they are added, adding a loader twice does nothing.
+     * @param loader the loader, which must implement {@link ClassDetailLoader#load(ClassInfo)}
+     */
+    public synchronized void addOnDemandLoader(ClassDetailLoader loader) {
+        checkNotSealed();
+        if (onDemandLoaders.contains(loader)) {
+            return;
+        }
+        onDemandLoaders.add(loader);
+        // classes not found so far may be found by the new loader
+        onDemandTried.clear();
+        hasOnDemandLoaders = true;
+    }
+
+    boolean hasOnDemandLoaders() {
+        return hasOnDemandLoaders;
+    }
+
+    /**
+     * Try to load a missing class with the on-demand loaders. Each class is tried once,
+     * a class queried again while being loaded stays missing.
+     */
+    synchronized void loadOnDemand(ClassInfo ci) {
+        if (!ci.isMissingDetail() || onDemandTried.get(ci.id)) {
+            return;
+        }
+        onDemandTried.set(ci.id);
+        for (ClassDetailLoader loader : onDemandLoaders) {
+            try {
+                loader.load(ci);
+            } catch (ClassNotFoundException e) {
+                continue;
+            }
+            if (!ci.isMissingDetail()) {
+                return;
+            }
+        }
     }
 
     public ClassInfo findOrCreateClass(String fullName) {
-        ClassInfo u = findClass(fullName);
-        return (u == null ? createClass(fullName) : u);
+        final Sealed s = sealed;
+        if (s != null) {
+            final ClassInfo u = s.classes.get(fullName);
+            if (u == null) {
+                throw new IllegalStateException("the scope is sealed, cannot create " + fullName);
+            }
+            return u;
+        }
+        synchronized (this) {
+            ClassInfo u = classes.get(fullName);
+            return (u == null ? createClass(fullName) : u);
+        }
     }
 
     /**
@@ -0,0 +1,213 @@
+package patdroid.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable table of classes by name for a sealed scope, see {@link Scope#seal()}.
+ * <p>
+ * The table is a perfect hash built by hash and displace: names are split into buckets,
+ * and each bucket gets a seed that sends its names to distinct free slots. A lookup is
+ * thus one probe, comparing the cached hash code of the name before the name itself, so
+ * that looking up a long name rarely compares more than one string. Names whose hash codes
+ * clash cannot be told apart by any seed and are kept in a small map on the side. If no
+ * seeds are found after making the table and the number of buckets larger a few times,
+ * e.g. for names crafted to collide, all names are kept in the map on the side.
+ * Being immutable, the table is safe for concurrent lookups without locking.
+ */
+final class SealedClassTable {
+    /**
+     * The average number of names per bucket
+     */
+    private static final int BUCKET_SIZE = 4;
+    /**
+     * The number of seeds tried for a bucket before the table is made larger
+     */
+    private static final int MAX_SEED = 1 << 16;
+    /**
+     * The number of table sizes tried before falling back to a hash map
+     */
+    static final int MAX_ATTEMPTS = 8;
+
+    private final int[] seeds;
+    private final int[] hashes;
+    private final ClassInfo[] slots;
+    private final Map<String, ClassInfo> clashes;
+    private final int size;
+
+    /**
+     * @param classes the classes, of distinct names
+     */
+    SealedClassTable(Collection<ClassInfo> classes) {
+        this(classes, MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param classes the classes, of distinct names
+     * @param maxAttempts the number of table sizes tried before falling back to a hash map
+     */
+    SealedClassTable(Collection<ClassInfo> classes, int maxAttempts) {
+        final HashMap<Integer, List<ClassInfo>> byHash = new HashMap<Integer, List<ClassInfo>>();
+        for (ClassInfo ci : classes) {
+            List<ClassInfo> l = byHash.get(ci.fullName.hashCode());
+            if (l == null) {
+                l = new ArrayList<ClassInfo>(1);
+                byHash.put(ci.fullName.hashCode(), l);
+            }
+            l.add(ci);
+        }
+        final ArrayList<ClassInfo> unique = new ArrayList<ClassInfo>(byHash.size());
+        final HashMap<String, ClassInfo> clashing = new HashMap<String, ClassInfo>();
+        for (List<ClassInfo> l : byHash.values()) {
+            if (l.size() == 1) {
+                unique.add(l.get(0));
+            } else {
+                for (ClassInfo ci : l) {
+                    clashing.put(ci.fullName, ci);
+                }
+            }
+        }
+        this.size = classes.size();
+
+        int capacity = Math.max(1, unique.size() + unique.size() / 8);
+        int nBuckets = Math.max(1, unique.size() / BUCKET_SIZE);
+        int[] s = null;
+        int[] h = null;
+        ClassInfo[] t = null;
+        for (int attempt = 0; attempt < maxAttempts && t == null; ++attempt) {
+            s = new int[nBuckets];
+            h = new int[capacity];
+            t = new ClassInfo[capacity];
+            if (!place(unique, s, h, t)) {
+                t = null;
+                // more room and smaller buckets are both easier to place
+                capacity += capacity / 4 + 1;
+                nBuckets += nBuckets / 2 + 1;
+            }
+        }
+        if (t == null) {
+            s = new int[1];
+            h = new int[1];
+            t = new ClassInfo[1];
+            for (ClassInfo ci : unique) {
+                clashing.put(ci.fullName, ci);
+            }
+        }
+        this.seeds = s;
+        this.hashes = h;
+        this.slots = t;
+        this.clashes = clashing.isEmpty() ? Collections.<String, ClassInfo>emptyMap() : clashing;
+    }
+
+    /**
+     * Place the classes bucket by bucket, largest first
+     * @return false if a bucket could not be placed
+     */
+    private static boolean place(List<ClassInfo> classes, int[] seeds, int[] hashes, ClassInfo[] slots) {
+        final int nBuckets = seeds.length;
+        final List<List<ClassInfo>> buckets = new ArrayList<List<ClassInfo>>(nBuckets);
+        for (int i = 0; i < nBuckets; ++i) {
+            buckets.add(new ArrayList<ClassInfo>(BUCKET_SIZE));
+        }
+        for (ClassInfo ci : classes) {
+            buckets.get(bucket(ci.fullName.hashCode(), nBuckets)).add(ci);
+        }
+        final Integer[] order = new Integer[nBuckets];
+        for (int i = 0; i < nBuckets; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return buckets.get(b).size() - buckets.get(a).size();
+            }
+        });
+        final int[] taken = new int[BUCKET_SIZE * 8];
+        for (int b : order) {
+            final List<ClassInfo> bucket = buckets.get(b);
+            if (bucket.isEmpty()) {
+                break;
+            }
+            if (bucket.size() > taken.length) {
+                return false;
+            }
+            int seed = 0;
+            for (; seed < MAX_SEED; ++seed) {
+                int n = 0;
+                for (ClassInfo ci : bucket) {
+                    final int slot = slot(ci.fullName.hashCode(), seed, slots.length);
+                    if (slots[slot] != null || contains(taken, n, slot)) {
+                        break;
+                    }
+                    taken[n++] = slot;
+                }
+                if (n == bucket.size()) {
+                    break;
+                }
+            }
+            if (seed == MAX_SEED) {
+                return false;
+            }
+            seeds[b] = seed;
+            for (ClassInfo ci : bucket) {
+                final int slot = slot(ci.fullName.hashCode(), seed, slots.length);
+                slots[slot] = ci;
+                hashes[slot] = ci.fullName.hashCode();
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] a, int n, int v) {
+        for (int i = 0; i < n; ++i) {
+            if (a[i] == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int bucket(int hash, int nBuckets) {
+        return (mix(hash) & Integer.MAX_VALUE) % nBuckets;
+    }
+
+    private static int slot(int hash, int seed, int nSlots) {
+        return (mix(hash ^ (seed * 0x9e3779b9) ^ 0x5bd1e995) & Integer.MAX_VALUE) % nSlots;
+    }
+
+    /**
+     * @param name the full name of a class
+     * @return the class, or null if not in the table
+     */
+    ClassInfo get(String name) {
+        final int hash = name.hashCode();
+        final int slot = slot(hash, seeds[bucket(hash, seeds.length)], slots.length);
+        final ClassInfo ci = slots[slot];
+        if (ci != null && hashes[slot] == hash && ci.fullName.equals(name)) {
+            return ci;
+        }
+        return clashes.isEmpty() ? null : clashes.get(name);
+    }
+
+    /**
+     * @return the number of classes
+     */
+    int size() {
+        return size;
+    }
+}
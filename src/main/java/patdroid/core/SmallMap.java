@@ -0,0 +1,204 @@
+package patdroid.core;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * An immutable map of a few entries, kept as keys and values interleaved in one array
+ * and looked up by a linear scan, in the order they were put.
+ * <p>
+ * Most classes declare only a handful of methods and fields, for which a scan of a short
+ * array is as fast as hashing and takes a fraction of the memory of a hash table with its
+ * entry objects. Use {@link #copyOf(Map)} to get the cheapest representation for a size.
+ */
+final class SmallMap<K, V> extends AbstractMap<K, V> {
+    /**
+     * The largest map kept as an array, larger ones are hashed
+     */
+    static final int MAX_SIZE = 8;
+
+    private final Object[] table;
+
+    private SmallMap(Object[] table) {
+        this.table = table;
+    }
+
+    /**
+     * Make an immutable copy of a map, keeping its iteration order, as the shared empty map,
+     * an array-backed map or an {@link ImmutableMap} depending on its size. Maps made by this
+     * method are returned as is.
+     * @param m the map
+     * @return the copy
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> Map<K, V> copyOf(Map<? extends K, ? extends V> m) {
+        if (m.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (m instanceof SmallMap || (m instanceof ImmutableMap && m.size() > MAX_SIZE)) {
+            return (Map<K, V>) m;
+        }
+        if (m.size() > MAX_SIZE) {
+            return ImmutableMap.copyOf(m);
+        }
+        final Object[] table = new Object[m.size() * 2];
+        int i = 0;
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+            if (e.getKey() == null || e.getValue() == null) {
+                throw new NullPointerException("null key or value: " + e);
+            }
+            table[i++] = e.getKey();
+            table[i++] = e.getValue();
+        }
+        return new SmallMap<K, V>(table);
+    }
+
+    @Override
+    public int size() {
+        return table.length / 2;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return table.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) != -1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        final int i = indexOf(key);
+        return i == -1 ? null : (V) table[i + 1];
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] == key) {
+                return i;
+            }
+        }
+        if (key != null) {
+            for (int i = 0; i < table.length; i += 2) {
+                if (key.equals(table[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new TableIterator<Map.Entry<K, V>>(0) {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    Map.Entry<K, V> get(int i) {
+                        return new SimpleImmutableEntry<K, V>((K) table[i], (V) table[i + 1]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return table.length / 2;
+            }
+        };
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                return new TableIterator<K>(0) {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    K get(int i) {
+                        return (K) table[i];
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public int size() {
+                return table.length / 2;
+            }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new TableIterator<V>(1) {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    V get(int i) {
+                        return (V) table[i];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return table.length / 2;
+            }
+        };
+    }
+
+    /**
+     * Iterate over every other slot of the table, the keys or the values, without
+     * allocating an entry per element
+     */
+    private abstract class TableIterator<E> implements Iterator<E> {
+        private int i;
+
+        TableIterator(int first) {
+            this.i = first;
+        }
+
+        abstract E get(int i);
+
+        @Override
+        public boolean hasNext() {
+            return i < table.length;
+        }
+
+        @Override
+        public E next() {
+            if (i >= table.length) {
+                throw new NoSuchElementException();
+            }
+            final E e = get(i);
+            i += 2;
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -140,10 +140,36 @@ public final class Instruction {
      */
     public ClassInfo type = null;
     /**
-     * Instruction-specific data
+     * Instruction-specific data, set by the translator. Analysis results go to
+     * {@link patdroid.core.Scope#attributes} instead
      */
     public Object extra = null;
 
+    /**
+     * @param name the name of a major opcode as printed by {@link #toString()}, in any case
+     * @return the opcode, or -1 if there is no such opcode
+     */
+    public static byte parseOpcode(String name) {
+        return find(opname, name);
+    }
+
+    /**
+     * @param name the name of an auxiliary opcode as printed by {@link #toString()}, in any case
+     * @return the auxiliary opcode, or -1 if there is no such opcode
+     */
+    public static byte parseAuxOpcode(String name) {
+        return find(opaux_name, name);
+    }
+
+    private static byte find(String[] names, String name) {
+        for (int k = 0; k < names.length; ++k) {
+            if (names[k].equalsIgnoreCase(name)) {
+                return (byte) k;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public String toString() {
         final StringBuilder s = new StringBuilder();
@@ -1,16 +1,26 @@
 package patdroid.dalvik;
 
+import patdroid.core.ClassInfo;
 import patdroid.core.MethodInfo;
 
 import java.util.Arrays;
 
 public class Invocation {
     public Invocation(boolean isResolved, MethodInfo target, int[] args) {
+        this(isResolved, target.type, target, args);
+    }
+    public Invocation(boolean isResolved, ClassInfo owner, MethodInfo target, int[] args) {
         this.isResolved = isResolved;
+        this.owner = owner;
         this.target = target;
         this.args = args;
     }
     public boolean isResolved;
+    /**
+     * The class named by the method reference of the instruction, the target may be
+     * inherited from one of its base classes
+     */
+    public ClassInfo owner;
     public MethodInfo target;
     public int[] args;
     @Override
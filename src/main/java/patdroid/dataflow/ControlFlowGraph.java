@@ -0,0 +1,267 @@
+package patdroid.dataflow;
+
+import java.util.Map;
+
+import patdroid.core.AttributeKey;
+import patdroid.core.MethodInfo;
+import patdroid.core.TryBlockInfo;
+import patdroid.dalvik.Instruction;
+import patdroid.util.IntList;
+
+/**
+ * The basic block graph of a method.
+ * <p>
+ * Blocks are numbered in instruction order, block 0 being the entry block that starts
+ * with the argument pseudo-instruction. Within a try block, every instruction that can
+ * throw ends its basic block, so that the exceptional successors of a block observe the
+ * register state right before its last instruction.
+ * </p>
+ */
+public final class ControlFlowGraph {
+    private static final AttributeKey<ControlFlowGraph> KEY = AttributeKey.create("control-flow-graph");
+
+    /**
+     * The instruction stream this graph was computed from
+     */
+    public final Instruction[] insns;
+    /**
+     * The try blocks this graph was computed from
+     */
+    public final TryBlockInfo[] tbs;
+    private final int[] blockStart;
+    private final int[] blockOf;
+    private final int[][] successors;
+    private final int[][] handlers;
+    private final int[][] predecessors;
+
+    /**
+     * Build the graph of an instruction stream
+     * @param insns the instructions
+     * @param tbs the try blocks, or null if there is none
+     */
+    public ControlFlowGraph(Instruction[] insns, TryBlockInfo[] tbs) {
+        this.insns = insns;
+        this.tbs = tbs;
+        final int n = insns.length;
+        final TryBlockInfo[] covering = new TryBlockInfo[n];
+        final boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        leader[n] = true;
+        if (tbs != null) {
+            for (TryBlockInfo tb : tbs) {
+                final int end = Math.min(tb.endInsnIndex, n);
+                leader[tb.startInsnIndex] = true;
+                leader[end] = true;
+                for (int i = tb.startInsnIndex; i < end; ++i) {
+                    covering[i] = tb;
+                }
+                for (TryBlockInfo.ExceptionHandler h : tb.handlers) {
+                    leader[h.handlerInsnIndex] = true;
+                }
+            }
+        }
+        for (int i = 0; i < n; ++i) {
+            final Instruction insn = insns[i];
+            switch (insn.opcode) {
+            case Instruction.OP_GOTO:
+            case Instruction.OP_IF:
+                leader[(Integer) insn.extra] = true;
+                leader[i + 1] = true;
+                break;
+            case Instruction.OP_SWITCH:
+                for (int target : getSwitchTargets(insn).values()) {
+                    leader[target] = true;
+                }
+                leader[i + 1] = true;
+                break;
+            case Instruction.OP_RETURN:
+            case Instruction.OP_EXCEPTION_OP:
+            case Instruction.OP_HALT:
+                leader[i + 1] = true;
+                break;
+            default:
+                if (covering[i] != null && canThrow(insn)) {
+                    leader[i + 1] = true;
+                }
+                break;
+            }
+        }
+
+        int nBlocks = 0;
+        for (int i = 0; i < n; ++i) {
+            if (leader[i]) ++nBlocks;
+        }
+        blockStart = new int[nBlocks + 1];
+        blockOf = new int[n];
+        int b = -1;
+        for (int i = 0; i < n; ++i) {
+            if (leader[i]) blockStart[++b] = i;
+            blockOf[i] = b;
+        }
+        blockStart[nBlocks] = n;
+
+        successors = new int[nBlocks][];
+        handlers = new int[nBlocks][];
+        final IntList[] preds = new IntList[nBlocks];
+        for (b = 0; b < nBlocks; ++b) {
+            preds[b] = new IntList();
+        }
+        final IntList l = new IntList();
+        for (b = 0; b < nBlocks; ++b) {
+            final int last = blockStart[b + 1] - 1;
+            final Instruction insn = insns[last];
+            l.clear();
+            switch (insn.opcode) {
+            case Instruction.OP_GOTO:
+                l.addUnique(blockOf[(Integer) insn.extra]);
+                break;
+            case Instruction.OP_IF:
+                addFallThrough(l, last);
+                l.addUnique(blockOf[(Integer) insn.extra]);
+                break;
+            case Instruction.OP_SWITCH:
+                addFallThrough(l, last);
+                for (int target : getSwitchTargets(insn).values()) {
+                    l.addUnique(blockOf[target]);
+                }
+                break;
+            case Instruction.OP_RETURN:
+            case Instruction.OP_EXCEPTION_OP:
+            case Instruction.OP_HALT:
+                break;
+            default:
+                addFallThrough(l, last);
+                break;
+            }
+            successors[b] = l.toArray();
+            l.clear();
+            if (covering[last] != null && canThrow(insn)) {
+                for (TryBlockInfo.ExceptionHandler h : covering[last].handlers) {
+                    l.addUnique(blockOf[h.handlerInsnIndex]);
+                }
+            }
+            handlers[b] = l.toArray();
+            for (int s : successors[b]) preds[s].addUnique(b);
+            for (int s : handlers[b]) preds[s].addUnique(b);
+        }
+        predecessors = new int[nBlocks][];
+        for (b = 0; b < nBlocks; ++b) {
+            predecessors[b] = preds[b].toArray();
+        }
+    }
+
+    /**
+     * Get the control flow graph of a method. The graph is cached until the instructions
+     * of the method are replaced.
+     * @param mi the method
+     * @return the graph, or null if the method has no instructions
+     */
+    public static ControlFlowGraph of(MethodInfo mi) {
+        final Instruction[] insns = mi.insns;
+        if (insns == null) {
+            return null;
+        }
+        ControlFlowGraph cfg = mi.type.scope.attributes.get(KEY, mi);
+        if (cfg == null || cfg.insns != insns || cfg.tbs != mi.tbs) {
+            cfg = new ControlFlowGraph(insns, mi.tbs);
+            mi.type.scope.attributes.set(KEY, mi, cfg);
+        }
+        return cfg;
+    }
+
+    private void addFallThrough(IntList l, int index) {
+        if (index + 1 < insns.length) {
+            l.addUnique(blockOf[index + 1]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, Integer> getSwitchTargets(Instruction insn) {
+        return (Map<Integer, Integer>) insn.extra;
+    }
+
+    /**
+     * Check if an instruction might raise an exception to be caught by a handler
+     * @param insn the instruction
+     * @return true if the instruction might throw
+     */
+    public static boolean canThrow(Instruction insn) {
+        switch (insn.opcode) {
+        case Instruction.OP_INVOKE_OP:
+        case Instruction.OP_INSTANCE_OP:
+        case Instruction.OP_ARRAY_OP:
+        case Instruction.OP_STATIC_OP:
+        case Instruction.OP_NEW:
+        case Instruction.OP_EXCEPTION_OP:
+            return true;
+        case Instruction.OP_SPECIAL:
+            return insn.opcode_aux != Instruction.OP_SP_ARGUMENTS;
+        case Instruction.OP_ARITHETIC:
+            return insn.opcode_aux == Instruction.OP_A_CHECKCAST
+                    || insn.opcode_aux == Instruction.OP_A_ARRAY_LENGTH
+                    || insn.opcode_aux == Instruction.OP_A_DIV
+                    || insn.opcode_aux == Instruction.OP_A_REM;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of basic blocks
+     */
+    public int getBlockCount() {
+        return successors.length;
+    }
+
+    /**
+     * @param block the block
+     * @return the index of the first instruction of the block
+     */
+    public int getBlockStart(int block) {
+        return blockStart[block];
+    }
+
+    /**
+     * @param block the block
+     * @return the index after the last instruction of the block
+     */
+    public int getBlockEnd(int block) {
+        return blockStart[block + 1];
+    }
+
+    /**
+     * @param index the instruction index
+     * @return the block containing the instruction
+     */
+    public int getBlockOf(int index) {
+        return blockOf[index];
+    }
+
+    /**
+     * @param block the block
+     * @return the blocks reached by normal control flow, do not modify
+     */
+    public int[] getSuccessors(int block) {
+        return successors[block];
+    }
+
+    /**
+     * @param block the block
+     * @return the exception handler blocks reached if the last instruction throws, do not modify
+     */
+    public int[] getExceptionSuccessors(int block) {
+        return handlers[block];
+    }
+
+    /**
+     * @param block the block
+     * @return the blocks flowing into this block, normally or exceptionally, do not modify
+     */
+    public int[] getPredecessors(int block) {
+        return predecessors[block];
+    }
+
+    /**
+     * A small growable list of ints
+     */
+}
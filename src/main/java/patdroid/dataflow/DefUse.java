@@ -0,0 +1,304 @@
+package patdroid.dataflow;
+
+import java.util.Map;
+
+import patdroid.core.AttributeKey;
+import patdroid.core.MethodInfo;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+
+/**
+ * The registers defined (written) and used (read) by each instruction of a method.
+ * <p>
+ * Decoding an instruction requires switching on its opcodes and inspecting the
+ * instruction-specific data, so the table is built once per instruction stream and
+ * stored in a compact form: all register numbers of a method live in two flat arrays
+ * indexed by per-instruction offsets.
+ * </p>
+ * <p>
+ * A wide (long/double) value is named by its first register, the same convention used
+ * by the instruction representation and {@link Invocation#args}.
+ * </p>
+ */
+public final class DefUse {
+    private static final AttributeKey<DefUse> KEY = AttributeKey.create("def-use");
+
+    /**
+     * The instruction stream this table was computed from
+     */
+    public final Instruction[] insns;
+    /**
+     * The number of registers referred to, i.e. the largest register number plus one
+     */
+    public final int registerCount;
+    private final int[] defStart;
+    private final short[] defs;
+    private final int[] useStart;
+    private final short[] uses;
+
+    /**
+     * Decode the registers of an instruction stream
+     * @param insns the instructions
+     */
+    public DefUse(Instruction[] insns) {
+        this.insns = insns;
+        final int n = insns.length;
+        defStart = new int[n + 1];
+        useStart = new int[n + 1];
+        RegisterList d = new RegisterList();
+        RegisterList u = new RegisterList();
+        for (int i = 0; i < n; ++i) {
+            decode(insns[i], d, u);
+            defStart[i + 1] = d.size;
+            useStart[i + 1] = u.size;
+        }
+        defs = d.toArray();
+        uses = u.toArray();
+        registerCount = Math.max(d.max, u.max) + 1;
+    }
+
+    /**
+     * Get the def/use table of a method. The table is cached until the instructions of
+     * the method are replaced.
+     * @param mi the method
+     * @return the table, or null if the method has no instructions
+     */
+    public static DefUse of(MethodInfo mi) {
+        final Instruction[] insns = mi.insns;
+        if (insns == null) {
+            return null;
+        }
+        DefUse du = mi.type.scope.attributes.get(KEY, mi);
+        if (du == null || du.insns != insns) {
+            du = new DefUse(insns);
+            mi.type.scope.attributes.set(KEY, mi, du);
+        }
+        return du;
+    }
+
+    /**
+     * @return the number of instructions
+     */
+    public int size() {
+        return insns.length;
+    }
+
+    /**
+     * @param index the instruction index
+     * @return the number of registers defined by the instruction
+     */
+    public int getDefCount(int index) {
+        return defStart[index + 1] - defStart[index];
+    }
+
+    /**
+     * @param index the instruction index
+     * @param k the k-th defined register, 0 &lt;= k &lt; {@link #getDefCount(int)}
+     * @return the register number
+     */
+    public int getDef(int index, int k) {
+        return defs[defStart[index] + k];
+    }
+
+    /**
+     * @param index the instruction index
+     * @return the number of registers used by the instruction
+     */
+    public int getUseCount(int index) {
+        return useStart[index + 1] - useStart[index];
+    }
+
+    /**
+     * @param index the instruction index
+     * @param k the k-th used register, 0 &lt;= k &lt; {@link #getUseCount(int)}
+     * @return the register number
+     */
+    public int getUse(int index, int k) {
+        return uses[useStart[index] + k];
+    }
+
+    /**
+     * @param index the instruction index
+     * @param reg the register
+     * @return true if the instruction writes the register
+     */
+    public boolean defines(int index, int reg) {
+        for (int k = defStart[index]; k < defStart[index + 1]; ++k) {
+            if (defs[k] == reg) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param index the instruction index
+     * @param reg the register
+     * @return true if the instruction reads the register
+     */
+    public boolean uses(int index, int reg) {
+        for (int k = useStart[index]; k < useStart[index + 1]; ++k) {
+            if (uses[k] == reg) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the position of the first def of an instruction among the defs of all
+     * instructions, which lets dependent analyses keep per-def data in flat arrays
+     */
+    int getDefOffset(int index) {
+        return defStart[index];
+    }
+
+    /**
+     * @return the position of the first use of an instruction among the uses of all
+     * instructions
+     */
+    int getUseOffset(int index) {
+        return useStart[index];
+    }
+
+    /**
+     * Add the defined registers of an instruction to a bitset
+     * @param index the instruction index
+     * @param bits the bitset as 64-bit words, register r being bit (r % 64) of word (r / 64)
+     */
+    void addDefs(int index, long[] bits) {
+        for (int k = defStart[index]; k < defStart[index + 1]; ++k) {
+            bits[defs[k] >>> 6] |= 1L << defs[k];
+        }
+    }
+
+    /**
+     * Remove the defined registers of an instruction from a bitset
+     */
+    void killDefs(int index, long[] bits) {
+        for (int k = defStart[index]; k < defStart[index + 1]; ++k) {
+            bits[defs[k] >>> 6] &= ~(1L << defs[k]);
+        }
+    }
+
+    /**
+     * Add the used registers of an instruction to a bitset
+     */
+    void addUses(int index, long[] bits) {
+        for (int k = useStart[index]; k < useStart[index + 1]; ++k) {
+            bits[uses[k] >>> 6] |= 1L << uses[k];
+        }
+    }
+
+    private static void decode(Instruction i, RegisterList d, RegisterList u) {
+        switch (i.opcode) {
+        case Instruction.OP_MOV:
+            d.add(i.rdst);
+            if (i.opcode_aux == Instruction.OP_MOV_REG) {
+                u.add(i.r0);
+            }
+            break;
+        case Instruction.OP_RETURN:
+        case Instruction.OP_EXCEPTION_OP:
+        case Instruction.OP_SWITCH:
+            u.add(i.r0);
+            break;
+        case Instruction.OP_STATIC_OP:
+            if (i.opcode_aux == Instruction.OP_STATIC_GET_FIELD) {
+                d.add(i.r0);
+            } else {
+                u.add(i.r0);
+            }
+            break;
+        case Instruction.OP_SPECIAL:
+            if (i.opcode_aux == Instruction.OP_SP_ARGUMENTS) {
+                d.addAll((int[]) i.extra);
+            } else {
+                // monitor-enter/exit keep the object register in rdst
+                u.add(i.rdst);
+            }
+            break;
+        case Instruction.OP_NEW:
+            if (i.opcode_aux == Instruction.OP_NEW_FILLED_ARRAY) {
+                if (i.extra instanceof int[]) {
+                    // filled-new-array, the array is picked up by a move-result
+                    u.addAll((int[]) i.extra);
+                } else {
+                    // fill-array-data, writes the elements of an existing array
+                    u.add(i.rdst);
+                }
+            } else {
+                d.add(i.rdst);
+                u.add(i.r0);
+            }
+            break;
+        case Instruction.OP_CMP:
+            d.add(i.rdst);
+            u.add(i.r0);
+            u.add(i.r1);
+            break;
+        case Instruction.OP_IF:
+            u.add(i.r0);
+            u.add(i.r1);
+            break;
+        case Instruction.OP_INSTANCE_OP:
+            u.add(i.r0);
+            if (i.opcode_aux == Instruction.OP_INSTANCE_GET_FIELD) {
+                d.add(i.r1);
+            } else {
+                u.add(i.r1);
+            }
+            break;
+        case Instruction.OP_ARRAY_OP:
+            u.add(i.r0);
+            u.add(i.r1);
+            if (i.opcode_aux == Instruction.OP_ARRAY_GET) {
+                d.add(i.rdst);
+            } else {
+                u.add(i.rdst);
+            }
+            break;
+        case Instruction.OP_INVOKE_OP:
+            u.addAll(((Invocation) i.extra).args);
+            break;
+        case Instruction.OP_ARITHETIC:
+            d.add(i.rdst);
+            if (i.opcode_aux == Instruction.OP_A_CHECKCAST) {
+                u.add(i.rdst);
+            } else {
+                u.add(i.r0);
+                u.add(i.r1);
+            }
+            break;
+        default:
+            // nop, goto, halt
+            break;
+        }
+    }
+
+    /**
+     * A growable list of registers, ignoring the -1 placeholder of unused operands
+     */
+    private static final class RegisterList {
+        short[] regs = new short[16];
+        int size = 0;
+        int max = -1;
+
+        void add(int r) {
+            if (r < 0) return;
+            if (size == regs.length) {
+                short[] a = new short[size * 2];
+                System.arraycopy(regs, 0, a, 0, size);
+                regs = a;
+            }
+            regs[size++] = (short) r;
+            if (r > max) max = r;
+        }
+
+        void addAll(int[] rs) {
+            for (int r : rs) add(r);
+        }
+
+        short[] toArray() {
+            short[] a = new short[size];
+            System.arraycopy(regs, 0, a, 0, size);
+            return a;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package patdroid.dataflow;
+
+import patdroid.util.IntList;
+
+/**
+ * The dominator tree and dominance frontiers of a control flow graph.
+ * <p>
+ * Block A dominates block B if every path from the entry block to B goes through A.
+ * Immediate dominators are computed with the iterative algorithm of Cooper, Harvey and
+ * Kennedy over the reverse postorder, exceptional edges included. Blocks unreachable
+ * from the entry have no dominator and are left out of the tree.
+ * </p>
+ */
+public final class DominatorTree {
+    public final ControlFlowGraph cfg;
+    private final int[] idom;
+    private final int[] rpo;
+    private final int[] rpoNumber;
+    private final int[] childStart;
+    private final int[] children;
+    private final int[] preorder;
+    private final int[] postorder;
+    private final int[][] frontiers;
+
+    /**
+     * Compute the dominators of a graph
+     * @param cfg the control flow graph, entry block being block 0
+     */
+    public DominatorTree(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        final int n = cfg.getBlockCount();
+        idom = new int[n];
+        rpoNumber = new int[n];
+        rpo = computeReversePostorder(n);
+        for (int b = 0; b < n; ++b) {
+            idom[b] = -1;
+        }
+        if (n > 0) {
+            idom[0] = 0;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = 1; k < rpo.length; ++k) {
+                final int b = rpo[k];
+                int newIdom = -1;
+                for (int p : cfg.getPredecessors(b)) {
+                    if (idom[p] == -1) continue;
+                    newIdom = (newIdom == -1 ? p : intersect(p, newIdom));
+                }
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        if (n > 0) {
+            idom[0] = -1;
+        }
+
+        // tree children in compact form
+        childStart = new int[n + 1];
+        for (int b = 0; b < n; ++b) {
+            if (idom[b] != -1) ++childStart[idom[b] + 1];
+        }
+        for (int b = 0; b < n; ++b) {
+            childStart[b + 1] += childStart[b];
+        }
+        children = new int[childStart[n]];
+        final int[] fill = new int[n];
+        for (int k = 0; k < rpo.length; ++k) {
+            final int b = rpo[k];
+            if (idom[b] != -1) {
+                children[childStart[idom[b]] + fill[idom[b]]++] = b;
+            }
+        }
+
+        // pre/post numbering of the tree for constant time dominance queries
+        preorder = new int[n];
+        postorder = new int[n];
+        for (int b = 0; b < n; ++b) {
+            preorder[b] = postorder[b] = -1;
+        }
+        if (n > 0) {
+            number();
+        }
+
+        frontiers = new int[n][];
+        final IntList[] df = new IntList[n];
+        for (int b = 0; b < n; ++b) {
+            df[b] = new IntList();
+        }
+        for (int b = 0; b < n; ++b) {
+            final int[] preds = cfg.getPredecessors(b);
+            if (preds.length < 2 || !isReachable(b)) continue;
+            for (int p : preds) {
+                if (!isReachable(p)) continue;
+                for (int runner = p; runner != idom[b]; runner = idom[runner]) {
+                    df[runner].addUnique(b);
+                }
+            }
+        }
+        for (int b = 0; b < n; ++b) {
+            frontiers[b] = df[b].toArray();
+        }
+    }
+
+    private int[] computeReversePostorder(int n) {
+        final int[] order = new int[n];
+        for (int b = 0; b < n; ++b) {
+            rpoNumber[b] = -1;
+        }
+        if (n == 0) {
+            return order;
+        }
+        // iterative depth-first search, with the next edge to explore kept per block
+        final int[] stack = new int[n];
+        final int[] edge = new int[n];
+        final boolean[] visited = new boolean[n];
+        int top = 0, count = 0;
+        stack[top++] = 0;
+        visited[0] = true;
+        while (top > 0) {
+            final int b = stack[top - 1];
+            final int[] succs = cfg.getSuccessors(b);
+            final int[] handlers = cfg.getExceptionSuccessors(b);
+            final int e = edge[b]++;
+            if (e < succs.length + handlers.length) {
+                final int s = (e < succs.length ? succs[e] : handlers[e - succs.length]);
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[top++] = s;
+                }
+            } else {
+                --top;
+                order[count++] = b;
+            }
+        }
+        final int[] result = new int[count];
+        for (int k = 0; k < count; ++k) {
+            result[k] = order[count - 1 - k];
+            rpoNumber[result[k]] = k;
+        }
+        return result;
+    }
+
+    private int intersect(int b1, int b2) {
+        while (b1 != b2) {
+            while (rpoNumber[b1] > rpoNumber[b2]) b1 = idom[b1];
+            while (rpoNumber[b2] > rpoNumber[b1]) b2 = idom[b2];
+        }
+        return b1;
+    }
+
+    private void number() {
+        final int n = idom.length;
+        final int[] stack = new int[n];
+        final int[] next = new int[n];
+        int top = 0, pre = 0, post = 0;
+        stack[top++] = 0;
+        preorder[0] = pre++;
+        while (top > 0) {
+            final int b = stack[top - 1];
+            if (childStart[b] + next[b] < childStart[b + 1]) {
+                final int c = children[childStart[b] + next[b]++];
+                preorder[c] = pre++;
+                stack[top++] = c;
+            } else {
+                postorder[b] = post++;
+                --top;
+            }
+        }
+    }
+
+    /**
+     * @param block the block
+     * @return true if the block can be reached from the entry block
+     */
+    public boolean isReachable(int block) {
+        return rpoNumber[block] != -1;
+    }
+
+    /**
+     * @param block the block
+     * @return the immediate dominator, or -1 for the entry and unreachable blocks
+     */
+    public int getImmediateDominator(int block) {
+        return idom[block];
+    }
+
+    /**
+     * @param a a block
+     * @param b another block
+     * @return true if a dominates b, a block dominating itself
+     */
+    public boolean dominates(int a, int b) {
+        return isReachable(a) && isReachable(b)
+                && preorder[a] <= preorder[b] && postorder[a] >= postorder[b];
+    }
+
+    /**
+     * @param block the block
+     * @return the blocks immediately dominated by the block
+     */
+    public int[] getChildren(int block) {
+        final int[] r = new int[childStart[block + 1] - childStart[block]];
+        System.arraycopy(children, childStart[block], r, 0, r.length);
+        return r;
+    }
+
+    int getChildStart(int block) {
+        return childStart[block];
+    }
+
+    int getChildEnd(int block) {
+        return childStart[block + 1];
+    }
+
+    int getChild(int k) {
+        return children[k];
+    }
+
+    /**
+     * @param block the block
+     * @return the dominance frontier of the block, do not modify
+     */
+    public int[] getDominanceFrontier(int block) {
+        return frontiers[block];
+    }
+
+    /**
+     * @return the reachable blocks in reverse postorder, do not modify
+     */
+    public int[] getReversePostorder() {
+        return rpo;
+    }
+}
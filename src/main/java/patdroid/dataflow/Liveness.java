@@ -0,0 +1,232 @@
+package patdroid.dataflow;
+
+import java.util.BitSet;
+
+import patdroid.core.AttributeKey;
+import patdroid.core.MethodInfo;
+
+/**
+ * Live register analysis of a method.
+ * <p>
+ * A register is live at a program point if its current value might be read later.
+ * The fixpoint is computed per basic block with bitsets, on top of the precomputed
+ * {@link DefUse} table and {@link ControlFlowGraph}. Per-instruction queries replay the
+ * containing block backwards from its live-out set.
+ * </p>
+ */
+public final class Liveness {
+    private static final AttributeKey<Liveness> KEY = AttributeKey.create("liveness");
+
+    public final DefUse defUse;
+    public final ControlFlowGraph cfg;
+    private final int words;
+    private final long[] liveIn;
+    private final long[] liveOut;
+    private final long[] handlerLiveIn;
+
+    /**
+     * Run the analysis
+     * @param defUse the def/use table
+     * @param cfg the control flow graph over the same instructions
+     */
+    public Liveness(DefUse defUse, ControlFlowGraph cfg) {
+        this.defUse = defUse;
+        this.cfg = cfg;
+        final int nBlocks = cfg.getBlockCount();
+        this.words = (defUse.registerCount + 63) >>> 6;
+        this.liveIn = new long[nBlocks * words];
+        this.liveOut = new long[nBlocks * words];
+        this.handlerLiveIn = new long[nBlocks * words];
+        solve();
+    }
+
+    /**
+     * Get the liveness of a method. The result is cached until the instructions of the
+     * method are replaced.
+     * @param mi the method
+     * @return the liveness, or null if the method has no instructions
+     */
+    public static Liveness of(MethodInfo mi) {
+        final DefUse du = DefUse.of(mi);
+        if (du == null) {
+            return null;
+        }
+        final ControlFlowGraph cfg = ControlFlowGraph.of(mi);
+        Liveness l = mi.type.scope.attributes.get(KEY, mi);
+        if (l == null || l.defUse != du || l.cfg != cfg) {
+            l = new Liveness(du, cfg);
+            mi.type.scope.attributes.set(KEY, mi, l);
+        }
+        return l;
+    }
+
+    private void solve() {
+        final int nBlocks = cfg.getBlockCount();
+        // process blocks in reverse order, which is close to the best order for a backward problem
+        final int[] stack = new int[nBlocks];
+        final boolean[] queued = new boolean[nBlocks];
+        int top = 0;
+        for (int b = 0; b < nBlocks; ++b) {
+            stack[top++] = b;
+            queued[b] = true;
+        }
+        final long[] live = new long[words];
+        while (top > 0) {
+            final int b = stack[--top];
+            queued[b] = false;
+            final int base = b * words;
+            for (int s : cfg.getSuccessors(b)) {
+                or(liveOut, base, liveIn, s * words);
+            }
+            for (int s : cfg.getExceptionSuccessors(b)) {
+                or(handlerLiveIn, base, liveIn, s * words);
+            }
+            System.arraycopy(liveOut, base, live, 0, words);
+            transfer(b, cfg.getBlockStart(b), live);
+            boolean changed = false;
+            for (int w = 0; w < words; ++w) {
+                if (live[w] != liveIn[base + w]) {
+                    liveIn[base + w] = live[w];
+                    changed = true;
+                }
+            }
+            if (changed) {
+                for (int p : cfg.getPredecessors(b)) {
+                    if (!queued[p]) {
+                        queued[p] = true;
+                        stack[top++] = p;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay a block backwards, from its live-out set to the point right before an
+     * instruction
+     */
+    private void transfer(int block, int index, long[] live) {
+        final int last = cfg.getBlockEnd(block) - 1;
+        for (int i = last; i >= index; --i) {
+            defUse.killDefs(i, live);
+            defUse.addUses(i, live);
+            if (i == last) {
+                // an exception leaves the handler with the registers before the last instruction
+                or(live, 0, handlerLiveIn, block * words);
+            }
+        }
+    }
+
+    private void or(long[] dst, int dstBase, long[] src, int srcBase) {
+        for (int w = 0; w < words; ++w) {
+            dst[dstBase + w] |= src[srcBase + w];
+        }
+    }
+
+    private long[] before(int index) {
+        final long[] live = new long[words];
+        final int b = cfg.getBlockOf(index);
+        System.arraycopy(liveOut, b * words, live, 0, words);
+        transfer(b, index, live);
+        return live;
+    }
+
+    private long[] after(int index) {
+        final int b = cfg.getBlockOf(index);
+        final long[] live = new long[words];
+        System.arraycopy(liveOut, b * words, live, 0, words);
+        if (index + 1 < cfg.getBlockEnd(b)) {
+            transfer(b, index + 1, live);
+        }
+        return live;
+    }
+
+    private static boolean test(long[] bits, int reg) {
+        return (reg >>> 6) < bits.length && (bits[reg >>> 6] & (1L << reg)) != 0;
+    }
+
+    private static BitSet toBitSet(long[] bits) {
+        final BitSet s = new BitSet(bits.length * 64);
+        for (int w = 0; w < bits.length; ++w) {
+            long word = bits[w];
+            while (word != 0) {
+                final int bit = Long.numberOfTrailingZeros(word);
+                s.set(w * 64 + bit);
+                word &= word - 1;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @param index the instruction index
+     * @param reg the register
+     * @return true if the register is live right before the instruction
+     */
+    public boolean isLiveIn(int index, int reg) {
+        return test(before(index), reg);
+    }
+
+    /**
+     * @param index the instruction index
+     * @param reg the register
+     * @return true if the register is live right after the instruction completes normally
+     */
+    public boolean isLiveOut(int index, int reg) {
+        return test(after(index), reg);
+    }
+
+    /**
+     * @param index the instruction index
+     * @return the registers live right before the instruction
+     */
+    public BitSet getLiveIn(int index) {
+        return toBitSet(before(index));
+    }
+
+    /**
+     * @param index the instruction index
+     * @return the registers live right after the instruction completes normally
+     */
+    public BitSet getLiveOut(int index) {
+        return toBitSet(after(index));
+    }
+
+    /**
+     * @param block the basic block
+     * @return the registers live at the entry of the block
+     */
+    public BitSet getBlockLiveIn(int block) {
+        final long[] live = new long[words];
+        System.arraycopy(liveIn, block * words, live, 0, words);
+        return toBitSet(live);
+    }
+
+    /**
+     * @param block the basic block
+     * @param reg the register
+     * @return true if the register is live at the entry of the block
+     */
+    public boolean isBlockLiveIn(int block, int reg) {
+        return reg < defUse.registerCount && (liveIn[block * words + (reg >>> 6)] & (1L << reg)) != 0;
+    }
+
+    /**
+     * A dead store writes registers that are never read afterwards
+     * @param index the instruction index
+     * @return true if the instruction defines registers and none of them is live after it
+     */
+    public boolean isDeadStore(int index) {
+        final int n = defUse.getDefCount(index);
+        if (n == 0) {
+            return false;
+        }
+        final long[] live = after(index);
+        for (int k = 0; k < n; ++k) {
+            if (test(live, defUse.getDef(index, k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,442 @@
+package patdroid.dataflow;
+
+import java.util.Arrays;
+
+import patdroid.core.AttributeKey;
+import patdroid.core.MethodInfo;
+import patdroid.util.IntList;
+
+/**
+ * A static single assignment view of a method.
+ * <p>
+ * Every register definition, including the parameters defined by the argument
+ * pseudo-instruction, creates a new value, and phi functions merge values at join
+ * points. The instructions themselves are left untouched: the view maps every def and
+ * use slot of the {@link DefUse} table to a value number, and keeps the def-use chains of
+ * each value, so sparse analyses can follow data dependencies directly.
+ * </p>
+ * <p>
+ * Phis are placed on the iterated dominance frontiers of the definitions, and at the
+ * handlers of the blocks whose throwing instruction defines the register, pruned by
+ * {@link Liveness}. A phi has one operand per predecessor block, in the order of
+ * {@link ControlFlowGraph#getPredecessors(int)}; an exceptional predecessor contributes the
+ * value from right before its last (throwing) instruction.
+ * A use that no definition reaches refers to {@link #UNDEFINED}, and so do all slots of
+ * unreachable instructions.
+ * </p>
+ */
+public final class SSAForm {
+    private static final AttributeKey<SSAForm> KEY = AttributeKey.create("ssa-form");
+    public static final int UNDEFINED = -1;
+
+    public final DefUse defUse;
+    public final ControlFlowGraph cfg;
+    public final DominatorTree dominators;
+
+    // values
+    private int nValues = 0;
+    private int[] valueReg = new int[64];
+    private int[] valueDef = new int[64];
+    // slots of the def/use table
+    private final int[] defValue;
+    private final int[] useValue;
+    // phis, grouped by block
+    private final int[] phiStart;
+    private final int[] phiReg;
+    private final int[] phiBlock;
+    private final int[] phiValue;
+    private final int[][] phiOperands;
+    // def-use chains
+    private int[] insnUseStart;
+    private int[] insnUses;
+    private int[] phiUseStart;
+    private int[] phiUses;
+
+    /**
+     * Build the SSA view
+     * @param liveness the liveness of the method, also providing the def/use table and graph
+     */
+    public SSAForm(Liveness liveness) {
+        this.defUse = liveness.defUse;
+        this.cfg = liveness.cfg;
+        this.dominators = new DominatorTree(cfg);
+        final int nBlocks = cfg.getBlockCount();
+        final int nInsns = defUse.size();
+        defValue = new int[defUse.getDefOffset(nInsns)];
+        useValue = new int[defUse.getUseOffset(nInsns)];
+
+        // phi placement
+        final int nRegs = defUse.registerCount;
+        final IntList[] defBlocks = new IntList[nRegs];
+        for (int b = 0; b < nBlocks; ++b) {
+            if (!dominators.isReachable(b)) continue;
+            for (int i = cfg.getBlockStart(b); i < cfg.getBlockEnd(b); ++i) {
+                for (int k = 0; k < defUse.getDefCount(i); ++k) {
+                    final int r = defUse.getDef(i, k);
+                    if (defBlocks[r] == null) defBlocks[r] = new IntList();
+                    defBlocks[r].addUnique(b);
+                }
+            }
+        }
+        // a handler sees the registers from before the throwing instruction, so the registers
+        // the instruction defines need a phi at the handler even if it has one predecessor
+        final IntList[] handlerBlocks = new IntList[nRegs];
+        for (int b = 0; b < nBlocks; ++b) {
+            if (!dominators.isReachable(b) || cfg.getExceptionSuccessors(b).length == 0) continue;
+            final int last = cfg.getBlockEnd(b) - 1;
+            for (int k = 0; k < defUse.getDefCount(last); ++k) {
+                final int r = defUse.getDef(last, k);
+                if (handlerBlocks[r] == null) handlerBlocks[r] = new IntList();
+                for (int h : cfg.getExceptionSuccessors(b)) {
+                    handlerBlocks[r].addUnique(h);
+                }
+            }
+        }
+        final IntList placedBlock = new IntList();
+        final IntList placedReg = new IntList();
+        final int[] hasPhi = new int[nBlocks];
+        final int[] inWork = new int[nBlocks];
+        final int[] work = new int[nBlocks];
+        for (int r = 0; r < nRegs; ++r) {
+            if (defBlocks[r] == null) continue;
+            final int stamp = r + 1;
+            int top = 0;
+            for (int k = 0; k < defBlocks[r].size(); ++k) {
+                final int b = defBlocks[r].get(k);
+                inWork[b] = stamp;
+                work[top++] = b;
+            }
+            if (handlerBlocks[r] != null) {
+                for (int k = 0; k < handlerBlocks[r].size(); ++k) {
+                    top = placePhi(handlerBlocks[r].get(k), r, liveness, hasPhi, inWork, work, top,
+                            placedBlock, placedReg);
+                }
+            }
+            while (top > 0) {
+                final int b = work[--top];
+                for (int f : dominators.getDominanceFrontier(b)) {
+                    top = placePhi(f, r, liveness, hasPhi, inWork, work, top, placedBlock, placedReg);
+                }
+            }
+        }
+
+        // group phis by block
+        final int nPhis = placedBlock.size();
+        phiStart = new int[nBlocks + 1];
+        for (int p = 0; p < nPhis; ++p) {
+            ++phiStart[placedBlock.get(p) + 1];
+        }
+        for (int b = 0; b < nBlocks; ++b) {
+            phiStart[b + 1] += phiStart[b];
+        }
+        phiReg = new int[nPhis];
+        phiBlock = new int[nPhis];
+        phiValue = new int[nPhis];
+        phiOperands = new int[nPhis][];
+        final int[] fill = new int[nBlocks];
+        for (int p = 0; p < nPhis; ++p) {
+            final int b = placedBlock.get(p);
+            final int id = phiStart[b] + fill[b]++;
+            phiBlock[id] = b;
+            phiReg[id] = placedReg.get(p);
+            phiOperands[id] = new int[cfg.getPredecessors(b).length];
+            Arrays.fill(phiOperands[id], UNDEFINED);
+        }
+
+        Arrays.fill(defValue, UNDEFINED);
+        Arrays.fill(useValue, UNDEFINED);
+        if (nBlocks > 0) {
+            rename(nRegs);
+        }
+        buildChains();
+    }
+
+    /**
+     * Get the SSA view of a method. The view is cached until the instructions of the
+     * method are replaced.
+     * @param mi the method
+     * @return the SSA view, or null if the method has no instructions
+     */
+    public static SSAForm of(MethodInfo mi) {
+        final Liveness liveness = Liveness.of(mi);
+        if (liveness == null) {
+            return null;
+        }
+        SSAForm ssa = mi.type.scope.attributes.get(KEY, mi);
+        if (ssa == null || ssa.defUse != liveness.defUse || ssa.cfg != liveness.cfg) {
+            ssa = new SSAForm(liveness);
+            mi.type.scope.attributes.set(KEY, mi, ssa);
+        }
+        return ssa;
+    }
+
+    /**
+     * Place a phi of a register at a block if it has none yet and the register is live
+     * there, and queue the block as a new definition of the register
+     * @return the new top of the work list
+     */
+    private static int placePhi(int f, int r, Liveness liveness, int[] hasPhi, int[] inWork, int[] work,
+            int top, IntList placedBlock, IntList placedReg) {
+        final int stamp = r + 1;
+        if (hasPhi[f] == stamp) return top;
+        hasPhi[f] = stamp;
+        if (liveness.isBlockLiveIn(f, r)) {
+            placedBlock.add(f);
+            placedReg.add(r);
+        }
+        if (inWork[f] != stamp) {
+            inWork[f] = stamp;
+            work[top++] = f;
+        }
+        return top;
+    }
+
+    private int newValue(int reg, int def) {
+        if (nValues == valueReg.length) {
+            valueReg = Arrays.copyOf(valueReg, nValues * 2);
+            valueDef = Arrays.copyOf(valueDef, nValues * 2);
+        }
+        valueReg[nValues] = reg;
+        valueDef[nValues] = def;
+        return nValues++;
+    }
+
+    /**
+     * Rename along the dominator tree, keeping the current value of each register and an
+     * undo log to restore it when leaving a subtree
+     */
+    private void rename(int nRegs) {
+        final int nBlocks = cfg.getBlockCount();
+        final int[] current = new int[nRegs];
+        Arrays.fill(current, UNDEFINED);
+        final IntList log = new IntList();
+        final int[] logMark = new int[nBlocks];
+        final int[] stack = new int[nBlocks];
+        final int[] next = new int[nBlocks];
+        int top = 0;
+        stack[top++] = 0;
+        enter(0, current, log, logMark);
+        while (top > 0) {
+            final int b = stack[top - 1];
+            final int k = dominators.getChildStart(b) + next[b];
+            if (k < dominators.getChildEnd(b)) {
+                ++next[b];
+                final int c = dominators.getChild(k);
+                stack[top++] = c;
+                enter(c, current, log, logMark);
+            } else {
+                --top;
+                while (log.size() > logMark[b]) {
+                    final int old = log.removeLast();
+                    final int reg = log.removeLast();
+                    current[reg] = old;
+                }
+            }
+        }
+    }
+
+    private void enter(int b, int[] current, IntList log, int[] logMark) {
+        logMark[b] = log.size();
+        for (int p = phiStart[b]; p < phiStart[b + 1]; ++p) {
+            phiValue[p] = newValue(phiReg[p], -(p + 1));
+            push(phiReg[p], phiValue[p], current, log);
+        }
+        final int last = cfg.getBlockEnd(b) - 1;
+        for (int i = cfg.getBlockStart(b); i <= last; ++i) {
+            final int useBase = defUse.getUseOffset(i);
+            for (int k = 0; k < defUse.getUseCount(i); ++k) {
+                useValue[useBase + k] = current[defUse.getUse(i, k)];
+            }
+            if (i == last) {
+                for (int s : cfg.getExceptionSuccessors(b)) {
+                    fillPhiOperands(b, s, current);
+                }
+            }
+            final int defBase = defUse.getDefOffset(i);
+            for (int k = 0; k < defUse.getDefCount(i); ++k) {
+                final int r = defUse.getDef(i, k);
+                defValue[defBase + k] = newValue(r, i);
+                push(r, defValue[defBase + k], current, log);
+            }
+        }
+        for (int s : cfg.getSuccessors(b)) {
+            fillPhiOperands(b, s, current);
+        }
+    }
+
+    private static void push(int reg, int value, int[] current, IntList log) {
+        log.add(reg);
+        log.add(current[reg]);
+        current[reg] = value;
+    }
+
+    private void fillPhiOperands(int pred, int block, int[] current) {
+        final int[] preds = cfg.getPredecessors(block);
+        int pos = 0;
+        while (preds[pos] != pred) ++pos;
+        for (int p = phiStart[block]; p < phiStart[block + 1]; ++p) {
+            phiOperands[p][pos] = current[phiReg[p]];
+        }
+    }
+
+    private void buildChains() {
+        insnUseStart = new int[nValues + 1];
+        phiUseStart = new int[nValues + 1];
+        for (int v : useValue) {
+            if (v != UNDEFINED) ++insnUseStart[v + 1];
+        }
+        for (int[] ops : phiOperands) {
+            for (int v : ops) {
+                if (v != UNDEFINED) ++phiUseStart[v + 1];
+            }
+        }
+        for (int v = 0; v < nValues; ++v) {
+            insnUseStart[v + 1] += insnUseStart[v];
+            phiUseStart[v + 1] += phiUseStart[v];
+        }
+        insnUses = new int[insnUseStart[nValues]];
+        phiUses = new int[phiUseStart[nValues]];
+        final int[] fill = new int[nValues];
+        for (int i = 0; i < defUse.size(); ++i) {
+            final int base = defUse.getUseOffset(i);
+            for (int k = 0; k < defUse.getUseCount(i); ++k) {
+                final int v = useValue[base + k];
+                if (v != UNDEFINED) insnUses[insnUseStart[v] + fill[v]++] = i;
+            }
+        }
+        Arrays.fill(fill, 0);
+        for (int p = 0; p < phiOperands.length; ++p) {
+            for (int v : phiOperands[p]) {
+                if (v != UNDEFINED) phiUses[phiUseStart[v] + fill[v]++] = p;
+            }
+        }
+    }
+
+    /**
+     * @return the number of SSA values
+     */
+    public int getValueCount() {
+        return nValues;
+    }
+
+    /**
+     * @param value the value
+     * @return the register holding the value
+     */
+    public int getRegister(int value) {
+        return valueReg[value];
+    }
+
+    /**
+     * @param value the value
+     * @return the index of the instruction defining the value, or -1 if defined by a phi
+     */
+    public int getDefInstruction(int value) {
+        return valueDef[value] >= 0 ? valueDef[value] : -1;
+    }
+
+    /**
+     * @param value the value
+     * @return the phi defining the value, or -1 if defined by an instruction
+     */
+    public int getDefPhi(int value) {
+        return valueDef[value] < 0 ? -valueDef[value] - 1 : -1;
+    }
+
+    /**
+     * @param index the instruction index
+     * @param k the k-th defined register, as in {@link DefUse#getDef(int, int)}
+     * @return the value defined
+     */
+    public int getDefValue(int index, int k) {
+        return defValue[defUse.getDefOffset(index) + k];
+    }
+
+    /**
+     * @param index the instruction index
+     * @param k the k-th used register, as in {@link DefUse#getUse(int, int)}
+     * @return the value used, or {@link #UNDEFINED}
+     */
+    public int getUseValue(int index, int k) {
+        return useValue[defUse.getUseOffset(index) + k];
+    }
+
+    /**
+     * @param index the instruction index
+     * @param reg a register read by the instruction
+     * @return the value of the register read by the instruction, or {@link #UNDEFINED}
+     */
+    public int getValueAt(int index, int reg) {
+        for (int k = 0; k < defUse.getUseCount(index); ++k) {
+            if (defUse.getUse(index, k) == reg) return getUseValue(index, k);
+        }
+        return UNDEFINED;
+    }
+
+    /**
+     * @param value the value
+     * @return the indexes of the instructions reading the value, in instruction order
+     */
+    public int[] getUses(int value) {
+        return Arrays.copyOfRange(insnUses, insnUseStart[value], insnUseStart[value + 1]);
+    }
+
+    /**
+     * @param value the value
+     * @return the phis reading the value
+     */
+    public int[] getPhiUses(int value) {
+        return Arrays.copyOfRange(phiUses, phiUseStart[value], phiUseStart[value + 1]);
+    }
+
+    /**
+     * @return the number of phis
+     */
+    public int getPhiCount() {
+        return phiReg.length;
+    }
+
+    /**
+     * @param block the block
+     * @return the phis at the entry of the block
+     */
+    public int[] getPhis(int block) {
+        final int[] r = new int[phiStart[block + 1] - phiStart[block]];
+        for (int k = 0; k < r.length; ++k) {
+            r[k] = phiStart[block] + k;
+        }
+        return r;
+    }
+
+    /**
+     * @param phi the phi
+     * @return the block of the phi
+     */
+    public int getPhiBlock(int phi) {
+        return phiBlock[phi];
+    }
+
+    /**
+     * @param phi the phi
+     * @return the register merged by the phi
+     */
+    public int getPhiRegister(int phi) {
+        return phiReg[phi];
+    }
+
+    /**
+     * @param phi the phi
+     * @return the value defined by the phi
+     */
+    public int getPhiValue(int phi) {
+        return phiValue[phi];
+    }
+
+    /**
+     * @param phi the phi
+     * @return the merged values, one per predecessor of the phi block, do not modify
+     */
+    public int[] getPhiOperands(int phi) {
+        return phiOperands[phi];
+    }
+}
@@ -0,0 +1,36 @@
+package patdroid.pass;
+
+import patdroid.core.AttributeKey;
+import patdroid.core.MethodInfo;
+
+/**
+ * A pass computing one result per method, e.g. its control flow graph. Results are
+ * cached in the attributes of the scope until the instructions of the method are
+ * replaced, or until they are invalidated, see {@link PassManager}.
+ * @param <T> the type of the results
+ */
+public abstract class MethodPass<T> extends Pass<T> {
+    /**
+     * The key of the results in the attributes of a scope, created once per pass as keys
+     * are never freed
+     */
+    final AttributeKey<PassManager.MethodResult> key;
+
+    /**
+     * @param name the name of the pass
+     * @param inputs the passes whose results the pass reads
+     */
+    protected MethodPass(String name, Pass<?>... inputs) {
+        super(name, inputs);
+        this.key = AttributeKey.create(name);
+    }
+
+    /**
+     * Compute the result of a method. The method may be run concurrently on different
+     * methods.
+     * @param mi the method
+     * @param pm the manager, to get the results of the inputs
+     * @return the result, possibly null, e.g. for a method without instructions
+     */
+    protected abstract T run(MethodInfo mi, PassManager pm);
+}
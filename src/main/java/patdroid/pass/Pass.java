@@ -0,0 +1,56 @@
+package patdroid.pass;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An analysis run by a {@link PassManager}, computing one result per method
+ * ({@link MethodPass}) or one result for the whole scope ({@link ScopePass}).
+ * <p>
+ * A pass declares the passes whose results it reads, its inputs, when it is created, so
+ * the inputs of a pass always exist before it and passes never depend on each other in a
+ * cycle. The manager uses the inputs to invalidate the results depending on a stale one
+ * and to tell which passes may run concurrently. A pass must only read the results of its
+ * inputs, through the manager it is given.
+ * </p>
+ * <p>
+ * Passes compare by identity and are typically static final fields, see
+ * {@link StandardPasses}.
+ * </p>
+ * @param <T> the type of the results
+ */
+public abstract class Pass<T> {
+    /**
+     * The name of the pass, used in the statistics of the manager
+     */
+    public final String name;
+    private final List<Pass<?>> inputs;
+
+    Pass(String name, Pass<?>... inputs) {
+        this.name = name;
+        this.inputs = Collections.unmodifiableList(Arrays.asList(inputs.clone()));
+    }
+
+    /**
+     * @return the passes whose results this pass reads
+     */
+    public final List<Pass<?>> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * A result of a pass using the class hierarchy is recomputed once the hierarchy of
+     * the scope changes, see {@link patdroid.core.Scope#getHierarchyVersion()}. The results
+     * of the passes using such a pass are recomputed too.
+     * @return true if the results depend on the class hierarchy
+     */
+    protected boolean usesHierarchy() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,512 @@
+package patdroid.pass;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import patdroid.Settings;
+import patdroid.core.AttributeKey;
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Instruction;
+import patdroid.util.JSONWriter;
+import patdroid.util.Parallel;
+
+/**
+ * Run the {@link Pass}es over a scope on demand, caching their results and keeping
+ * statistics of the time and memory every pass takes.
+ * <p>
+ * A result is computed the first time it is asked for, see
+ * {@link #get(MethodPass, MethodInfo)} and {@link #get(ScopePass)}, and kept until it
+ * becomes stale:
+ * <ul>
+ * <li>the result of a method pass, once the instructions of the method are replaced</li>
+ * <li>the results of the passes using the hierarchy, once the hierarchy changes</li>
+ * <li>the results of a pass and of the passes using it, directly or not, once the pass
+ * is invalidated, see {@link #invalidate(Pass)} and {@link #invalidate(MethodInfo)}</li>
+ * </ul>
+ * {@link #run(Collection)} computes the results of several passes at once, the passes
+ * not depending on each other running concurrently.
+ * </p>
+ * <p>
+ * The time of a pass is the time spent in its computations, less the time spent
+ * computing its inputs on the same thread, and its memory is the bytes these
+ * computations allocate, if the JVM counts the allocations of threads. Work a pass hands
+ * to other threads itself, e.g. through {@link Parallel}, is only counted in its time.
+ * A manager is safe for concurrent use.
+ * </p>
+ */
+public final class PassManager {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    /**
+     * The getThreadAllocatedBytes(long) of the HotSpot extension of the thread bean, bound
+     * to the bean, or null if the JVM lacks it. It is looked up by reflection, as naming
+     * the extension fails to link on other JVMs, once: a method handle is then invoked
+     * about as fast as a direct call.
+     */
+    private static final MethodHandle THREAD_ALLOCATED_BYTES = findThreadAllocatedBytes();
+    /**
+     * The number of methods a thread takes at once when {@link #run(Collection)} runs a
+     * method pass
+     */
+    private static final int METHOD_CHUNK = 16;
+    /**
+     * The time and bytes taken on the current thread by the computations nested in the
+     * computation running, to leave them out of its own
+     */
+    private static final ThreadLocal<long[]> NESTED = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    public final Scope scope;
+    private final Map<Pass<?>, State> states = new ConcurrentHashMap<Pass<?>, State>();
+
+    /**
+     * @param scope the scope the passes run on
+     */
+    public PassManager(Scope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * The statistics of a pass
+     */
+    public static final class Stats {
+        public final String name;
+        /**
+         * The number of results computed
+         */
+        public final int runs;
+        /**
+         * The number of results found in the cache
+         */
+        public final int hits;
+        /**
+         * The time spent computing the results, without the inputs, in nanoseconds
+         */
+        public final long time;
+        /**
+         * The bytes allocated computing the results, without the inputs, 0 if unknown
+         */
+        public final long allocatedBytes;
+
+        private Stats(State s) {
+            this.name = s.pass.name;
+            this.runs = s.runs.get();
+            this.hits = s.hits.get();
+            this.time = s.time.get();
+            this.allocatedBytes = s.allocatedBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d runs, %d hits, %.1f ms, %d bytes allocated",
+                    name, runs, hits, time / 1e6, allocatedBytes);
+        }
+    }
+
+    private static final class State {
+        final Pass<?> pass;
+        final boolean usesHierarchy;
+        /**
+         * The key of the cached results of a method pass, held by the pass, null for a
+         * scope pass
+         */
+        final AttributeKey<MethodResult> key;
+        final AtomicInteger generation = new AtomicInteger();
+        volatile ScopeResult result;
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicLong time = new AtomicLong();
+        final AtomicLong allocatedBytes = new AtomicLong();
+
+        State(Pass<?> pass, boolean usesHierarchy) {
+            this.pass = pass;
+            this.usesHierarchy = usesHierarchy;
+            this.key = pass instanceof MethodPass ? ((MethodPass<?>) pass).key : null;
+        }
+    }
+
+    static final class MethodResult {
+        /**
+         * The manager of the result, as the managers of a scope share the key of a pass
+         */
+        final PassManager manager;
+        final Instruction[] insns;
+        final int generation;
+        final int hierarchyVersion;
+        final Object value;
+
+        MethodResult(PassManager manager, Instruction[] insns, int generation, int hierarchyVersion,
+                Object value) {
+            this.manager = manager;
+            this.insns = insns;
+            this.generation = generation;
+            this.hierarchyVersion = hierarchyVersion;
+            this.value = value;
+        }
+    }
+
+    private static final class ScopeResult {
+        final int generation;
+        final int hierarchyVersion;
+        final Object value;
+
+        ScopeResult(int generation, int hierarchyVersion, Object value) {
+            this.generation = generation;
+            this.hierarchyVersion = hierarchyVersion;
+            this.value = value;
+        }
+    }
+
+    private State getState(Pass<?> pass) {
+        State s = states.get(pass);
+        if (s != null) {
+            return s;
+        }
+        boolean usesHierarchy = pass.usesHierarchy();
+        for (Pass<?> input : pass.getInputs()) {
+            usesHierarchy |= getState(input).usesHierarchy;
+        }
+        synchronized (states) {
+            s = states.get(pass);
+            if (s == null) {
+                s = new State(pass, usesHierarchy);
+                states.put(pass, s);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @param pass a method pass
+     * @param mi a method
+     * @return the result of the pass on the method, computed if not cached
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(MethodPass<T> pass, MethodInfo mi) {
+        final State s = getState(pass);
+        final Instruction[] insns = mi.insns;
+        final int generation = s.generation.get();
+        final int version = scope.getHierarchyVersion();
+        final MethodResult r = scope.attributes.get(s.key, mi);
+        if (r != null && r.manager == this && r.insns == insns && r.generation == generation
+                && (!s.usesHierarchy || r.hierarchyVersion == version)) {
+            s.hits.incrementAndGet();
+            return (T) r.value;
+        }
+        final long[] mark = begin();
+        final T value;
+        try {
+            value = pass.run(mi, this);
+        } finally {
+            end(s, mark);
+        }
+        scope.attributes.set(s.key, mi, new MethodResult(this, insns, generation, version, value));
+        return value;
+    }
+
+    /**
+     * @param pass a scope pass
+     * @return the result of the pass, computed if not cached
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(ScopePass<T> pass) {
+        final State s = getState(pass);
+        synchronized (s) {
+            final int generation = s.generation.get();
+            final int version = scope.getHierarchyVersion();
+            final ScopeResult r = s.result;
+            if (r != null && r.generation == generation
+                    && (!s.usesHierarchy || r.hierarchyVersion == version)) {
+                s.hits.incrementAndGet();
+                return (T) r.value;
+            }
+            final long[] mark = begin();
+            final T value;
+            try {
+                value = pass.run(this);
+            } finally {
+                end(s, mark);
+            }
+            s.result = new ScopeResult(generation, version, value);
+            return value;
+        }
+    }
+
+    /**
+     * Compute the results of passes and of their inputs: the result of every scope pass,
+     * and the result of every method pass on every method with instructions. The passes
+     * are run in waves, a pass running after all its inputs. The passes of a wave run
+     * concurrently, a method pass on chunks of the methods in parallel, all sharing
+     * {@link Settings#nThreads} threads.
+     * @param passes the passes
+     * @throws RuntimeException the first exception thrown by a pass
+     */
+    public void run(Collection<? extends Pass<?>> passes) {
+        final Map<Pass<?>, Integer> levels = new HashMap<Pass<?>, Integer>();
+        final TreeMap<Integer, List<Pass<?>>> waves = new TreeMap<Integer, List<Pass<?>>>();
+        for (Pass<?> p : passes) {
+            getLevel(p, levels);
+        }
+        boolean hasMethodPass = false;
+        for (Map.Entry<Pass<?>, Integer> e : levels.entrySet()) {
+            List<Pass<?>> wave = waves.get(e.getValue());
+            if (wave == null) {
+                wave = new ArrayList<Pass<?>>();
+                waves.put(e.getValue(), wave);
+            }
+            wave.add(e.getKey());
+            hasMethodPass |= e.getKey() instanceof MethodPass;
+        }
+        final ArrayList<MethodInfo> methods = new ArrayList<MethodInfo>();
+        if (hasMethodPass) {
+            for (ClassInfo ci : scope.getAllClasses()) {
+                if (ci.isLoaded()) {
+                    for (MethodInfo mi : ci.getAllMethods()) {
+                        if (mi.insns != null) {
+                            methods.add(mi);
+                        }
+                    }
+                }
+            }
+        }
+        for (List<Pass<?>> wave : waves.values()) {
+            runWave(wave, methods);
+        }
+    }
+
+    private static int getLevel(Pass<?> p, Map<Pass<?>, Integer> levels) {
+        Integer level = levels.get(p);
+        if (level == null) {
+            level = 0;
+            for (Pass<?> input : p.getInputs()) {
+                level = Math.max(level, getLevel(input, levels) + 1);
+            }
+            levels.put(p, level);
+        }
+        return level;
+    }
+
+    private void runWave(List<Pass<?>> wave, final List<MethodInfo> methods) {
+        // a task per scope pass, first as they tend to be the longest, and a task per chunk
+        // of methods of a method pass, all on the threads of one pool
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        for (final Pass<?> p : wave) {
+            if (p instanceof ScopePass) {
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        get((ScopePass<?>) p);
+                    }
+                });
+            }
+        }
+        for (Pass<?> p : wave) {
+            if (!(p instanceof MethodPass)) {
+                continue;
+            }
+            final MethodPass<?> mp = (MethodPass<?>) p;
+            for (int start = 0; start < methods.size(); start += METHOD_CHUNK) {
+                final int from = start;
+                final int to = Math.min(start + METHOD_CHUNK, methods.size());
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = from; i < to; ++i) {
+                            get(mp, methods.get(i));
+                        }
+                    }
+                });
+            }
+        }
+        Parallel.forRange(tasks.size(), 1, new Parallel.RangeBody() {
+            @Override
+            public void run(int index) {
+                tasks.get(index).run();
+            }
+        });
+    }
+
+    /**
+     * Drop the results of a pass and of the passes using it, directly or not
+     * @param pass the pass
+     */
+    public void invalidate(Pass<?> pass) {
+        for (State s : states.values()) {
+            if (dependsOn(s.pass, pass)) {
+                drop(s);
+            }
+        }
+    }
+
+    /**
+     * Drop the results of all passes on a method, e.g. after its instructions were
+     * modified in place, and the results of all scope passes and the passes using them
+     * @param mi the method
+     */
+    public void invalidate(MethodInfo mi) {
+        for (State s : states.values()) {
+            if (s.key != null) {
+                if (mi.getId() != -1) {
+                    scope.attributes.set(s.key, mi, null);
+                }
+            } else {
+                invalidate(s.pass);
+            }
+        }
+    }
+
+    /**
+     * Drop all results
+     */
+    public void invalidateAll() {
+        for (State s : states.values()) {
+            drop(s);
+        }
+    }
+
+    private void drop(State s) {
+        s.generation.incrementAndGet();
+        s.result = null;
+        if (s.key != null) {
+            scope.attributes.clear(s.key);
+        }
+    }
+
+    private static boolean dependsOn(Pass<?> p, Pass<?> input) {
+        if (p == input) {
+            return true;
+        }
+        for (Pass<?> i : p.getInputs()) {
+            if (dependsOn(i, input)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the statistics of the passes run so far, the most time consuming first
+     */
+    public List<Stats> getStats() {
+        final ArrayList<Stats> r = new ArrayList<Stats>();
+        for (State s : states.values()) {
+            r.add(new Stats(s));
+        }
+        Collections.sort(r, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats a, Stats b) {
+                return a.time < b.time ? 1 : (a.time > b.time ? -1 : a.name.compareTo(b.name));
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Reset the statistics of all passes, keeping the results
+     */
+    public void resetStats() {
+        for (State s : states.values()) {
+            s.runs.set(0);
+            s.hits.set(0);
+            s.time.set(0);
+            s.allocatedBytes.set(0);
+        }
+    }
+
+    /**
+     * Write the statistics as a JSON object, with an object per pass
+     * @param w the writer
+     * @param k the key of the object, null if it is not in an object
+     */
+    public void writeJSON(JSONWriter w, String k) throws IOException {
+        if (k == null) {
+            w.writeStartObject();
+        } else {
+            w.writeStartObject(k);
+        }
+        for (Stats s : getStats()) {
+            w.writeStartObject(s.name);
+            w.write("runs", s.runs);
+            w.write("hits", s.hits);
+            w.write("time_ns", s.time);
+            w.write("allocated_bytes", s.allocatedBytes);
+            w.writeEnd();
+        }
+        w.writeEnd();
+    }
+
+    /**
+     * Start measuring a computation on the current thread
+     * @return the time and bytes of the enclosing computation so far, and the start of this one
+     */
+    private static long[] begin() {
+        final long[] nested = NESTED.get();
+        final long[] mark = new long[] {nested[0], nested[1], System.nanoTime(), getAllocatedBytes()};
+        nested[0] = 0;
+        nested[1] = 0;
+        return mark;
+    }
+
+    private static void end(State s, long[] mark) {
+        final long time = System.nanoTime() - mark[2];
+        final long bytes = getAllocatedBytes() - mark[3];
+        final long[] nested = NESTED.get();
+        s.runs.incrementAndGet();
+        s.time.addAndGet(time - nested[0]);
+        s.allocatedBytes.addAndGet(bytes - nested[1]);
+        nested[0] = mark[0] + time;
+        nested[1] = mark[1] + bytes;
+    }
+
+    private static MethodHandle findThreadAllocatedBytes() {
+        try {
+            final Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (!c.isInstance(THREADS)
+                    || !(Boolean) c.getMethod("isThreadAllocatedMemorySupported").invoke(THREADS)) {
+                return null;
+            }
+            return MethodHandles.publicLookup()
+                    .unreflect(c.getMethod("getThreadAllocatedBytes", long.class))
+                    .bindTo(THREADS);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or 0 if unknown
+     */
+    private static long getAllocatedBytes() {
+        if (THREAD_ALLOCATED_BYTES == null) {
+            return 0;
+        }
+        try {
+            // -1 while the counting is disabled
+            final long bytes = (long) THREAD_ALLOCATED_BYTES.invokeExact(Thread.currentThread().getId());
+            return Math.max(bytes, 0);
+        } catch (Throwable e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package patdroid.pass;
+
+/**
+ * A pass computing one result for the whole scope, e.g. its call graph. The result is
+ * cached until the class hierarchy changes or it is invalidated, see {@link PassManager}.
+ * Scope passes may read the code of any method, so their results are also invalidated
+ * by {@link PassManager#invalidate(patdroid.core.MethodInfo)}.
+ * @param <T> the type of the result
+ */
+public abstract class ScopePass<T> extends Pass<T> {
+    /**
+     * @param name the name of the pass
+     * @param inputs the passes whose results the pass reads
+     */
+    protected ScopePass(String name, Pass<?>... inputs) {
+        super(name, inputs);
+    }
+
+    /**
+     * Compute the result. A manager runs a scope pass once at a time.
+     * @param pm the manager, to get the scope and the results of the inputs
+     * @return the result, possibly null
+     */
+    protected abstract T run(PassManager pm);
+
+    /**
+     * @return true unless overridden, as most results over the whole scope follow the
+     * hierarchy
+     */
+    @Override
+    protected boolean usesHierarchy() {
+        return true;
+    }
+}
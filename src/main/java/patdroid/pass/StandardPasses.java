@@ -0,0 +1,75 @@
+package patdroid.pass;
+
+import patdroid.callgraph.CallGraph;
+import patdroid.callgraph.CallGraphBuilder;
+import patdroid.callgraph.OverrideIndex;
+import patdroid.core.MethodInfo;
+import patdroid.dataflow.ControlFlowGraph;
+import patdroid.dataflow.DefUse;
+import patdroid.dataflow.Liveness;
+
+/**
+ * The passes of the analyses of this library, to be combined with the passes of a
+ * client, e.g.
+ * <pre>
+ * PassManager pm = new PassManager(scope);
+ * pm.run(Arrays.asList(StandardPasses.LIVENESS, StandardPasses.CALL_GRAPH));
+ * Log.msg(pm.getStats().toString());
+ * </pre>
+ */
+public final class StandardPasses {
+    private StandardPasses() {}
+
+    /**
+     * The control flow graph of a method, null if it has no instructions
+     */
+    public static final MethodPass<ControlFlowGraph> CONTROL_FLOW_GRAPH =
+            new MethodPass<ControlFlowGraph>("control-flow-graph") {
+        @Override
+        protected ControlFlowGraph run(MethodInfo mi, PassManager pm) {
+            return ControlFlowGraph.of(mi);
+        }
+    };
+
+    /**
+     * The def/use table of a method, null if it has no instructions
+     */
+    public static final MethodPass<DefUse> DEF_USE = new MethodPass<DefUse>("def-use") {
+        @Override
+        protected DefUse run(MethodInfo mi, PassManager pm) {
+            return DefUse.of(mi);
+        }
+    };
+
+    /**
+     * The live registers of a method, null if it has no instructions
+     */
+    public static final MethodPass<Liveness> LIVENESS =
+            new MethodPass<Liveness>("liveness", DEF_USE, CONTROL_FLOW_GRAPH) {
+        @Override
+        protected Liveness run(MethodInfo mi, PassManager pm) {
+            final DefUse du = pm.get(DEF_USE, mi);
+            return du == null ? null : new Liveness(du, pm.get(CONTROL_FLOW_GRAPH, mi));
+        }
+    };
+
+    /**
+     * The overriders of the methods of the loaded classes
+     */
+    public static final ScopePass<OverrideIndex> OVERRIDE_INDEX = new ScopePass<OverrideIndex>("override-index") {
+        @Override
+        protected OverrideIndex run(PassManager pm) {
+            return OverrideIndex.build(pm.scope);
+        }
+    };
+
+    /**
+     * The call graph of the scope, by class hierarchy analysis
+     */
+    public static final ScopePass<CallGraph> CALL_GRAPH = new ScopePass<CallGraph>("call-graph", OVERRIDE_INDEX) {
+        @Override
+        protected CallGraph run(PassManager pm) {
+            return new CallGraphBuilder(pm.scope).setOverrideIndex(pm.get(OVERRIDE_INDEX)).build();
+        }
+    };
+}
@@ -0,0 +1,73 @@
+package patdroid.persist;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read the encoding of {@link BinaryOutput} from a byte buffer, which may be a memory-mapped
+ * file. Reading past the end throws {@link java.nio.BufferUnderflowException}, so a truncated
+ * input never yields garbage silently.
+ */
+public final class BinaryInput {
+    private final ByteBuffer buf;
+
+    public BinaryInput(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    public BinaryInput(byte[] b) {
+        this(ByteBuffer.wrap(b));
+    }
+
+    public int position() {
+        return buf.position();
+    }
+
+    public void seek(int position) {
+        buf.position(position);
+    }
+
+    public int remaining() {
+        return buf.remaining();
+    }
+
+    public int readByte() {
+        return buf.get();
+    }
+
+    public byte[] readBytes(int n) {
+        final byte[] b = new byte[n];
+        buf.get(b);
+        return b;
+    }
+
+    public int readInt() {
+        return buf.getInt();
+    }
+
+    public int readVarint() {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = buf.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    public int readSignedVarint() {
+        final int v = readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public boolean readBoolean() {
+        return buf.get() != 0;
+    }
+
+    public String readUTF8() {
+        return new String(readBytes(readVarint()), Charsets.UTF_8);
+    }
+}
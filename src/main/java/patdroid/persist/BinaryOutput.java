@@ -0,0 +1,112 @@
+package patdroid.persist;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer with variable-length integer encoding.
+ * <p>
+ * Unsigned varints take 7 bits per byte, low bits first, the high bit telling whether
+ * more bytes follow. Signed values are zigzag encoded first, so small negative numbers
+ * stay short as well.
+ */
+public final class BinaryOutput {
+    private byte[] buf;
+    private int size = 0;
+
+    public BinaryOutput() {
+        this(256);
+    }
+
+    public BinaryOutput(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    private void ensure(int n) {
+        if (size + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+        }
+    }
+
+    public void writeByte(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    public void writeBytes(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, size, b.length);
+        size += b.length;
+    }
+
+    /**
+     * Write a fixed-size 32-bit integer, big endian
+     */
+    public void writeInt(int v) {
+        ensure(4);
+        buf[size++] = (byte) (v >>> 24);
+        buf[size++] = (byte) (v >>> 16);
+        buf[size++] = (byte) (v >>> 8);
+        buf[size++] = (byte) v;
+    }
+
+    /**
+     * Write a fixed-size 32-bit integer at an earlier position, e.g. to patch a length
+     */
+    public void setInt(int position, int v) {
+        buf[position] = (byte) (v >>> 24);
+        buf[position + 1] = (byte) (v >>> 16);
+        buf[position + 2] = (byte) (v >>> 8);
+        buf[position + 3] = (byte) v;
+    }
+
+    /**
+     * Write a non-negative integer as an unsigned varint
+     */
+    public void writeVarint(int v) {
+        ensure(5);
+        while ((v & ~0x7F) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+    }
+
+    /**
+     * Write an integer as a zigzag encoded varint
+     */
+    public void writeSignedVarint(int v) {
+        writeVarint((v << 1) ^ (v >> 31));
+    }
+
+    public void writeBoolean(boolean b) {
+        writeByte(b ? 1 : 0);
+    }
+
+    /**
+     * Write a string as its length followed by its UTF-8 bytes
+     */
+    public void writeUTF8(String s) {
+        final byte[] b = s.getBytes(Charsets.UTF_8);
+        writeVarint(b.length);
+        writeBytes(b);
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+}
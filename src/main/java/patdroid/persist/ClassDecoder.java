@@ -0,0 +1,275 @@
+package patdroid.persist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import com.google.common.collect.ImmutableList;
+
+import patdroid.core.ClassDetail;
+import patdroid.core.ClassInfo;
+import patdroid.core.FieldInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.PrimitiveInfo;
+import patdroid.core.Scope;
+import patdroid.core.TryBlockInfo;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.Pair;
+
+/**
+ * Decode classes written by {@link ClassEncoder}.
+ * <p>
+ * Decoding is done in two steps, like translating from DEX: {@link #readClass(boolean)}
+ * rebuilds the class details, which the caller attaches to the class with a loader, then
+ * {@link #readInstructions(Entry)} rebuilds the instructions, resolving invocations
+ * against the classes loaded by then. Unresolved invocations point to phantom methods.
+ */
+public final class ClassDecoder {
+    private final Scope scope;
+    private final String[] strings;
+    private final ClassInfo[] classes;
+    private final BinaryInput in;
+
+    /**
+     * A decoded class whose instructions are not decoded yet
+     */
+    public static final class Entry {
+        public final ClassInfo type;
+        public final ClassDetail detail;
+        /**
+         * The methods in the order of their instructions in the input
+         */
+        final MethodInfo[] methods;
+        /**
+         * The position of the instructions, -1 if they were not written
+         */
+        final int instructionsPosition;
+
+        Entry(ClassInfo type, ClassDetail detail, MethodInfo[] methods, int instructionsPosition) {
+            this.type = type;
+            this.detail = detail;
+            this.methods = methods;
+            this.instructionsPosition = instructionsPosition;
+        }
+
+        /**
+         * @return true if the instructions of the methods were written
+         */
+        public boolean hasInstructions() {
+            return instructionsPosition != -1;
+        }
+    }
+
+    /**
+     * @param scope the scope to create classes in
+     * @param strings the string pool of the input
+     * @param in the input, positioned at the first class to read
+     */
+    public ClassDecoder(Scope scope, String[] strings, BinaryInput in) {
+        this(scope, strings, new ClassInfo[strings.length], in);
+    }
+
+    /**
+     * @param classes the classes already looked up by string index, shared by decoders of the same input
+     */
+    ClassDecoder(Scope scope, String[] strings, ClassInfo[] classes, BinaryInput in) {
+        this.scope = scope;
+        this.strings = strings;
+        this.classes = classes;
+        this.in = in;
+    }
+
+    /**
+     * Read a class from the current position, leaving the position after the class
+     * @param isFrameworkClass whether the class is to be marked as a framework class
+     * @return the class with its details, not attached to the class yet
+     */
+    public Entry readClass(boolean isFrameworkClass) {
+        final ClassInfo ci = scope.findOrCreateClass(readString());
+        final ClassDetail.Builder builder = new ClassDetail.Builder();
+        builder.setBaseType(readClassRef());
+        builder.setInterfaces(readClassRefs());
+        builder.setAccessFlags(in.readVarint());
+        builder.setFields(readFields());
+        builder.setStaticFields(readFields());
+        final MethodInfo[] methods = new MethodInfo[in.readVarint()];
+        for (int k = 0; k < methods.length; ++k) {
+            final String name = readString();
+            final ClassInfo returnType = readClassRef();
+            final FullMethodSignature signature = new FullMethodSignature(returnType, name, readClassRefs());
+            final int modifiers = in.readVarint();
+            methods[k] = new MethodInfo(ci, signature, modifiers, in.readBoolean());
+        }
+        builder.setAllMethods(ImmutableList.copyOf(methods));
+        builder.setIsFrameworkClass(isFrameworkClass);
+        int instructionsPosition = -1;
+        if (in.readBoolean()) {
+            final int length = in.readInt();
+            instructionsPosition = in.position();
+            in.seek(instructionsPosition + length);
+        }
+        return new Entry(ci, builder.build(), methods, instructionsPosition);
+    }
+
+    /**
+     * Read the instructions of a class and set them on its methods. The position is left
+     * after the instructions.
+     * @param e the class, whose details should be attached by now
+     */
+    public void readInstructions(Entry e) {
+        if (!e.hasInstructions()) {
+            return;
+        }
+        in.seek(e.instructionsPosition);
+        for (MethodInfo mi : e.methods) {
+            readBody(mi);
+        }
+    }
+
+    private LinkedHashMap<String, ClassInfo> readFields() {
+        final int n = in.readVarint();
+        final LinkedHashMap<String, ClassInfo> fields = new LinkedHashMap<String, ClassInfo>();
+        for (int k = 0; k < n; ++k) {
+            final String name = readString();
+            fields.put(name, readClassRef());
+        }
+        return fields;
+    }
+
+    private void readBody(MethodInfo mi) {
+        final int n = in.readVarint() - 1;
+        if (n < 0) {
+            return;
+        }
+        final Instruction[] insns = new Instruction[n];
+        for (int k = 0; k < n; ++k) {
+            final Instruction i = new Instruction();
+            i.opcode = (byte) in.readByte();
+            i.opcode_aux = (byte) in.readByte();
+            i.rdst = (short) in.readSignedVarint();
+            i.r0 = (short) in.readSignedVarint();
+            i.r1 = (short) in.readSignedVarint();
+            i.type = readClassRef();
+            i.extra = readExtra();
+            insns[k] = i;
+        }
+        final int nTryBlocks = in.readVarint() - 1;
+        TryBlockInfo[] tbs = null;
+        if (nTryBlocks >= 0) {
+            tbs = new TryBlockInfo[nTryBlocks];
+            for (int k = 0; k < nTryBlocks; ++k) {
+                final TryBlockInfo tb = new TryBlockInfo();
+                tb.startInsnIndex = in.readSignedVarint();
+                tb.endInsnIndex = in.readSignedVarint();
+                tb.handlers = new TryBlockInfo.ExceptionHandler[in.readVarint()];
+                for (int j = 0; j < tb.handlers.length; ++j) {
+                    final TryBlockInfo.ExceptionHandler h = new TryBlockInfo.ExceptionHandler();
+                    h.exceptionType = readClassRef();
+                    h.handlerInsnIndex = in.readVarint();
+                    tb.handlers[j] = h;
+                }
+                tbs[k] = tb;
+            }
+        }
+        mi.tbs = tbs;
+        mi.insns = insns;
+    }
+
+    private Object readExtra() {
+        final int tag = in.readVarint();
+        switch (tag) {
+        case ClassEncoder.EXTRA_NULL:
+            return null;
+        case ClassEncoder.EXTRA_PRIMITIVE:
+            return readPrimitive();
+        case ClassEncoder.EXTRA_STRING:
+            return readString();
+        case ClassEncoder.EXTRA_CLASS:
+            return readClassRef();
+        case ClassEncoder.EXTRA_INT_ARRAY: {
+            final int[] a = new int[in.readVarint()];
+            for (int k = 0; k < a.length; ++k) {
+                a[k] = in.readSignedVarint();
+            }
+            return a;
+        }
+        case ClassEncoder.EXTRA_INTEGER:
+            return in.readSignedVarint();
+        case ClassEncoder.EXTRA_FIELD: {
+            final ClassInfo owner = readClassRef();
+            return new FieldInfo(owner, readString());
+        }
+        case ClassEncoder.EXTRA_STATIC_FIELD: {
+            final ClassInfo owner = readClassRef();
+            return new Pair<ClassInfo, String>(owner, readString());
+        }
+        case ClassEncoder.EXTRA_INVOCATION: {
+            final ClassInfo owner = readClassRef();
+            final String name = readString();
+            final ClassInfo returnType = readClassRef();
+            final FullMethodSignature signature = new FullMethodSignature(returnType, name, readClassRefs());
+            final int[] args = new int[in.readVarint()];
+            for (int k = 0; k < args.length; ++k) {
+                args[k] = in.readVarint();
+            }
+            final MethodInfo target = owner.findMethod(signature);
+            return target == null ?
+                    scope.phantoms.createInvocation(owner, signature, args) :
+                    new Invocation(true, owner, target, args);
+        }
+        case ClassEncoder.EXTRA_PRIMITIVE_ARRAY: {
+            final PrimitiveInfo[] a = new PrimitiveInfo[in.readVarint()];
+            for (int k = 0; k < a.length; ++k) {
+                a[k] = readPrimitive();
+            }
+            return a;
+        }
+        case ClassEncoder.EXTRA_SWITCH: {
+            final int n = in.readVarint();
+            final HashMap<Integer, Integer> m = new HashMap<Integer, Integer>();
+            for (int k = 0; k < n; ++k) {
+                final int key = in.readSignedVarint();
+                m.put(key, in.readVarint());
+            }
+            return Collections.unmodifiableMap(m);
+        }
+        default:
+            throw new IllegalStateException("unknown instruction data tag " + tag);
+        }
+    }
+
+    private PrimitiveInfo readPrimitive() {
+        final ClassInfo type = readClassRef();
+        final int low32 = in.readSignedVarint();
+        return PrimitiveInfo.fromBits(type, low32, in.readSignedVarint());
+    }
+
+    private String readString() {
+        return strings[in.readVarint()];
+    }
+
+    private ClassInfo readClassRef() {
+        final int ref = in.readVarint();
+        if (ref == 0) {
+            return null;
+        }
+        ClassInfo ci = classes[ref - 1];
+        if (ci == null) {
+            ci = scope.findOrCreateClass(strings[ref - 1]);
+            classes[ref - 1] = ci;
+        }
+        return ci;
+    }
+
+    private ArrayList<ClassInfo> readClassRefs() {
+        final int n = in.readVarint();
+        final ArrayList<ClassInfo> l = new ArrayList<ClassInfo>(n);
+        for (int k = 0; k < n; ++k) {
+            l.add(readClassRef());
+        }
+        return l;
+    }
+}
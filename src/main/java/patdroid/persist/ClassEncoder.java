@@ -0,0 +1,218 @@
+package patdroid.persist;
+
+import java.util.Collection;
+import java.util.Map;
+
+import patdroid.core.ClassDetail;
+import patdroid.core.ClassInfo;
+import patdroid.core.FieldInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.PrimitiveInfo;
+import patdroid.core.TryBlockInfo;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.Pair;
+
+/**
+ * Encode loaded classes, with their methods and instructions, in a compact binary form.
+ * <p>
+ * Names are written as indices into a {@link StringPool} shared by all classes of an
+ * output, registers and indices as varints. Invocation targets are written as the symbolic
+ * references of the bytecode (class and signature) and resolved again when decoded, so
+ * an encoded class does not depend on which other classes were loaded when it was written.
+ * See {@link ClassDecoder} for the reverse.
+ */
+public final class ClassEncoder {
+    /**
+     * The version of the encoding, to be bumped whenever the format or the translation
+     * of instructions changes
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    static final int EXTRA_NULL = 0;
+    static final int EXTRA_PRIMITIVE = 1;
+    static final int EXTRA_STRING = 2;
+    static final int EXTRA_CLASS = 3;
+    static final int EXTRA_INT_ARRAY = 4;
+    static final int EXTRA_INTEGER = 5;
+    static final int EXTRA_FIELD = 6;
+    static final int EXTRA_STATIC_FIELD = 7;
+    static final int EXTRA_INVOCATION = 8;
+    static final int EXTRA_PRIMITIVE_ARRAY = 9;
+    static final int EXTRA_SWITCH = 10;
+
+    private final StringPool pool;
+    private final BinaryOutput out;
+
+    /**
+     * @param pool the string pool, written out separately by the caller
+     * @param out the output
+     */
+    public ClassEncoder(StringPool pool, BinaryOutput out) {
+        this.pool = pool;
+        this.out = out;
+    }
+
+    /**
+     * Write a loaded class
+     * @param ci the class
+     * @param withInstructions true to write the instructions of the methods as well
+     * @throws IllegalArgumentException if an instruction carries data of an unknown kind
+     */
+    public void writeClass(ClassInfo ci, boolean withInstructions) {
+        final ClassDetail detail = ci.mutableDetail;
+        writeString(ci.fullName);
+        writeClassRef(detail.baseType);
+        out.writeVarint(detail.interfaces.size());
+        for (ClassInfo intf : detail.interfaces) {
+            writeClassRef(intf);
+        }
+        out.writeVarint(detail.accessFlags);
+        writeFields(detail.fields);
+        writeFields(detail.staticFields);
+        final Collection<MethodInfo> methods = detail.methods.values();
+        out.writeVarint(methods.size());
+        for (MethodInfo mi : methods) {
+            writeString(mi.signature.partialSignature.name);
+            writeClassRef(mi.signature.returnType);
+            writeClassRefs(mi.signature.partialSignature.paramTypes);
+            out.writeVarint(mi.modifiers);
+            out.writeBoolean(mi.isSynthetic);
+        }
+        out.writeBoolean(withInstructions);
+        if (withInstructions) {
+            // the length of the instructions lets a reader skip them
+            final int start = out.size();
+            out.writeInt(0);
+            for (MethodInfo mi : methods) {
+                writeBody(mi);
+            }
+            out.setInt(start, out.size() - start - 4);
+        }
+    }
+
+    private void writeFields(Map<String, ClassInfo> fields) {
+        out.writeVarint(fields.size());
+        for (Map.Entry<String, ClassInfo> e : fields.entrySet()) {
+            writeString(e.getKey());
+            writeClassRef(e.getValue());
+        }
+    }
+
+    private void writeBody(MethodInfo mi) {
+        if (mi.insns == null) {
+            out.writeVarint(0);
+            return;
+        }
+        out.writeVarint(mi.insns.length + 1);
+        for (Instruction i : mi.insns) {
+            out.writeByte(i.opcode);
+            out.writeByte(i.opcode_aux);
+            out.writeSignedVarint(i.rdst);
+            out.writeSignedVarint(i.r0);
+            out.writeSignedVarint(i.r1);
+            writeClassRef(i.type);
+            writeExtra(i.extra);
+        }
+        if (mi.tbs == null) {
+            out.writeVarint(0);
+            return;
+        }
+        out.writeVarint(mi.tbs.length + 1);
+        for (TryBlockInfo tb : mi.tbs) {
+            out.writeSignedVarint(tb.startInsnIndex);
+            out.writeSignedVarint(tb.endInsnIndex);
+            out.writeVarint(tb.handlers.length);
+            for (TryBlockInfo.ExceptionHandler h : tb.handlers) {
+                writeClassRef(h.exceptionType);
+                out.writeVarint(h.handlerInsnIndex);
+            }
+        }
+    }
+
+    private void writeExtra(Object extra) {
+        if (extra == null) {
+            out.writeVarint(EXTRA_NULL);
+        } else if (extra instanceof PrimitiveInfo) {
+            out.writeVarint(EXTRA_PRIMITIVE);
+            writePrimitive((PrimitiveInfo) extra);
+        } else if (extra instanceof String) {
+            out.writeVarint(EXTRA_STRING);
+            writeString((String) extra);
+        } else if (extra instanceof ClassInfo) {
+            out.writeVarint(EXTRA_CLASS);
+            writeClassRef((ClassInfo) extra);
+        } else if (extra instanceof int[]) {
+            out.writeVarint(EXTRA_INT_ARRAY);
+            final int[] a = (int[]) extra;
+            out.writeVarint(a.length);
+            for (int v : a) {
+                out.writeSignedVarint(v);
+            }
+        } else if (extra instanceof Integer) {
+            out.writeVarint(EXTRA_INTEGER);
+            out.writeSignedVarint((Integer) extra);
+        } else if (extra instanceof FieldInfo) {
+            out.writeVarint(EXTRA_FIELD);
+            writeClassRef(((FieldInfo) extra).owner);
+            writeString(((FieldInfo) extra).fieldName);
+        } else if (extra instanceof Pair && ((Pair<?, ?>) extra).first instanceof ClassInfo
+                && ((Pair<?, ?>) extra).second instanceof String) {
+            out.writeVarint(EXTRA_STATIC_FIELD);
+            writeClassRef((ClassInfo) ((Pair<?, ?>) extra).first);
+            writeString((String) ((Pair<?, ?>) extra).second);
+        } else if (extra instanceof Invocation) {
+            out.writeVarint(EXTRA_INVOCATION);
+            final Invocation invocation = (Invocation) extra;
+            final MethodInfo target = invocation.target;
+            // the class of the reference, not of the target, so that decoding resolves the
+            // reference again as the translation did
+            writeClassRef(invocation.owner);
+            writeString(target.signature.partialSignature.name);
+            writeClassRef(target.signature.returnType);
+            writeClassRefs(target.signature.partialSignature.paramTypes);
+            out.writeVarint(invocation.args.length);
+            for (int v : invocation.args) {
+                out.writeVarint(v);
+            }
+        } else if (extra instanceof PrimitiveInfo[]) {
+            out.writeVarint(EXTRA_PRIMITIVE_ARRAY);
+            final PrimitiveInfo[] a = (PrimitiveInfo[]) extra;
+            out.writeVarint(a.length);
+            for (PrimitiveInfo p : a) {
+                writePrimitive(p);
+            }
+        } else if (extra instanceof Map) {
+            out.writeVarint(EXTRA_SWITCH);
+            final Map<?, ?> m = (Map<?, ?>) extra;
+            out.writeVarint(m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                out.writeSignedVarint((Integer) e.getKey());
+                out.writeVarint((Integer) e.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("cannot encode instruction data: " + extra);
+        }
+    }
+
+    private void writePrimitive(PrimitiveInfo p) {
+        writeClassRef(p.type);
+        out.writeSignedVarint(p.low32);
+        out.writeSignedVarint(p.high32);
+    }
+
+    private void writeString(String s) {
+        out.writeVarint(pool.intern(s));
+    }
+
+    private void writeClassRef(ClassInfo ci) {
+        out.writeVarint(ci == null ? 0 : pool.intern(ci.fullName) + 1);
+    }
+
+    private void writeClassRefs(Collection<ClassInfo> classes) {
+        out.writeVarint(classes.size());
+        for (ClassInfo ci : classes) {
+            writeClassRef(ci);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package patdroid.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.util.IntList;
+import patdroid.util.Log;
+
+/**
+ * An inverted index over a corpus of apps, from terms such as the framework APIs an app
+ * calls and the permissions they need to the apps, answering e.g. which apps call an API
+ * without loading them again. The index is written by {@link CorpusIndexWriter}.
+ * <p>
+ * The index is a directory of immutable segments, one per batch of apps written, see
+ * {@link CorpusSegment}. Every app gets an id, its position in the corpus counting from the
+ * first app of the first segment; ids stay the same when segments are compacted into one,
+ * see {@link #compact(File)}. An index opened here maps the segments present at the time,
+ * and does not see the segments added later.
+ * </p>
+ * <p>
+ * Queries combine terms, quoted, with AND, OR, NOT and parentheses, e.g.
+ * <pre>
+ * "api:android.telephony.TelephonyManager.getDeviceId()" AND NOT "perm:android.permission.INTERNET"
+ * </pre>
+ * An index is safe for concurrent queries.
+ * </p>
+ */
+public final class CorpusIndex {
+    public static final String API_PREFIX = "api:";
+    public static final String PERMISSION_PREFIX = "perm:";
+
+    private final List<CorpusSegment> segments;
+    /**
+     * The id of the first app of each segment, and the total number of apps last
+     */
+    private final int[] bases;
+
+    private CorpusIndex(List<CorpusSegment> segments) {
+        this.segments = segments;
+        this.bases = new int[segments.size() + 1];
+        for (int k = 0; k < segments.size(); ++k) {
+            bases[k + 1] = bases[k] + segments.get(k).apkCount;
+        }
+    }
+
+    /**
+     * Map the segments of a directory, under its lock so that a compaction does not
+     * delete them meanwhile
+     * @param dir the directory of the index
+     * @return the index of the segments in the directory, empty if there is none
+     * @throws IOException if a segment cannot be read
+     */
+    public static CorpusIndex open(File dir) throws IOException {
+        final DirectoryLock lock = CorpusSegment.lock(dir);
+        try {
+            return openLocked(dir);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Map the segments of a directory, the caller holding its lock
+     */
+    private static CorpusIndex openLocked(File dir) throws IOException {
+        final ArrayList<CorpusSegment> segments = new ArrayList<CorpusSegment>();
+        for (File f : CorpusSegment.list(dir)) {
+            segments.add(CorpusSegment.open(f));
+        }
+        return new CorpusIndex(segments);
+    }
+
+    /**
+     * @param mi a method
+     * @return the term of a call to the method, e.g. "api:java.lang.String.indexOf(int,int)"
+     */
+    public static String apiTerm(MethodInfo mi) {
+        final StringBuilder s = new StringBuilder(API_PREFIX);
+        s.append(mi.type.fullName).append('.').append(mi.signature.partialSignature.name).append('(');
+        boolean firstParam = true;
+        for (ClassInfo p : mi.signature.partialSignature.paramTypes) {
+            if (!firstParam) {
+                s.append(',');
+            }
+            s.append(p.fullName);
+            firstParam = false;
+        }
+        return s.append(')').toString();
+    }
+
+    /**
+     * @param permission a permission, e.g. android.permission.INTERNET
+     * @return the term of the permission
+     */
+    public static String permissionTerm(String permission) {
+        return PERMISSION_PREFIX + permission;
+    }
+
+    /**
+     * @return the number of apps
+     */
+    public int getApkCount() {
+        return bases[segments.size()];
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @param id the id of an app
+     * @return the name it was added with
+     */
+    public String getApkName(int id) {
+        if (id < 0 || id >= getApkCount()) {
+            throw new IndexOutOfBoundsException("no app " + id);
+        }
+        // the last segment starting at or before the id, skipping empty ones
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (bases[mid] <= id) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return segments.get(lo).getApkName(id - bases[lo]);
+    }
+
+    /**
+     * @param ids the ids of apps, e.g. from a query
+     * @return their names, in id order
+     */
+    public List<String> getApkNames(BitSet ids) {
+        final ArrayList<String> r = new ArrayList<String>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            r.add(getApkName(id));
+        }
+        return r;
+    }
+
+    /**
+     * @param term a term
+     * @return the ids of the apps having the term
+     */
+    public BitSet find(String term) {
+        final BitSet r = new BitSet(getApkCount());
+        for (int k = 0; k < segments.size(); ++k) {
+            for (int id : segments.get(k).find(term)) {
+                r.set(bases[k] + id);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param query a boolean query, see above
+     * @return the ids of the apps matching the query
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public BitSet query(String query) {
+        final QueryParser p = new QueryParser(query);
+        final BitSet r = p.parseOr();
+        p.skipSpaces();
+        if (p.pos != query.length()) {
+            throw p.error("unexpected text");
+        }
+        return r;
+    }
+
+    /**
+     * Merge all segments of an index into one, under the lock of the directory. Indexes
+     * opened before keep reading the old segments, which are deleted; ids stay the same.
+     * @param dir the directory of the index
+     * @throws IOException if the index cannot be read or written
+     */
+    public static void compact(File dir) throws IOException {
+        final DirectoryLock lock = CorpusSegment.lock(dir);
+        try {
+            final List<File> files = CorpusSegment.list(dir);
+            if (files.size() < 2) {
+                return;
+            }
+            final CorpusIndex index = openLocked(dir);
+            final ArrayList<String> apks = new ArrayList<String>(index.getApkCount());
+            final Map<String, IntList> merged = new TreeMap<String, IntList>();
+            for (int k = 0; k < index.segments.size(); ++k) {
+                final CorpusSegment s = index.segments.get(k);
+                apks.addAll(s.getApkNames());
+                s.addTo(merged, index.bases[k]);
+            }
+            final TreeMap<String, int[]> postings = new TreeMap<String, int[]>();
+            for (Map.Entry<String, IntList> e : merged.entrySet()) {
+                postings.put(e.getKey(), e.getValue().toArray());
+            }
+            final int first = index.segments.get(0).first;
+            final int last = index.segments.get(index.segments.size() - 1).last;
+            CorpusSegment.write(dir, first, last, apks, postings);
+            for (File f : files) {
+                if (!f.getName().equals(CorpusSegment.name(first, last)) && !f.delete()) {
+                    // left over, it is covered by the new segment
+                    Log.warn("cannot delete segment " + f);
+                }
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * A recursive descent parser of queries, evaluating as it goes
+     */
+    private final class QueryParser {
+        final String s;
+        int pos = 0;
+
+        QueryParser(String s) {
+            this.s = s;
+        }
+
+        BitSet parseOr() {
+            final BitSet r = parseAnd();
+            while (accept("OR")) {
+                r.or(parseAnd());
+            }
+            return r;
+        }
+
+        BitSet parseAnd() {
+            final BitSet r = parseUnary();
+            while (accept("AND")) {
+                r.and(parseUnary());
+            }
+            return r;
+        }
+
+        BitSet parseUnary() {
+            if (accept("NOT")) {
+                final BitSet r = parseUnary();
+                r.flip(0, getApkCount());
+                return r;
+            }
+            skipSpaces();
+            if (pos < s.length() && s.charAt(pos) == '(') {
+                ++pos;
+                final BitSet r = parseOr();
+                skipSpaces();
+                if (pos >= s.length() || s.charAt(pos) != ')') {
+                    throw error("missing )");
+                }
+                ++pos;
+                return r;
+            }
+            if (pos >= s.length() || s.charAt(pos) != '"') {
+                throw error("expected a quoted term");
+            }
+            final int end = s.indexOf('"', pos + 1);
+            if (end == -1) {
+                throw error("unterminated term");
+            }
+            final String term = s.substring(pos + 1, end);
+            pos = end + 1;
+            return find(term);
+        }
+
+        /**
+         * Consume a keyword followed by a space, a quote or a parenthesis
+         */
+        boolean accept(String keyword) {
+            skipSpaces();
+            final int end = pos + keyword.length();
+            if (!s.startsWith(keyword, pos) || (end < s.length()
+                    && !Character.isWhitespace(s.charAt(end)) && s.charAt(end) != '"' && s.charAt(end) != '(')) {
+                return false;
+            }
+            pos = end;
+            return true;
+        }
+
+        void skipSpaces() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                ++pos;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos + " in query: " + s);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getApkCount() + " apps in " + segments.size() + " segments";
+    }
+}
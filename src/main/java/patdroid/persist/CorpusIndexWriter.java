@@ -0,0 +1,177 @@
+package patdroid.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.permission.APIMapping;
+import patdroid.util.IntList;
+import patdroid.util.Parallel;
+
+/**
+ * Add apps to a {@link CorpusIndex}, in batches: the apps added are kept in memory and
+ * written as a new segment when the batch is full or on {@link #flush()}. Writers in
+ * several processes may add to the same directory, and compaction may run meanwhile,
+ * segments being numbered and renamed into place under the lock of the directory.
+ */
+public final class CorpusIndexWriter {
+    private final File dir;
+    private final int batchSize;
+    private final ArrayList<String> apks = new ArrayList<String>();
+    private final TreeMap<String, IntList> postings = new TreeMap<String, IntList>();
+
+    /**
+     * @param dir the directory of the index, created if needed
+     * @param batchSize the number of apps per segment
+     */
+    public CorpusIndexWriter(File dir, int batchSize) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("cannot create index directory " + dir);
+        }
+        this.dir = dir;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Find the terms of an app loaded in a scope: the framework methods called by the
+     * classes of the app, as resolved, and the permissions these need. Only methods of
+     * loaded framework classes are terms, so the framework must be loaded in the scope; a
+     * call to a class that is missing could as well be a call to a class of the app that
+     * was not loaded. The methods are scanned on {@link patdroid.Settings#nThreads} threads.
+     * @param scope the scope the app is loaded in, with its instructions
+     * @param permissions the permissions of the framework methods of the same scope, e.g.
+     * from {@link patdroid.permission.PScoutParser}, or null
+     * @return the terms, see {@link CorpusIndex#apiTerm(MethodInfo)} and
+     * {@link CorpusIndex#permissionTerm(String)}
+     */
+    public static Set<String> findTerms(Scope scope, final APIMapping permissions) {
+        // read under the lock of the scope, which a class loading on demand holds while it
+        // translates; the instructions of class k are from firstMethod[k] to firstMethod[k + 1]
+        final ArrayList<Instruction[]> code = new ArrayList<Instruction[]>();
+        final IntList firstMethod = new IntList();
+        synchronized (scope) {
+            for (ClassInfo ci : scope.getAllClasses()) {
+                if (ci.isLoaded() && !ci.mutableDetail.isFrameworkClass) {
+                    firstMethod.add(code.size());
+                    for (MethodInfo mi : ci.mutableDetail.methods.values()) {
+                        if (mi.insns != null) {
+                            code.add(mi.insns);
+                        }
+                    }
+                }
+            }
+            firstMethod.add(code.size());
+        }
+        final int nClasses = firstMethod.size() - 1;
+        final ArrayList<Set<String>> found = new ArrayList<Set<String>>(
+                Collections.<Set<String>>nCopies(nClasses, null));
+        Parallel.forRange(nClasses, new Parallel.RangeBody() {
+            @Override
+            public void run(int index) {
+                final TreeSet<String> terms = new TreeSet<String>();
+                for (int m = firstMethod.get(index); m < firstMethod.get(index + 1); ++m) {
+                    addTerms(code.get(m), permissions, terms);
+                }
+                found.set(index, terms);
+            }
+        });
+        final TreeSet<String> r = new TreeSet<String>();
+        for (Set<String> s : found) {
+            r.addAll(s);
+        }
+        return r;
+    }
+
+    private static void addTerms(Instruction[] insns, APIMapping permissions, Set<String> terms) {
+        for (Instruction i : insns) {
+            if (i.opcode != Instruction.OP_INVOKE_OP) {
+                continue;
+            }
+            final MethodInfo target = ((Invocation) i.extra).target;
+            // calls within the app are not API usage
+            if (target == null || !target.type.isLoaded() || !target.type.mutableDetail.isFrameworkClass) {
+                continue;
+            }
+            terms.add(CorpusIndex.apiTerm(target));
+            final List<String> perms = permissions == null ? null : permissions.get(target);
+            if (perms != null) {
+                for (String p : perms) {
+                    terms.add(CorpusIndex.permissionTerm(p));
+                }
+            }
+        }
+    }
+
+    /**
+     * Add an app loaded in a scope, see {@link #findTerms(Scope, APIMapping)}
+     * @param apk the name of the app, e.g. its file name or package name
+     * @throws IOException if the batch is full and cannot be written
+     */
+    public void add(String apk, Scope scope, APIMapping permissions) throws IOException {
+        add(apk, findTerms(scope, permissions));
+    }
+
+    /**
+     * Add an app with its terms
+     * @param apk the name of the app
+     * @param terms the terms of the app
+     * @throws IOException if the batch is full and cannot be written
+     */
+    public synchronized void add(String apk, Collection<String> terms) throws IOException {
+        final int id = apks.size();
+        apks.add(apk);
+        for (String t : new TreeSet<String>(terms)) {
+            IntList l = postings.get(t);
+            if (l == null) {
+                l = new IntList();
+                postings.put(t, l);
+            }
+            l.add(id);
+        }
+        if (apks.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * @return the number of apps added but not written yet
+     */
+    public synchronized int getPendingCount() {
+        return apks.size();
+    }
+
+    /**
+     * Write the apps added since the last flush as a new segment, if there are any
+     * @throws IOException if the segment cannot be written, the apps are then kept
+     */
+    public synchronized void flush() throws IOException {
+        if (apks.isEmpty()) {
+            return;
+        }
+        final TreeMap<String, int[]> p = new TreeMap<String, int[]>();
+        for (Map.Entry<String, IntList> e : postings.entrySet()) {
+            p.put(e.getKey(), e.getValue().toArray());
+        }
+        final DirectoryLock lock = CorpusSegment.lock(dir);
+        try {
+            final int batch = CorpusSegment.nextBatch(dir);
+            CorpusSegment.write(dir, batch, batch, apks, p);
+        } finally {
+            lock.release();
+        }
+        apks.clear();
+        postings.clear();
+    }
+}
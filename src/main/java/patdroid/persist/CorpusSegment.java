@@ -0,0 +1,329 @@
+package patdroid.persist;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import patdroid.util.IntList;
+import patdroid.util.Log;
+
+/**
+ * One immutable file of a {@link CorpusIndex}: the apps added in one batch, and for every
+ * term the apps having it.
+ * <p>
+ * The file is read through a memory mapping. Postings are delta-encoded varints, and the
+ * terms are sorted with a table of fixed-size offsets at the end, so that a lookup is a
+ * binary search touching a few pages rather than a load of the whole dictionary. The app
+ * names have a table of offsets too, so that naming an app is a single read:
+ * <pre>
+ * header: magic, version, app count, term count, offset of app table, offset of term table
+ * postings of every term: count, ids as deltas
+ * app names
+ * app table: offset of every app name, in id order
+ * every term: name, offset of its postings
+ * term table: offset of every term, in term order
+ * </pre>
+ * A segment file is named by the range of batches it holds, "first-last.seg", so that
+ * segments sort in the order of their apps, and a segment made by compaction replaces the
+ * ones whose range it covers.
+ * <p>
+ * Segments are only written, deleted and mapped under the lock of their directory, see
+ * {@link #lock(File)}, so a temporary file found under the lock was left by a writer that
+ * crashed, and is deleted.
+ * </p>
+ */
+final class CorpusSegment {
+    private static final int MAGIC = 0x50415449; // "PATI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    static final String SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "lock";
+
+    final int first;
+    final int last;
+    private final ByteBuffer buf;
+    final int apkCount;
+    private final int termCount;
+    private final int apkTableOffset;
+    private final int termTableOffset;
+
+    private CorpusSegment(int first, int last, ByteBuffer buf) throws IOException {
+        this.first = first;
+        this.last = last;
+        this.buf = buf;
+        final BinaryInput in = new BinaryInput(buf.duplicate());
+        if (in.remaining() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("bad header");
+        }
+        apkCount = in.readInt();
+        termCount = in.readInt();
+        apkTableOffset = in.readInt();
+        termTableOffset = in.readInt();
+        if (termTableOffset + 4L * termCount != buf.limit() || apkTableOffset + 4L * apkCount > termTableOffset) {
+            throw new IOException("truncated");
+        }
+    }
+
+    /**
+     * Map a segment file
+     */
+    static CorpusSegment open(File file) throws IOException {
+        final int[] range = parseName(file.getName());
+        if (range == null) {
+            throw new IOException("not a segment: " + file);
+        }
+        final RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the file is closed
+            return new CorpusSegment(range[0], range[1],
+                    f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length()));
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * @return the first and last batch of a segment file name, or null if it is not one
+     */
+    static int[] parseName(String name) {
+        if (!name.endsWith(SUFFIX)) {
+            return null;
+        }
+        final int dash = name.indexOf('-');
+        try {
+            final int first = Integer.parseInt(name.substring(0, dash));
+            final int last = Integer.parseInt(name.substring(dash + 1, name.length() - SUFFIX.length()));
+            return first <= last ? new int[] {first, last} : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    static String name(int first, int last) {
+        return String.format("%08d-%08d%s", first, last, SUFFIX);
+    }
+
+    /**
+     * List the segment files of a directory in order, leaving out the ones covered by a
+     * compacted segment whose replaced files were not deleted yet
+     */
+    static List<File> list(File dir) {
+        final ArrayList<File> files = new ArrayList<File>();
+        final File[] all = dir.listFiles();
+        if (all == null) {
+            return files;
+        }
+        for (File f : all) {
+            if (parseName(f.getName()) != null) {
+                files.add(f);
+            }
+        }
+        // by first batch, the widest range first
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final int[] ra = parseName(a.getName());
+                final int[] rb = parseName(b.getName());
+                return ra[0] != rb[0] ? (ra[0] < rb[0] ? -1 : 1) : (ra[1] > rb[1] ? -1 : (ra[1] == rb[1] ? 0 : 1));
+            }
+        });
+        final ArrayList<File> r = new ArrayList<File>();
+        int covered = -1;
+        for (File f : files) {
+            final int[] range = parseName(f.getName());
+            if (range[1] > covered) {
+                r.add(f);
+                covered = range[1];
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Write a segment to a temporary file and rename it into place
+     * @param apks the app names, in id order
+     * @param postings the ids of the apps having each term, in increasing order
+     */
+    static void write(File dir, int first, int last, List<String> apks, SortedMap<String, int[]> postings)
+            throws IOException {
+        final BinaryOutput out = new BinaryOutput();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(apks.size());
+        out.writeInt(postings.size());
+        out.writeInt(0);
+        out.writeInt(0);
+        final int[] postingOffsets = new int[postings.size()];
+        int k = 0;
+        for (int[] ids : postings.values()) {
+            postingOffsets[k++] = out.size();
+            out.writeVarint(ids.length);
+            int previous = -1;
+            for (int id : ids) {
+                out.writeVarint(id - previous - 1);
+                previous = id;
+            }
+        }
+        final int[] apkOffsets = new int[apks.size()];
+        k = 0;
+        for (String apk : apks) {
+            apkOffsets[k++] = out.size();
+            out.writeUTF8(apk);
+        }
+        out.setInt(16, out.size());
+        for (int offset : apkOffsets) {
+            out.writeInt(offset);
+        }
+        final int[] termOffsets = new int[postings.size()];
+        k = 0;
+        for (String term : postings.keySet()) {
+            termOffsets[k] = out.size();
+            out.writeUTF8(term);
+            out.writeInt(postingOffsets[k]);
+            ++k;
+        }
+        out.setInt(20, out.size());
+        for (int offset : termOffsets) {
+            out.writeInt(offset);
+        }
+        final File tmp = File.createTempFile("segment", TEMP_SUFFIX, dir);
+        boolean renamed = false;
+        try {
+            final FileOutputStream s = new FileOutputStream(tmp);
+            try {
+                out.writeTo(s);
+            } finally {
+                s.close();
+            }
+            renamed = tmp.renameTo(new File(dir, name(first, last)));
+            if (!renamed) {
+                throw new IOException("cannot rename " + tmp);
+            }
+        } finally {
+            if (!renamed) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Lock a directory of segments against other processes and other threads, and delete
+     * the temporary files left by crashed writers
+     * @return the lock, to be released
+     */
+    static DirectoryLock lock(File dir) throws IOException {
+        final DirectoryLock lock = DirectoryLock.lock(dir, LOCK_FILE);
+        deleteTempFiles(dir);
+        return lock;
+    }
+
+    private static void deleteTempFiles(File dir) {
+        final File[] all = dir.listFiles();
+        if (all == null) {
+            return;
+        }
+        for (File f : all) {
+            if (f.getName().endsWith(TEMP_SUFFIX) && !f.delete()) {
+                Log.warn("cannot delete temporary file " + f);
+            }
+        }
+    }
+
+    /**
+     * @return the number of the next batch of a directory, the caller holding its lock
+     */
+    static int nextBatch(File dir) {
+        int next = 0;
+        for (File f : list(dir)) {
+            next = Math.max(next, parseName(f.getName())[1] + 1);
+        }
+        return next;
+    }
+
+    /**
+     * @param id an app id local to the segment
+     * @return the name of the app
+     */
+    String getApkName(int id) {
+        final BinaryInput in = new BinaryInput(buf.duplicate());
+        in.seek(apkTableOffset + 4 * id);
+        in.seek(in.readInt());
+        return in.readUTF8();
+    }
+
+    /**
+     * @return the names of all apps, in id order
+     */
+    List<String> getApkNames() {
+        final ArrayList<String> r = new ArrayList<String>(apkCount);
+        for (int k = 0; k < apkCount; ++k) {
+            r.add(getApkName(k));
+        }
+        return r;
+    }
+
+    /**
+     * @param term a term
+     * @return the local ids of the apps having the term, in increasing order
+     */
+    int[] find(String term) {
+        final BinaryInput in = new BinaryInput(buf.duplicate());
+        int lo = 0;
+        int hi = termCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            in.seek(termTableOffset + 4 * mid);
+            in.seek(in.readInt());
+            final int c = in.readUTF8().compareTo(term);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return readPostings(in, in.readInt());
+            }
+        }
+        return new int[0];
+    }
+
+    private static int[] readPostings(BinaryInput in, int offset) {
+        in.seek(offset);
+        final int[] ids = new int[in.readVarint()];
+        int previous = -1;
+        for (int k = 0; k < ids.length; ++k) {
+            ids[k] = previous + 1 + in.readVarint();
+            previous = ids[k];
+        }
+        return ids;
+    }
+
+    /**
+     * Add the postings of every term, shifted by a base id, e.g. to merge segments
+     */
+    void addTo(Map<String, IntList> postings, int base) {
+        final BinaryInput in = new BinaryInput(buf.duplicate());
+        for (int k = 0; k < termCount; ++k) {
+            in.seek(termTableOffset + 4 * k);
+            in.seek(in.readInt());
+            final String term = in.readUTF8();
+            IntList l = postings.get(term);
+            if (l == null) {
+                l = new IntList();
+                postings.put(term, l);
+            }
+            for (int id : readPostings(in, in.readInt())) {
+                l.add(base + id);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package patdroid.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The lock of a directory shared by several processes, e.g. of a {@link CorpusIndex} or a
+ * {@link TranslationCache}, held by one thread at a time.
+ * <p>
+ * The lock is a file lock on a file of the directory. A file lock is held by the whole
+ * process, and taking one that overlaps another of the same process throws, so the
+ * threads of a process take turns on a semaphore of the lock file first.
+ * </p>
+ */
+final class DirectoryLock {
+    /**
+     * The locks within this process, by lock file
+     */
+    private static final HashMap<File, Semaphore> LOCAL_LOCKS = new HashMap<File, Semaphore>();
+
+    private final Semaphore local;
+    private final RandomAccessFile file;
+
+    private DirectoryLock(Semaphore local, RandomAccessFile file) {
+        this.local = local;
+        this.file = file;
+    }
+
+    /**
+     * Wait for the lock of a directory
+     * @param dir the directory
+     * @param name the name of the lock file in the directory, created if needed
+     * @return the lock, to be released
+     * @throws IOException if the lock file cannot be created or locked
+     */
+    static DirectoryLock lock(File dir, String name) throws IOException {
+        final File lockFile = new File(dir, name).getCanonicalFile();
+        final Semaphore local;
+        synchronized (LOCAL_LOCKS) {
+            Semaphore l = LOCAL_LOCKS.get(lockFile);
+            if (l == null) {
+                l = new Semaphore(1);
+                LOCAL_LOCKS.put(lockFile, l);
+            }
+            local = l;
+        }
+        local.acquireUninterruptibly();
+        RandomAccessFile f = null;
+        try {
+            f = new RandomAccessFile(lockFile, "rw");
+            if (f.getChannel().lock() == null) {
+                throw new IOException("cannot lock " + dir);
+            }
+            final DirectoryLock r = new DirectoryLock(local, f);
+            f = null;
+            return r;
+        } finally {
+            if (f != null) {
+                try {
+                    f.close();
+                } finally {
+                    local.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the lock by closing its file
+     */
+    void release() throws IOException {
+        try {
+            file.close();
+        } finally {
+            local.release();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package patdroid.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import patdroid.core.ClassDetailLoader;
+import patdroid.core.ClassInfo;
+import patdroid.core.Scope;
+
+/**
+ * Load classes from a file written by {@link ScopeWriter}, usually memory-mapped.
+ * <p>
+ * Only the header, the strings and the index are read when opening; classes are decoded
+ * when loaded, all at once with {@link #loadAll()}, some with {@link #loadClasses(Collection)},
+ * or one by one when first queried, by adding the reader to the scope with
+ * {@link Scope#addOnDemandLoader(ClassDetailLoader)}. A reader loads into a single scope.
+ * <p>
+ * Loading locks the scope, the lock the scope holds when it calls an on-demand loader, so
+ * that threads loading explicitly and threads querying the scope take locks in the same order.
+ */
+public final class ScopeReader extends ClassDetailLoader {
+    private static final class IndexEntry {
+        final int offset;
+        final boolean isFramework;
+        final String hash;
+
+        IndexEntry(int offset, boolean isFramework, String hash) {
+            this.offset = offset;
+            this.isFramework = isFramework;
+            this.hash = hash;
+        }
+    }
+
+    private final Scope scope;
+    private final ByteBuffer buf;
+    private final String[] strings;
+    private final ClassInfo[] classes;
+    private final LinkedHashMap<String, IndexEntry> index;
+    /**
+     * Classes loaded on demand whose instructions are not decoded yet
+     */
+    private final ArrayDeque<ClassDecoder.Entry> pending = new ArrayDeque<ClassDecoder.Entry>();
+    /**
+     * Guarded, with {@link #pending}, by the lock of the scope
+     */
+    private boolean decodingPending = false;
+
+    /**
+     * @param scope the scope to load into
+     * @param buf the content written by {@link ScopeWriter}
+     * @throws IllegalArgumentException if the content is not in a supported format
+     */
+    public ScopeReader(Scope scope, ByteBuffer buf) {
+        this.scope = scope;
+        this.buf = buf;
+        final BinaryInput in = new BinaryInput(buf.duplicate());
+        if (in.remaining() < ScopeWriter.HEADER_SIZE || in.readInt() != ScopeWriter.MAGIC) {
+            throw new IllegalArgumentException("not a serialized scope");
+        }
+        final int version = in.readInt();
+        final int encoderVersion = in.readInt();
+        if (version != ScopeWriter.FORMAT_VERSION || encoderVersion != ClassEncoder.FORMAT_VERSION) {
+            throw new IllegalArgumentException("unsupported serialized scope version " + version + "." + encoderVersion);
+        }
+        final int stringsOffset = in.readInt();
+        final int indexOffset = in.readInt();
+        in.seek(stringsOffset);
+        this.strings = StringPool.read(in);
+        this.classes = new ClassInfo[strings.length];
+        in.seek(indexOffset);
+        final int n = in.readVarint();
+        this.index = new LinkedHashMap<String, IndexEntry>(n * 2);
+        for (int i = 0; i < n; ++i) {
+            final String name = strings[in.readVarint()];
+            final int offset = in.readVarint();
+            final boolean isFramework = in.readBoolean();
+            final int hash = in.readVarint();
+            index.put(name, new IndexEntry(offset, isFramework, hash == 0 ? null : strings[hash - 1]));
+        }
+    }
+
+    /**
+     * Map a file into memory and read its index
+     * @param scope the scope to load into
+     * @param file a file written by {@link ScopeWriter}
+     * @return the reader
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file is not in a supported format
+     */
+    public static ScopeReader open(Scope scope, File file) throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            if (f.length() > Integer.MAX_VALUE) {
+                throw new IOException("serialized scope larger than 2 GB: " + file);
+            }
+            // the mapping stays valid after the file is closed
+            final ByteBuffer buf = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+            return new ScopeReader(scope, buf);
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * @return the names of the classes in the file, in the order they were written
+     */
+    public Set<String> getClassNames() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * @param name the class name
+     * @return true if the class is in the file
+     */
+    public boolean defines(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * @param name the class name
+     * @return the hash of the source of the class recorded by the writer, or null if there is none
+     */
+    public String getClassHash(String name) {
+        final IndexEntry e = index.get(name);
+        return e == null ? null : e.hash;
+    }
+
+    /**
+     * @param name the class name, which must be in the file
+     * @return true if the class was written as a framework class
+     */
+    public boolean isFrameworkClass(String name) {
+        return getIndexEntry(name).isFramework;
+    }
+
+    /**
+     * Load every class in the file that is not loaded yet
+     */
+    public void loadAll() {
+        loadClasses(index.keySet());
+    }
+
+    /**
+     * Load classes from the file, skipping classes that are loaded already. Invocations
+     * are resolved after the details of all the given classes are set.
+     * @param names the class names, each of which must be in the file
+     */
+    public void loadClasses(Collection<String> names) {
+        synchronized (scope) {
+            loadInstructions(loadDetails(names));
+        }
+    }
+
+    /**
+     * The first step of {@link #loadClasses(Collection)}: load the details of classes,
+     * skipping classes that are loaded already, but not the instructions of their methods.
+     * This leaves room for loading other classes that invocations might resolve to.
+     * @param names the class names, each of which must be in the file
+     * @return the loaded classes, to be passed to {@link #loadInstructions(List)}
+     */
+    public List<ClassDecoder.Entry> loadDetails(Collection<String> names) {
+        synchronized (scope) {
+            final ArrayList<ClassDecoder.Entry> loaded = new ArrayList<ClassDecoder.Entry>(names.size());
+            for (String name : names) {
+                final IndexEntry e = getIndexEntry(name);
+                final ClassInfo ci = scope.findClass(name);
+                if (ci != null && ci.isLoaded()) {
+                    continue;
+                }
+                loaded.add(readClass(e));
+            }
+            for (ClassDecoder.Entry e : loaded) {
+                setDetail(e.type, e.detail);
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * The second step of {@link #loadClasses(Collection)}: load the instructions of classes
+     * @param loaded the classes returned by {@link #loadDetails(Collection)}
+     */
+    public void loadInstructions(List<ClassDecoder.Entry> loaded) {
+        synchronized (scope) {
+            for (ClassDecoder.Entry e : loaded) {
+                newDecoder().readInstructions(e);
+            }
+        }
+    }
+
+    /**
+     * Load a single class, see {@link Scope#addOnDemandLoader(ClassDetailLoader)}
+     * @param ci the class
+     * @throws ClassNotFoundException if the class is not in the file
+     */
+    @Override
+    public void load(ClassInfo ci) throws ClassNotFoundException {
+        final IndexEntry ie = index.get(ci.fullName);
+        if (ie == null || ci.scope != scope) {
+            throw new ClassNotFoundException(ci.fullName);
+        }
+        synchronized (scope) {
+            final ClassDecoder.Entry e = readClass(ie);
+            setDetail(ci, e.detail);
+            pending.add(e);
+            if (decodingPending) {
+                return;
+            }
+            // resolving invocations may load more classes, which join the queue instead of recursing
+            decodingPending = true;
+            try {
+                while (!pending.isEmpty()) {
+                    newDecoder().readInstructions(pending.poll());
+                }
+            } finally {
+                decodingPending = false;
+            }
+        }
+    }
+
+    private IndexEntry getIndexEntry(String name) {
+        final IndexEntry e = index.get(name);
+        if (e == null) {
+            throw new IllegalArgumentException("class not in the file: " + name);
+        }
+        return e;
+    }
+
+    private ClassDecoder.Entry readClass(IndexEntry e) {
+        final BinaryInput in = new BinaryInput(buf.duplicate());
+        in.seek(e.offset);
+        return new ClassDecoder(scope, strings, classes, in).readClass(e.isFramework);
+    }
+
+    private ClassDecoder newDecoder() {
+        // every decoder gets its own position, since decoding one class may load another
+        return new ClassDecoder(scope, strings, classes, new BinaryInput(buf.duplicate()));
+    }
+}
@@ -0,0 +1,104 @@
+package patdroid.persist;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import patdroid.core.ClassInfo;
+import patdroid.core.Scope;
+
+/**
+ * Write the loaded classes of a scope, with their methods and instructions, to a file
+ * that {@link ScopeReader} maps into memory and loads from, in whole or class by class.
+ * <p>
+ * The layout is:
+ * <pre>
+ * header   magic, scope format version, class encoding version, strings offset, index offset
+ * classes  each class as written by {@link ClassEncoder}
+ * strings  the {@link StringPool} shared by all classes
+ * index    for each class: name, offset, framework flag, and an optional hash of its source
+ * </pre>
+ * Offsets are absolute and the header fields are fixed-size, so that a reader can find the
+ * strings and the index without scanning the classes. Offsets are 32-bit, as is the size
+ * of a buffer mapped by the reader, so a file holds at most 2 GB.
+ */
+public final class ScopeWriter {
+    /**
+     * The version of the layout, to be bumped whenever it changes
+     */
+    public static final int FORMAT_VERSION = 1;
+    static final int MAGIC = 0x50415453; // "PATS"
+    static final int HEADER_SIZE = 20;
+
+    private ScopeWriter() {
+    }
+
+    /**
+     * Write every loaded class of a scope, including its instructions if translated
+     * @param scope the scope
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Scope scope, File file) throws IOException {
+        write(scope, file, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Write every loaded class of a scope, recording a hash of the source of each class,
+     * e.g. of its DEX definition, for telling later whether it changed
+     * @param scope the scope
+     * @param file the file to write
+     * @param classHashes the source hashes by class name, classes without one get none
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Scope scope, File file, Map<String, String> classHashes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            encode(scope, classHashes).writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the encoded scope, see {@link #write(Scope, File, Map)}
+     */
+    public static byte[] toByteArray(Scope scope, Map<String, String> classHashes) {
+        return encode(scope, classHashes).toByteArray();
+    }
+
+    private static BinaryOutput encode(Scope scope, Map<String, String> classHashes) {
+        final StringPool pool = new StringPool();
+        final BinaryOutput out = new BinaryOutput(1 << 16);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(ClassEncoder.FORMAT_VERSION);
+        out.writeInt(0); // strings offset
+        out.writeInt(0); // index offset
+        final ClassEncoder encoder = new ClassEncoder(pool, out);
+        final BinaryOutput index = new BinaryOutput();
+        int n = 0;
+        // by id, so that the same scope is always written the same way
+        for (int id = 0; id < scope.getClassCount(); ++id) {
+            final ClassInfo ci = scope.getClassById(id);
+            if (ci == null || !ci.isLoaded()) {
+                continue;
+            }
+            index.writeVarint(pool.intern(ci.fullName));
+            index.writeVarint(out.size());
+            index.writeBoolean(ci.mutableDetail.isFrameworkClass);
+            final String hash = classHashes.get(ci.fullName);
+            index.writeVarint(hash == null ? 0 : pool.intern(hash) + 1);
+            encoder.writeClass(ci, true);
+            ++n;
+        }
+        out.setInt(12, out.size());
+        pool.writeTo(out);
+        out.setInt(16, out.size());
+        out.writeVarint(n);
+        out.writeBytes(index.toByteArray());
+        return out;
+    }
+}
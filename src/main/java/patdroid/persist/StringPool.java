@@ -0,0 +1,57 @@
+package patdroid.persist;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Strings numbered in order of first use, so that an encoding refers to each distinct
+ * string (names, class names) by a small index and stores its characters once.
+ */
+public final class StringPool {
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final ArrayList<String> strings = new ArrayList<String>();
+
+    /**
+     * @param s a string
+     * @return the index of the string, adding it if it is new
+     */
+    public int intern(String s) {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    public int size() {
+        return strings.size();
+    }
+
+    public String get(int id) {
+        return strings.get(id);
+    }
+
+    /**
+     * Write the number of strings followed by every string in index order
+     */
+    public void writeTo(BinaryOutput out) {
+        out.writeVarint(strings.size());
+        for (String s : strings) {
+            out.writeUTF8(s);
+        }
+    }
+
+    /**
+     * Read strings written by {@link #writeTo(BinaryOutput)}
+     * @return the strings by index
+     */
+    public static String[] read(BinaryInput in) {
+        final String[] r = new String[in.readVarint()];
+        for (int i = 0; i < r.length; ++i) {
+            r[i] = in.readUTF8();
+        }
+        return r;
+    }
+}
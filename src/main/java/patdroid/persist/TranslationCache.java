@@ -0,0 +1,282 @@
+package patdroid.persist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import patdroid.util.Log;
+
+/**
+ * A content-addressed cache of encoded classes on disk, bounded in size.
+ * <p>
+ * Entries are files named by their key, a hash of what they were encoded from, so an
+ * entry never needs to be invalidated: changed input means a different key. An entry is
+ * written to a temporary file and renamed into place, so concurrent processes sharing
+ * the directory see either a complete entry or none. Each entry starts with a header
+ * holding its length, and a damaged entry reads as a miss.
+ * <p>
+ * Reading an entry marks it as recently used. When the total size goes over the bound,
+ * the least recently used entries are deleted, under the lock of the directory so that
+ * processes and threads do not evict concurrently, see {@link DirectoryLock}. Temporary
+ * files left over by crashed writers are deleted on eviction and when the cache is
+ * opened, once they are old enough not to be still in use.
+ */
+public final class TranslationCache {
+    private static final int MAGIC = 0x50415443; // "PATC"
+    private static final int HEADER_SIZE = 12;
+    private static final String LOCK_FILE = "lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * The age after which a temporary file is taken as left over by a crashed writer
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+    private final File dir;
+    private final long maxBytes;
+    /**
+     * The approximate size of the entries, rescanned on eviction
+     */
+    private long size;
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param dir the cache directory, created if needed, may be shared by processes
+     * @param maxBytes the maximum total size of the entries
+     */
+    public TranslationCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("cannot create cache directory " + dir);
+        }
+        deleteStaleTempFiles();
+        this.size = scanSize();
+    }
+
+    /**
+     * @param key the key of the entry, made of hex digits
+     * @return the content of the entry, or null if there is none or it is damaged
+     */
+    public byte[] get(String key) {
+        final File f = entryFile(key);
+        if (!f.isFile()) {
+            synchronized (this) {
+                ++misses;
+            }
+            return null;
+        }
+        try {
+            final byte[] value = read(f);
+            f.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                ++hits;
+            }
+            return value;
+        } catch (IOException e) {
+            Log.warn("damaged cache entry " + f + ": " + e.getMessage());
+            f.delete();
+            synchronized (this) {
+                ++misses;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Add an entry, replacing any entry with the same key
+     * @param key the key of the entry, made of hex digits
+     * @param value the content of the entry
+     */
+    public void put(String key, byte[] value) {
+        final File f = entryFile(key);
+        final File parent = f.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            Log.warn("cannot create cache directory " + parent);
+            return;
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, TEMP_SUFFIX, parent);
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                final BinaryOutput header = new BinaryOutput(HEADER_SIZE);
+                header.writeInt(MAGIC);
+                header.writeInt(ClassEncoder.FORMAT_VERSION);
+                header.writeInt(value.length);
+                header.writeTo(out);
+                out.write(value);
+            } finally {
+                out.close();
+            }
+            // renaming over an existing file is not atomic everywhere, the old entry is as good
+            if (tmp.renameTo(f)) {
+                tmp = null;
+            } else {
+                return;
+            }
+        } catch (IOException e) {
+            Log.warn("cannot write cache entry " + f + ": " + e.getMessage());
+            return;
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+        final boolean full;
+        synchronized (this) {
+            size += value.length + HEADER_SIZE;
+            full = size > maxBytes;
+        }
+        if (full) {
+            evict();
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is at 90% of its bound
+     */
+    public synchronized void evict() {
+        DirectoryLock lock = null;
+        try {
+            lock = DirectoryLock.lock(dir, LOCK_FILE);
+            deleteStaleTempFiles();
+            final ArrayList<File> entries = listEntries();
+            final long[] lastModified = new long[entries.size()];
+            long total = 0;
+            for (int i = 0; i < entries.size(); ++i) {
+                total += entries.get(i).length();
+            }
+            // sort on a snapshot, the times may change while sorting
+            final ArrayList<Integer> order = new ArrayList<Integer>(entries.size());
+            for (int i = 0; i < entries.size(); ++i) {
+                lastModified[i] = entries.get(i).lastModified();
+                order.add(i);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return lastModified[a] < lastModified[b] ? -1 : (lastModified[a] == lastModified[b] ? 0 : 1);
+                }
+            });
+            final long target = maxBytes / 10 * 9;
+            for (int i : order) {
+                if (total <= target) {
+                    break;
+                }
+                final File f = entries.get(i);
+                final long length = f.length();
+                if (f.delete()) {
+                    total -= length;
+                }
+            }
+            size = total;
+        } catch (IOException e) {
+            Log.warn("cannot evict cache entries: " + e.getMessage());
+        } finally {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                Log.warn(e.getMessage());
+            }
+        }
+    }
+
+    private File entryFile(String key) {
+        if (key.length() < 3) {
+            throw new IllegalArgumentException("key too short: " + key);
+        }
+        // fan out so that no single directory gets too large
+        return new File(new File(dir, key.substring(0, 2)), key.substring(2));
+    }
+
+    private static byte[] read(File f) throws IOException {
+        final FileInputStream in = new FileInputStream(f);
+        try {
+            final byte[] header = readFully(in, HEADER_SIZE);
+            final BinaryInput h = new BinaryInput(header);
+            if (h.readInt() != MAGIC || h.readInt() != ClassEncoder.FORMAT_VERSION) {
+                throw new IOException("bad header");
+            }
+            final int length = h.readInt();
+            if (length < 0 || length != f.length() - HEADER_SIZE) {
+                throw new IOException("truncated");
+            }
+            return readFully(in, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFully(FileInputStream in, int n) throws IOException {
+        final byte[] b = new byte[n];
+        int off = 0;
+        while (off < n) {
+            final int r = in.read(b, off, n - off);
+            if (r < 0) {
+                throw new IOException("truncated");
+            }
+            off += r;
+        }
+        return b;
+    }
+
+    private ArrayList<File> listEntries() {
+        return listFiles(false);
+    }
+
+    private void deleteStaleTempFiles() {
+        final long limit = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        for (File f : listFiles(true)) {
+            if (f.lastModified() < limit) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * @param temp true to list the temporary files, false to list the entries
+     * @return the files
+     */
+    private ArrayList<File> listFiles(boolean temp) {
+        final ArrayList<File> files = new ArrayList<File>();
+        final File[] subdirs = dir.listFiles();
+        if (subdirs == null) {
+            return files;
+        }
+        for (File subdir : subdirs) {
+            final File[] children = subdir.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File f : children) {
+                if (f.getName().endsWith(TEMP_SUFFIX) == temp) {
+                    files.add(f);
+                }
+            }
+        }
+        return files;
+    }
+
+    private long scanSize() {
+        long total = 0;
+        for (File f : listEntries()) {
+            total += f.length();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,339 @@
+package patdroid.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import patdroid.core.AttributeKey;
+import patdroid.core.ClassInfo;
+import patdroid.core.FieldInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.PackageInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.IntList;
+import patdroid.util.Pair;
+import patdroid.util.Parallel;
+
+/**
+ * A fingerprint of translated code that survives renaming, for finding copies of known
+ * code, e.g. an obfuscated library, across apps.
+ * <p>
+ * The instructions of a method are normalized into tokens of their major and auxiliary
+ * opcodes, the types they use and the fields and methods they refer to. Register numbers,
+ * constant values and branch offsets are left out, and so are the names of app classes and
+ * their members: only the names of classes outside the app (framework classes, or missing
+ * classes) are kept. A fingerprint holds
+ * <ul>
+ * <li>an exact hash of the token sequence, equal for methods that differ only by renaming</li>
+ * <li>a MinHash signature of the set of token trigrams, two signatures agreeing in about
+ * the same fraction of positions as the Jaccard similarity of the two sets, see
+ * {@link #similarity(Fingerprint)}</li>
+ * </ul>
+ * The fingerprint of a class or package aggregates those of its methods: its hash does not
+ * depend on the order of the methods, and its signature, the minimum of theirs at each
+ * position, is the signature of the union of their trigrams.
+ * Hashes only use {@link String#hashCode()} and fixed seeds, so that fingerprints of
+ * different runs compare.
+ * </p>
+ */
+public final class Fingerprint {
+    /**
+     * The number of positions in a signature
+     */
+    public static final int SIZE = 64;
+    /**
+     * The fingerprint of each method and class, set by {@link #computeAll(Scope)}
+     */
+    public static final AttributeKey<Fingerprint> KEY = AttributeKey.create("fingerprint");
+
+    private static final int SHINGLE = 3;
+    private static final long[] SEEDS = new long[SIZE];
+    static {
+        for (int k = 0; k < SIZE; ++k) {
+            SEEDS[k] = mix(0x9e3779b97f4a7c15L * (k + 1));
+        }
+    }
+
+    /**
+     * The hash of the normalized instructions
+     */
+    public final long hash;
+    private final int[] signature;
+
+    private Fingerprint(long hash, int[] signature) {
+        this.hash = hash;
+        this.signature = signature;
+    }
+
+    /**
+     * Fingerprint a method
+     * @param mi the method
+     * @return the fingerprint, or null if the method has no instructions
+     */
+    public static Fingerprint of(MethodInfo mi) {
+        return of(mi.insns);
+    }
+
+    private static Fingerprint of(Instruction[] insns) {
+        if (insns == null || insns.length == 0) {
+            return null;
+        }
+        final long[] tokens = new long[insns.length];
+        long hash = 0;
+        for (int k = 0; k < insns.length; ++k) {
+            tokens[k] = token(insns[k]);
+            hash = mix(hash * 31 + tokens[k]);
+        }
+        final int[] signature = new int[SIZE];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        // a method shorter than a trigram is a single shingle
+        final int n = Math.max(1, tokens.length - SHINGLE + 1);
+        for (int k = 0; k < n; ++k) {
+            long shingle = 0;
+            for (int j = k; j < Math.min(k + SHINGLE, tokens.length); ++j) {
+                shingle = shingle * 31 + tokens[j];
+            }
+            for (int p = 0; p < SIZE; ++p) {
+                signature[p] = Math.min(signature[p], (int) (mix(shingle ^ SEEDS[p]) >>> 33));
+            }
+        }
+        return new Fingerprint(hash, signature);
+    }
+
+    /**
+     * Aggregate fingerprints, e.g. of the methods of a class
+     * @param parts the fingerprints, nulls are ignored
+     * @return the aggregate, or null if there is no fingerprint
+     */
+    public static Fingerprint union(Collection<Fingerprint> parts) {
+        final ArrayList<Long> hashes = new ArrayList<Long>(parts.size());
+        final int[] signature = new int[SIZE];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (Fingerprint f : parts) {
+            if (f == null) {
+                continue;
+            }
+            hashes.add(f.hash);
+            for (int p = 0; p < SIZE; ++p) {
+                signature[p] = Math.min(signature[p], f.signature[p]);
+            }
+        }
+        if (hashes.isEmpty()) {
+            return null;
+        }
+        Collections.sort(hashes);
+        long hash = hashes.size();
+        for (long h : hashes) {
+            hash = mix(hash * 31 + h);
+        }
+        return new Fingerprint(hash, signature);
+    }
+
+    /**
+     * Fingerprint the methods of all loaded classes of a scope, on
+     * {@link patdroid.Settings#nThreads} threads, and store the fingerprints of the
+     * methods and classes with instructions in the attributes of the scope under
+     * {@link #KEY}. Methods translated again later should be fingerprinted again.
+     * <p>
+     * The classes and their instructions are read under the lock of the scope, which a
+     * class loading on demand holds while it translates, so other threads may keep loading
+     * classes meanwhile; the classes they load are left out. The rounds of
+     * {@link patdroid.smali.SmaliClassDetailLoader#loadReachable(Scope)} translate outside
+     * that lock, so fingerprint after it returns.
+     * </p>
+     * @param scope the scope
+     */
+    public static void computeAll(Scope scope) {
+        final ArrayList<ClassInfo> classes = new ArrayList<ClassInfo>();
+        final ArrayList<MethodInfo> methods = new ArrayList<MethodInfo>();
+        final ArrayList<Instruction[]> code = new ArrayList<Instruction[]>();
+        // the methods of class k are those from firstMethod[k] to firstMethod[k + 1]
+        final IntList firstMethod = new IntList();
+        synchronized (scope) {
+            for (ClassInfo ci : scope.getAllClasses()) {
+                if (!ci.isLoaded()) {
+                    continue;
+                }
+                classes.add(ci);
+                firstMethod.add(methods.size());
+                for (MethodInfo mi : ci.mutableDetail.methods.values()) {
+                    methods.add(mi);
+                    code.add(mi.insns);
+                }
+            }
+            firstMethod.add(methods.size());
+        }
+        final Fingerprint[] methodFingerprints = new Fingerprint[methods.size()];
+        final Fingerprint[] classFingerprints = new Fingerprint[classes.size()];
+        Parallel.forRange(classes.size(), new Parallel.RangeBody() {
+            @Override
+            public void run(int index) {
+                final ArrayList<Fingerprint> parts = new ArrayList<Fingerprint>();
+                for (int m = firstMethod.get(index); m < firstMethod.get(index + 1); ++m) {
+                    methodFingerprints[m] = of(code.get(m));
+                    parts.add(methodFingerprints[m]);
+                }
+                classFingerprints[index] = union(parts);
+            }
+        });
+        // attributes are set serially, setting one may register the method
+        for (int m = 0; m < methodFingerprints.length; ++m) {
+            if (methodFingerprints[m] != null) {
+                scope.attributes.set(KEY, methods.get(m), methodFingerprints[m]);
+            }
+        }
+        for (int k = 0; k < classFingerprints.length; ++k) {
+            scope.attributes.set(KEY, classes.get(k), classFingerprints[k]);
+        }
+    }
+
+    /**
+     * @param ci a class
+     * @return the fingerprint of the class from {@link #computeAll(Scope)}, or null if it has none
+     */
+    public static Fingerprint get(ClassInfo ci) {
+        return ci.scope.attributes.get(KEY, ci);
+    }
+
+    /**
+     * @param mi a method
+     * @return the fingerprint of the method from {@link #computeAll(Scope)}, or null if it has none
+     */
+    public static Fingerprint get(MethodInfo mi) {
+        return mi.type.scope.attributes.get(KEY, mi);
+    }
+
+    /**
+     * @param pkg a package
+     * @return the aggregate of the fingerprints from {@link #computeAll(Scope)} of the classes
+     * in the package and its subpackages, or null if they have none
+     */
+    public static Fingerprint get(PackageInfo pkg) {
+        final ArrayList<Fingerprint> parts = new ArrayList<Fingerprint>();
+        for (ClassInfo ci : pkg.getAllClasses()) {
+            parts.add(get(ci));
+        }
+        return union(parts);
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return the fraction of the positions where the signatures agree, an estimate of
+     * the Jaccard similarity of the token trigrams
+     */
+    public double similarity(Fingerprint other) {
+        int same = 0;
+        for (int p = 0; p < SIZE; ++p) {
+            if (signature[p] == other.signature[p]) {
+                ++same;
+            }
+        }
+        return (double) same / SIZE;
+    }
+
+    /**
+     * @param p a position, less than {@link #SIZE}
+     * @return the signature at the position
+     */
+    public int getSignature(int p) {
+        return signature[p];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Fingerprint)) {
+            return false;
+        }
+        final Fingerprint f = (Fingerprint) o;
+        return hash == f.hash && Arrays.equals(signature, f.signature);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x", hash);
+    }
+
+    private static long token(Instruction i) {
+        long t = (i.opcode << 8) | (i.opcode_aux & 0xFF);
+        t = t * 31 + name(i.type).hashCode();
+        if (i.extra instanceof Invocation) {
+            t = t * 31 + name(((Invocation) i.extra).target).hashCode();
+        } else if (i.extra instanceof FieldInfo) {
+            final FieldInfo f = (FieldInfo) i.extra;
+            t = t * 31 + name(f.owner, f.fieldName).hashCode();
+        } else if (i.extra instanceof Pair && ((Pair<?, ?>) i.extra).first instanceof ClassInfo) {
+            final Pair<?, ?> f = (Pair<?, ?>) i.extra;
+            t = t * 31 + name((ClassInfo) f.first, String.valueOf(f.second)).hashCode();
+        } else if (i.extra instanceof ClassInfo) {
+            t = t * 31 + name((ClassInfo) i.extra).hashCode();
+        }
+        return mix(t);
+    }
+
+    /**
+     * @return true if the class belongs to the app, i.e. its name may be obfuscated
+     */
+    private static boolean isApp(ClassInfo ci) {
+        final ClassInfo e = ci.isArray() ? findElementClass(ci) : ci;
+        return e != null && e.isLoaded() && !e.isPrimitive() && !e.mutableDetail.isFrameworkClass;
+    }
+
+    /**
+     * Find the innermost element class of an array class without creating it
+     * @return the class, or null if it is primitive or not in the scope
+     */
+    private static ClassInfo findElementClass(ClassInfo array) {
+        final String name = array.fullName.substring(array.getArrayDepth());
+        if (!name.startsWith("L") || !name.endsWith(";")) {
+            return null;
+        }
+        return array.scope.findClass(name.substring(1, name.length() - 1));
+    }
+
+    private static String name(ClassInfo ci) {
+        if (ci == null) {
+            return "";
+        }
+        if (!isApp(ci)) {
+            return ci.fullName;
+        }
+        final StringBuilder s = new StringBuilder("?");
+        for (int k = 0; k < ci.getArrayDepth(); ++k) {
+            s.append("[]");
+        }
+        return s.toString();
+    }
+
+    private static String name(ClassInfo owner, String member) {
+        return isApp(owner) ? "?" : owner.fullName + "." + member;
+    }
+
+    private static String name(MethodInfo mi) {
+        if (mi == null) {
+            return "";
+        }
+        final StringBuilder s = new StringBuilder(name(mi.type, mi.signature.partialSignature.name));
+        s.append('(');
+        for (ClassInfo p : mi.signature.partialSignature.paramTypes) {
+            s.append(name(p)).append(',');
+        }
+        return s.append(')').append(name(mi.signature.returnType)).toString();
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
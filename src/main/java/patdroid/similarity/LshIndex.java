@@ -0,0 +1,129 @@
+package patdroid.similarity;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import patdroid.util.IntList;
+import patdroid.util.Pair;
+
+/**
+ * A locality-sensitive hashing index of fingerprints, e.g. of the classes and packages of
+ * known libraries across a corpus of apps, for finding the entries similar to a fingerprint
+ * without comparing it to all of them.
+ * <p>
+ * The signature of a fingerprint is cut into {@link #BANDS} bands of consecutive positions,
+ * and an entry is listed under the hash of each of its bands. A query only compares the
+ * entries sharing at least one band with it: entries of Jaccard similarity s do so with
+ * probability 1 - (1 - s^r)^b for b bands of r positions, so that with 16 bands of 4
+ * positions an entry of similarity 0.5 is found 65% of the time and one of 0.8 almost always.
+ * Entries of equal hash are found by {@link #findExact(Fingerprint)} in any case.
+ * </p>
+ * <p>
+ * The index only grows, and is safe for concurrent use.
+ * </p>
+ * @param <T> the type of the keys of the entries, e.g. the name of an app and a class
+ */
+public final class LshIndex<T> {
+    public static final int BANDS = 16;
+    private static final int ROWS = Fingerprint.SIZE / BANDS;
+
+    private final ArrayList<T> keys = new ArrayList<T>();
+    private final ArrayList<Fingerprint> fingerprints = new ArrayList<Fingerprint>();
+    private final HashMap<Long, IntList> buckets = new HashMap<Long, IntList>();
+    private final HashMap<Long, IntList> byHash = new HashMap<Long, IntList>();
+
+    /**
+     * @param key the key of the entry
+     * @param fp the fingerprint of the entry
+     */
+    public synchronized void add(T key, Fingerprint fp) {
+        final int id = keys.size();
+        keys.add(key);
+        fingerprints.add(fp);
+        for (int b = 0; b < BANDS; ++b) {
+            list(buckets, band(fp, b)).add(id);
+        }
+        list(byHash, fp.hash).add(id);
+    }
+
+    private static IntList list(HashMap<Long, IntList> map, long key) {
+        IntList l = map.get(key);
+        if (l == null) {
+            l = new IntList(2);
+            map.put(key, l);
+        }
+        return l;
+    }
+
+    private static long band(Fingerprint fp, int b) {
+        long h = b;
+        for (int p = b * ROWS; p < (b + 1) * ROWS; ++p) {
+            h = h * 0x100000001b3L + fp.getSignature(p);
+        }
+        return h;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * @param fp a fingerprint
+     * @return the keys of the entries of the same hash, in the order they were added
+     */
+    public synchronized List<T> findExact(Fingerprint fp) {
+        final IntList l = byHash.get(fp.hash);
+        if (l == null) {
+            return Collections.emptyList();
+        }
+        final ArrayList<T> r = new ArrayList<T>(l.size());
+        for (int k = 0; k < l.size(); ++k) {
+            if (fingerprints.get(l.get(k)).hash == fp.hash) {
+                r.add(keys.get(l.get(k)));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param fp a fingerprint
+     * @param minSimilarity the least estimated similarity of the entries to return, between 0 and 1
+     * @return the keys of the similar entries found and their estimated similarity,
+     * most similar first
+     */
+    public synchronized List<Pair<T, Double>> query(Fingerprint fp, double minSimilarity) {
+        final BitSet seen = new BitSet(keys.size());
+        final ArrayList<Pair<T, Double>> r = new ArrayList<Pair<T, Double>>();
+        for (int b = 0; b < BANDS; ++b) {
+            final IntList l = buckets.get(band(fp, b));
+            if (l == null) {
+                continue;
+            }
+            for (int k = 0; k < l.size(); ++k) {
+                final int id = l.get(k);
+                if (seen.get(id)) {
+                    continue;
+                }
+                seen.set(id);
+                final double s = fp.similarity(fingerprints.get(id));
+                if (s >= minSimilarity) {
+                    r.add(new Pair<T, Double>(keys.get(id), s));
+                }
+            }
+        }
+        Collections.sort(r, new Comparator<Pair<T, Double>>() {
+            @Override
+            public int compare(Pair<T, Double> a, Pair<T, Double> b) {
+                return Double.compare(b.second, a.second);
+            }
+        });
+        return r;
+    }
+}
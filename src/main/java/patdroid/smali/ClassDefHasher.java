@@ -0,0 +1,177 @@
+package patdroid.smali;
+
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.FiveRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.RegisterRangeInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.SwitchPayload;
+import org.jf.dexlib2.iface.instruction.ThreeRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.TwoRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.VariableRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.WideLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import patdroid.persist.ClassEncoder;
+
+/**
+ * Hash a class definition, including the code of its methods, for looking up its
+ * translation in a {@link patdroid.persist.TranslationCache}.
+ * <p>
+ * Everything the translation depends on goes into the hash, along with the version of
+ * the encoding; debug information does not. Strings and lists are prefixed with their
+ * lengths so that different definitions do not run together into the same input.
+ */
+final class ClassDefHasher {
+    private final Hasher h = Hashing.sha256().newHasher();
+
+    private ClassDefHasher() {
+    }
+
+    /**
+     * @param classDef the class definition
+     * @param withInstructions whether the translation includes the instructions
+     * @return the hash as hex digits
+     */
+    static String hash(ClassDef classDef, boolean withInstructions) {
+        final ClassDefHasher hasher = new ClassDefHasher();
+        hasher.h.putInt(ClassEncoder.FORMAT_VERSION);
+        hasher.h.putBoolean(withInstructions);
+        hasher.putClassDef(classDef);
+        return hasher.h.hash().toString();
+    }
+
+    private void putClassDef(ClassDef classDef) {
+        putString(classDef.getType());
+        putString(classDef.getSuperclass());
+        putStrings(classDef.getInterfaces());
+        h.putInt(classDef.getAccessFlags());
+        putFields(classDef.getStaticFields());
+        putFields(classDef.getInstanceFields());
+        for (Method method : classDef.getMethods()) {
+            h.putBoolean(true);
+            putString(method.getName());
+            putStrings(method.getParameterTypes());
+            putString(method.getReturnType());
+            h.putInt(method.getAccessFlags());
+            putImplementation(method.getImplementation());
+        }
+        h.putBoolean(false);
+    }
+
+    private void putFields(Iterable<? extends Field> fields) {
+        for (Field field : fields) {
+            h.putBoolean(true);
+            putString(field.getName());
+            putString(field.getType());
+        }
+        h.putBoolean(false);
+    }
+
+    private void putImplementation(MethodImplementation impl) {
+        if (impl == null) {
+            h.putInt(-1);
+            return;
+        }
+        h.putInt(impl.getRegisterCount());
+        for (Instruction insn : impl.getInstructions()) {
+            h.putBoolean(true);
+            putInstruction(insn);
+        }
+        h.putBoolean(false);
+        final List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = impl.getTryBlocks();
+        h.putInt(tryBlocks.size());
+        for (TryBlock<? extends ExceptionHandler> tb : tryBlocks) {
+            h.putInt(tb.getStartCodeAddress());
+            h.putInt(tb.getCodeUnitCount());
+            h.putInt(tb.getExceptionHandlers().size());
+            for (ExceptionHandler eh : tb.getExceptionHandlers()) {
+                putString(eh.getExceptionType());
+                h.putInt(eh.getHandlerCodeAddress());
+            }
+        }
+    }
+
+    private void putInstruction(Instruction insn) {
+        h.putInt(insn.getOpcode().ordinal());
+        h.putInt(insn.getCodeUnits());
+        if (insn instanceof OneRegisterInstruction) {
+            h.putInt(((OneRegisterInstruction) insn).getRegisterA());
+        }
+        if (insn instanceof TwoRegisterInstruction) {
+            h.putInt(((TwoRegisterInstruction) insn).getRegisterB());
+        }
+        if (insn instanceof ThreeRegisterInstruction) {
+            h.putInt(((ThreeRegisterInstruction) insn).getRegisterC());
+        }
+        if (insn instanceof VariableRegisterInstruction) {
+            h.putInt(((VariableRegisterInstruction) insn).getRegisterCount());
+        }
+        if (insn instanceof FiveRegisterInstruction) {
+            final FiveRegisterInstruction i = (FiveRegisterInstruction) insn;
+            h.putInt(i.getRegisterC());
+            h.putInt(i.getRegisterD());
+            h.putInt(i.getRegisterE());
+            h.putInt(i.getRegisterF());
+            h.putInt(i.getRegisterG());
+        }
+        if (insn instanceof RegisterRangeInstruction) {
+            h.putInt(((RegisterRangeInstruction) insn).getStartRegister());
+        }
+        if (insn instanceof WideLiteralInstruction) {
+            h.putLong(((WideLiteralInstruction) insn).getWideLiteral());
+        }
+        if (insn instanceof ReferenceInstruction) {
+            putString(ReferenceUtil.getReferenceString(((ReferenceInstruction) insn).getReference()));
+        }
+        if (insn instanceof OffsetInstruction) {
+            h.putInt(((OffsetInstruction) insn).getCodeOffset());
+        }
+        if (insn instanceof ArrayPayload) {
+            final ArrayPayload payload = (ArrayPayload) insn;
+            h.putInt(payload.getElementWidth());
+            h.putInt(payload.getArrayElements().size());
+            for (Number n : payload.getArrayElements()) {
+                h.putLong(n.longValue());
+            }
+        }
+        if (insn instanceof SwitchPayload) {
+            final List<? extends SwitchElement> elements = ((SwitchPayload) insn).getSwitchElements();
+            h.putInt(elements.size());
+            for (SwitchElement e : elements) {
+                h.putInt(e.getKey());
+                h.putInt(e.getOffset());
+            }
+        }
+    }
+
+    private void putStrings(List<? extends CharSequence> l) {
+        h.putInt(l.size());
+        for (CharSequence s : l) {
+            putString(s);
+        }
+    }
+
+    private void putString(CharSequence s) {
+        if (s == null) {
+            h.putInt(-1);
+            return;
+        }
+        h.putInt(s.length());
+        h.putString(s, Charsets.UTF_8);
+    }
+}
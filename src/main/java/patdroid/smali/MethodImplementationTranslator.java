@@ -43,6 +43,7 @@ import patdroid.dalvik.Instruction;
 import patdroid.dalvik.Invocation;
 import patdroid.util.Log;
 import patdroid.util.Pair;
+import patdroid.xref.StringConstantIndex;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -67,6 +68,7 @@ import static com.google.common.base.Preconditions.checkState;
 @SuppressWarnings("incomplete-switch")
 final class MethodImplementationTranslator {
     private final Scope scope;
+    private final StringConstantIndex strings;
     private MethodInfo mi;
     private int currentCodeAddress;
     private int currentCodeIndex;
@@ -79,8 +81,13 @@ final class MethodImplementationTranslator {
     private final HashMap<Integer, PayloadInstruction> payloadCache =
             new HashMap<Integer, PayloadInstruction>();
 
-    MethodImplementationTranslator(Scope scope) {
+    /**
+     * @param scope the scope of the methods
+     * @param strings the index to add the string constants of translated methods to, or null
+     */
+    MethodImplementationTranslator(Scope scope, StringConstantIndex strings) {
         this.scope = scope;
+        this.strings = strings;
     }
 
     private static Instruction translateReturn(final Instruction10x i0) {
@@ -1142,33 +1149,17 @@ final class MethodImplementationTranslator {
         return realArgs;
     }
 
-    private MethodInfo bindMethodReference(MethodReference method, boolean isStatic) {
-        ClassInfo ci = Dalvik.findOrCreateClass(scope, method.getDefiningClass());
-        ClassInfo retType = Dalvik.findOrCreateClass(scope, method.getReturnType());
-        ImmutableList<ClassInfo> paramTypes = SmaliClassDetailLoader.findOrCreateClasses(scope, method.getParameterTypes());
-        FullMethodSignature signature = new FullMethodSignature(retType, method.getName(), paramTypes);
-        return ci.findMethod(signature);
-    }
-
     private Invocation resolveInvocation(MethodReference mr, boolean isStatic, int[] args) {
-        MethodInfo realMethod = bindMethodReference(mr, isStatic);
-        boolean resolved;
-        if (realMethod == null) {
-            Log.debug("Cannot resolve method invocation, replace with dummy: " + mr);
-            resolved = false;
-            realMethod = createDummyMethodInfo(mr);
-        } else {
-            resolved = true;
-        }
-        return new Invocation(resolved, realMethod, args);
-    }
-
-    private MethodInfo createDummyMethodInfo(MethodReference mr) {
         ClassInfo ci = Dalvik.findOrCreateClass(scope, mr.getDefiningClass());
         ClassInfo retType = Dalvik.findOrCreateClass(scope, mr.getReturnType());
         ImmutableList<ClassInfo> paramTypes = SmaliClassDetailLoader.findOrCreateClasses(scope, mr.getParameterTypes());
         FullMethodSignature signature = new FullMethodSignature(retType, mr.getName(), paramTypes);
-        return new MethodInfo(ci, signature, 0, false);
+        MethodInfo realMethod = ci.findMethod(signature);
+        if (realMethod == null) {
+            Log.debug("Cannot resolve method invocation, replace with phantom: " + mr);
+            return scope.phantoms.createInvocation(ci, signature, args);
+        }
+        return new Invocation(true, ci, realMethod, args);
     }
 
     private Instruction translateInvoke(final Instruction35c i5) {
@@ -1790,5 +1781,8 @@ final class MethodImplementationTranslator {
             tbis.add(tbi);
         }
         mi.tbs = tbis.toArray(new TryBlockInfo[tbis.size()]);
+        if (strings != null) {
+            strings.addMethod(mi);
+        }
     }
 }
@@ -0,0 +1,265 @@
+package patdroid.smali;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.jf.dexlib2.iface.MethodImplementation;
+
+import patdroid.core.ClassInfo;
+import patdroid.core.FieldInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.Log;
+import patdroid.util.Pair;
+import patdroid.util.Parallel;
+
+/**
+ * Load the part of an app that is reachable from its entry points.
+ * <p>
+ * Entry classes are the app components (activities, services, broadcast receivers,
+ * content providers) and the application class, recognized by their superclass.
+ * All methods of an entry class are reachable, as the framework calls them.
+ * A class becomes reachable when it is referred to by a reachable instruction, as a type,
+ * a field owner or an invocation target. Then its static initializer and the methods
+ * overriding framework methods (callbacks, e.g. {@code Runnable.run}) are reachable, and
+ * so are its methods overriding a target of a reachable virtual invocation.
+ * <p>
+ * The worklist is processed in rounds: the newly reachable methods of a round are
+ * translated and scanned in parallel, then their references are merged on one thread.
+ * Code only reached by reflection or from native code is not loaded.
+ */
+final class ReachabilityWorklist {
+    private static final String[] ENTRY_BASES = {
+            "android.app.Activity",
+            "android.app.Service",
+            "android.content.BroadcastReceiver",
+            "android.content.ContentProvider",
+            "android.app.Application",
+    };
+
+    private final SmaliClassDetailLoader loader;
+    private final Scope scope;
+    private final HashSet<ClassInfo> entryClasses = new HashSet<ClassInfo>();
+    private final HashSet<ClassInfo> reachedClasses = new HashSet<ClassInfo>();
+    private final HashSet<MethodInfo> reachedMethods = new HashSet<MethodInfo>();
+    private final ArrayList<MethodInfo> frontier = new ArrayList<MethodInfo>();
+    /**
+     * Targets of reachable virtual invocations, by signature
+     */
+    private final HashMap<FullMethodSignature, ArrayList<MethodInfo>> virtualTargets =
+            new HashMap<FullMethodSignature, ArrayList<MethodInfo>>();
+    /**
+     * Methods of reachable classes that would become reachable through a virtual invocation
+     */
+    private final HashMap<FullMethodSignature, ArrayList<MethodInfo>> dormant =
+            new HashMap<FullMethodSignature, ArrayList<MethodInfo>>();
+
+    ReachabilityWorklist(SmaliClassDetailLoader loader, Scope scope) {
+        this.loader = loader;
+        this.scope = scope;
+    }
+
+    void run() {
+        for (String name : loader.getClassNames()) {
+            if (isEntryClass(name)) {
+                entryClasses.add(scope.findOrCreateClass(name));
+            }
+        }
+        for (ClassInfo ci : entryClasses) {
+            reachClass(ci);
+        }
+        while (!frontier.isEmpty()) {
+            final ArrayList<MethodInfo> round = new ArrayList<MethodInfo>(frontier);
+            frontier.clear();
+            final References[] refs = new References[round.size()];
+            Parallel.forRange(refs.length, new Parallel.RangeBody() {
+                @Override
+                public void run(int index) {
+                    refs[index] = translate(round.get(index));
+                }
+            });
+            for (References r : refs) {
+                merge(r);
+            }
+        }
+        Log.msg("reachable: %d classes, %d methods", reachedClasses.size(), reachedMethods.size());
+    }
+
+    private boolean isEntryClass(String name) {
+        // walk up the superclasses defined in the app, then check the first framework class
+        for (int depth = 0; name != null && depth < 64; ++depth) {
+            for (String base : ENTRY_BASES) {
+                if (base.equals(name)) {
+                    return true;
+                }
+            }
+            if (!loader.defines(name)) {
+                final ClassInfo external = scope.findOrCreateClass(name);
+                // missing classes are all convertible to each other, only trust loaded ones
+                if (external.isMissing()) {
+                    return false;
+                }
+                for (String base : ENTRY_BASES) {
+                    if (external.isConvertibleTo(scope.findOrCreateClass(base))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            name = loader.getSuperclassName(name);
+        }
+        return false;
+    }
+
+    private boolean isAppClass(ClassInfo ci) {
+        return loader.defines(ci.fullName);
+    }
+
+    private void reachClass(ClassInfo ci) {
+        while (ci.isArray()) {
+            ci = ci.getElementClass();
+        }
+        if (!isAppClass(ci) || !reachedClasses.add(ci) || ci.isMissing()) {
+            return;
+        }
+        if (ci.getBaseType() != null) {
+            reachClass(ci.getBaseType());
+        }
+        for (ClassInfo intf : ci.getInterfaces()) {
+            reachClass(intf);
+        }
+        final boolean isEntry = entryClasses.contains(ci);
+        for (MethodInfo mi : ci.getAllMethods()) {
+            if (isEntry || mi.signature.equals(ci.STATIC_INITIALIZER) || overridesFramework(mi)
+                    || isVirtuallyInvoked(mi)) {
+                reachMethod(mi);
+            } else {
+                ArrayList<MethodInfo> l = dormant.get(mi.signature);
+                if (l == null) {
+                    l = new ArrayList<MethodInfo>();
+                    dormant.put(mi.signature, l);
+                }
+                l.add(mi);
+            }
+        }
+    }
+
+    private boolean overridesFramework(MethodInfo mi) {
+        for (MethodInfo m = mi.getOverridingMethod(); m != null; m = m.getOverridingMethod()) {
+            if (!isAppClass(m.type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isVirtuallyInvoked(MethodInfo mi) {
+        final ArrayList<MethodInfo> targets = virtualTargets.get(mi.signature);
+        if (targets != null) {
+            for (MethodInfo target : targets) {
+                if (mi.canOverride(target)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void reachMethod(MethodInfo mi) {
+        if (!isAppClass(mi.type)) {
+            return;
+        }
+        reachClass(mi.type);
+        if (reachedMethods.add(mi)) {
+            frontier.add(mi);
+        }
+    }
+
+    private void reachVirtualTarget(MethodInfo target) {
+        ArrayList<MethodInfo> targets = virtualTargets.get(target.signature);
+        if (targets == null) {
+            targets = new ArrayList<MethodInfo>();
+            virtualTargets.put(target.signature, targets);
+        } else if (targets.contains(target)) {
+            return;
+        }
+        targets.add(target);
+        final ArrayList<MethodInfo> candidates = dormant.get(target.signature);
+        if (candidates == null) {
+            return;
+        }
+        final List<MethodInfo> woken = new ArrayList<MethodInfo>();
+        for (MethodInfo mi : candidates) {
+            if (mi.canOverride(target)) {
+                woken.add(mi);
+            }
+        }
+        candidates.removeAll(woken);
+        for (MethodInfo mi : woken) {
+            reachMethod(mi);
+        }
+    }
+
+    private References translate(MethodInfo mi) {
+        final References r = new References();
+        final MethodImplementation impl = loader.takeImplementation(mi);
+        if (impl != null) {
+            loader.newTranslator(scope).translate(mi, impl);
+        }
+        if (mi.insns == null) {
+            return r;
+        }
+        for (Instruction i : mi.insns) {
+            if (i.type != null) {
+                r.types.add(i.type);
+            }
+            switch (i.opcode) {
+            case Instruction.OP_INVOKE_OP:
+                final Invocation invocation = (Invocation) i.extra;
+                r.calls.add(invocation.target);
+                if (i.opcode_aux == Instruction.OP_INVOKE_VIRTUAL
+                        || i.opcode_aux == Instruction.OP_INVOKE_INTERFACE) {
+                    r.virtualCalls.add(invocation.target);
+                }
+                break;
+            case Instruction.OP_STATIC_OP:
+                @SuppressWarnings("unchecked")
+                final Pair<ClassInfo, String> field = (Pair<ClassInfo, String>) i.extra;
+                r.types.add(field.first);
+                break;
+            case Instruction.OP_INSTANCE_OP:
+                r.types.add(((FieldInfo) i.extra).owner);
+                break;
+            default:
+                break;
+            }
+        }
+        return r;
+    }
+
+    private void merge(References r) {
+        for (ClassInfo type : r.types) {
+            reachClass(type);
+        }
+        for (MethodInfo target : r.calls) {
+            reachMethod(target);
+        }
+        for (MethodInfo target : r.virtualCalls) {
+            reachVirtualTarget(target);
+        }
+    }
+
+    /**
+     * The classes and methods referred to by the instructions of a method
+     */
+    private static final class References {
+        final ArrayList<ClassInfo> types = new ArrayList<ClassInfo>();
+        final ArrayList<MethodInfo> calls = new ArrayList<MethodInfo>();
+        final ArrayList<MethodInfo> virtualCalls = new ArrayList<MethodInfo>();
+    }
+}
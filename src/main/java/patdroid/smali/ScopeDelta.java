@@ -0,0 +1,46 @@
+package patdroid.smali;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between the classes of a previous scope and of a new version of the
+ * same app, found by {@link SmaliClassDetailLoader#loadIncremental(patdroid.core.Scope, patdroid.persist.ScopeReader)}
+ */
+public final class ScopeDelta {
+    /**
+     * Classes defined only in the new version
+     */
+    public final List<String> added;
+    /**
+     * Classes whose definitions differ between the versions
+     */
+    public final List<String> changed;
+    /**
+     * Classes defined only in the previous version, which are not loaded
+     */
+    public final List<String> removed;
+    /**
+     * The number of classes loaded from the previous scope without translating them again
+     */
+    public final int unchangedCount;
+
+    ScopeDelta(List<String> added, List<String> changed, List<String> removed, int unchangedCount) {
+        this.added = Collections.unmodifiableList(added);
+        this.changed = Collections.unmodifiableList(changed);
+        this.removed = Collections.unmodifiableList(removed);
+        this.unchangedCount = unchangedCount;
+    }
+
+    /**
+     * @return true if the versions define the same classes in the same way
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "+" + added.size() + " ~" + changed.size() + " -" + removed.size() + " =" + unchangedCount;
+    }
+}
@@ -7,7 +7,10 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -15,6 +18,7 @@ import com.google.common.collect.ImmutableList;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
@@ -27,18 +31,58 @@ import patdroid.core.*;
 import patdroid.util.Log;
 
 import patdroid.dalvik.Dalvik;
+import patdroid.persist.BinaryInput;
+import patdroid.persist.BinaryOutput;
+import patdroid.persist.ClassDecoder;
+import patdroid.persist.ClassEncoder;
+import patdroid.persist.ScopeReader;
+import patdroid.persist.StringPool;
+import patdroid.persist.TranslationCache;
+import patdroid.util.Pair;
+import patdroid.xref.StringConstantIndex;
+
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Load classes, methods, fields and instructions from an APK file with SMALI
  * https://github.com/JesusFreke/smali
+ * <p>
+ * Classes are either loaded all at once with {@link #loadAll(Scope)}, or one by one when
+ * first queried, by adding the loader to a scope with
+ * {@link Scope#addOnDemandLoader(ClassDetailLoader)}.
+ * <p>
+ * With a {@link TranslationCache}, {@link #loadAll(Scope)} reuses the translation of
+ * classes whose definitions were translated before, by this or another process.
+ * {@link #loadIncremental(Scope, ScopeReader)} reuses the translation of a previous
+ * version of the same app instead.
  */
 public class SmaliClassDetailLoader extends ClassDetailLoader {
+    /**
+     * The name of the DEX file each class was loaded from, e.g. classes2.dex
+     */
+    public static final AttributeKey<String> DEX_NAME = AttributeKey.create("dexName");
+
     private final DexFile[] dexFiles;
+    private final String[] dexNames;
     private final boolean translateInstructions;
     private final boolean isFramework;
+    /**
+     * Class definitions by canonical class name, built on first on-demand load
+     */
+    private HashMap<String, ClassDef> classDefIndex;
+    private final IdentityHashMap<MethodInfo, MethodImplementation> pendingImpls =
+            new IdentityHashMap<MethodInfo, MethodImplementation>();
+    private boolean translatingPending = false;
+    /**
+     * Keep the instructions of loaded classes untranslated until asked for, see {@link #loadReachable(Scope)}
+     */
+    private boolean deferTranslation = false;
+    private TranslationCache cache;
+    private StringConstantIndex strings;
 
-    private SmaliClassDetailLoader(DexFile[] dexFiles, boolean translateInstructions, boolean isFramework) {
+    private SmaliClassDetailLoader(DexFile[] dexFiles, String[] dexNames, boolean translateInstructions, boolean isFramework) {
         this.dexFiles = dexFiles;
+        this.dexNames = dexNames;
         this.translateInstructions = translateInstructions;
         this.isFramework = isFramework;
     }
@@ -67,9 +111,11 @@ public class SmaliClassDetailLoader extends ClassDetailLoader {
         }
 
         DexFile[] dexFiles = new DexFile[n];
+        String[] dexNames = new String[n];
         final Opcodes opcodes = Opcodes.forApi(apiLevel);
         try {
             for (int i = 0; i < n; ++i) {
+                dexNames[i] = dexEntries.get(i).getName();
                 dexFiles[i] = DexBackedDexFile.fromInputStream(opcodes,
                         new BufferedInputStream(apkFile.getInputStream(dexEntries.get(i))));
             }
@@ -77,7 +123,7 @@ public class SmaliClassDetailLoader extends ClassDetailLoader {
             Log.err("failed to process the source apk file");
             Log.err(e);
         }
-        return new SmaliClassDetailLoader(dexFiles, translateInstructions, false);
+        return new SmaliClassDetailLoader(dexFiles, dexNames, translateInstructions, false);
     }
 
     public static SmaliClassDetailLoader fromFramework(File frameworkClassesFolder, int apiLevel) {
@@ -90,11 +136,40 @@ public class SmaliClassDetailLoader extends ClassDetailLoader {
         } catch (IOException e) {
             throw new RuntimeException("failed to load framework classes");
         }
-        return new SmaliClassDetailLoader(new DexFile[] {dex}, false, true);
+        return new SmaliClassDetailLoader(new DexFile[] {dex}, new String[] {f.getName()}, false, true);
     }
 
     public static SmaliClassDetailLoader fromDexfile(DexFile dex, boolean translateInstructions) throws RuntimeException {
-        return new SmaliClassDetailLoader(new DexFile[] {dex}, translateInstructions, false);
+        return new SmaliClassDetailLoader(new DexFile[] {dex}, new String[] {"classes.dex"}, translateInstructions, false);
+    }
+
+    /**
+     * Look up and store translated classes in a cache when loading all classes
+     * @param cache the cache, or null for none
+     */
+    public void setCache(TranslationCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Add the string constants of the methods to an index as they are translated, or
+     * decoded from a cache or a previous scope
+     * @param strings the index, or null for none
+     */
+    public void setStringIndex(StringConstantIndex strings) {
+        this.strings = strings;
+    }
+
+    MethodImplementationTranslator newTranslator(Scope scope) {
+        return new MethodImplementationTranslator(scope, strings);
+    }
+
+    private void indexStrings(ClassDetail detail) {
+        if (strings != null) {
+            for (MethodInfo mi : detail.methods.values()) {
+                strings.addMethod(mi);
+            }
+        }
     }
 
     /**
@@ -102,11 +177,26 @@ public class SmaliClassDetailLoader extends ClassDetailLoader {
      */
     public void loadAll(Scope scope) {
         IdentityHashMap<MethodInfo, MethodImplementation> collector = new IdentityHashMap<MethodInfo, MethodImplementation>();
+        final ArrayList<Pair<ClassDecoder, ClassDecoder.Entry>> cached = new ArrayList<Pair<ClassDecoder, ClassDecoder.Entry>>();
+        final ArrayList<Pair<ClassInfo, String>> uncached = new ArrayList<Pair<ClassInfo, String>>();
         for (DexFile dexFile: dexFiles) {
             for (final ClassDef classDef : dexFile.getClasses()) {
                 ClassInfo ci = Dalvik.findOrCreateClass(scope, classDef.getType());
+                if (ci.isLoaded()) {
+                    continue;
+                }
+                if (cache != null) {
+                    final String key = ClassDefHasher.hash(classDef, translateInstructions);
+                    final Pair<ClassDecoder, ClassDecoder.Entry> hit = readCached(ci, key);
+                    if (hit != null) {
+                        define(ci, hit.second.detail, classDef);
+                        cached.add(hit);
+                        continue;
+                    }
+                    uncached.add(new Pair<ClassInfo, String>(ci, key));
+                }
                 ClassDetail detail = translateClassDef(ci, classDef, collector);
-                setDetail(ci, detail);
+                define(ci, detail, classDef);
             }
         }
         if (translateInstructions) {
@@ -114,10 +204,280 @@ public class SmaliClassDetailLoader extends ClassDetailLoader {
                 final MethodImplementation impl = collector.get(mi);
                 // Decode instructions
                 if (impl != null) {
-                    new MethodImplementationTranslator(scope).translate(mi, impl);
+                    newTranslator(scope).translate(mi, impl);
+                }
+            }
+            // invocations in cached classes are resolved once every class is loaded
+            for (Pair<ClassDecoder, ClassDecoder.Entry> hit : cached) {
+                hit.first.readInstructions(hit.second);
+                indexStrings(hit.second.detail);
+            }
+        }
+        for (Pair<ClassInfo, String> miss : uncached) {
+            writeCached(miss.first, miss.second);
+        }
+    }
+
+    /**
+     * @return the decoded class, or null if the cache has no entry for the class or the entry is unusable
+     */
+    private Pair<ClassDecoder, ClassDecoder.Entry> readCached(ClassInfo ci, String key) {
+        final byte[] value = cache.get(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            final BinaryInput in = new BinaryInput(value);
+            final ClassDecoder decoder = new ClassDecoder(ci.scope, StringPool.read(in), in);
+            final ClassDecoder.Entry e = decoder.readClass(isFramework);
+            if (e.type != ci || e.hasInstructions() != translateInstructions) {
+                return null;
+            }
+            return new Pair<ClassDecoder, ClassDecoder.Entry>(decoder, e);
+        } catch (RuntimeException e) {
+            Log.warn("unusable cache entry for " + ci + ": " + e);
+            return null;
+        }
+    }
+
+    private void writeCached(ClassInfo ci, String key) {
+        final StringPool pool = new StringPool();
+        final BinaryOutput body = new BinaryOutput();
+        try {
+            new ClassEncoder(pool, body).writeClass(ci, translateInstructions);
+        } catch (IllegalArgumentException e) {
+            Log.warn("cannot cache " + ci + ": " + e.getMessage());
+            return;
+        }
+        final BinaryOutput out = new BinaryOutput(body.size() + 16 * pool.size());
+        pool.writeTo(out);
+        out.writeBytes(body.toByteArray());
+        cache.put(key, out.toByteArray());
+    }
+
+    /**
+     * Load all classes like {@link #loadAll(Scope)}, but take the classes whose definitions
+     * did not change from a scope serialized from a previous version of the app, which was
+     * written with the hashes from {@link #getClassHashes()}. Only added and changed classes
+     * are translated. Classes removed since are not loaded, so they are neither base
+     * classes nor invocation targets of the loaded classes; invocations of their methods
+     * point to phantom methods. Framework classes of the previous scope are loaded from it
+     * unless already loaded.
+     * The scope and then this loader are locked meanwhile, as by {@link #load(ClassInfo)}.
+     * @param scope the scope to load into, the one the reader loads into
+     * @param previous the previous scope
+     * @return the classes added, changed and removed since the previous version
+     */
+    public ScopeDelta loadIncremental(Scope scope, ScopeReader previous) {
+        synchronized (scope) {
+            return loadIncrementalLocked(scope, previous);
+        }
+    }
+
+    private synchronized ScopeDelta loadIncrementalLocked(Scope scope, ScopeReader previous) {
+        final Map<String, String> hashes = getClassHashes();
+        final ArrayList<String> reused = new ArrayList<String>();
+        final ArrayList<String> added = new ArrayList<String>();
+        final ArrayList<String> changed = new ArrayList<String>();
+        final ArrayList<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, String> e : hashes.entrySet()) {
+            final String name = e.getKey();
+            if (!previous.defines(name)) {
+                added.add(name);
+            } else if (e.getValue().equals(previous.getClassHash(name))) {
+                reused.add(name);
+            } else {
+                changed.add(name);
+            }
+        }
+        final int unchangedCount = reused.size();
+        for (String name : previous.getClassNames()) {
+            if (hashes.containsKey(name)) {
+                continue;
+            }
+            if (previous.isFrameworkClass(name)) {
+                reused.add(name);
+            } else {
+                removed.add(name);
+            }
+        }
+        // every class needs its details before instructions are decoded or translated,
+        // since invocations are resolved against them
+        final List<ClassDecoder.Entry> decoded = previous.loadDetails(reused);
+        final IdentityHashMap<MethodInfo, MethodImplementation> collector = new IdentityHashMap<MethodInfo, MethodImplementation>();
+        final ArrayList<String> translated = new ArrayList<String>(added);
+        translated.addAll(changed);
+        for (String name : translated) {
+            final ClassInfo ci = scope.findOrCreateClass(name);
+            if (ci.isLoaded()) {
+                continue;
+            }
+            final ClassDef classDef = getClassDef(name);
+            define(ci, translateClassDef(ci, classDef, collector), classDef);
+        }
+        previous.loadInstructions(decoded);
+        for (ClassDecoder.Entry e : decoded) {
+            indexStrings(e.detail);
+        }
+        if (translateInstructions) {
+            for (Map.Entry<MethodInfo, MethodImplementation> e : collector.entrySet()) {
+                if (e.getValue() != null) {
+                    newTranslator(scope).translate(e.getKey(), e.getValue());
+                }
+            }
+        }
+        final ScopeDelta delta = new ScopeDelta(added, changed, removed, unchangedCount);
+        Log.msg("Incremental load: %s", delta);
+        return delta;
+    }
+
+    /**
+     * Hash the definition of every class of the DEX files, for telling later whether it
+     * changed, e.g. with {@link patdroid.persist.ScopeWriter#write(Scope, File, Map)}
+     * @return the hashes by canonical class name
+     */
+    public synchronized Map<String, String> getClassHashes() {
+        final TreeMap<String, String> hashes = new TreeMap<String, String>();
+        for (Map.Entry<String, ClassDef> e : getClassDefIndex().entrySet()) {
+            hashes.put(e.getKey(), ClassDefHasher.hash(e.getValue(), translateInstructions));
+        }
+        return hashes;
+    }
+
+    /**
+     * Load a single class, translating its instructions if this loader translates instructions.
+     * Classes referred to by the class are loaded as they are queried, if this loader is an
+     * on-demand loader of the scope.
+     * @param ci the class
+     * @throws ClassNotFoundException if the class is not defined in the DEX files
+     */
+    @Override
+    public void load(ClassInfo ci) throws ClassNotFoundException {
+        // the lock of the scope comes first, as when the scope loads on demand
+        synchronized (ci.scope) {
+            loadLocked(ci);
+        }
+    }
+
+    private synchronized void loadLocked(ClassInfo ci) throws ClassNotFoundException {
+        final ClassDef classDef = getClassDefIndex().get(ci.fullName);
+        if (classDef == null) {
+            throw new ClassNotFoundException(ci.fullName);
+        }
+        define(ci, translateClassDef(ci, classDef, pendingImpls), classDef);
+        if (!translateInstructions) {
+            pendingImpls.clear();
+            return;
+        }
+        if (deferTranslation || translatingPending) {
+            return;
+        }
+        // translating may load more classes, their methods join the queue instead of recursing
+        translatingPending = true;
+        try {
+            while (!pendingImpls.isEmpty()) {
+                final Iterator<Map.Entry<MethodInfo, MethodImplementation>> it = pendingImpls.entrySet().iterator();
+                final Map.Entry<MethodInfo, MethodImplementation> e = it.next();
+                // an entry of an identity map is no longer valid once removed
+                final MethodInfo mi = e.getKey();
+                final MethodImplementation impl = e.getValue();
+                it.remove();
+                if (impl != null) {
+                    newTranslator(ci.scope).translate(mi, impl);
+                }
+            }
+        } finally {
+            translatingPending = false;
+        }
+    }
+
+    /**
+     * Load only the classes and methods reachable from the Android entry points of the
+     * DEX files, see {@link ReachabilityWorklist}. The loader is added to the on-demand
+     * loaders of the scope, so that the framework loader, if any, should be added before.
+     * @param scope the scope to load into
+     */
+    public void loadReachable(Scope scope) {
+        checkState(translateInstructions, "reachability needs the instructions");
+        synchronized (this) {
+            deferTranslation = true;
+        }
+        scope.addOnDemandLoader(this);
+        new ReachabilityWorklist(this, scope).run();
+    }
+
+    /**
+     * @param name the canonical class name
+     * @return true if the class is defined in the DEX files of this loader
+     */
+    synchronized boolean defines(String name) {
+        return getClassDefIndex().containsKey(name);
+    }
+
+    /**
+     * @param name the canonical class name
+     * @return the canonical name of the superclass, or null if there is none or the class
+     * is not defined in the DEX files of this loader
+     */
+    synchronized String getSuperclassName(String name) {
+        final ClassDef classDef = getClassDefIndex().get(name);
+        return classDef == null || classDef.getSuperclass() == null ?
+                null : Dalvik.toCanonicalName(classDef.getSuperclass());
+    }
+
+    /**
+     * @return the canonical names of the classes defined in the DEX files of this loader
+     */
+    synchronized List<String> getClassNames() {
+        return new ArrayList<String>(getClassDefIndex().keySet());
+    }
+
+    /**
+     * Take the implementation of a method loaded on demand but not translated yet
+     * @param mi the method
+     * @return the implementation, or null if there is none or it was taken already
+     */
+    synchronized MethodImplementation takeImplementation(MethodInfo mi) {
+        return pendingImpls.remove(mi);
+    }
+
+    private void define(ClassInfo ci, ClassDetail detail, ClassDef classDef) {
+        setDetail(ci, detail);
+        ci.scope.attributes.set(DEX_NAME, ci, getDexName(classDef));
+    }
+
+    private String getDexName(ClassDef classDef) {
+        if (dexFiles.length == 1) {
+            return dexNames[0];
+        }
+        for (int i = 0; i < dexFiles.length; ++i) {
+            if (classDef instanceof DexBackedClassDef ?
+                    ((DexBackedClassDef) classDef).dexFile == dexFiles[i] :
+                    dexFiles[i].getClasses().contains(classDef)) {
+                return dexNames[i];
+            }
+        }
+        return null;
+    }
+
+    private synchronized ClassDef getClassDef(String name) {
+        return getClassDefIndex().get(name);
+    }
+
+    private HashMap<String, ClassDef> getClassDefIndex() {
+        if (classDefIndex == null) {
+            classDefIndex = new HashMap<String, ClassDef>();
+            for (DexFile dexFile : dexFiles) {
+                for (ClassDef classDef : dexFile.getClasses()) {
+                    final String name = Dalvik.toCanonicalName(classDef.getType());
+                    // the first definition wins, as in the Dalvik class loader
+                    if (!classDefIndex.containsKey(name)) {
+                        classDefIndex.put(name, classDef);
+                    }
                 }
             }
         }
+        return classDefIndex;
     }
 
     private ClassDetail translateClassDef(ClassInfo ci, ClassDef classDef, IdentityHashMap<MethodInfo, MethodImplementation> collector) {
@@ -0,0 +1,93 @@
+package patdroid.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, stored without boxing them, e.g. for the postings of an index
+ */
+public final class IntList {
+    private static final int[] EMPTY = new int[0];
+
+    private int[] data;
+    private int size = 0;
+
+    public IntList() {
+        this(4);
+    }
+
+    /**
+     * @param capacity the number of values held before the list first grows
+     */
+    public IntList(int capacity) {
+        data = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * @return the number of values
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index the index of a value, less than {@link #size()}
+     * @return the value
+     */
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+        return data[index];
+    }
+
+    /**
+     * @param index the index of a value, less than {@link #size()}
+     * @param v the new value
+     */
+    public void set(int index, int v) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+        data[index] = v;
+    }
+
+    public void add(int v) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, size * 2);
+        }
+        data[size++] = v;
+    }
+
+    /**
+     * Add a value unless the list holds it already, which takes linear time
+     * @param v the value
+     */
+    public void addUnique(int v) {
+        for (int i = 0; i < size; ++i) {
+            if (data[i] == v) return;
+        }
+        add(v);
+    }
+
+    /**
+     * Remove the last value, e.g. to use the list as a stack
+     * @return the value
+     */
+    public int removeLast() {
+        if (size == 0) {
+            throw new IndexOutOfBoundsException("empty");
+        }
+        return data[--size];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the values, shared by all empty lists
+     */
+    public int[] toArray() {
+        return size == 0 ? EMPTY : Arrays.copyOf(data, size);
+    }
+}
@@ -86,6 +86,10 @@ public final class JSONWriter implements Closeable, Flushable {
         return writeItem(k, Integer.toString(v));
     }
 
+    public final JSONWriter write(String k, long v) throws IOException {
+        return writeItem(k, Long.toString(v));
+    }
+
     public final JSONWriter write(String k, boolean b) throws IOException {
         return writeItem(k, Boolean.toString(b));
     }
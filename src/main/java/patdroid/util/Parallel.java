@@ -0,0 +1,115 @@
+package patdroid.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import patdroid.Settings;
+
+/**
+ * Run a piece of work over a list of items, or a range of indexes, on
+ * {@link Settings#nThreads} threads.
+ * <p>
+ * Items are handed out in small chunks so that a few large items (e.g. huge methods) do
+ * not leave the other threads idle. The body must only write to state owned by the
+ * item, or synchronize by itself.
+ * </p>
+ */
+public final class Parallel {
+    private static final int CHUNK = 16;
+
+    public interface Body<T> {
+        void run(T item);
+    }
+
+    /**
+     * The work for one index of a range
+     */
+    public interface RangeBody {
+        void run(int index);
+    }
+
+    private Parallel() {}
+
+    /**
+     * Run the body on every item and wait for all of them
+     * @param items the items
+     * @param body the work for one item
+     * @throws RuntimeException the first exception thrown by the body
+     */
+    public static <T> void forEach(final List<T> items, final Body<? super T> body) {
+        forRange(items.size(), new RangeBody() {
+            @Override
+            public void run(int index) {
+                body.run(items.get(index));
+            }
+        });
+    }
+
+    /**
+     * Run the body on every index from 0 to n - 1 and wait for all of them. A body that
+     * stores its result in slot {@code index} of an array needs no synchronization, as
+     * no other index writes the slot and the results are read after all of them.
+     * @param n the number of indexes
+     * @param body the work for one index
+     * @throws RuntimeException the first exception thrown by the body
+     */
+    public static void forRange(int n, RangeBody body) {
+        forRange(n, CHUNK, body);
+    }
+
+    /**
+     * Run the body on every index from 0 to n - 1, handing the indexes out in chunks of a
+     * given size, and wait for all of them. A chunk of 1 suits few long tasks.
+     * @param n the number of indexes
+     * @param chunk the number of consecutive indexes a thread takes at once
+     * @param body the work for one index
+     * @throws RuntimeException the first exception thrown by the body
+     */
+    public static void forRange(final int n, final int chunk, final RangeBody body) {
+        final int nThreads = Math.min(Settings.nThreads, (n + chunk - 1) / chunk);
+        if (nThreads <= 1) {
+            for (int i = 0; i < n; ++i) {
+                body.run(i);
+            }
+            return;
+        }
+        final AtomicInteger cursor = new AtomicInteger(0);
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int start;
+                while ((start = cursor.getAndAdd(chunk)) < n) {
+                    final int end = Math.min(start + chunk, n);
+                    for (int i = start; i < end; ++i) {
+                        body.run(i);
+                    }
+                }
+            }
+        };
+        final ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < nThreads; ++t) {
+                futures.add(pool.submit(worker));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
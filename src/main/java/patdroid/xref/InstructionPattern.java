@@ -0,0 +1,671 @@
+package patdroid.xref;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.Parallel;
+
+/**
+ * A pattern over the instructions of a method, compiled to an automaton.
+ * <p>
+ * A pattern is a list of steps separated by ';', e.g.
+ * <pre>
+ * MOV,CONST dst=$algo ; * ; INVOKE,STATIC target=javax.crypto.Cipher.getInstance arg0=$algo
+ * </pre>
+ * finds the constants passed to Cipher.getInstance. A step is one of
+ * <ul>
+ * <li>{@code *}: any number of instructions, {@code *N}: at most N instructions</li>
+ * <li>{@code _}: any one instruction</li>
+ * <li>an instruction: the major opcode and optionally the auxiliary opcode, named as printed
+ * by {@link Instruction#toString()} ({@code _} for any major opcode), followed by attributes:
+ *   <ul>
+ *   <li>{@code dst=}, {@code r0=}, {@code r1=} and {@code argN=} (the Nth argument of an
+ *   invocation): a register, either fixed as in {@code r3}, or a variable as in {@code $x}.
+ *   A variable is bound to the register where it is first matched, and must be the same
+ *   register everywhere else</li>
+ *   <li>{@code type=}: the full name of {@link Instruction#type}</li>
+ *   <li>{@code target=}: the resolved target of an invocation, as the full name of its class,
+ *   '.' and its name</li>
+ *   <li>{@code extra=}: a string constant, quoted</li>
+ *   </ul>
+ * A name ending with '*' matches the names starting with the rest.</li>
+ * </ul>
+ * Registers are compared by number only: nothing checks that a register is not written
+ * between two instructions of a match.
+ * </p>
+ * <p>
+ * The automaton runs over the instructions once, starting a match at every instruction. A
+ * match is reported for every instruction at which the pattern can start, ending at the
+ * earliest instruction where it can complete. Each instruction is tested against the
+ * partial matches alive at it, so a method of n instructions takes O(n * k) steps for at
+ * most k partial matches alive at once. Behind a gap of at most N instructions a partial
+ * match lives for N + 1 instructions, but behind an unbounded gap it lives until the
+ * pattern completes or the method ends: when the first step matches often and the rest
+ * rarely, as with {@code _ ; * ; ...}, matching is quadratic in the size of the method.
+ * Prefer a bounded gap and a selective first step for large methods. A search over a scope
+ * only runs it on the methods that may match according to an {@link XrefIndex}: the
+ * methods calling the target or using the type of an instruction of the pattern, and then
+ * only those using all its opcodes. A pattern is immutable and safe for concurrent use.
+ * </p>
+ */
+public final class InstructionPattern {
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final String source;
+    private final Element[] elements;
+    /**
+     * The number of instructions that may be skipped before each element
+     */
+    private final int[] gaps;
+    private final String[] variables;
+    private final int opcodeMask;
+    private final long auxMask;
+
+    /**
+     * A match of a pattern
+     */
+    public static final class Match {
+        public final MethodInfo method;
+        /**
+         * The indexes of the instructions matching the instruction steps of the pattern, in order
+         */
+        public final int[] indexes;
+        /**
+         * The register bound to each variable, without the '$'
+         */
+        public final Map<String, Integer> bindings;
+
+        Match(MethodInfo method, int[] indexes, Map<String, Integer> bindings) {
+            this.method = method;
+            this.indexes = indexes;
+            this.bindings = bindings;
+        }
+
+        /**
+         * @return the index of the first instruction of the match
+         */
+        public int getStart() {
+            return indexes[0];
+        }
+
+        /**
+         * @return the index of the last instruction of the match
+         */
+        public int getEnd() {
+            return indexes[indexes.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return method + "@" + Arrays.toString(indexes) + bindings;
+        }
+    }
+
+    private InstructionPattern(String source, Element[] elements, int[] gaps, String[] variables) {
+        this.source = source;
+        this.elements = elements;
+        this.gaps = gaps;
+        this.variables = variables;
+        int ops = 0;
+        long aux = 0;
+        for (Element e : elements) {
+            if (e.opcode != -1) {
+                ops |= 1 << e.opcode;
+            }
+            if (e.aux != -1) {
+                aux |= 1L << e.aux;
+            }
+        }
+        this.opcodeMask = ops;
+        this.auxMask = aux;
+    }
+
+    /**
+     * @param source the pattern, see the syntax above
+     * @return the compiled pattern
+     * @throws IllegalArgumentException if the pattern is malformed
+     */
+    public static InstructionPattern compile(String source) {
+        final ArrayList<Element> elements = new ArrayList<Element>();
+        final ArrayList<Integer> gaps = new ArrayList<Integer>();
+        final LinkedHashMap<String, Integer> variables = new LinkedHashMap<String, Integer>();
+        int gap = 0;
+        for (List<String> tokens : tokenize(source)) {
+            final String step = join(tokens);
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("empty step in pattern: " + source);
+            }
+            final String head = tokens.get(0);
+            if (head.startsWith("*")) {
+                if (tokens.size() != 1) {
+                    throw new IllegalArgumentException("a gap takes no attributes: " + step);
+                }
+                final int n = head.length() == 1 ? UNBOUNDED : parseInt(head.substring(1), step);
+                gap = (gap == UNBOUNDED || n == UNBOUNDED) ? UNBOUNDED : gap + n;
+                continue;
+            }
+            // a match may start anywhere, so a leading gap is dropped
+            gaps.add(elements.isEmpty() ? 0 : gap);
+            gap = 0;
+            elements.add(parseElement(head, tokens.subList(1, tokens.size()), variables, step));
+        }
+        if (elements.isEmpty()) {
+            throw new IllegalArgumentException("no instruction in pattern: " + source);
+        }
+        final int[] g = new int[gaps.size()];
+        for (int k = 0; k < g.length; ++k) {
+            g[k] = gaps.get(k);
+        }
+        return new InstructionPattern(source, elements.toArray(new Element[0]), g,
+                variables.keySet().toArray(new String[0]));
+    }
+
+    private static Element parseElement(String head, List<String> attributes,
+            Map<String, Integer> variables, String step) {
+        final Element e = new Element();
+        final int comma = head.indexOf(',');
+        final String op = comma == -1 ? head : head.substring(0, comma);
+        if (!op.equals("_")) {
+            e.opcode = Instruction.parseOpcode(op);
+            if (e.opcode == -1) {
+                throw new IllegalArgumentException("unknown opcode " + op + " in: " + step);
+            }
+        }
+        if (comma != -1) {
+            e.aux = Instruction.parseAuxOpcode(head.substring(comma + 1));
+            if (e.aux == -1) {
+                throw new IllegalArgumentException("unknown auxiliary opcode " + head.substring(comma + 1)
+                        + " in: " + step);
+            }
+        }
+        final ArrayList<Operand> operands = new ArrayList<Operand>();
+        for (String attr : attributes) {
+            final int eq = attr.indexOf('=');
+            if (eq <= 0 || eq == attr.length() - 1) {
+                throw new IllegalArgumentException("malformed attribute " + attr + " in: " + step);
+            }
+            final String key = attr.substring(0, eq);
+            final String value = attr.substring(eq + 1);
+            if (key.equals("type")) {
+                e.type = new NamePattern(value);
+            } else if (key.equals("target")) {
+                e.target = new NamePattern(value);
+            } else if (key.equals("extra")) {
+                if (value.length() < 2 || !value.startsWith("\"") || !value.endsWith("\"")) {
+                    throw new IllegalArgumentException("extra takes a quoted string in: " + step);
+                }
+                e.extra = value.substring(1, value.length() - 1);
+            } else if (key.equals("dst")) {
+                operands.add(parseOperand(Operand.DST, value, variables, step));
+            } else if (key.equals("r0")) {
+                operands.add(parseOperand(Operand.R0, value, variables, step));
+            } else if (key.equals("r1")) {
+                operands.add(parseOperand(Operand.R1, value, variables, step));
+            } else if (key.startsWith("arg")) {
+                operands.add(parseOperand(parseInt(key.substring(3), step), value, variables, step));
+            } else {
+                throw new IllegalArgumentException("unknown attribute " + key + " in: " + step);
+            }
+        }
+        e.operands = operands.toArray(new Operand[0]);
+        return e;
+    }
+
+    private static Operand parseOperand(int slot, String value, Map<String, Integer> variables, String step) {
+        if (value.startsWith("$") && value.length() > 1) {
+            final String name = value.substring(1);
+            Integer var = variables.get(name);
+            if (var == null) {
+                var = variables.size();
+                variables.put(name, var);
+            }
+            return new Operand(slot, -1, var);
+        }
+        if (value.startsWith("r")) {
+            return new Operand(slot, parseInt(value.substring(1), step), -1);
+        }
+        throw new IllegalArgumentException("malformed register " + value + " in: " + step);
+    }
+
+    private static int parseInt(String s, String step) {
+        try {
+            final int n = Integer.parseInt(s);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("malformed number " + s + " in: " + step);
+    }
+
+    /**
+     * Split a pattern into steps at ';' and the steps into tokens at white space, keeping
+     * quoted strings whole with their escapes resolved
+     */
+    private static List<List<String>> tokenize(String source) {
+        final ArrayList<List<String>> steps = new ArrayList<List<String>>();
+        ArrayList<String> tokens = new ArrayList<String>();
+        final StringBuilder t = new StringBuilder();
+        boolean quoted = false;
+        for (int k = 0; k < source.length(); ++k) {
+            final char c = source.charAt(k);
+            if (quoted) {
+                if (c == '\\' && k + 1 < source.length()) {
+                    t.append(source.charAt(++k));
+                } else {
+                    t.append(c);
+                    quoted = c != '"';
+                }
+            } else if (Character.isWhitespace(c) || c == ';') {
+                if (t.length() > 0) {
+                    tokens.add(t.toString());
+                    t.setLength(0);
+                }
+                if (c == ';') {
+                    steps.add(tokens);
+                    tokens = new ArrayList<String>();
+                }
+            } else {
+                t.append(c);
+                quoted = c == '"';
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated string in pattern: " + source);
+        }
+        if (t.length() > 0) {
+            tokens.add(t.toString());
+        }
+        steps.add(tokens);
+        return steps;
+    }
+
+    private static String join(List<String> tokens) {
+        final StringBuilder s = new StringBuilder();
+        for (String t : tokens) {
+            if (s.length() > 0) {
+                s.append(' ');
+            }
+            s.append(t);
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return the names of the variables, without the '$', in order of appearance
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+    /**
+     * Match the pattern against a method, in time quadratic in its size at worst when the
+     * pattern has an unbounded gap, see the class documentation
+     * @param mi a method
+     * @return the matches in the method, by start index
+     */
+    public List<Match> match(MethodInfo mi) {
+        final Instruction[] insns = mi.insns;
+        if (insns == null || insns.length == 0) {
+            return Collections.emptyList();
+        }
+        final ArrayList<Match> r = new ArrayList<Match>();
+        final boolean[] done = new boolean[insns.length];
+        ArrayList<Partial> current = new ArrayList<Partial>();
+        ArrayList<Partial> next = new ArrayList<Partial>();
+        final HashSet<Partial> seen = new HashSet<Partial>();
+        final int[] unbound = new int[variables.length];
+        Arrays.fill(unbound, -1);
+        for (int pos = 0; pos < insns.length; ++pos) {
+            final Instruction i = insns[pos];
+            // partial matches started earlier come first
+            current.add(new Partial(0, pos, 0, unbound, null));
+            for (Partial t : current) {
+                if (done[t.start]) {
+                    continue;
+                }
+                final int[] b = elements[t.state].match(i, t.bindings);
+                if (b != null) {
+                    final int[] indexes = t.indexes == null ? new int[elements.length]
+                            : Arrays.copyOf(t.indexes, elements.length);
+                    indexes[t.state] = pos;
+                    if (t.state + 1 == elements.length) {
+                        done[t.start] = true;
+                        r.add(new Match(mi, indexes, bind(b)));
+                        continue;
+                    }
+                    final Partial n = new Partial(t.state + 1, t.start, 0, b, indexes);
+                    if (seen.add(n)) {
+                        next.add(n);
+                    }
+                }
+                if (t.skipped < gaps[t.state]) {
+                    // the count is only needed for a bounded gap
+                    final int skipped = gaps[t.state] == UNBOUNDED ? 0 : t.skipped + 1;
+                    final Partial n = new Partial(t.state, t.start, skipped, t.bindings, t.indexes);
+                    if (seen.add(n)) {
+                        next.add(n);
+                    }
+                }
+            }
+            final ArrayList<Partial> tmp = current;
+            current = next;
+            next = tmp;
+            next.clear();
+            seen.clear();
+        }
+        Collections.sort(r, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return a.getStart() - b.getStart();
+            }
+        });
+        return r;
+    }
+
+    private Map<String, Integer> bind(int[] b) {
+        if (variables.length == 0) {
+            return Collections.emptyMap();
+        }
+        final LinkedHashMap<String, Integer> r = new LinkedHashMap<String, Integer>();
+        for (int v = 0; v < variables.length; ++v) {
+            r.put(variables[v], b[v]);
+        }
+        return Collections.unmodifiableMap(r);
+    }
+
+    /**
+     * Search the methods of all loaded classes of a scope, on {@link patdroid.Settings#nThreads} threads
+     * @param scope the scope
+     * @param xref an index of the scope to skip methods that cannot match, or null to try all methods
+     * @return the matches, by method and then start index
+     */
+    public List<Match> search(Scope scope, XrefIndex xref) {
+        Collection<MethodInfo> candidates = xref == null ? null : findCandidates(scope, xref);
+        if (candidates == null) {
+            candidates = new ArrayList<MethodInfo>();
+            for (ClassInfo ci : scope.getAllClasses()) {
+                if (ci.isLoaded()) {
+                    candidates.addAll(ci.getAllMethods());
+                }
+            }
+        }
+        return search(candidates, xref);
+    }
+
+    /**
+     * Search some methods, on {@link patdroid.Settings#nThreads} threads
+     * @param methods the methods
+     * @param xref an index to skip methods lacking opcodes of the pattern, or null
+     * @return the matches, by method in the given order and then start index
+     */
+    public List<Match> search(Collection<MethodInfo> methods, XrefIndex xref) {
+        final ArrayList<MethodInfo> todo = new ArrayList<MethodInfo>(methods.size());
+        for (MethodInfo mi : methods) {
+            if (mi.insns != null && (xref == null || xref.mayContain(mi, opcodeMask, auxMask))) {
+                todo.add(mi);
+            }
+        }
+        final ArrayList<List<Match>> found = new ArrayList<List<Match>>(
+                Collections.<List<Match>>nCopies(todo.size(), null));
+        Parallel.forRange(todo.size(), new Parallel.RangeBody() {
+            @Override
+            public void run(int index) {
+                found.set(index, match(todo.get(index)));
+            }
+        });
+        final ArrayList<Match> r = new ArrayList<Match>();
+        for (List<Match> l : found) {
+            r.addAll(l);
+        }
+        return r;
+    }
+
+    /**
+     * Find the methods referring to the exact target or type of an element, taking the
+     * element with the fewest
+     * @return the methods, or null if no element names an exact target or type
+     */
+    private Collection<MethodInfo> findCandidates(Scope scope, XrefIndex xref) {
+        Collection<MethodInfo> best = null;
+        for (Element e : elements) {
+            Set<MethodInfo> methods = null;
+            if (e.target != null && e.target.exact) {
+                methods = callersOf(scope, xref, e.target.name);
+            } else if (e.type != null && e.type.exact) {
+                methods = typeUsersOf(scope, xref, e.type.name);
+            }
+            if (methods != null && (best == null || methods.size() < best.size())) {
+                best = methods;
+            }
+        }
+        return best;
+    }
+
+    private static Set<MethodInfo> callersOf(Scope scope, XrefIndex xref, String target) {
+        final Set<MethodInfo> r = Collections.newSetFromMap(new IdentityHashMap<MethodInfo, Boolean>());
+        final int dot = target.lastIndexOf('.');
+        if (dot == -1) {
+            return r;
+        }
+        final String owner = target.substring(0, dot);
+        final String name = target.substring(dot + 1);
+        final ClassInfo ci = scope.findClass(owner);
+        if (ci == null) {
+            return r;
+        }
+        final ArrayList<MethodInfo> callees = new ArrayList<MethodInfo>();
+        if (ci.isLoaded()) {
+            callees.addAll(Arrays.asList(ci.mutableDetail.findMethodsHere(name)));
+        }
+        for (MethodInfo mi : scope.phantoms.getPhantoms()) {
+            if (mi.type == ci && mi.signature.partialSignature.name.equals(name)) {
+                callees.add(mi);
+            }
+        }
+        for (MethodInfo callee : callees) {
+            r.addAll(xref.getCallers(callee));
+        }
+        return r;
+    }
+
+    private static Set<MethodInfo> typeUsersOf(Scope scope, XrefIndex xref, String type) {
+        final Set<MethodInfo> r = Collections.newSetFromMap(new IdentityHashMap<MethodInfo, Boolean>());
+        final ClassInfo ci = scope.findClass(type);
+        if (ci != null) {
+            for (XrefIndex.Site s : xref.getTypeUses(ci)) {
+                r.add(s.method);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * An exact name, or a prefix if written with a trailing '*'
+     */
+    private static final class NamePattern {
+        final String name;
+        final boolean exact;
+
+        NamePattern(String s) {
+            exact = !s.endsWith("*");
+            name = exact ? s : s.substring(0, s.length() - 1);
+        }
+
+        boolean matches(String s) {
+            return exact ? s.equals(name) : s.startsWith(name);
+        }
+
+        boolean matches(ClassInfo owner, String member) {
+            final String o = owner.fullName;
+            if (exact) {
+                return name.length() == o.length() + 1 + member.length()
+                        && name.startsWith(o) && name.charAt(o.length()) == '.' && name.endsWith(member);
+            }
+            return matches(o + "." + member);
+        }
+    }
+
+    /**
+     * A register constraint of an element
+     */
+    private static final class Operand {
+        static final int DST = -1;
+        static final int R0 = -2;
+        static final int R1 = -3;
+
+        /**
+         * DST, R0, R1, or the position of an invocation argument
+         */
+        final int slot;
+        final int register;
+        final int variable;
+
+        Operand(int slot, int register, int variable) {
+            this.slot = slot;
+            this.register = register;
+            this.variable = variable;
+        }
+
+        /**
+         * @return the register in the slot, or -1 if the instruction has none there
+         */
+        int get(Instruction i) {
+            switch (slot) {
+            case DST:
+                return i.rdst;
+            case R0:
+                return i.r0;
+            case R1:
+                return i.r1;
+            default:
+                if (!(i.extra instanceof Invocation)) {
+                    return -1;
+                }
+                final int[] args = ((Invocation) i.extra).args;
+                return slot < args.length ? args[slot] : -1;
+            }
+        }
+    }
+
+    /**
+     * The instruction step of a pattern, a transition of the automaton
+     */
+    private static final class Element {
+        byte opcode = -1;
+        byte aux = -1;
+        NamePattern type;
+        NamePattern target;
+        String extra;
+        Operand[] operands;
+
+        /**
+         * @return the bindings after matching the instruction, the given array if nothing
+         * new is bound, or null if the instruction does not match
+         */
+        int[] match(Instruction i, int[] bindings) {
+            if ((opcode != -1 && i.opcode != opcode) || (aux != -1 && i.opcode_aux != aux)) {
+                return null;
+            }
+            if (type != null && (i.type == null || !type.matches(i.type.fullName))) {
+                return null;
+            }
+            if (extra != null && !extra.equals(i.extra)) {
+                return null;
+            }
+            if (target != null) {
+                if (!(i.extra instanceof Invocation)) {
+                    return null;
+                }
+                final MethodInfo callee = ((Invocation) i.extra).target;
+                if (callee == null || !target.matches(callee.type, callee.signature.partialSignature.name)) {
+                    return null;
+                }
+            }
+            int[] r = bindings;
+            for (Operand o : operands) {
+                final int reg = o.get(i);
+                if (reg == -1) {
+                    return null;
+                }
+                if (o.variable == -1) {
+                    if (reg != o.register) {
+                        return null;
+                    }
+                } else if (r[o.variable] == -1) {
+                    if (r == bindings) {
+                        r = bindings.clone();
+                    }
+                    r[o.variable] = reg;
+                } else if (r[o.variable] != reg) {
+                    return null;
+                }
+            }
+            return r;
+        }
+    }
+
+    /**
+     * A partial match: the next element to match, where it started and what it bound
+     */
+    private static final class Partial {
+        final int state;
+        final int start;
+        /**
+         * The number of instructions skipped since the last element matched
+         */
+        final int skipped;
+        final int[] bindings;
+        /**
+         * The indexes of the elements matched so far, null before the first one
+         */
+        final int[] indexes;
+
+        Partial(int state, int start, int skipped, int[] bindings, int[] indexes) {
+            this.state = state;
+            this.start = start;
+            this.skipped = skipped;
+            this.bindings = bindings;
+            this.indexes = indexes;
+        }
+
+        /**
+         * Partial matches that will behave the same from now on are equal, whatever
+         * instructions they matched
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Partial)) {
+                return false;
+            }
+            final Partial t = (Partial) o;
+            return state == t.state && start == t.start && skipped == t.skipped
+                    && Arrays.equals(bindings, t.bindings);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((state * 31 + start) * 31 + skipped) * 31 + Arrays.hashCode(bindings);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package patdroid.xref;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import patdroid.core.MethodInfo;
+import patdroid.dalvik.Instruction;
+import patdroid.util.IntList;
+
+/**
+ * An inverted index of the string constants of translated methods, from every distinct
+ * literal to the const-string instructions loading it.
+ * <p>
+ * Literals are interned: {@link #addMethod(MethodInfo)} makes every const-string
+ * instruction of a method refer to the one copy kept here, so that a literal repeated
+ * across methods is stored once. For substring and regular expression searches, literals
+ * are indexed by their trigrams (every three consecutive characters); a search only
+ * checks the literals containing all trigrams of the substring, or of the longest piece
+ * of text that every match of the expression must contain.
+ * </p>
+ * <p>
+ * A site is found only as long as its instruction still loads the literal, so methods
+ * that were unloaded or translated again drop out of the results; {@link #prune()} then
+ * releases them and the literals left without sites. The index is safe for concurrent
+ * use. A loader fills it while translating when given one, see
+ * {@link patdroid.smali.SmaliClassDetailLoader#setStringIndex(StringConstantIndex)}.
+ * </p>
+ */
+public final class StringConstantIndex {
+    private static final int GRAM = 3;
+
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final ArrayList<String> literals = new ArrayList<String>();
+    private final ArrayList<Postings> postings = new ArrayList<Postings>();
+    /**
+     * The ids of the literals containing each trigram, in increasing order
+     */
+    private final HashMap<Long, IntList> grams = new HashMap<Long, IntList>();
+    /**
+     * The number of literals indexed by trigram so far, the others are indexed on the next search
+     */
+    private int gramIndexed = 0;
+
+    /**
+     * Index the const-string instructions of a translated method, and make them refer
+     * to the interned copies of their literals
+     * @param mi the method, a method without instructions is ignored
+     */
+    public synchronized void addMethod(MethodInfo mi) {
+        final Instruction[] insns = mi.insns;
+        if (insns == null) {
+            return;
+        }
+        for (int idx = 0; idx < insns.length; ++idx) {
+            final Instruction i = insns[idx];
+            if (i.opcode == Instruction.OP_MOV && i.opcode_aux == Instruction.OP_MOV_CONST
+                    && i.extra instanceof String) {
+                i.extra = add((String) i.extra, mi, idx);
+            }
+        }
+    }
+
+    private String add(String literal, MethodInfo mi, int index) {
+        Integer id = ids.get(literal);
+        if (id == null) {
+            id = literals.size();
+            ids.put(literal, id);
+            literals.add(literal);
+            postings.add(new Postings());
+        }
+        postings.get(id).add(mi, index);
+        return literals.get(id);
+    }
+
+    /**
+     * Drop the sites whose instructions no longer load their literal, e.g. after
+     * {@link patdroid.core.Scope#unload(patdroid.core.Scope.Layer)}, and the literals left
+     * without sites
+     * @return the number of literals dropped
+     */
+    public synchronized int prune() {
+        final ArrayList<String> keptLiterals = new ArrayList<String>(literals.size());
+        final ArrayList<Postings> keptPostings = new ArrayList<Postings>(postings.size());
+        for (int id = 0; id < literals.size(); ++id) {
+            final String literal = literals.get(id);
+            final Postings p = postings.get(id);
+            p.prune(literal);
+            if (p.size != 0) {
+                keptLiterals.add(literal);
+                keptPostings.add(p);
+            }
+        }
+        final int dropped = literals.size() - keptLiterals.size();
+        if (dropped != 0) {
+            literals.clear();
+            literals.addAll(keptLiterals);
+            postings.clear();
+            postings.addAll(keptPostings);
+            ids.clear();
+            for (int id = 0; id < literals.size(); ++id) {
+                ids.put(literals.get(id), id);
+            }
+            // the trigrams refer to the old ids, they are indexed again on the next search
+            grams.clear();
+            gramIndexed = 0;
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the number of distinct literals, including literals without sites left
+     * until {@link #prune()}
+     */
+    public synchronized int size() {
+        return literals.size();
+    }
+
+    /**
+     * @param literal the exact literal
+     * @return the const-string instructions loading the literal
+     */
+    public synchronized List<XrefIndex.Site> getSites(String literal) {
+        final Integer id = ids.get(literal);
+        return id == null ? Collections.<XrefIndex.Site>emptyList() : postings.get(id).toSites(literals.get(id));
+    }
+
+    /**
+     * @param substring the text to look for
+     * @return the literals containing the text, in lexicographic order
+     */
+    public synchronized List<String> findLiterals(String substring) {
+        final ArrayList<String> r = new ArrayList<String>();
+        for (int id : candidates(substring)) {
+            final String literal = literals.get(id);
+            if (literal.contains(substring) && postings.get(id).hasLiveSite(literal)) {
+                r.add(literal);
+            }
+        }
+        // the ids follow the order of translation, which varies from run to run
+        Collections.sort(r);
+        return r;
+    }
+
+    /**
+     * @param regex the expression
+     * @return the literals in which the expression finds a match, in lexicographic order
+     */
+    public synchronized List<String> findLiterals(Pattern regex) {
+        final ArrayList<String> r = new ArrayList<String>();
+        final Matcher m = regex.matcher("");
+        for (int id : candidates(requiredText(regex))) {
+            final String literal = literals.get(id);
+            if (m.reset(literal).find() && postings.get(id).hasLiveSite(literal)) {
+                r.add(literal);
+            }
+        }
+        Collections.sort(r);
+        return r;
+    }
+
+    /**
+     * @param regex the expression
+     * @return the const-string instructions whose literal the expression finds a match in,
+     * grouped by literal in the order of {@link #findLiterals(Pattern)}
+     */
+    public synchronized List<XrefIndex.Site> findSites(Pattern regex) {
+        final ArrayList<XrefIndex.Site> r = new ArrayList<XrefIndex.Site>();
+        for (String literal : findLiterals(regex)) {
+            r.addAll(postings.get(ids.get(literal)).toSites(literal));
+        }
+        return r;
+    }
+
+    /**
+     * @return the ids of the literals having all trigrams of the text, all ids if it has none
+     */
+    private int[] candidates(String text) {
+        final int n = literals.size();
+        if (text == null || text.length() < GRAM) {
+            final int[] all = new int[n];
+            for (int id = 0; id < n; ++id) {
+                all[id] = id;
+            }
+            return all;
+        }
+        indexGrams();
+        int[] r = null;
+        for (int k = 0; k + GRAM <= text.length(); ++k) {
+            final IntList l = grams.get(gram(text, k));
+            if (l == null) {
+                return new int[0];
+            }
+            r = r == null ? l.toArray() : intersect(r, l);
+            if (r.length == 0) {
+                break;
+            }
+        }
+        return r;
+    }
+
+    private static int[] intersect(int[] a, IntList b) {
+        final int[] r = new int[Math.min(a.length, b.size())];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.size(); ) {
+            if (a[i] < b.get(j)) {
+                ++i;
+            } else if (a[i] > b.get(j)) {
+                ++j;
+            } else {
+                r[n++] = a[i];
+                ++i;
+                ++j;
+            }
+        }
+        return Arrays.copyOf(r, n);
+    }
+
+    private void indexGrams() {
+        for (; gramIndexed < literals.size(); ++gramIndexed) {
+            final String s = literals.get(gramIndexed);
+            for (int k = 0; k + GRAM <= s.length(); ++k) {
+                final Long g = gram(s, k);
+                IntList l = grams.get(g);
+                if (l == null) {
+                    l = new IntList();
+                    grams.put(g, l);
+                }
+                // a trigram repeated in a literal is listed once
+                if (l.size() == 0 || l.get(l.size() - 1) != gramIndexed) {
+                    l.add(gramIndexed);
+                }
+            }
+        }
+    }
+
+    private static Long gram(String s, int k) {
+        return ((long) s.charAt(k) << 32) | ((long) s.charAt(k + 1) << 16) | s.charAt(k + 2);
+    }
+
+    /**
+     * Find the longest text that every match of an expression contains, looking only at
+     * the top level of the expression: groups, classes and anything followed by a
+     * quantifier that allows zero repetitions are skipped
+     * @return the text, or null if there is none
+     */
+    static String requiredText(Pattern regex) {
+        final String s = regex.pattern();
+        if ((regex.flags() & Pattern.LITERAL) != 0) {
+            return s;
+        }
+        if ((regex.flags() & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS)) != 0
+                || s.indexOf('|') != -1 || s.contains("\\Q") || s.contains("(?")) {
+            return null;
+        }
+        String best = "";
+        final StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < s.length()) {
+            final char c = s.charAt(i);
+            boolean literal = false;
+            char ch = c;
+            int next = i + 1;
+            switch (c) {
+            case '\\':
+                if (i + 1 < s.length() && !Character.isLetterOrDigit(s.charAt(i + 1))) {
+                    literal = true;
+                    ch = s.charAt(i + 1);
+                }
+                next = i + 2;
+                break;
+            case '[':
+                next = skipClass(s, i);
+                break;
+            case '(':
+                next = skipGroup(s, i);
+                break;
+            case '.':
+            case '^':
+            case '$':
+            case ')':
+            case ']':
+            case '*':
+            case '?':
+            case '{':
+            case '+':
+                break;
+            default:
+                literal = true;
+            }
+            // a piece followed by such a quantifier may occur zero times
+            final boolean optional = next < s.length()
+                    && (s.charAt(next) == '*' || s.charAt(next) == '?' || s.charAt(next) == '{');
+            if (literal && !optional) {
+                run.append(ch);
+            } else {
+                if (run.length() > best.length()) {
+                    best = run.toString();
+                }
+                run.setLength(0);
+                if (c == '{') {
+                    final int close = s.indexOf('}', i);
+                    next = close == -1 ? s.length() : close + 1;
+                }
+            }
+            i = next;
+        }
+        if (run.length() > best.length()) {
+            best = run.toString();
+        }
+        return best.isEmpty() ? null : best;
+    }
+
+    private static int skipClass(String s, int i) {
+        int k = i + 1;
+        if (k < s.length() && s.charAt(k) == '^') {
+            ++k;
+        }
+        if (k < s.length() && s.charAt(k) == ']') {
+            ++k;
+        }
+        int depth = 1;
+        for (; k < s.length(); ++k) {
+            final char c = s.charAt(k);
+            if (c == '\\') {
+                ++k;
+            } else if (c == '[') {
+                ++depth;
+            } else if (c == ']' && --depth == 0) {
+                return k + 1;
+            }
+        }
+        return s.length();
+    }
+
+    private static int skipGroup(String s, int i) {
+        int depth = 0;
+        for (int k = i; k < s.length(); ++k) {
+            final char c = s.charAt(k);
+            if (c == '\\') {
+                ++k;
+            } else if (c == '[') {
+                k = skipClass(s, k) - 1;
+            } else if (c == '(') {
+                ++depth;
+            } else if (c == ')' && --depth == 0) {
+                return k + 1;
+            }
+        }
+        return s.length();
+    }
+
+    /**
+     * The const-string instructions of one literal
+     */
+    private static final class Postings {
+        MethodInfo[] methods = new MethodInfo[1];
+        int[] indexes = new int[1];
+        int size = 0;
+
+        void add(MethodInfo mi, int index) {
+            if (size == methods.length) {
+                methods = Arrays.copyOf(methods, size * 2);
+                indexes = Arrays.copyOf(indexes, size * 2);
+            }
+            methods[size] = mi;
+            indexes[size] = index;
+            ++size;
+        }
+
+        /**
+         * @return true if the instruction of a site still loads the interned literal, which
+         * does not hold once its method is unloaded or translated again
+         */
+        boolean isLive(int k, String literal) {
+            final Instruction[] insns = methods[k].insns;
+            return insns != null && indexes[k] < insns.length && insns[indexes[k]].extra == literal;
+        }
+
+        boolean hasLiveSite(String literal) {
+            for (int k = 0; k < size; ++k) {
+                if (isLive(k, literal)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<XrefIndex.Site> toSites(String literal) {
+            final ArrayList<XrefIndex.Site> r = new ArrayList<XrefIndex.Site>(size);
+            for (int k = 0; k < size; ++k) {
+                if (isLive(k, literal)) {
+                    r.add(new XrefIndex.Site(methods[k], indexes[k]));
+                }
+            }
+            return r;
+        }
+
+        void prune(String literal) {
+            int n = 0;
+            for (int k = 0; k < size; ++k) {
+                if (isLive(k, literal)) {
+                    methods[n] = methods[k];
+                    indexes[n] = indexes[k];
+                    ++n;
+                }
+            }
+            Arrays.fill(methods, n, size, null);
+            size = n;
+        }
+    }
+}
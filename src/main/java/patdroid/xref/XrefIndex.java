@@ -0,0 +1,453 @@
+package patdroid.xref;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import patdroid.core.ClassInfo;
+import patdroid.core.FieldInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.IntList;
+import patdroid.util.Pair;
+import patdroid.util.Parallel;
+
+/**
+ * Cross references of the translated methods of a scope: the call sites of every method,
+ * the instructions reading and writing every field, and the instructions using every
+ * class by new-instance, check-cast, instance-of or const-class.
+ * <p>
+ * Each kind of reference is stored in compressed sparse row layout over the dense ids of
+ * the scope: the references to the element with id k are the entries [start[k], start[k+1])
+ * of two arrays holding the id of the referring method and the index of the instruction.
+ * Field accesses are attributed to the field as declared, looking up the base classes of
+ * the accessed class; accesses to fields of missing classes are not indexed.
+ * </p>
+ * <p>
+ * The index also keeps, for every method, the sets of major and auxiliary opcodes its
+ * instructions use, so that searches can skip the methods that cannot contain what they
+ * look for, see {@link #mayContain(MethodInfo, int, long)}.
+ * </p>
+ * <p>
+ * An index is immutable. After methods are translated again or unloaded, {@link #update(Collection)}
+ * makes a new index rescanning only those methods. Since {@link Scope#unload(Scope.Layer)}
+ * gives ids back for reuse, an index must be built again after unloading a layer: its
+ * lookups and updates throw an {@link IllegalStateException}, see {@link Scope#getIdGeneration()}.
+ * </p>
+ */
+public final class XrefIndex {
+    private static final int CALLS = 0;
+    private static final int READS = 1;
+    private static final int WRITES = 2;
+    private static final int TYPES = 3;
+    private static final int N_KINDS = 4;
+
+    public final Scope scope;
+    private final int idGeneration;
+    private final Table[] tables;
+    /**
+     * By method id, a bit for every major opcode used by the method
+     */
+    private final int[] opcodes;
+    /**
+     * By method id, a bit for every auxiliary opcode used by the method
+     */
+    private final long[] auxOpcodes;
+
+    /**
+     * A referring instruction
+     */
+    public static final class Site {
+        public final MethodInfo method;
+        /**
+         * The index of the instruction in the method
+         */
+        public final int index;
+
+        public Site(MethodInfo method, int index) {
+            this.method = method;
+            this.index = index;
+        }
+
+        /**
+         * @return the referring instruction
+         */
+        public Instruction getInstruction() {
+            return method.insns[index];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Site)) {
+                return false;
+            }
+            final Site s = (Site) o;
+            return method == s.method && index == s.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return method.hashCode() * 31 + index;
+        }
+
+        @Override
+        public String toString() {
+            return method + "@" + index;
+        }
+    }
+
+    private XrefIndex(Scope scope, int idGeneration, Table[] tables, int[] opcodes, long[] auxOpcodes) {
+        this.scope = scope;
+        this.idGeneration = idGeneration;
+        this.tables = tables;
+        this.opcodes = opcodes;
+        this.auxOpcodes = auxOpcodes;
+    }
+
+    /**
+     * Index the methods of all loaded classes of a scope, scanning them in parallel
+     * on {@link patdroid.Settings#nThreads} threads
+     * @param scope the scope
+     * @return the index
+     */
+    public static XrefIndex build(Scope scope) {
+        final int idGeneration = scope.getIdGeneration();
+        final ArrayList<MethodInfo> methods = new ArrayList<MethodInfo>();
+        for (ClassInfo ci : scope.getAllClasses()) {
+            if (ci.isLoaded()) {
+                methods.addAll(ci.getAllMethods());
+            }
+        }
+        final Table[] empty = new Table[N_KINDS];
+        for (int k = 0; k < N_KINDS; ++k) {
+            empty[k] = new Table(new int[1], new int[0], new int[0]);
+        }
+        return new XrefIndex(scope, idGeneration, empty, new int[0], new long[0]).update(methods);
+    }
+
+    /**
+     * Make a new index in which the references from some methods are found again, e.g.
+     * after they are translated again, while all others are kept. Methods without
+     * instructions, such as methods of unloaded classes, lose their references.
+     * @param methods the changed methods
+     * @return the new index
+     */
+    public XrefIndex update(Collection<MethodInfo> methods) {
+        scope.checkIdGeneration(idGeneration);
+        final Set<MethodInfo> distinct = Collections.newSetFromMap(new IdentityHashMap<MethodInfo, Boolean>());
+        final List<MethodInfo> changed = new ArrayList<MethodInfo>();
+        for (MethodInfo mi : methods) {
+            // an unregistered method without instructions, e.g. of an unloaded class, has
+            // nothing to add, and its old references are dropped with its id
+            if ((mi.getId() != -1 || mi.insns != null) && distinct.add(mi)) {
+                changed.add(mi);
+            }
+        }
+        final References[] refs = new References[changed.size()];
+        Parallel.forRange(refs.length, new Parallel.RangeBody() {
+            @Override
+            public void run(int index) {
+                refs[index] = scan(changed.get(index));
+            }
+        });
+
+        // ids of callees and callers not known to the scope are assigned serially
+        final BitSet removed = new BitSet();
+        for (int k = 0; k < refs.length; ++k) {
+            refs[k].method = scope.registerMethod(changed.get(k));
+            removed.set(refs[k].method);
+            final IntList calls = refs[k].sites[CALLS];
+            for (int j = 0; j < calls.size(); j += 2) {
+                calls.set(j, scope.registerMethod(refs[k].callees.get(j / 2)));
+            }
+        }
+        final int[] keyCount = {
+                scope.getMethodCount(), scope.getFieldCount(), scope.getFieldCount(), scope.getClassCount()
+        };
+        final Table[] t = new Table[N_KINDS];
+        for (int kind = 0; kind < N_KINDS; ++kind) {
+            t[kind] = tables[kind].update(scope, keyCount[kind], removed, refs, kind);
+        }
+        final int[] ops = Arrays.copyOf(opcodes, scope.getMethodCount());
+        final long[] auxOps = Arrays.copyOf(auxOpcodes, scope.getMethodCount());
+        for (References r : refs) {
+            ops[r.method] = r.opcodes;
+            auxOps[r.method] = r.auxOpcodes;
+        }
+        return new XrefIndex(scope, idGeneration, t, ops, auxOps);
+    }
+
+    /**
+     * @param mi the callee
+     * @return the invoke instructions whose resolved target is the method, without dispatch
+     */
+    public List<Site> getCallSites(MethodInfo mi) {
+        scope.checkIdGeneration(idGeneration);
+        final int id = mi.getId();
+        return id == -1 ? Collections.<Site>emptyList() : tables[CALLS].get(scope, id);
+    }
+
+    /**
+     * @param mi the callee
+     * @return the distinct methods calling the method, see {@link #getCallSites(MethodInfo)}
+     */
+    public List<MethodInfo> getCallers(MethodInfo mi) {
+        final ArrayList<MethodInfo> r = new ArrayList<MethodInfo>();
+        for (Site s : getCallSites(mi)) {
+            if (r.isEmpty() || r.get(r.size() - 1) != s.method) {
+                r.add(s.method);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param field the field
+     * @return the instructions reading the field
+     */
+    public List<Site> getReaders(FieldInfo field) {
+        scope.checkIdGeneration(idGeneration);
+        final int id = findFieldId(scope, field.owner, field.fieldName);
+        return id == -1 ? Collections.<Site>emptyList() : tables[READS].get(scope, id);
+    }
+
+    /**
+     * @param field the field
+     * @return the instructions writing the field
+     */
+    public List<Site> getWriters(FieldInfo field) {
+        scope.checkIdGeneration(idGeneration);
+        final int id = findFieldId(scope, field.owner, field.fieldName);
+        return id == -1 ? Collections.<Site>emptyList() : tables[WRITES].get(scope, id);
+    }
+
+    /**
+     * @param ci the class
+     * @return the new-instance, check-cast, instance-of and const-class instructions using the class
+     */
+    public List<Site> getTypeUses(ClassInfo ci) {
+        scope.checkIdGeneration(idGeneration);
+        return tables[TYPES].get(scope, ci.id);
+    }
+
+    /**
+     * Tell whether a method may use some opcodes, without looking at its instructions
+     * @param mi the method
+     * @param opcodeMask a bit (1 &lt;&lt; opcode) for every major opcode looked for
+     * @param auxMask a bit (1L &lt;&lt; opcode_aux) for every auxiliary opcode looked for
+     * @return false if the method was indexed and lacks one of the opcodes
+     */
+    public boolean mayContain(MethodInfo mi, int opcodeMask, long auxMask) {
+        scope.checkIdGeneration(idGeneration);
+        final int id = mi.getId();
+        if (id == -1 || id >= opcodes.length || scope.getMethodById(id) != mi) {
+            return true;
+        }
+        return (opcodes[id] & opcodeMask) == opcodeMask && (auxOpcodes[id] & auxMask) == auxMask;
+    }
+
+    /**
+     * @return the total number of references of all kinds
+     */
+    public int size() {
+        int n = 0;
+        for (Table t : tables) {
+            n += t.method.length;
+        }
+        return n;
+    }
+
+    /**
+     * The id of a field as declared, looking into base classes, without loading classes
+     */
+    private static int findFieldId(Scope scope, ClassInfo owner, String name) {
+        for (ClassInfo c = owner; c != null; c = c.isLoaded() ? c.mutableDetail.baseType : null) {
+            final int id = scope.getFieldId(new FieldInfo(c, name));
+            if (id != -1) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private References scan(MethodInfo mi) {
+        final References r = new References();
+        final Instruction[] insns = mi.insns;
+        if (insns == null) {
+            return r;
+        }
+        for (int idx = 0; idx < insns.length; ++idx) {
+            final Instruction i = insns[idx];
+            r.opcodes |= 1 << i.opcode;
+            r.auxOpcodes |= 1L << i.opcode_aux;
+            switch (i.opcode) {
+            case Instruction.OP_INVOKE_OP: {
+                final MethodInfo target = ((Invocation) i.extra).target;
+                if (target != null) {
+                    r.callees.add(target);
+                    addSite(r.sites[CALLS], -1, idx);
+                }
+                break;
+            }
+            case Instruction.OP_INSTANCE_OP:
+            case Instruction.OP_STATIC_OP: {
+                final int id;
+                if (i.extra instanceof FieldInfo) {
+                    id = findFieldId(scope, ((FieldInfo) i.extra).owner, ((FieldInfo) i.extra).fieldName);
+                } else if (i.extra instanceof Pair) {
+                    final Pair<ClassInfo, String> f = (Pair<ClassInfo, String>) i.extra;
+                    id = findFieldId(scope, f.first, f.second);
+                } else {
+                    break;
+                }
+                if (id == -1) {
+                    break;
+                }
+                if (i.opcode_aux == Instruction.OP_INSTANCE_GET_FIELD
+                        || i.opcode_aux == Instruction.OP_STATIC_GET_FIELD) {
+                    addSite(r.sites[READS], id, idx);
+                } else if (i.opcode_aux == Instruction.OP_INSTANCE_PUT_FIELD
+                        || i.opcode_aux == Instruction.OP_STATIC_PUT_FIELD) {
+                    addSite(r.sites[WRITES], id, idx);
+                }
+                break;
+            }
+            case Instruction.OP_NEW:
+                if (i.opcode_aux == Instruction.OP_NEW_INSTANCE && i.type != null) {
+                    addSite(r.sites[TYPES], i.type.id, idx);
+                }
+                break;
+            case Instruction.OP_ARITHETIC:
+                if ((i.opcode_aux == Instruction.OP_A_CHECKCAST || i.opcode_aux == Instruction.OP_A_INSTANCEOF)
+                        && i.type != null) {
+                    addSite(r.sites[TYPES], i.type.id, idx);
+                }
+                break;
+            case Instruction.OP_MOV:
+                if (i.opcode_aux == Instruction.OP_MOV_CONST && i.extra instanceof ClassInfo) {
+                    addSite(r.sites[TYPES], ((ClassInfo) i.extra).id, idx);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return r;
+    }
+
+    private static void addSite(IntList sites, int id, int index) {
+        sites.add(id);
+        sites.add(index);
+    }
+
+    /**
+     * The references found in one method, as pairs of referenced id and instruction index
+     */
+    private static final class References {
+        int method;
+        int opcodes;
+        long auxOpcodes;
+        final ArrayList<MethodInfo> callees = new ArrayList<MethodInfo>();
+        final IntList[] sites = new IntList[N_KINDS];
+
+        References() {
+            for (int k = 0; k < N_KINDS; ++k) {
+                sites[k] = new IntList(8);
+            }
+        }
+    }
+
+    /**
+     * The references of one kind, in compressed sparse row layout
+     */
+    private static final class Table {
+        final int[] start;
+        final int[] method;
+        final int[] index;
+
+        Table(int[] start, int[] method, int[] index) {
+            this.start = start;
+            this.method = method;
+            this.index = index;
+        }
+
+        int keyCount() {
+            return start.length - 1;
+        }
+
+        List<Site> get(Scope scope, int key) {
+            if (key >= keyCount()) {
+                return Collections.emptyList();
+            }
+            final ArrayList<Site> r = new ArrayList<Site>(start[key + 1] - start[key]);
+            for (int e = start[key]; e < start[key + 1]; ++e) {
+                final MethodInfo mi = scope.getMethodById(method[e]);
+                if (mi != null) {
+                    r.add(new Site(mi, index[e]));
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Drop the entries of removed and unregistered methods and add new entries,
+         * keeping the entries of every key grouped by method
+         */
+        Table update(Scope scope, int nKeys, BitSet removed, References[] refs, int kind) {
+            final BitSet gone = (BitSet) removed.clone();
+            for (int e = 0; e < method.length; ++e) {
+                if (!gone.get(method[e]) && scope.getMethodById(method[e]) == null) {
+                    gone.set(method[e]);
+                }
+            }
+            final int[] count = new int[nKeys + 1];
+            final int oldKeys = keyCount();
+            for (int k = 0; k < oldKeys; ++k) {
+                for (int e = start[k]; e < start[k + 1]; ++e) {
+                    if (!gone.get(method[e])) {
+                        ++count[k + 1];
+                    }
+                }
+            }
+            for (References r : refs) {
+                final IntList l = r.sites[kind];
+                for (int j = 0; j < l.size(); j += 2) {
+                    ++count[l.get(j) + 1];
+                }
+            }
+            for (int k = 0; k < nKeys; ++k) {
+                count[k + 1] += count[k];
+            }
+            final int[] m = new int[count[nKeys]];
+            final int[] idx = new int[count[nKeys]];
+            final int[] fill = new int[nKeys];
+            for (int k = 0; k < oldKeys; ++k) {
+                for (int e = start[k]; e < start[k + 1]; ++e) {
+                    if (!gone.get(method[e])) {
+                        final int p = count[k] + fill[k]++;
+                        m[p] = method[e];
+                        idx[p] = index[e];
+                    }
+                }
+            }
+            for (References r : refs) {
+                final IntList l = r.sites[kind];
+                for (int j = 0; j < l.size(); j += 2) {
+                    final int key = l.get(j);
+                    final int p = count[key] + fill[key]++;
+                    m[p] = r.method;
+                    idx[p] = l.get(j + 1);
+                }
+            }
+            return new Table(count, m, idx);
+        }
+    }
+}
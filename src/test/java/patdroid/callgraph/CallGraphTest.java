@@ -0,0 +1,158 @@
+package patdroid.callgraph;
+
+import com.google.common.collect.Ordering;
+import org.junit.Before;
+import org.junit.Test;
+import patdroid.core.ClassDetailLoader;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CallGraphTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo a = scope.findOrCreateClass("A");
+    private final ClassInfo b = scope.findOrCreateClass("B");
+    private final ClassInfo c = scope.findOrCreateClass("C");
+    private final ClassInfo main = scope.findOrCreateClass("Main");
+    private MethodInfo am, bm, helper, entry;
+
+    private MethodInfo method(ClassInfo owner, String name, int flags) {
+        return new MethodInfo(owner, new FullMethodSignature(scope.primitiveVoid, name), flags, false);
+    }
+
+    private static Instruction invoke(byte aux, MethodInfo target) {
+        return invoke(aux, target.type, target);
+    }
+
+    private static Instruction invoke(byte aux, ClassInfo owner, MethodInfo target) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_INVOKE_OP;
+        i.opcode_aux = aux;
+        i.extra = new Invocation(true, owner, target, new int[0]);
+        return i;
+    }
+
+    @Before
+    public void setUp() {
+        am = method(a, "m", Modifier.PUBLIC);
+        bm = method(b, "m", Modifier.PUBLIC);
+        helper = method(main, "helper", Modifier.STATIC);
+        entry = method(main, "main", Modifier.STATIC);
+        Instruction newC = new Instruction();
+        newC.opcode = Instruction.OP_NEW;
+        newC.opcode_aux = Instruction.OP_NEW_INSTANCE;
+        newC.rdst = 0;
+        newC.type = c;
+        entry.insns = new Instruction[] {
+                newC,
+                invoke(Instruction.OP_INVOKE_VIRTUAL, am),
+                invoke(Instruction.OP_INVOKE_STATIC, helper),
+        };
+        TestClasses.define(a, scope.rootObject, am);
+        TestClasses.define(b, a, bm);
+        TestClasses.define(c, a);
+        TestClasses.define(main, scope.rootObject, helper, entry);
+    }
+
+    private static List<MethodInfo> sorted(List<MethodInfo> l) {
+        List<MethodInfo> r = new ArrayList<MethodInfo>(l);
+        Collections.sort(r, Ordering.usingToString());
+        return r;
+    }
+
+    @Test
+    public void testClassHierarchyAnalysis() {
+        CallGraph cg = new CallGraphBuilder(scope).build();
+        assertEquals(Arrays.asList(am, bm, helper), sorted(cg.getCallees(entry)));
+        assertEquals(Arrays.asList(entry), cg.getCallers(bm));
+        final int id = cg.getId(entry);
+        assertEquals(3, cg.getEdgeEnd(id) - cg.getEdgeStart(id));
+        for (int e = cg.getEdgeStart(id); e < cg.getEdgeEnd(id); ++e) {
+            final MethodInfo callee = cg.getMethod(cg.getEdgeTarget(e));
+            assertEquals(callee == helper ? 2 : 1, cg.getEdgeSite(e));
+        }
+        assertTrue(cg.getCallees(helper).isEmpty());
+    }
+
+    @Test
+    public void testRapidTypeAnalysis() {
+        CallGraph cg = new CallGraphBuilder(scope).setRapidTypeAnalysis(true).build();
+        // only C is instantiated, which inherits A.m
+        assertEquals(Arrays.asList(am, helper), sorted(cg.getCallees(entry)));
+        assertTrue(cg.getCallers(bm).isEmpty());
+
+        cg = new CallGraphBuilder(scope).setRapidTypeAnalysis(true).addInstantiatedClass(b).build();
+        assertEquals(Arrays.asList(am, bm, helper), sorted(cg.getCallees(entry)));
+    }
+
+    @Test
+    public void testReceiverType() {
+        // C inherits A.m, and B is not a subclass of C
+        helper.insns = new Instruction[] {invoke(Instruction.OP_INVOKE_VIRTUAL, c, am)};
+        assertEquals(Collections.singletonList(am), new CallGraphBuilder(scope).build().getCallees(helper));
+        assertEquals(Collections.singletonList(am), new CallGraphBuilder(scope)
+                .setOverrideIndex(OverrideIndex.build(scope)).build().getCallees(helper));
+        // the cache tells the receivers apart
+        helper.insns = new Instruction[] {
+                invoke(Instruction.OP_INVOKE_VIRTUAL, c, am),
+                invoke(Instruction.OP_INVOKE_VIRTUAL, b, am),
+        };
+        assertEquals(Arrays.asList(am, bm), sorted(new CallGraphBuilder(scope).build().getCallees(helper)));
+    }
+
+    @Test
+    public void testRebuild() {
+        CallGraphBuilder builder = new CallGraphBuilder(scope).setRapidTypeAnalysis(true);
+        assertEquals(Arrays.asList(am, helper), sorted(builder.build().getCallees(entry)));
+        // C is no longer instantiated
+        entry.insns[0].type = b;
+        assertEquals(Arrays.asList(bm, helper), sorted(builder.build().getCallees(entry)));
+    }
+
+    @Test
+    public void testNoLoadOnDemand() {
+        final ClassInfo lazy = scope.findOrCreateClass("Lazy");
+        scope.addOnDemandLoader(new ClassDetailLoader() {
+            @Override
+            public void load(ClassInfo ci) {
+                if (ci == lazy) {
+                    // loading creates more classes, which must not disturb the build
+                    scope.findOrCreateClass("Lazy$Inner");
+                    TestClasses.define(ci);
+                }
+            }
+        });
+        CallGraph cg = new CallGraphBuilder(scope).build();
+        assertFalse(lazy.isLoaded());
+        assertEquals(Arrays.asList(am, bm, helper), sorted(cg.getCallees(entry)));
+    }
+
+    @Test
+    public void testReadOnly() {
+        ClassInfo external = scope.findOrCreateClass("External");
+        MethodInfo unknown = method(external, "unknown", Modifier.STATIC);
+        helper.insns = new Instruction[] {invoke(Instruction.OP_INVOKE_STATIC, unknown)};
+        int count = scope.getMethodCount();
+        scope.seal();
+        CallGraph cg = new CallGraphBuilder(scope).build();
+        // the method never registered gets no id and no edge
+        assertEquals(count, scope.getMethodCount());
+        assertEquals(-1, unknown.getId());
+        assertTrue(cg.getCallees(helper).isEmpty());
+        assertEquals(Arrays.asList(am, bm, helper), sorted(cg.getCallees(entry)));
+    }
+}
@@ -0,0 +1,104 @@
+package patdroid.callgraph;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OverrideIndexTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo a = scope.findOrCreateClass("A");
+    private final ClassInfo b = scope.findOrCreateClass("B");
+    private final ClassInfo c = scope.findOrCreateClass("C");
+    private final ClassInfo d = scope.findOrCreateClass("D");
+    private final ClassInfo runnable = scope.findOrCreateClass("Runnable");
+    private final ClassInfo x = scope.findOrCreateClass("X");
+    private final ClassInfo y = scope.findOrCreateClass("Y");
+    private MethodInfo am, bm, dm, run, xrun, dstatic, astatic;
+
+    private MethodInfo method(ClassInfo owner, String name, int flags) {
+        return new MethodInfo(owner, new FullMethodSignature(scope.primitiveVoid, name), flags, false);
+    }
+
+    @Before
+    public void setUp() {
+        ClassInfo[] none = new ClassInfo[0];
+        am = method(a, "m", Modifier.PUBLIC | Modifier.ABSTRACT);
+        bm = method(b, "m", Modifier.PUBLIC);
+        dm = method(d, "m", Modifier.PUBLIC);
+        astatic = method(a, "s", Modifier.STATIC);
+        dstatic = method(d, "s", Modifier.STATIC);
+        run = method(runnable, "run", Modifier.PUBLIC | Modifier.ABSTRACT);
+        xrun = method(x, "run", Modifier.PUBLIC);
+        TestClasses.define(a, scope.rootObject, Modifier.ABSTRACT, none, am, astatic);
+        TestClasses.define(b, a, 0, none, bm);
+        TestClasses.define(c, a, 0, none);
+        TestClasses.define(d, b, 0, none, dm, dstatic);
+        TestClasses.define(runnable, null, Modifier.INTERFACE | Modifier.ABSTRACT, none, run);
+        // X.run overrides Runnable.run only for receivers of class Y
+        TestClasses.define(x, scope.rootObject, 0, none, xrun);
+        TestClasses.define(y, x, 0, new ClassInfo[] {runnable});
+    }
+
+    @Test
+    public void testOverriders() {
+        OverrideIndex index = OverrideIndex.build(scope);
+        assertEquals(ImmutableSet.of(bm, dm), new HashSet<MethodInfo>(index.getOverriders(am)));
+        assertEquals(Collections.singletonList(dm), index.getOverriders(bm));
+        assertTrue(index.getOverriders(dm).isEmpty());
+        assertTrue(index.getOverriders(astatic).isEmpty());
+        assertEquals(Collections.singletonList(xrun), index.getOverriders(run));
+        assertEquals(4, index.size());
+
+        // the abstract target is left out
+        assertEquals(ImmutableSet.of(bm, dm), new HashSet<MethodInfo>(Arrays.asList(index.getDispatchTargets(am))));
+        assertArrayEquals(new MethodInfo[] {run},
+                OverrideIndex.build(new Scope()).getDispatchTargets(run));
+    }
+
+    @Test
+    public void testCurrent() {
+        OverrideIndex index = OverrideIndex.build(scope);
+        assertTrue(index.isCurrent());
+        c.setBaseType(b);
+        assertFalse(index.isCurrent());
+    }
+
+    @Test
+    public void testSameCallGraph() {
+        ClassInfo main = scope.findOrCreateClass("Main");
+        MethodInfo entry = method(main, "main", Modifier.STATIC);
+        Instruction call = new Instruction();
+        call.opcode = Instruction.OP_INVOKE_OP;
+        call.opcode_aux = Instruction.OP_INVOKE_VIRTUAL;
+        call.extra = new Invocation(true, am, new int[0]);
+        Instruction callRun = new Instruction();
+        callRun.opcode = Instruction.OP_INVOKE_OP;
+        callRun.opcode_aux = Instruction.OP_INVOKE_INTERFACE;
+        callRun.extra = new Invocation(true, run, new int[0]);
+        entry.insns = new Instruction[] {call, callRun};
+        TestClasses.define(main, scope.rootObject, 0, new ClassInfo[0], entry);
+
+        CallGraph walked = new CallGraphBuilder(scope).build();
+        CallGraph indexed = new CallGraphBuilder(scope).setOverrideIndex(OverrideIndex.build(scope)).build();
+        assertTrue(walked.getCallees(entry).containsAll(Arrays.asList(bm, dm)));
+        // the walk does not find X.run, inherited by Y from a class not implementing Runnable
+        assertEquals(ImmutableSet.of(bm, dm, xrun), new HashSet<MethodInfo>(indexed.getCallees(entry)));
+    }
+}
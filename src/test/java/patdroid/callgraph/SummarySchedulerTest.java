@@ -0,0 +1,185 @@
+package patdroid.callgraph;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import patdroid.Settings;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SummarySchedulerTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo main = scope.findOrCreateClass("Main");
+    private final int nThreads = Settings.nThreads;
+    private MethodInfo entry, even, odd, leaf, self;
+    private CallGraph graph;
+
+    private MethodInfo method(String name) {
+        return new MethodInfo(main, new FullMethodSignature(scope.primitiveVoid, name), Modifier.STATIC, false);
+    }
+
+    private static Instruction[] calls(MethodInfo... targets) {
+        Instruction[] r = new Instruction[targets.length];
+        for (int k = 0; k < targets.length; ++k) {
+            r[k] = new Instruction();
+            r[k].opcode = Instruction.OP_INVOKE_OP;
+            r[k].opcode_aux = Instruction.OP_INVOKE_STATIC;
+            r[k].extra = new Invocation(true, targets[k], new int[0]);
+        }
+        return r;
+    }
+
+    /**
+     * The names of the methods reachable from a method
+     */
+    private static final SummaryScheduler.Analysis<Set<String>> REACHABLE = new SummaryScheduler.Analysis<Set<String>>() {
+        @Override
+        public Set<String> summarize(MethodInfo mi, SummaryScheduler.Summaries<Set<String>> summaries) {
+            Set<String> r = new HashSet<String>();
+            if (mi.insns != null) {
+                for (Instruction i : mi.insns) {
+                    MethodInfo callee = ((Invocation) i.extra).target;
+                    r.add(callee.signature.partialSignature.name);
+                    Set<String> s = summaries.get(callee);
+                    if (s != null) {
+                        r.addAll(s);
+                    }
+                }
+            }
+            return r;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        entry = method("main");
+        even = method("even");
+        odd = method("odd");
+        leaf = method("leaf");
+        self = method("self");
+        entry.insns = calls(even, self);
+        even.insns = calls(odd);
+        odd.insns = calls(even, leaf);
+        self.insns = calls(self);
+        TestClasses.define(main, entry, even, odd, leaf, self);
+        graph = new CallGraphBuilder(scope).build();
+    }
+
+    @After
+    public void tearDown() {
+        Settings.nThreads = nThreads;
+    }
+
+    @Test
+    public void testComponents() {
+        StronglyConnectedComponents sccs = new StronglyConnectedComponents(graph);
+        int c = sccs.getComponent(graph.getId(even));
+        assertEquals(c, sccs.getComponent(graph.getId(odd)));
+        assertEquals(2, sccs.getMembers(c).length);
+        assertTrue(sccs.isRecursive(c));
+        int s = sccs.getComponent(graph.getId(self));
+        assertTrue(sccs.isRecursive(s));
+        int l = sccs.getComponent(graph.getId(leaf));
+        assertFalse(sccs.isRecursive(l));
+        assertEquals(Collections.singletonList(l), toList(sccs.getCallees(c)));
+        int m = sccs.getComponent(graph.getId(entry));
+        assertEquals(ImmutableSet.of(c, s), new HashSet<Integer>(toList(sccs.getCallees(m))));
+        assertEquals(Collections.singletonList(m), toList(sccs.getCallers(s)));
+        // callees first
+        for (int k = 0; k < sccs.getComponentCount(); ++k) {
+            for (int callee : sccs.getCallees(k)) {
+                assertTrue(callee < k);
+            }
+        }
+    }
+
+    private static List<Integer> toList(int[] a) {
+        List<Integer> r = new ArrayList<Integer>();
+        for (int x : a) {
+            r.add(x);
+        }
+        return r;
+    }
+
+    private void checkSummaries(SummaryScheduler.Summaries<Set<String>> s) {
+        assertEquals(ImmutableSet.of("even", "odd", "leaf", "self"), s.get(entry));
+        assertEquals(ImmutableSet.of("even", "odd", "leaf"), s.get(even));
+        assertEquals(ImmutableSet.of("even", "odd", "leaf"), s.get(odd));
+        assertEquals(ImmutableSet.of("self"), s.get(self));
+        assertTrue(s.get(leaf).isEmpty());
+    }
+
+    @Test
+    public void testSerial() {
+        Settings.nThreads = 1;
+        checkSummaries(new SummaryScheduler(graph).run(REACHABLE));
+    }
+
+    @Test
+    public void testParallel() {
+        Settings.nThreads = 4;
+        checkSummaries(new SummaryScheduler(graph).run(REACHABLE));
+    }
+
+    @Test
+    public void testScheduledOnce() {
+        Settings.nThreads = 4;
+        // many callers whose callees finish while the leaves are still being scheduled
+        Scope scope = new Scope();
+        ClassInfo wide = scope.findOrCreateClass("Wide");
+        List<MethodInfo> methods = new ArrayList<MethodInfo>();
+        for (int k = 0; k < 500; ++k) {
+            MethodInfo callee = new MethodInfo(wide, new FullMethodSignature(scope.primitiveVoid, "callee" + k),
+                    Modifier.STATIC, false);
+            MethodInfo caller = new MethodInfo(wide, new FullMethodSignature(scope.primitiveVoid, "caller" + k),
+                    Modifier.STATIC, false);
+            caller.insns = calls(callee);
+            methods.add(callee);
+            methods.add(caller);
+        }
+        TestClasses.define(wide, methods.toArray(new MethodInfo[methods.size()]));
+        final Map<MethodInfo, Integer> counts = new ConcurrentHashMap<MethodInfo, Integer>();
+        new SummaryScheduler(new CallGraphBuilder(scope).build()).run(new SummaryScheduler.Analysis<Object>() {
+            @Override
+            public Object summarize(MethodInfo mi, SummaryScheduler.Summaries<Object> summaries) {
+                assertNull(counts.put(mi, 1));
+                return mi;
+            }
+        });
+        assertEquals(methods.size(), counts.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailure() {
+        Settings.nThreads = 4;
+        new SummaryScheduler(graph).run(new SummaryScheduler.Analysis<Object>() {
+            @Override
+            public Object summarize(MethodInfo mi, SummaryScheduler.Summaries<Object> summaries) {
+                if (mi == odd) {
+                    throw new IllegalStateException();
+                }
+                return mi;
+            }
+        });
+    }
+}
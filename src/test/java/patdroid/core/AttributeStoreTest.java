@@ -0,0 +1,73 @@
+package patdroid.core;
+
+import org.junit.Test;
+import patdroid.dalvik.Instruction;
+
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AttributeStoreTest {
+    private static final AttributeKey<String> NAME = AttributeKey.create("name");
+    private static final AttributeKey<Integer> COUNT = AttributeKey.create("count");
+
+    private final Scope scope = new Scope();
+    private final ClassInfo foo = scope.findOrCreateClass("Foo");
+
+    private MethodInfo method(String name) {
+        return new MethodInfo(foo, new FullMethodSignature(scope.primitiveVoid, name),
+                Modifier.STATIC, false);
+    }
+
+    @Test
+    public void testKeys() {
+        AttributeStore attrs = scope.attributes;
+        MethodInfo bar = method("bar");
+        MethodInfo baz = method("baz");
+        assertNull(attrs.get(NAME, bar));
+        attrs.set(NAME, bar, "bar");
+        attrs.set(COUNT, bar, 1);
+        attrs.set(COUNT, baz, 2);
+        attrs.set(NAME, foo, "foo");
+        assertEquals("bar", attrs.get(NAME, bar));
+        assertEquals(Integer.valueOf(1), attrs.get(COUNT, bar));
+        assertNull(attrs.get(NAME, baz));
+        assertEquals("foo", attrs.get(NAME, foo));
+        assertNull(attrs.get(COUNT, foo));
+
+        attrs.clear(NAME);
+        assertNull(attrs.get(NAME, bar));
+        assertNull(attrs.get(NAME, foo));
+        assertEquals(Integer.valueOf(2), attrs.get(COUNT, baz));
+        attrs.set(COUNT, baz, null);
+        assertNull(attrs.get(COUNT, baz));
+    }
+
+    @Test
+    public void testInstructions() {
+        AttributeStore attrs = scope.attributes;
+        MethodInfo bar = method("bar");
+        bar.insns = new Instruction[] {new Instruction(), new Instruction()};
+        attrs.set(NAME, bar, 1, "second");
+        assertNull(attrs.get(NAME, bar, 0));
+        assertEquals("second", attrs.get(NAME, bar, 1));
+        // replacing the instructions drops their attributes
+        bar.insns = new Instruction[] {new Instruction()};
+        assertNull(attrs.get(NAME, bar, 0));
+        attrs.set(NAME, bar, 0, "first");
+        assertEquals("first", attrs.get(NAME, bar, 0));
+    }
+
+    @Test
+    public void testManyElements() {
+        MethodInfo[] methods = new MethodInfo[3000];
+        for (int i = 0; i < methods.length; ++i) {
+            methods[i] = method("m" + i);
+            scope.attributes.set(COUNT, methods[i], i);
+        }
+        for (int i = 0; i < methods.length; ++i) {
+            assertEquals(Integer.valueOf(i), scope.attributes.get(COUNT, methods[i]));
+        }
+    }
+}
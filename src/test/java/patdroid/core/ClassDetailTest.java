@@ -0,0 +1,143 @@
+package patdroid.core;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClassDetailTest {
+    private final Scope scope = new Scope();
+
+    private ClassInfo define(String name, ClassInfo base, String... methodNames) {
+        ClassInfo ci = scope.findOrCreateClass(name);
+        List<MethodInfo> ms = new ArrayList<MethodInfo>();
+        for (String m : methodNames) {
+            ms.add(new MethodInfo(ci, new FullMethodSignature(scope.primitiveVoid, m), Modifier.PUBLIC, false));
+        }
+        TestClasses.define(ci, new ClassDetail.Builder()
+                .setBaseType(base)
+                .setAllMethods(ms)
+                .setIsFrameworkClass(false)
+                .build());
+        return ci;
+    }
+
+    private List<MethodInfo> methods(ClassInfo owner, int n) {
+        List<MethodInfo> r = new ArrayList<MethodInfo>();
+        for (int i = 0; i < n; ++i) {
+            r.add(new MethodInfo(owner, new FullMethodSignature(scope.primitiveVoid, "m" + i),
+                    Modifier.PUBLIC, false));
+        }
+        return r;
+    }
+
+    @Test
+    public void testRepresentationBySize() {
+        ClassInfo foo = scope.findOrCreateClass("Foo");
+        ClassDetail empty = new ClassDetail.Builder().build();
+        assertSame(Collections.emptyMap(), empty.methods);
+        assertSame(Collections.emptyMap(), empty.fields);
+
+        List<MethodInfo> few = methods(foo, 3);
+        ClassDetail small = new ClassDetail.Builder().setAllMethods(few).build();
+        assertTrue(small.methods instanceof SmallMap);
+        assertEquals(new ArrayList<MethodInfo>(few), new ArrayList<MethodInfo>(small.methods.values()));
+        for (MethodInfo mi : few) {
+            assertSame(mi, small.methods.get(mi.signature));
+        }
+        assertNull(small.methods.get(new FullMethodSignature(scope.primitiveInt, "m0")));
+
+        List<MethodInfo> many = methods(foo, SmallMap.MAX_SIZE + 1);
+        ClassDetail large = new ClassDetail.Builder().setAllMethods(many).build();
+        assertTrue(large.methods instanceof ImmutableMap);
+        assertEquals(many.size(), large.methods.size());
+    }
+
+    @Test
+    public void testSmallMap() {
+        Map<String, ClassInfo> m = new LinkedHashMap<String, ClassInfo>();
+        m.put("b", scope.primitiveInt);
+        m.put("a", scope.rootObject);
+        Map<String, ClassInfo> copy = SmallMap.copyOf(m);
+        assertEquals(m, copy);
+        assertEquals(m.hashCode(), copy.hashCode());
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<String>(copy.keySet()));
+        assertEquals(Arrays.asList(scope.primitiveInt, scope.rootObject), new ArrayList<ClassInfo>(copy.values()));
+        assertTrue(copy.keySet().contains("a"));
+        assertSame(copy, SmallMap.copyOf(copy));
+        assertTrue(copy.containsKey(new String("a")));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSmallMapImmutable() {
+        Map<String, ClassInfo> copy = SmallMap.copyOf(Collections.singletonMap("a", scope.rootObject));
+        copy.put("b", scope.rootObject);
+    }
+
+    @Test
+    public void testLazyMethodsIndex() {
+        ClassInfo foo = scope.findOrCreateClass("Foo");
+        List<MethodInfo> ms = methods(foo, 2);
+        ClassDetail detail = new ClassDetail.Builder().setAllMethods(ms).build();
+        assertNull(detail.methodsIndex);
+        assertEquals(1, detail.getMethodsIndex().get(ms.get(1).signature.partialSignature).size());
+        assertSame(detail.getMethodsIndex(), detail.methodsIndex);
+        assertSame(detail.methodsIndex, detail.changeBaseType(scope.rootObject).methodsIndex);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testImmutableCopiesCached() {
+        ClassInfo foo = define("Foo", scope.rootObject, "a", "b");
+        assertSame(foo.getAllMethods(), foo.getAllMethods());
+        assertSame(foo.getAllFieldsHere(), foo.getAllFieldsHere());
+        assertEquals(foo.getDetail().methods, foo.getDetail().getMethodsMap());
+        assertEquals(2, foo.getAllMethods().size());
+    }
+
+    @Test
+    public void testFindMethodsHereByName() {
+        ClassInfo foo = scope.findOrCreateClass("Foo");
+        List<MethodInfo> many = methods(foo, SmallMap.MAX_SIZE * 2);
+        many.add(new MethodInfo(foo, new FullMethodSignature(scope.primitiveInt, "m0", scope.primitiveInt),
+                Modifier.PUBLIC, false));
+        ClassDetail detail = new ClassDetail.Builder().setAllMethods(many).build();
+        assertEquals(2, detail.findMethodsHere("m0").length);
+        assertEquals(1, detail.findMethodsHere("m3").length);
+        assertEquals(0, detail.findMethodsHere("none").length);
+    }
+
+    @Test
+    public void testFindMethodsMemoized() {
+        ClassInfo base = define("Base", scope.rootObject, "a", "b");
+        ClassInfo other = define("Other", scope.rootObject, "a", "c");
+        ClassInfo sub = define("Sub", base, "a");
+        MethodInfo[] a = sub.findMethods("a");
+        // Sub.a overrides Base.a
+        assertEquals(1, a.length);
+        assertSame(sub, a[0].type);
+        assertEquals(0, sub.findMethods("c").length);
+
+        sub.setBaseType(other);
+        assertEquals(1, sub.findMethods("c").length);
+        assertEquals(0, sub.findMethods("b").length);
+
+        // a base class loaded later is seen by the lookups of its subclasses
+        ClassInfo late = scope.findOrCreateClass("Late");
+        ClassInfo child = define("Child", late);
+        assertEquals(0, child.findMethods("d").length);
+        define("Late", scope.rootObject, "d");
+        assertEquals(1, child.findMethods("d").length);
+    }
+}
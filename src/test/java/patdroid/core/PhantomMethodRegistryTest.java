@@ -0,0 +1,69 @@
+package patdroid.core;
+
+import org.junit.Test;
+import patdroid.dalvik.Invocation;
+
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PhantomMethodRegistryTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo foo = scope.findOrCreateClass("Foo");
+
+    @Test
+    public void testInternAndUpgrade() {
+        PhantomMethodRegistry phantoms = scope.phantoms;
+        FullMethodSignature bar = new FullMethodSignature(scope.primitiveVoid, "bar");
+        FullMethodSignature baz = new FullMethodSignature(scope.primitiveVoid, "baz");
+        Invocation i1 = phantoms.createInvocation(foo, bar, new int[0]);
+        Invocation i2 = phantoms.createInvocation(foo, new FullMethodSignature(scope.primitiveVoid, "bar"), new int[0]);
+        Invocation i3 = phantoms.createInvocation(foo, baz, new int[0]);
+        assertSame(i1.target, i2.target);
+        assertFalse(i1.isResolved);
+        assertTrue(phantoms.isPhantom(i1.target));
+        assertEquals(2, phantoms.getSiteCount(i1.target));
+        assertEquals(2, phantoms.size());
+        assertTrue(i1.target.getId() >= 0);
+
+        // only bar turns out to exist
+        MethodInfo real = new MethodInfo(foo, bar, Modifier.PUBLIC, false);
+        TestClasses.define(foo, real);
+        assertSame(real, i1.target);
+        assertSame(real, i2.target);
+        assertTrue(i2.isResolved);
+        assertFalse(i3.isResolved);
+        assertEquals(1, phantoms.size());
+        assertEquals(1, phantoms.getSiteCount(i3.target));
+        assertEquals(0, phantoms.upgradeAll());
+    }
+
+    @Test(timeout = 10000)
+    public void testLockOrder() throws InterruptedException {
+        final FullMethodSignature bar = new FullMethodSignature(scope.primitiveVoid, "bar");
+        scope.phantoms.createInvocation(foo, bar, new int[0]);
+        final ClassInfo other = scope.findOrCreateClass("Other");
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // a loader defines classes under the lock of the scope, upgrading phantoms
+                synchronized (scope) {
+                    TestClasses.define(foo, new MethodInfo(foo, bar, Modifier.PUBLIC, false));
+                }
+            }
+        });
+        // a translator creating an invocation, holding the registry
+        synchronized (scope.phantoms) {
+            loader.start();
+            while (loader.getState() != Thread.State.BLOCKED && loader.getState() != Thread.State.TERMINATED) {
+                Thread.sleep(1);
+            }
+            scope.phantoms.createInvocation(other, bar, new int[0]);
+        }
+        loader.join();
+        assertEquals(1, scope.phantoms.size());
+    }
+}
@@ -0,0 +1,316 @@
+package patdroid.core;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import patdroid.dalvik.Instruction;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScopeTest {
+    private final Scope scope = new Scope();
+
+    @Test
+    public void testDenseIds() {
+        int nClasses = scope.getClassCount();
+        ClassInfo foo = scope.findOrCreateClass("Foo");
+        assertEquals(nClasses, foo.id);
+        assertSame(foo, scope.getClassById(foo.id));
+        assertEquals(nClasses + 1, scope.getClassCount());
+        for (int id = 0; id < scope.getClassCount(); ++id) {
+            assertEquals(id, scope.getClassById(id).id);
+        }
+
+        MethodInfo bar = new MethodInfo(foo, new FullMethodSignature(scope.primitiveVoid, "bar"),
+                Modifier.PUBLIC, false);
+        MethodInfo baz = new MethodInfo(foo, new FullMethodSignature(scope.primitiveVoid, "baz"),
+                Modifier.STATIC, false);
+        assertEquals(-1, bar.getId());
+        TestClasses.define(foo, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Arrays.asList(bar, baz))
+                .setFields(ImmutableMap.of("f", scope.primitiveInt))
+                .setStaticFields(ImmutableMap.of("s", foo))
+                .setIsFrameworkClass(false)
+                .build());
+        assertEquals(2, scope.getMethodCount());
+        assertSame(bar, scope.getMethodById(bar.getId()));
+        assertSame(baz, scope.getMethodById(baz.getId()));
+        assertEquals(2, scope.getFieldCount());
+        FieldInfo f = new FieldInfo(foo, "f");
+        assertEquals(f, scope.getFieldById(scope.getFieldId(f)));
+        assertEquals(-1, scope.getFieldId(new FieldInfo(foo, "nothing")));
+        FieldInfo s = new FieldInfo(foo, "s");
+        assertEquals(s, scope.getFieldById(scope.getFieldId(s)));
+        assertEquals(-1, scope.getFieldId(new FieldInfo(new Scope().findOrCreateClass("Foo"), "f")));
+
+        MethodInfo dummy = new MethodInfo(foo, new FullMethodSignature(scope.primitiveVoid, "dummy"),
+                Modifier.PUBLIC, false);
+        int id = scope.registerMethod(dummy);
+        assertEquals(2, id);
+        assertEquals(id, scope.registerMethod(dummy));
+        assertEquals(3, scope.getMethodCount());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDetachedClass() {
+        int nClasses = scope.getClassCount();
+        ClassInfo detached = new ClassInfo(scope, "Detached");
+        assertEquals(nClasses, detached.id);
+        assertSame(detached, scope.getClassById(detached.id));
+        assertNull(scope.findClass("Detached"));
+        assertEquals(nClasses + 1, scope.findOrCreateClass("Detached").id);
+        // a detached class leaves no empty package in the tree
+        ClassInfo inner = new ClassInfo(scope, "com.example.Detached");
+        assertEquals("com.example", inner.getPackageName());
+        assertEquals("com", inner.getPackage().parent.name);
+        assertNull(scope.findPackage("com"));
+        assertSame(scope.findPackage("java.lang"), new ClassInfo(scope, "java.lang.Detached").getPackage());
+    }
+
+    private ClassInfo define(String name, ClassInfo base, MethodInfo... methods) {
+        ClassInfo ci = scope.findOrCreateClass(name);
+        TestClasses.define(ci, new ClassDetail.Builder()
+                .setBaseType(base)
+                .setAllMethods(Arrays.asList(methods))
+                .setIsFrameworkClass(false)
+                .build());
+        return ci;
+    }
+
+    @Test
+    public void testUnloadLayer() {
+        ClassInfo framework = define("Framework", scope.rootObject);
+        Scope.Layer layer = scope.mark();
+        int nClasses = scope.getClassCount();
+        int nMethods = scope.getMethodCount();
+
+        ClassInfo app = scope.findOrCreateClass("App");
+        MethodInfo m = new MethodInfo(app, new FullMethodSignature(scope.primitiveVoid, "m"),
+                Modifier.PUBLIC, false);
+        Instruction call = new Instruction();
+        call.extra = scope.phantoms.createInvocation(scope.findOrCreateClass("Missing"),
+                new FullMethodSignature(scope.primitiveVoid, "gone"), new int[0]);
+        m.insns = new Instruction[] {call};
+        define("App", framework, m);
+        AttributeKey<String> key = AttributeKey.create("test");
+        scope.attributes.set(key, m, "x");
+        assertTrue(framework.mutableDetail.derivedClasses.contains(app));
+        assertEquals(1, scope.phantoms.size());
+
+        int generation = scope.getIdGeneration();
+        assertEquals(2, scope.unload(layer));
+        assertTrue(scope.getIdGeneration() != generation);
+        assertFalse(framework.mutableDetail.derivedClasses.contains(app));
+        assertFalse(scope.rootObject.mutableDetail.derivedClasses.contains(app));
+        assertNull(scope.findClass("App"));
+        assertNull(scope.findClass("Missing"));
+        assertNull(m.insns);
+        assertEquals(0, scope.phantoms.size());
+        assertEquals(nClasses, scope.getClassCount());
+        assertEquals(nMethods, scope.getMethodCount());
+        assertTrue(framework.isLoaded());
+
+        // the ids are given back
+        ClassInfo next = define("Next", framework, new MethodInfo(scope.findOrCreateClass("Next"),
+                new FullMethodSignature(scope.primitiveVoid, "n"), Modifier.PUBLIC, false));
+        assertEquals(nClasses, next.id);
+        MethodInfo n = next.findMethodsHere("n")[0];
+        assertEquals(nMethods, n.getId());
+        assertNull(scope.attributes.get(key, n));
+    }
+
+    @Test
+    public void testUnloadClasses() {
+        ClassInfo base = define("Base", scope.rootObject);
+        ClassInfo a = define("A", base);
+        ClassInfo b = define("B", a);
+        scope.unload(Collections.singletonList(a));
+        assertFalse(a.isLoaded());
+        assertNull(scope.findClass("A"));
+        assertNull(scope.getClassById(a.id));
+        // B stays below Base, but no longer below the unloaded A
+        assertTrue(base.mutableDetail.derivedClasses.contains(b));
+        assertFalse(base.mutableDetail.derivedClasses.contains(a));
+        assertTrue(b.isLoaded());
+
+        // the array types go with their element class and its package
+        ClassInfo c = scope.findOrCreateClass("com.app.C");
+        ClassInfo array = scope.findOrCreateClass("[[Lcom.app.C;");
+        scope.unload(Collections.singletonList(c));
+        assertNull(scope.findClass("[Lcom.app.C;"));
+        assertNull(scope.findClass("[[Lcom.app.C;"));
+        assertNull(scope.getClassById(array.id));
+        assertNull(scope.findPackage("com.app"));
+    }
+
+    @Test
+    public void testHeapFootprint() {
+        ClassInfo app = scope.findOrCreateClass("com.example.App");
+        MethodInfo m = new MethodInfo(app, new FullMethodSignature(scope.primitiveVoid, "m"),
+                Modifier.PUBLIC, false);
+        Instruction call = new Instruction();
+        call.extra = scope.phantoms.createInvocation(scope.findOrCreateClass("Missing"),
+                new FullMethodSignature(scope.primitiveVoid, "gone"), new int[0]);
+        Instruction str = new Instruction();
+        str.extra = "hello";
+        m.insns = new Instruction[] {call, str};
+        define("com.example.App", scope.rootObject, m);
+        AttributeKey<String> origin = AttributeKey.create("origin");
+        scope.attributes.set(origin, app, "classes.dex");
+
+        HeapFootprint footprint = HeapFootprint.measure(scope, origin);
+        for (HeapFootprint.Category c : HeapFootprint.Category.values()) {
+            assertTrue(c.name(), footprint.get(c) > 0);
+        }
+        assertEquals(2, footprint.getInstructionCount());
+        long sum = 0;
+        for (long v : footprint.getByPackage().values()) {
+            sum += v;
+        }
+        assertEquals(footprint.getTotal() - footprint.get(HeapFootprint.Category.PHANTOMS), sum);
+        assertTrue(footprint.getByPackage().containsKey("com.example"));
+        assertEquals(1, footprint.getByOrigin().size());
+        assertTrue(footprint.getByOrigin().get("classes.dex") < footprint.getTotal());
+    }
+
+    @Test
+    public void testSeal() {
+        ClassInfo base = define("Base", scope.rootObject);
+        MethodInfo m = new MethodInfo(base, new FullMethodSignature(scope.primitiveVoid, "m"),
+                Modifier.PUBLIC, false);
+        ClassInfo a = define("pkg.A", base, m);
+        for (int i = 0; i < 1000; ++i) {
+            scope.findOrCreateClass("pkg.sub.C" + i);
+        }
+        // "Aa" and "BB" share a hash code
+        ClassInfo aa = scope.findOrCreateClass("Aa");
+        ClassInfo bb = scope.findOrCreateClass("BB");
+        int nClasses = scope.getClassCount();
+        scope.seal();
+        assertTrue(scope.isSealed());
+
+        for (int id = 0; id < nClasses; ++id) {
+            ClassInfo ci = scope.getClassById(id);
+            assertSame(ci, scope.findClass(ci.fullName));
+            assertSame(ci, scope.findOrCreateClass(ci.fullName));
+            assertTrue(scope.hasClass(ci));
+        }
+        assertSame(aa, scope.findClass("Aa"));
+        assertSame(bb, scope.findClass("BB"));
+        assertSame(a, scope.findClass(new String("pkg.A")));
+        assertNull(scope.findClass("pkg.B"));
+        assertEquals(nClasses, scope.getAllClassNames().size());
+        assertSame(m, scope.getMethodById(m.getId()));
+        assertEquals(m.getId(), scope.registerMethod(m));
+        assertEquals(1, a.findMethods("m").length);
+        // attributes are still writable
+        AttributeKey<String> key = AttributeKey.create("test");
+        scope.attributes.set(key, m, "x");
+        assertEquals("x", scope.attributes.get(key, m));
+    }
+
+    @Test
+    public void testSealedTableFallback() {
+        ArrayList<ClassInfo> classes = new ArrayList<ClassInfo>();
+        for (int i = 0; i < 100; ++i) {
+            classes.add(scope.findOrCreateClass("C" + i));
+        }
+        // no table size is tried, every name goes to the map on the side
+        SealedClassTable table = new SealedClassTable(classes, 0);
+        assertEquals(100, table.size());
+        for (ClassInfo ci : classes) {
+            assertSame(ci, table.get(ci.fullName));
+        }
+        assertNull(table.get("D"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSealedRejectsNewMethodAttributes() {
+        scope.seal();
+        MethodInfo m = new MethodInfo(scope.rootObject, new FullMethodSignature(scope.primitiveVoid, "late"),
+                Modifier.PUBLIC, false);
+        scope.attributes.set(AttributeKey.<String>create("test"), m, "x");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSealedRejectsNewPhantoms() {
+        FullMethodSignature known = new FullMethodSignature(scope.primitiveVoid, "known");
+        MethodInfo phantom = scope.phantoms.intern(scope.rootObject, known);
+        scope.seal();
+        // phantoms created before sealing are still found
+        assertSame(phantom, scope.phantoms.intern(scope.rootObject, known));
+        scope.phantoms.intern(scope.rootObject, new FullMethodSignature(scope.primitiveVoid, "late"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSealedRejectsNewClasses() {
+        scope.seal();
+        scope.findOrCreateClass("New");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSealedRejectsLoading() {
+        ClassInfo ci = scope.findOrCreateClass("Late");
+        scope.seal();
+        TestClasses.define(ci, new ClassDetail.Builder().setBaseType(scope.rootObject).build());
+    }
+
+    @Test
+    public void testPackages() {
+        ClassInfo a = scope.findOrCreateClass("com.google.a.A");
+        ClassInfo inner = scope.findOrCreateClass("com.google.a.A$1");
+        ClassInfo b = scope.findOrCreateClass("com.google.B");
+        ClassInfo other = scope.findOrCreateClass("com.googlex.C");
+        ClassInfo array = scope.findOrCreateClass("[[Lcom.google.B;");
+
+        assertEquals("com.google.a", a.getPackageName());
+        assertSame(a.getPackage(), inner.getPackage());
+        assertEquals("A$1", inner.getShortName());
+        assertTrue(inner.isInnerClass());
+        assertSame(a, inner.getOuterClass());
+        assertFalse(a.isInnerClass());
+        assertEquals("int", scope.primitiveInt.getShortName());
+        assertTrue(scope.primitiveInt.getPackage().isDefault());
+        assertEquals(2, array.getArrayDepth());
+        assertEquals(0, b.getArrayDepth());
+        assertSame(b.getPackage(), array.getPackage());
+
+        PackageInfo google = scope.findPackage("com.google.");
+        assertSame(google, scope.findPackage("com.google"));
+        assertEquals("google", google.getSimpleName());
+        assertEquals(Collections.singletonList(b), google.getClasses());
+        assertEquals(3, scope.getClassesUnder("com.google").size());
+        assertTrue(google.contains(inner));
+        assertFalse(google.contains(other));
+        assertTrue(scope.getClassesUnder("com.nothing").isEmpty());
+
+        scope.unload(Arrays.asList(a, inner));
+        assertNull(scope.findPackage("com.google.a"));
+        assertEquals(Collections.singletonList(b), scope.getClassesUnder("com.google"));
+    }
+
+    @Test
+    public void testArrayElementClass() {
+        int nClasses = scope.getClassCount();
+        ClassInfo array = scope.findOrCreateClass("[[Lcom.example.Elem;");
+        ClassInfo ints = scope.findOrCreateClass("[I");
+        assertEquals(nClasses + 4, scope.getClassCount());
+        ClassInfo elem = scope.findClass("com.example.Elem");
+        assertSame(elem, array.getElementClass().getElementClass());
+        assertSame(elem.getPackage(), scope.findPackage("com.example"));
+        assertNull(scope.findClass("Lcom.example.Elem;"));
+        assertNull(scope.findPackage("Lcom"));
+        assertSame(scope.primitiveInt, ints.getElementClass());
+        assertNull(scope.findClass("I"));
+    }
+}
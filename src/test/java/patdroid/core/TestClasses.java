@@ -0,0 +1,56 @@
+package patdroid.core;
+
+import java.util.Arrays;
+
+/**
+ * Define the classes of a test scope by hand, as a loader would
+ */
+public final class TestClasses extends ClassDetailLoader {
+    private TestClasses() {}
+
+    /**
+     * @param ci the class
+     * @param detail its details
+     */
+    public static void define(ClassInfo ci, ClassDetail detail) {
+        setDetail(ci, detail);
+    }
+
+    /**
+     * Define an app class extending java.lang.Object
+     * @param ci the class
+     * @param methods its methods
+     */
+    public static void define(ClassInfo ci, MethodInfo... methods) {
+        define(ci, ci.scope.rootObject, methods);
+    }
+
+    /**
+     * Define an app class
+     * @param ci the class
+     * @param base its base class
+     * @param methods its methods
+     */
+    public static void define(ClassInfo ci, ClassInfo base, MethodInfo... methods) {
+        define(ci, base, 0, new ClassInfo[0], methods);
+    }
+
+    /**
+     * Define an app class
+     * @param ci the class
+     * @param base its base class, null for an interface
+     * @param flags its access flags
+     * @param interfaces the interfaces it implements
+     * @param methods its methods
+     */
+    public static void define(ClassInfo ci, ClassInfo base, int flags, ClassInfo[] interfaces,
+            MethodInfo... methods) {
+        setDetail(ci, new ClassDetail.Builder()
+                .setBaseType(base)
+                .setInterfaces(Arrays.asList(interfaces))
+                .setAccessFlags(flags)
+                .setAllMethods(Arrays.asList(methods))
+                .setIsFrameworkClass(false)
+                .build());
+    }
+}
@@ -0,0 +1,165 @@
+package patdroid.dataflow;
+
+import org.junit.Test;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.PrimitiveInfo;
+import patdroid.core.Scope;
+import patdroid.core.TryBlockInfo;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LivenessTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo owner = scope.findOrCreateClass("Foo");
+
+    private MethodInfo method(Instruction... insns) {
+        MethodInfo mi = new MethodInfo(owner,
+                new FullMethodSignature(scope.primitiveInt, "bar", scope.primitiveInt),
+                Modifier.STATIC, false);
+        mi.insns = insns;
+        mi.tbs = new TryBlockInfo[0];
+        return mi;
+    }
+
+    private static Instruction args(int... regs) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_SPECIAL;
+        i.opcode_aux = Instruction.OP_SP_ARGUMENTS;
+        i.extra = regs;
+        return i;
+    }
+
+    private Instruction constant(int reg, int v) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_MOV;
+        i.opcode_aux = Instruction.OP_MOV_CONST;
+        i.rdst = (short) reg;
+        i.type = scope.primitiveVoid;
+        i.extra = PrimitiveInfo.fromInt(scope, v);
+        return i;
+    }
+
+    private static Instruction ifz(int reg, int target) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_IF;
+        i.opcode_aux = Instruction.OP_IF_EQZ;
+        i.r0 = (short) reg;
+        i.extra = target;
+        return i;
+    }
+
+    private static Instruction add(int dst, int a, int b) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_ARITHETIC;
+        i.opcode_aux = Instruction.OP_A_ADD;
+        i.rdst = (short) dst;
+        i.r0 = (short) a;
+        i.r1 = (short) b;
+        return i;
+    }
+
+    private static Instruction ret(int reg) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_RETURN;
+        i.opcode_aux = Instruction.OP_RETURN_SOMETHING;
+        i.r0 = (short) reg;
+        return i;
+    }
+
+    private static Instruction move(byte aux, int reg) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_MOV;
+        i.opcode_aux = aux;
+        i.rdst = (short) reg;
+        return i;
+    }
+
+    private Instruction invoke(MethodInfo target, int... regs) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_INVOKE_OP;
+        i.opcode_aux = Instruction.OP_INVOKE_STATIC;
+        i.extra = new Invocation(true, target, regs);
+        return i;
+    }
+
+    @Test
+    public void testDefUse() {
+        MethodInfo mi = method(args(3), constant(0, 1), add(1, 0, 3), ret(1));
+        DefUse du = DefUse.of(mi);
+        assertSame(du, DefUse.of(mi));
+        assertEquals(4, du.registerCount);
+        assertEquals(1, du.getDefCount(0));
+        assertEquals(3, du.getDef(0, 0));
+        assertEquals(0, du.getUseCount(1));
+        assertTrue(du.defines(2, 1));
+        assertTrue(du.uses(2, 0));
+        assertTrue(du.uses(2, 3));
+        assertEquals(0, du.getDefCount(3));
+        assertTrue(du.uses(3, 1));
+    }
+
+    @Test
+    public void testBranches() {
+        MethodInfo mi = method(
+                args(2),        // 0
+                constant(0, 1), // 1
+                constant(1, 5), // 2
+                ifz(2, 6),      // 3
+                constant(1, 7), // 4
+                add(0, 0, 1),   // 5
+                ret(0));        // 6
+        ControlFlowGraph cfg = ControlFlowGraph.of(mi);
+        assertEquals(3, cfg.getBlockCount());
+        assertArrayEquals(new int[] {1, 2}, cfg.getSuccessors(0));
+        assertArrayEquals(new int[] {0, 1}, cfg.getPredecessors(2));
+
+        Liveness l = Liveness.of(mi);
+        assertFalse(l.isDeadStore(1));
+        assertTrue(l.isDeadStore(2));
+        assertFalse(l.isDeadStore(4));
+        assertTrue(l.isLiveIn(3, 2));
+        assertTrue(l.isLiveIn(3, 0));
+        assertFalse(l.isLiveIn(3, 1));
+        assertFalse(l.isLiveOut(5, 1));
+        assertEquals(1, l.getBlockLiveIn(2).cardinality());
+    }
+
+    @Test
+    public void testExceptionHandler() {
+        MethodInfo callee = method();
+        MethodInfo mi = method(
+                args(1),                                  // 0
+                constant(0, 0),                           // 1
+                invoke(callee, 1),                        // 2
+                move(Instruction.OP_MOV_RESULT, 0),       // 3
+                ret(0),                                   // 4
+                move(Instruction.OP_MOV_EXCEPTION, 1),    // 5
+                ret(0));                                  // 6
+        TryBlockInfo tb = new TryBlockInfo();
+        tb.startInsnIndex = 2;
+        tb.endInsnIndex = 3;
+        TryBlockInfo.ExceptionHandler h = new TryBlockInfo.ExceptionHandler();
+        h.handlerInsnIndex = 5;
+        tb.handlers = new TryBlockInfo.ExceptionHandler[] {h};
+        mi.tbs = new TryBlockInfo[] {tb};
+
+        ControlFlowGraph cfg = ControlFlowGraph.of(mi);
+        int tryBlock = cfg.getBlockOf(2);
+        assertArrayEquals(new int[] {cfg.getBlockOf(5)}, cfg.getExceptionSuccessors(tryBlock));
+        // the handler reads r0 as it was before the call
+        Liveness l = Liveness.of(mi);
+        assertFalse(l.isDeadStore(1));
+        assertTrue(l.isLiveIn(2, 0));
+        assertTrue(l.isDeadStore(5));
+    }
+}
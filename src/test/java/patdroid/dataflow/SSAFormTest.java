@@ -0,0 +1,114 @@
+package patdroid.dataflow;
+
+import org.junit.Test;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.PrimitiveInfo;
+import patdroid.core.Scope;
+import patdroid.core.TryBlockInfo;
+import patdroid.dalvik.Instruction;
+
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SSAFormTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo owner = scope.findOrCreateClass("Foo");
+
+    private Instruction insn(byte opcode, byte aux, int rdst, int r0, int r1, Object extra) {
+        Instruction i = new Instruction();
+        i.opcode = opcode;
+        i.opcode_aux = aux;
+        i.rdst = (short) rdst;
+        i.r0 = (short) r0;
+        i.r1 = (short) r1;
+        i.extra = extra;
+        return i;
+    }
+
+    private Instruction constant(int reg, int v) {
+        return insn(Instruction.OP_MOV, Instruction.OP_MOV_CONST, reg, -1, -1, PrimitiveInfo.fromInt(scope, v));
+    }
+
+    @Test
+    public void testPhiPlacement() {
+        MethodInfo mi = new MethodInfo(owner,
+                new FullMethodSignature(scope.primitiveInt, "bar", scope.primitiveInt),
+                Modifier.STATIC, false);
+        mi.tbs = new TryBlockInfo[0];
+        mi.insns = new Instruction[] {
+                insn(Instruction.OP_SPECIAL, Instruction.OP_SP_ARGUMENTS, -1, -1, -1, new int[] {2}),
+                constant(0, 1),
+                constant(1, 5),
+                insn(Instruction.OP_IF, Instruction.OP_IF_EQZ, -1, 2, -1, 6),
+                constant(1, 7),
+                insn(Instruction.OP_ARITHETIC, Instruction.OP_A_ADD, 0, 0, 1, null),
+                insn(Instruction.OP_RETURN, Instruction.OP_RETURN_SOMETHING, -1, 0, -1, null),
+        };
+        SSAForm ssa = SSAForm.of(mi);
+        assertSame(ssa, SSAForm.of(mi));
+
+        DominatorTree dom = ssa.dominators;
+        assertEquals(0, dom.getImmediateDominator(1));
+        assertEquals(0, dom.getImmediateDominator(2));
+        assertTrue(dom.dominates(0, 2));
+        assertArrayEquals(new int[] {2}, dom.getDominanceFrontier(1));
+
+        // r0 needs a phi at the return, r1 is dead there
+        assertEquals(1, ssa.getPhiCount());
+        assertArrayEquals(new int[] {0}, ssa.getPhis(2));
+        assertEquals(0, ssa.getPhiRegister(0));
+        final int v0 = ssa.getDefValue(1, 0);
+        final int v0Add = ssa.getDefValue(5, 0);
+        assertArrayEquals(new int[] {v0, v0Add}, ssa.getPhiOperands(0));
+        assertEquals(ssa.getPhiValue(0), ssa.getValueAt(6, 0));
+        assertEquals(0, ssa.getDefPhi(ssa.getPhiValue(0)));
+
+        // def-use chains
+        assertArrayEquals(new int[] {5}, ssa.getUses(v0));
+        assertArrayEquals(new int[] {0}, ssa.getPhiUses(v0));
+        assertEquals(ssa.getDefValue(4, 0), ssa.getValueAt(5, 1));
+        assertEquals(0, ssa.getUses(ssa.getDefValue(2, 0)).length);
+        final int param = ssa.getDefValue(0, 0);
+        assertEquals(2, ssa.getRegister(param));
+        assertEquals(0, ssa.getDefInstruction(param));
+        assertArrayEquals(new int[] {3}, ssa.getUses(param));
+    }
+
+    @Test
+    public void testHandlerSeesValueBeforeThrow() {
+        MethodInfo mi = new MethodInfo(owner,
+                new FullMethodSignature(scope.primitiveInt, "get", owner),
+                Modifier.STATIC, false);
+        mi.insns = new Instruction[] {
+                insn(Instruction.OP_SPECIAL, Instruction.OP_SP_ARGUMENTS, -1, -1, -1, new int[] {1}),
+                constant(0, 0),
+                insn(Instruction.OP_INSTANCE_OP, Instruction.OP_INSTANCE_GET_FIELD, -1, 1, 0, null),
+                insn(Instruction.OP_RETURN, Instruction.OP_RETURN_SOMETHING, -1, 0, -1, null),
+                insn(Instruction.OP_RETURN, Instruction.OP_RETURN_SOMETHING, -1, 0, -1, null),
+        };
+        TryBlockInfo tb = new TryBlockInfo();
+        tb.startInsnIndex = 2;
+        tb.endInsnIndex = 3;
+        TryBlockInfo.ExceptionHandler h = new TryBlockInfo.ExceptionHandler();
+        h.handlerInsnIndex = 4;
+        tb.handlers = new TryBlockInfo.ExceptionHandler[] {h};
+        mi.tbs = new TryBlockInfo[] {tb};
+
+        SSAForm ssa = SSAForm.of(mi);
+        final int handler = ssa.cfg.getBlockOf(4);
+        assertEquals(1, ssa.cfg.getPredecessors(handler).length);
+        // the handler has a phi of r0 taking the constant, not the field read
+        final int[] phis = ssa.getPhis(handler);
+        assertEquals(1, phis.length);
+        assertEquals(0, ssa.getPhiRegister(phis[0]));
+        assertArrayEquals(new int[] {ssa.getDefValue(1, 0)}, ssa.getPhiOperands(phis[0]));
+        assertEquals(ssa.getPhiValue(phis[0]), ssa.getValueAt(4, 0));
+        assertEquals(ssa.getDefValue(2, 0), ssa.getValueAt(3, 0));
+    }
+}
@@ -0,0 +1,203 @@
+package patdroid.pass;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import patdroid.Settings;
+import patdroid.callgraph.CallGraph;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.dataflow.Liveness;
+import patdroid.util.JSONWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PassManagerTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo main = scope.findOrCreateClass("Main");
+    private final int nThreads = Settings.nThreads;
+    private MethodInfo entry, helper;
+    private PassManager pm;
+
+    private final AtomicInteger sizeRuns = new AtomicInteger();
+    private final AtomicInteger totalRuns = new AtomicInteger();
+    /**
+     * The number of instructions of a method
+     */
+    private final MethodPass<Integer> size = new MethodPass<Integer>("size") {
+        @Override
+        protected Integer run(MethodInfo mi, PassManager pm) {
+            sizeRuns.incrementAndGet();
+            return mi.insns == null ? 0 : mi.insns.length;
+        }
+    };
+    /**
+     * The number of instructions of the methods of Main
+     */
+    private final ScopePass<Integer> total = new ScopePass<Integer>("total", size) {
+        @Override
+        protected Integer run(PassManager pm) {
+            totalRuns.incrementAndGet();
+            int r = 0;
+            for (MethodInfo mi : main.getAllMethods()) {
+                r += pm.get(size, mi);
+            }
+            return r;
+        }
+
+        @Override
+        protected boolean usesHierarchy() {
+            return false;
+        }
+    };
+
+    private static Instruction invoke(MethodInfo target) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_INVOKE_OP;
+        i.opcode_aux = Instruction.OP_INVOKE_STATIC;
+        i.extra = new Invocation(true, target, new int[0]);
+        return i;
+    }
+
+    private static Instruction returnVoid() {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_RETURN;
+        return i;
+    }
+
+    @Before
+    public void setUp() {
+        entry = new MethodInfo(main, new FullMethodSignature(scope.primitiveVoid, "main"), Modifier.STATIC, false);
+        helper = new MethodInfo(main, new FullMethodSignature(scope.primitiveVoid, "helper"), Modifier.STATIC, false);
+        entry.insns = new Instruction[] {invoke(helper), returnVoid()};
+        helper.insns = new Instruction[] {returnVoid()};
+        TestClasses.define(main, entry, helper);
+        pm = new PassManager(scope);
+    }
+
+    @After
+    public void tearDown() {
+        Settings.nThreads = nThreads;
+    }
+
+    @Test
+    public void testCaching() {
+        assertEquals(3, (int) pm.get(total));
+        assertEquals(3, (int) pm.get(total));
+        assertEquals(1, totalRuns.get());
+        assertEquals(2, sizeRuns.get());
+        assertEquals(2, (int) pm.get(size, entry));
+        assertEquals(2, sizeRuns.get());
+
+        // a method pass result follows the instructions
+        helper.insns = new Instruction[] {returnVoid(), returnVoid()};
+        assertEquals(2, (int) pm.get(size, helper));
+        assertEquals(3, sizeRuns.get());
+        // the scope pass must be told
+        assertEquals(3, (int) pm.get(total));
+        pm.invalidate(helper);
+        assertEquals(4, (int) pm.get(total));
+        assertEquals(2, totalRuns.get());
+        assertEquals(4, sizeRuns.get());
+
+        // invalidating an input invalidates the passes using it
+        pm.invalidate(size);
+        assertEquals(4, (int) pm.get(total));
+        assertEquals(3, totalRuns.get());
+        assertEquals(6, sizeRuns.get());
+    }
+
+    @Test
+    public void testHierarchy() {
+        CallGraph cg = pm.get(StandardPasses.CALL_GRAPH);
+        assertEquals(Collections.singletonList(helper), cg.getCallees(entry));
+        assertSame(cg, pm.get(StandardPasses.CALL_GRAPH));
+        main.setBaseType(scope.rootObject);
+        assertNotSame(cg, pm.get(StandardPasses.CALL_GRAPH));
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        Settings.nThreads = 4;
+        pm.run(Arrays.asList(total, StandardPasses.LIVENESS, StandardPasses.CALL_GRAPH));
+        assertEquals(1, totalRuns.get());
+        assertEquals(2, sizeRuns.get());
+        Liveness l = pm.get(StandardPasses.LIVENESS, entry);
+        assertNotNull(l);
+        assertSame(l.cfg, pm.get(StandardPasses.CONTROL_FLOW_GRAPH, entry));
+
+        assertEquals(7, pm.getStats().size());
+        for (PassManager.Stats s : pm.getStats()) {
+            assertTrue(s.name, s.runs >= 1);
+            assertTrue(s.name, s.time >= 0);
+        }
+        StringWriter out = new StringWriter();
+        JSONWriter w = new JSONWriter(out);
+        pm.writeJSON(w, null);
+        w.flush();
+        assertTrue(out.toString(), out.toString().contains("\"call-graph\""));
+    }
+
+    @Test
+    public void testRunOnOnePool() {
+        Settings.nThreads = 4;
+        ClassInfo many = scope.findOrCreateClass("Many");
+        MethodInfo[] methods = new MethodInfo[200];
+        for (int k = 0; k < methods.length; ++k) {
+            methods[k] = new MethodInfo(many, new FullMethodSignature(scope.primitiveVoid, "m" + k),
+                    Modifier.STATIC, false);
+            methods[k].insns = new Instruction[] {returnVoid()};
+        }
+        TestClasses.define(many, methods);
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        MethodPass<Object> first = new MethodPass<Object>("first") {
+            @Override
+            protected Object run(MethodInfo mi, PassManager pm) {
+                threads.add(Thread.currentThread());
+                return null;
+            }
+        };
+        MethodPass<Object> second = new MethodPass<Object>("second") {
+            @Override
+            protected Object run(MethodInfo mi, PassManager pm) {
+                threads.add(Thread.currentThread());
+                return null;
+            }
+        };
+        pm.run(Arrays.asList(first, second));
+        assertTrue(threads.toString(), threads.size() <= 4);
+    }
+
+    @Test
+    public void testAllocatedBytes() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        MethodPass<Object> alloc = new MethodPass<Object>("alloc") {
+            @Override
+            protected Object run(MethodInfo mi, PassManager pm) {
+                return new byte[1 << 20];
+            }
+        };
+        pm.get(alloc, entry);
+        assertTrue(pm.getStats().get(0).allocatedBytes >= 1 << 20);
+    }
+}
@@ -0,0 +1,138 @@
+package patdroid.persist;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import patdroid.core.ClassDetail;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.permission.APIMapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CorpusIndexTest {
+    private static final String NET = "perm:android.permission.INTERNET";
+    private static final String SMS = "perm:android.permission.SEND_SMS";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private List<String> names(CorpusIndex index, String query) {
+        return index.getApkNames(index.query(query));
+    }
+
+    private File populate() throws IOException {
+        File dir = tmp.newFolder("corpus");
+        CorpusIndexWriter w = new CorpusIndexWriter(dir, 2);
+        w.add("a.apk", Arrays.asList(NET, "api:x"));
+        w.add("b.apk", Arrays.asList(SMS, NET));
+        w.add("c.apk", Collections.singletonList("api:x"));
+        assertEquals(1, w.getPendingCount());
+        w.flush();
+        assertEquals(0, w.getPendingCount());
+        return dir;
+    }
+
+    @Test
+    public void testQueries() throws IOException {
+        CorpusIndex index = CorpusIndex.open(populate());
+        assertEquals(3, index.getApkCount());
+        assertEquals(2, index.getSegmentCount());
+        assertEquals(Arrays.asList("a.apk", "c.apk"), names(index, "\"api:x\""));
+        assertEquals(Collections.singletonList("a.apk"), names(index, "\"api:x\" AND \"" + NET + "\""));
+        assertEquals(Arrays.asList("a.apk", "b.apk", "c.apk"), names(index, "\"api:x\" OR \"" + SMS + "\""));
+        assertEquals(Collections.singletonList("c.apk"), names(index, "NOT(\"" + NET + "\")"));
+        assertEquals(Collections.singletonList("b.apk"),
+                names(index, "NOT \"api:x\" AND (\"" + SMS + "\" OR \"none\")"));
+        assertTrue(index.find("none").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedQuery() throws IOException {
+        CorpusIndex.open(populate()).query("\"api:x\" AND");
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        File dir = populate();
+        CorpusIndex before = CorpusIndex.open(dir);
+        CorpusIndex.compact(dir);
+        CorpusIndex after = CorpusIndex.open(dir);
+        assertEquals(1, after.getSegmentCount());
+        assertEquals(before.find(NET), after.find(NET));
+        assertEquals(before.find("api:x"), after.find("api:x"));
+        // an index opened before still reads the old segments
+        assertEquals(Arrays.asList("a.apk", "b.apk"), names(before, "\"" + NET + "\""));
+
+        CorpusIndexWriter w = new CorpusIndexWriter(dir, 10);
+        w.add("d.apk", Collections.singletonList(NET));
+        w.flush();
+        CorpusIndex appended = CorpusIndex.open(dir);
+        assertEquals(2, appended.getSegmentCount());
+        assertEquals(Arrays.asList("a.apk", "b.apk", "d.apk"), names(appended, "\"" + NET + "\""));
+    }
+
+    @Test
+    public void testTempFiles() throws IOException {
+        File dir = populate();
+        File crashed = new File(dir, "segment1.tmp");
+        assertTrue(crashed.createNewFile());
+        assertEquals(3, CorpusIndex.open(dir).getApkCount());
+        assertFalse(crashed.exists());
+    }
+
+    @Test
+    public void testFindTerms() {
+        Scope scope = new Scope();
+        ClassInfo socket = scope.findOrCreateClass("java.net.Socket");
+        ClassInfo app = scope.findOrCreateClass("com.app.Main");
+        ClassInfo missing = scope.findOrCreateClass("com.app.Missing");
+        MethodInfo connect = new MethodInfo(socket,
+                new FullMethodSignature(scope.primitiveVoid, "connect", scope.primitiveInt), Modifier.PUBLIC, false);
+        MethodInfo helper = new MethodInfo(app, new FullMethodSignature(scope.primitiveVoid, "helper"),
+                Modifier.STATIC, false);
+        MethodInfo run = new MethodInfo(missing, new FullMethodSignature(scope.primitiveVoid, "run"),
+                Modifier.STATIC, false);
+        Instruction callConnect = new Instruction();
+        callConnect.opcode = Instruction.OP_INVOKE_OP;
+        callConnect.extra = new Invocation(true, connect, new int[] {0, 1});
+        Instruction callHelper = new Instruction();
+        callHelper.opcode = Instruction.OP_INVOKE_OP;
+        callHelper.extra = new Invocation(true, helper, new int[0]);
+        // a class that is not loaded may belong to the app
+        Instruction callMissing = new Instruction();
+        callMissing.opcode = Instruction.OP_INVOKE_OP;
+        callMissing.extra = new Invocation(true, run, new int[0]);
+        helper.insns = new Instruction[] {callConnect, callHelper, callMissing};
+        TestClasses.define(socket, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Collections.singletonList(connect))
+                .setIsFrameworkClass(true)
+                .build());
+        TestClasses.define(app, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Collections.singletonList(helper))
+                .setIsFrameworkClass(false)
+                .build());
+        APIMapping mapping = new APIMapping();
+        mapping.add(connect, "android.permission.INTERNET");
+
+        assertEquals(ImmutableSet.of("api:java.net.Socket.connect(int)", NET),
+                CorpusIndexWriter.findTerms(scope, mapping));
+    }
+}
@@ -0,0 +1,123 @@
+package patdroid.persist;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Invocation;
+import patdroid.smali.SmaliClassDetailLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static patdroid.smali.DexBuilders.classDef;
+import static patdroid.smali.DexBuilders.method;
+
+public class ScopeSerializationTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Scope translate() {
+        Scope scope = new Scope();
+        ImmutableDexFile dex = new ImmutableDexFile(Opcodes.forApi(19), ImmutableSet.of(
+                classDef("LA;", "Ljava/lang/Object;", method("LA;", "f",
+                        new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 0, 0, 0, 0, 0, 0,
+                                new ImmutableMethodReference("LB;", "g", ImmutableList.<String>of(), "V")))),
+                classDef("LB;", "LA;", method("LB;", "g"))));
+        SmaliClassDetailLoader.fromDexfile(dex, true).loadAll(scope);
+        return scope;
+    }
+
+    private static void assertSameInstructions(MethodInfo expected, MethodInfo actual) {
+        assertEquals(expected.insns.length, actual.insns.length);
+        for (int i = 0; i < expected.insns.length; ++i) {
+            assertEquals(expected.insns[i].toString(), actual.insns[i].toString());
+        }
+    }
+
+    @Test
+    public void testLoadAll() throws IOException {
+        Scope original = translate();
+        ClassInfo a = original.findClass("A");
+        File file = folder.newFile("scope.bin");
+        ScopeWriter.write(original, file, Collections.singletonMap("A", "0123"));
+
+        Scope scope = new Scope();
+        ScopeReader reader = ScopeReader.open(scope, file);
+        assertTrue(reader.defines("A"));
+        assertFalse(reader.defines("C"));
+        assertEquals("0123", reader.getClassHash("A"));
+        assertNull(reader.getClassHash("B"));
+        reader.loadAll();
+
+        ClassInfo a2 = scope.findClass("A");
+        ClassInfo b2 = scope.findClass("B");
+        assertSame(a2, b2.getBaseType());
+        assertTrue(a2.mutableDetail.derivedClasses.contains(b2));
+        MethodInfo f = a2.findMethodsHere("f")[0];
+        assertSameInstructions(a.findMethodsHere("f")[0], f);
+        Invocation invocation = (Invocation) f.insns[1].extra;
+        assertSame(b2.findMethodsHere("g")[0], invocation.target);
+    }
+
+    @Test
+    public void testLoadOnDemand() {
+        Scope original = translate();
+        byte[] b = ScopeWriter.toByteArray(original, ImmutableMap.<String, String>of());
+
+        Scope scope = new Scope();
+        scope.addOnDemandLoader(new ScopeReader(scope, ByteBuffer.wrap(b)));
+        MethodInfo f = scope.findOrCreateClass("A").findMethodsHere("f")[0];
+        assertSameInstructions(original.findClass("A").findMethodsHere("f")[0], f);
+        Invocation invocation = (Invocation) f.insns[1].extra;
+        assertTrue(invocation.isResolved);
+        assertSame(scope.findClass("B"), invocation.target.type);
+    }
+
+    @Test(timeout = 10000)
+    public void testLockOrder() throws InterruptedException {
+        byte[] b = ScopeWriter.toByteArray(translate(), ImmutableMap.<String, String>of());
+        final Scope scope = new Scope();
+        final ScopeReader reader = new ScopeReader(scope, ByteBuffer.wrap(b));
+        scope.addOnDemandLoader(reader);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reader.loadClasses(Collections.singletonList("B"));
+            }
+        });
+        synchronized (scope) {
+            t.start();
+            while (t.getState() != Thread.State.BLOCKED) {
+                Thread.sleep(1);
+            }
+            // a query loading on demand holds the scope, and must not wait for the other thread
+            assertNotNull(scope.findOrCreateClass("A").findMethodsHere("f")[0].insns);
+        }
+        t.join();
+        assertTrue(scope.findClass("B").isLoaded());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectUnknownFormat() {
+        new ScopeReader(new Scope(), ByteBuffer.wrap(new byte[32]));
+    }
+}
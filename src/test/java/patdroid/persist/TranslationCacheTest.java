@@ -0,0 +1,184 @@
+package patdroid.persist;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11n;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.PrimitiveInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Invocation;
+import patdroid.smali.SmaliClassDetailLoader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static patdroid.smali.DexBuilders.call;
+import static patdroid.smali.DexBuilders.classDef;
+import static patdroid.smali.DexBuilders.method;
+
+public class TranslationCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ImmutableDexFile dex() {
+        return new ImmutableDexFile(Opcodes.forApi(19), ImmutableSet.of(
+                classDef("LA;", method("LA;", "f",
+                        new ImmutableInstruction11n(Opcode.CONST_4, 0, 5),
+                        new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("hello")),
+                        new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 0, 0, 0, 0, 0, 0,
+                                new ImmutableMethodReference("LB;", "g", ImmutableList.<String>of(), "V")))),
+                classDef("LB;", method("LB;", "g"))));
+    }
+
+    private static Scope load(TranslationCache cache) {
+        Scope scope = new Scope();
+        SmaliClassDetailLoader loader = SmaliClassDetailLoader.fromDexfile(dex(), true);
+        loader.setCache(cache);
+        loader.loadAll(scope);
+        return scope;
+    }
+
+    @Test
+    public void testReuseTranslation() {
+        File dir = folder.getRoot();
+        TranslationCache cache = new TranslationCache(dir, 1 << 20);
+        Scope first = load(cache);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // a fresh cache object over the same directory, as another process would see it
+        TranslationCache reopened = new TranslationCache(dir, 1 << 20);
+        Scope second = load(reopened);
+        assertEquals(2, reopened.getHitCount());
+        assertEquals(0, reopened.getMissCount());
+
+        MethodInfo f1 = first.findClass("A").findMethodsHere("f")[0];
+        MethodInfo f2 = second.findClass("A").findMethodsHere("f")[0];
+        assertEquals(f1.insns.length, f2.insns.length);
+        for (int i = 0; i < f1.insns.length; ++i) {
+            assertEquals(f1.insns[i].opcode, f2.insns[i].opcode);
+            assertEquals(f1.insns[i].opcode_aux, f2.insns[i].opcode_aux);
+            assertEquals(f1.insns[i].rdst, f2.insns[i].rdst);
+            assertEquals(f1.insns[i].r0, f2.insns[i].r0);
+            assertEquals(f1.insns[i].r1, f2.insns[i].r1);
+        }
+        // the first instruction sets the arguments
+        assertEquals(5, ((PrimitiveInfo) f2.insns[1].extra).intValue());
+        assertEquals("hello", f2.insns[2].extra);
+        Invocation invocation = (Invocation) f2.insns[3].extra;
+        ClassInfo b = second.findClass("B");
+        assertTrue(invocation.isResolved);
+        assertSame(b.findMethodsHere("g")[0], invocation.target);
+        assertArrayEquals(new int[0], invocation.args);
+    }
+
+    @Test
+    public void testInheritedTarget() {
+        TranslationCache cache = new TranslationCache(folder.getRoot(), 1 << 20);
+        ClassDef a = classDef("LA;", method("LA;", "f", call("LC;", "g")));
+        SmaliClassDetailLoader v1 = SmaliClassDetailLoader.fromDexfile(new ImmutableDexFile(Opcodes.forApi(19),
+                ImmutableSet.of(a, classDef("LB;", method("LB;", "g")), classDef("LC;", "LB;"))), true);
+        v1.setCache(cache);
+        Scope first = new Scope();
+        v1.loadAll(first);
+        Invocation invocation = (Invocation) first.findClass("A").findMethodsHere("f")[0].insns[1].extra;
+        assertSame(first.findClass("C"), invocation.owner);
+        assertSame(first.findClass("B").findMethodsHere("g")[0], invocation.target);
+
+        // C now overrides g, the cached translation of A must resolve the call to it
+        SmaliClassDetailLoader v2 = SmaliClassDetailLoader.fromDexfile(new ImmutableDexFile(Opcodes.forApi(19),
+                ImmutableSet.of(a, classDef("LB;", method("LB;", "g")),
+                        classDef("LC;", "LB;", method("LC;", "g")))), true);
+        v2.setCache(cache);
+        Scope second = new Scope();
+        v2.loadAll(second);
+        // A and B are unchanged
+        assertEquals(2, cache.getHitCount());
+        invocation = (Invocation) second.findClass("A").findMethodsHere("f")[0].insns[1].extra;
+        assertSame(second.findClass("C").findMethodsHere("g")[0], invocation.target);
+    }
+
+    @Test
+    public void testStaleTempFiles() throws IOException {
+        File subdir = folder.newFolder("ab");
+        File stale = new File(subdir, "cdef123.tmp");
+        File fresh = new File(subdir, "cdef456.tmp");
+        assertTrue(stale.createNewFile());
+        assertTrue(fresh.createNewFile());
+        stale.setLastModified(1000);
+        new TranslationCache(folder.getRoot(), 1 << 20);
+        assertFalse(stale.exists());
+        assertTrue(fresh.exists());
+    }
+
+    @Test
+    public void testDamagedEntry() throws IOException {
+        TranslationCache cache = new TranslationCache(folder.getRoot(), 1 << 20);
+        cache.put("abcdef", new byte[] {1, 2, 3});
+        assertArrayEquals(new byte[] {1, 2, 3}, cache.get("abcdef"));
+        File entry = new File(new File(folder.getRoot(), "ab"), "cdef");
+        FileOutputStream out = new FileOutputStream(entry);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        assertNull(cache.get("abcdef"));
+        assertFalse(entry.exists());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        TranslationCache cache = new TranslationCache(folder.getRoot(), 100);
+        cache.put("aa01", new byte[40]);
+        new File(new File(folder.getRoot(), "aa"), "01").setLastModified(1000);
+        cache.put("aa02", new byte[40]);
+        cache.put("aa03", new byte[40]);
+        assertNull(cache.get("aa01"));
+        assertEquals(40, cache.get("aa03").length);
+    }
+
+    @Test
+    public void testConcurrentEviction() throws InterruptedException {
+        // caches of the same directory in one process evict at once
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final TranslationCache cache = new TranslationCache(folder.getRoot(), 100);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 50; ++k) {
+                            cache.evict();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,167 @@
+package patdroid.similarity;
+
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Test;
+import patdroid.Settings;
+import patdroid.core.ClassDetail;
+import patdroid.core.ClassInfo;
+import patdroid.core.FieldInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.smali.DexBuilders;
+import patdroid.smali.SmaliClassDetailLoader;
+import patdroid.util.Pair;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo string = scope.findOrCreateClass("java.lang.String");
+
+    private static Instruction insn(byte opcode, byte aux, int dst, ClassInfo type, Object extra) {
+        Instruction i = new Instruction();
+        i.opcode = opcode;
+        i.opcode_aux = aux;
+        i.rdst = (short) dst;
+        i.type = type;
+        i.extra = extra;
+        return i;
+    }
+
+    /**
+     * Define an app class with a method "helper" and a method "run" calling it and
+     * String.length, using registers from a base register
+     */
+    private ClassInfo define(String name, String helperName, int reg, boolean extra) {
+        ClassInfo ci = scope.findOrCreateClass(name);
+        MethodInfo helper = new MethodInfo(ci, new FullMethodSignature(scope.primitiveVoid, helperName),
+                Modifier.STATIC, false);
+        MethodInfo length = new MethodInfo(string, new FullMethodSignature(scope.primitiveInt, "length"),
+                Modifier.PUBLIC, false);
+        MethodInfo run = new MethodInfo(ci, new FullMethodSignature(scope.primitiveVoid, "run"),
+                Modifier.STATIC, false);
+        run.insns = new Instruction[] {
+                insn(Instruction.OP_NEW, Instruction.OP_NEW_INSTANCE, reg, ci, null),
+                insn(Instruction.OP_MOV, Instruction.OP_MOV_CONST, reg + 1, string, "hello"),
+                insn(Instruction.OP_INVOKE_OP, Instruction.OP_INVOKE_VIRTUAL, -1, null,
+                        new Invocation(true, length, new int[] {reg + 1})),
+                insn(Instruction.OP_INSTANCE_OP, Instruction.OP_INSTANCE_PUT_FIELD, -1, null,
+                        new FieldInfo(ci, helperName + "Field")),
+                insn(Instruction.OP_STATIC_OP, Instruction.OP_STATIC_GET_FIELD, reg, null,
+                        new Pair<ClassInfo, String>(string, "CASE_INSENSITIVE_ORDER")),
+                insn(Instruction.OP_INVOKE_OP, Instruction.OP_INVOKE_STATIC, -1, null,
+                        new Invocation(true, helper, new int[0])),
+                insn(Instruction.OP_RETURN, Instruction.OP_RETURN_VOID, -1, null, null),
+        };
+        if (extra) {
+            run.insns = Arrays.copyOf(run.insns, run.insns.length + 1);
+            run.insns[run.insns.length - 1] = run.insns[2];
+        }
+        TestClasses.define(ci, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Arrays.asList(helper, run))
+                .setIsFrameworkClass(false)
+                .build());
+        return ci;
+    }
+
+    private static Fingerprint run(ClassInfo ci) {
+        return Fingerprint.of(ci.findMethodsHere("run")[0]);
+    }
+
+    @Test
+    public void testRenamedMethodsMatch() {
+        ClassInfo a = define("com.lib.Util", "helper", 1, false);
+        ClassInfo b = define("a.a", "b", 5, false);
+        assertEquals(run(a), run(b));
+        assertEquals(1.0, run(a).similarity(run(b)), 0);
+        assertNull(Fingerprint.of(a.findMethodsHere("helper")[0]));
+
+        // one more instruction changes the hash, but not much the signature
+        Fingerprint c = run(define("b.b", "c", 1, true));
+        assertNotEquals(run(a).hash, c.hash);
+        assertTrue(c.similarity(run(a)) > 0.5);
+    }
+
+    @Test
+    public void testAggregates() {
+        define("com.lib.Util", "helper", 1, false);
+        define("com.lib.more.Other", "other", 2, true);
+        define("a.a", "b", 5, false);
+        Fingerprint.computeAll(scope);
+        ClassInfo util = scope.findClass("com.lib.Util");
+        assertEquals(run(util), Fingerprint.get(util.findMethodsHere("run")[0]));
+        assertEquals(Fingerprint.get(util), Fingerprint.get(scope.findClass("a.a")));
+        assertEquals(Fingerprint.union(Collections.singletonList(run(util))), Fingerprint.get(util));
+
+        Fingerprint lib = Fingerprint.get(scope.findPackage("com.lib"));
+        Fingerprint reversed = Fingerprint.union(Arrays.asList(
+                Fingerprint.get(scope.findClass("com.lib.more.Other")), Fingerprint.get(util)));
+        assertEquals(lib, reversed);
+        assertNull(Fingerprint.get(scope.findPackage("java.lang")));
+    }
+
+    @Test
+    public void testLshIndex() {
+        LshIndex<String> index = new LshIndex<String>();
+        index.add("lib", run(define("com.lib.Util", "helper", 1, false)));
+        index.add("other", run(define("com.lib.more.Other", "other", 2, true)));
+        Fingerprint query = run(define("a.a", "b", 5, false));
+        assertEquals(Collections.singletonList("lib"), index.findExact(query));
+        List<Pair<String, Double>> similar = index.query(query, 0.5);
+        assertEquals("lib", similar.get(0).first);
+        assertEquals(1.0, similar.get(0).second, 0);
+        assertEquals(2, index.size());
+    }
+
+    @Test(timeout = 60000)
+    public void testComputeWhileLoading() throws Exception {
+        final int n = 300;
+        ImmutableSet.Builder<ClassDef> classes = ImmutableSet.builder();
+        for (int k = 0; k < n; ++k) {
+            classes.add(DexBuilders.classDef("LC" + k + ";",
+                    DexBuilders.method("LC" + k + ";", "f", DexBuilders.call("LC" + k + ";", "f"))));
+        }
+        scope.addOnDemandLoader(SmaliClassDetailLoader.fromDexfile(
+                new ImmutableDexFile(Opcodes.forApi(19), classes.build()), true));
+        int nThreads = Settings.nThreads;
+        Settings.nThreads = 4;
+        try {
+            Thread loader = new Thread() {
+                @Override
+                public void run() {
+                    for (int k = 0; k < n; ++k) {
+                        scope.findOrCreateClass("C" + k).findMethodsHere("f");
+                    }
+                }
+            };
+            loader.start();
+            while (loader.isAlive()) {
+                Fingerprint.computeAll(scope);
+            }
+            loader.join();
+            Fingerprint.computeAll(scope);
+        } finally {
+            Settings.nThreads = nThreads;
+        }
+        for (int k = 0; k < n; ++k) {
+            ClassInfo ci = scope.findClass("C" + k);
+            assertEquals(Fingerprint.of(ci.findMethodsHere("f")[0]), Fingerprint.get(ci.findMethodsHere("f")[0]));
+        }
+    }
+}
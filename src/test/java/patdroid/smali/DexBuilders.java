@@ -0,0 +1,82 @@
+package patdroid.smali;
+
+import com.google.common.collect.ImmutableList;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+
+import java.util.Arrays;
+
+/**
+ * Build the dex classes of a test by hand, to be loaded by a {@link SmaliClassDetailLoader}
+ */
+public final class DexBuilders {
+    private DexBuilders() {}
+
+    /**
+     * @param owner the type of the callee, e.g. "LA;"
+     * @param name the name of the callee
+     * @return an invoke-static of a method without parameters returning void
+     */
+    public static Instruction call(String owner, String name) {
+        return new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 0, 0, 0, 0, 0, 0,
+                new ImmutableMethodReference(owner, name, ImmutableList.<String>of(), "V"));
+    }
+
+    /**
+     * Build a public static method without parameters returning void
+     * @param owner the type of the class of the method
+     * @param name the name of the method
+     * @param insns its instructions, followed by a return-void
+     * @return the method
+     */
+    public static Method method(String owner, String name, Instruction... insns) {
+        return method(owner, name, AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), insns);
+    }
+
+    /**
+     * Build a method without parameters returning void
+     * @param owner the type of the class of the method
+     * @param name the name of the method
+     * @param flags its access flags
+     * @param insns its instructions, followed by a return-void
+     * @return the method
+     */
+    public static Method method(String owner, String name, int flags, Instruction... insns) {
+        ImmutableList<Instruction> l = ImmutableList.<Instruction>builder()
+                .add(insns).add(new ImmutableInstruction10x(Opcode.RETURN_VOID)).build();
+        return new ImmutableMethod(owner, name, ImmutableList.<MethodParameter>of(), "V", flags, null,
+                new ImmutableMethodImplementation(1, l, null, null));
+    }
+
+    /**
+     * Build a public class extending java.lang.Object
+     * @param type the type of the class, e.g. "LA;"
+     * @param methods its methods
+     * @return the class
+     */
+    public static ClassDef classDef(String type, Method... methods) {
+        return classDef(type, "Ljava/lang/Object;", methods);
+    }
+
+    /**
+     * Build a public class
+     * @param type the type of the class, e.g. "LA;"
+     * @param superclass the type of its base class
+     * @param methods its methods
+     * @return the class
+     */
+    public static ClassDef classDef(String type, String superclass, Method... methods) {
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass, null, null, null,
+                null, Arrays.asList(methods));
+    }
+}
@@ -0,0 +1,69 @@
+package patdroid.smali;
+
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Test;
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.dalvik.Invocation;
+import patdroid.persist.ScopeReader;
+import patdroid.persist.ScopeWriter;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static patdroid.smali.DexBuilders.call;
+import static patdroid.smali.DexBuilders.classDef;
+import static patdroid.smali.DexBuilders.method;
+
+public class IncrementalLoadTest {
+
+    @Test
+    public void testLoadIncremental() {
+        ClassDef a = classDef("LA;", method("LA;", "f", call("LB;", "g"), call("LC;", "h")));
+        SmaliClassDetailLoader v1 = SmaliClassDetailLoader.fromDexfile(new ImmutableDexFile(Opcodes.forApi(19),
+                ImmutableSet.of(a, classDef("LB;", method("LB;", "g")), classDef("LC;", method("LC;", "h")))), true);
+        Scope old = new Scope();
+        v1.loadAll(old);
+        byte[] previous = ScopeWriter.toByteArray(old, v1.getClassHashes());
+
+        SmaliClassDetailLoader v2 = SmaliClassDetailLoader.fromDexfile(new ImmutableDexFile(Opcodes.forApi(19),
+                ImmutableSet.of(a, classDef("LB;", method("LB;", "g", call("LD;", "k"))),
+                        classDef("LD;", method("LD;", "k")))), true);
+        Scope scope = new Scope();
+        ScopeDelta delta = v2.loadIncremental(scope, new ScopeReader(scope, ByteBuffer.wrap(previous)));
+        assertEquals(Collections.singletonList("D"), delta.added);
+        assertEquals(Collections.singletonList("B"), delta.changed);
+        assertEquals(Collections.singletonList("C"), delta.removed);
+        assertEquals(1, delta.unchangedCount);
+        assertFalse(delta.isEmpty());
+
+        ClassInfo b = scope.findClass("B");
+        MethodInfo f = scope.findClass("A").findMethodsHere("f")[0];
+        // the unchanged class now calls the new translation of B
+        assertSame(b.findMethodsHere("g")[0], ((Invocation) f.insns[1].extra).target);
+        // and the removed class is gone
+        assertFalse(((Invocation) f.insns[2].extra).isResolved);
+        ClassInfo c = scope.findClass("C");
+        assertTrue(c == null || !c.isLoaded());
+        MethodInfo g = b.findMethodsHere("g")[0];
+        assertNotNull(g.insns);
+        assertSame(scope.findClass("D"), ((Invocation) g.insns[1].extra).target.type);
+
+        // the same version again changes nothing
+        byte[] current = ScopeWriter.toByteArray(scope, v2.getClassHashes());
+        Scope again = new Scope();
+        ScopeDelta none = v2.loadIncremental(again, new ScopeReader(again, ByteBuffer.wrap(current)));
+        assertTrue(none.isEmpty());
+        assertEquals(3, none.unchangedCount);
+        assertFalse(again.findClass("C").isLoaded());
+    }
+}
@@ -0,0 +1,82 @@
+package patdroid.smali;
+
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Test;
+import patdroid.Settings;
+import patdroid.core.ClassInfo;
+import patdroid.core.Scope;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static patdroid.smali.DexBuilders.call;
+import static patdroid.smali.DexBuilders.classDef;
+import static patdroid.smali.DexBuilders.method;
+
+public class ReachabilityTest {
+    private final Scope scope = new Scope();
+
+    @Test
+    public void testLoadReachable() {
+        final int pub = AccessFlags.PUBLIC.getValue();
+        final int stat = pub | AccessFlags.STATIC.getValue();
+        ImmutableDexFile dex = new ImmutableDexFile(Opcodes.forApi(19), ImmutableSet.of(
+                classDef("LMainActivity;", "Landroid/app/Activity;",
+                        method("LMainActivity;", "onCreate", pub, call("LHelper;", "used"))),
+                classDef("LHelper;", "Ljava/lang/Object;",
+                        method("LHelper;", "used", stat),
+                        method("LHelper;", "unused", stat, call("LDead;", "m"))),
+                classDef("LDead;", "Ljava/lang/Object;",
+                        method("LDead;", "m", stat))));
+        SmaliClassDetailLoader.fromDexfile(dex, true).loadReachable(scope);
+
+        ClassInfo main = scope.findClass("MainActivity");
+        assertNotNull(main.findMethodsHere("onCreate")[0].insns);
+        ClassInfo helper = scope.findClass("Helper");
+        assertNotNull(helper.findMethodsHere("used")[0].insns);
+        assertNull(helper.findMethodsHere("unused")[0].insns);
+        ClassInfo dead = scope.findClass("Dead");
+        assertTrue(dead == null || dead.getAllMethods().isEmpty());
+        assertEquals(2, helper.getAllMethods().size());
+    }
+
+    @Test(timeout = 30000)
+    public void testParallelLoadAndTranslate() {
+        final int pub = AccessFlags.PUBLIC.getValue();
+        final int stat = pub | AccessFlags.STATIC.getValue();
+        final int n = 200;
+        // translating the workers loads classes on demand and interns phantoms at once
+        Instruction[] calls = new Instruction[n];
+        ImmutableSet.Builder<ClassDef> classes = ImmutableSet.builder();
+        for (int k = 0; k < n; ++k) {
+            calls[k] = call("LWorker" + k + ";", "run");
+            classes.add(classDef("LWorker" + k + ";", "Ljava/lang/Object;",
+                    method("LWorker" + k + ";", "run", stat,
+                            call("LLoaded" + k + ";", "m"),
+                            call("LMissing" + k + ";", "m"),
+                            call("LMissing" + (k + 1) + ";", "m"))));
+            classes.add(classDef("LLoaded" + k + ";", "Ljava/lang/Object;", method("LLoaded" + k + ";", "m", stat)));
+        }
+        classes.add(classDef("LMainActivity;", "Landroid/app/Activity;",
+                method("LMainActivity;", "onCreate", pub, calls)));
+        int nThreads = Settings.nThreads;
+        Settings.nThreads = 8;
+        try {
+            SmaliClassDetailLoader.fromDexfile(new ImmutableDexFile(Opcodes.forApi(19), classes.build()), true)
+                    .loadReachable(scope);
+        } finally {
+            Settings.nThreads = nThreads;
+        }
+        for (int k = 0; k < n; ++k) {
+            assertNotNull(scope.findClass("Worker" + k).findMethodsHere("run")[0].insns);
+            assertTrue(scope.findClass("Loaded" + k).isLoaded());
+        }
+        assertEquals(n + 1, scope.phantoms.size());
+    }
+}
@@ -1,12 +1,21 @@
 package patdroid.smali;
 
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
 import org.junit.Assert;
 import org.junit.Test;
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
 import patdroid.core.Scope;
 
 import java.io.File;
 import java.util.logging.Logger;
 
+import static patdroid.smali.DexBuilders.call;
+import static patdroid.smali.DexBuilders.classDef;
+import static patdroid.smali.DexBuilders.method;
+
 public class SmaliLoaderTest {
     private static final File FRAMEWORK_CLASSES_FOLDER = new File("apilevels");
     private static final int API_LEVEL = 19;
@@ -29,4 +38,39 @@ public class SmaliLoaderTest {
         Assert.assertFalse(scope.findClass("java.lang.Object").isConvertibleTo(scope.findClass("android.view.View")));
         Assert.assertNull(scope.findClass("android.bluetooth.le.ScanResult")); // api21
     }
+
+    @Test
+    public void testLoadOnDemand() {
+        SmaliClassDetailLoader ldr;
+        try {
+            ldr = SmaliClassDetailLoader.fromFramework(FRAMEWORK_CLASSES_FOLDER, API_LEVEL);
+        } catch (RuntimeException e) {
+            logger.info("framework classes loader test skipped, API19 not available");
+            return ;
+        }
+        scope.addOnDemandLoader(ldr);
+        int nClasses = scope.getClassCount();
+        ClassInfo activity = scope.findOrCreateClass("android.app.Activity");
+        Assert.assertFalse(activity.isMissing());
+        Assert.assertTrue(activity.isConvertibleTo(scope.findOrCreateClass("android.content.Context")));
+        Assert.assertTrue(activity.findMethods("onCreate").length > 0);
+        // only the classes around Activity got created, not the whole framework
+        Assert.assertTrue(scope.getClassCount() - nClasses < 5000);
+        Assert.assertTrue(scope.findOrCreateClass("no.such.Clazz").isMissing());
+    }
+
+    @Test
+    public void testTranslateOnDemand() {
+        ImmutableDexFile dex = new ImmutableDexFile(Opcodes.forApi(19), ImmutableSet.of(
+                classDef("LA;", method("LA;", "f", call("LB;", "g"))),
+                classDef("LB;", method("LB;", "g"))));
+        scope.addOnDemandLoader(SmaliClassDetailLoader.fromDexfile(dex, true));
+        ClassInfo a = scope.findOrCreateClass("A");
+        MethodInfo f = a.findMethodsHere("f")[0];
+        Assert.assertNotNull(f.insns);
+        // B was loaded while translating A, and translated as well
+        ClassInfo b = scope.findClass("B");
+        Assert.assertTrue(b.isLoaded());
+        Assert.assertNotNull(b.findMethodsHere("g")[0].insns);
+    }
 }
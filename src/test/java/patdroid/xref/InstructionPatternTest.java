@@ -0,0 +1,127 @@
+package patdroid.xref;
+
+import org.junit.Before;
+import org.junit.Test;
+import patdroid.core.ClassDetail;
+import patdroid.core.ClassInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InstructionPatternTest {
+    private static final String CIPHER = "MOV,CONST dst=$algo ; * ; "
+            + "INVOKE,STATIC target=javax.crypto.Cipher.getInstance arg0=$algo";
+
+    private final Scope scope = new Scope();
+    private final ClassInfo cipher = scope.findOrCreateClass("javax.crypto.Cipher");
+    private final ClassInfo main = scope.findOrCreateClass("Main");
+    private MethodInfo getInstance, caller, other;
+
+    private MethodInfo method(ClassInfo owner, String name) {
+        return new MethodInfo(owner, new FullMethodSignature(scope.primitiveVoid, name), Modifier.STATIC, false);
+    }
+
+    private static Instruction constString(int dst, String s) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_MOV;
+        i.opcode_aux = Instruction.OP_MOV_CONST;
+        i.rdst = (short) dst;
+        i.extra = s;
+        return i;
+    }
+
+    private static Instruction invoke(MethodInfo target, int... args) {
+        Instruction i = new Instruction();
+        i.opcode = Instruction.OP_INVOKE_OP;
+        i.opcode_aux = Instruction.OP_INVOKE_STATIC;
+        i.extra = new Invocation(true, target, args);
+        return i;
+    }
+
+    @Before
+    public void setUp() {
+        getInstance = method(cipher, "getInstance");
+        caller = method(main, "caller");
+        other = method(main, "other");
+        caller.insns = new Instruction[] {
+                constString(1, "AES"),
+                constString(2, "DES"),
+                invoke(getInstance, 1),
+                invoke(getInstance, 2),
+        };
+        other.insns = new Instruction[] {
+                constString(1, "AES"),
+        };
+        TestClasses.define(cipher, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Collections.singletonList(getInstance))
+                .build());
+        TestClasses.define(main, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Arrays.asList(caller, other))
+                .setIsFrameworkClass(false)
+                .build());
+    }
+
+    @Test
+    public void testBindings() {
+        InstructionPattern p = InstructionPattern.compile(CIPHER);
+        assertEquals(Collections.singletonList("algo"), p.getVariables());
+        List<InstructionPattern.Match> m = p.match(caller);
+        assertEquals(2, m.size());
+        assertArrayEquals(new int[] {0, 2}, m.get(0).indexes);
+        assertEquals(Integer.valueOf(1), m.get(0).bindings.get("algo"));
+        assertArrayEquals(new int[] {1, 3}, m.get(1).indexes);
+        assertEquals(Integer.valueOf(2), m.get(1).bindings.get("algo"));
+    }
+
+    @Test
+    public void testGaps() {
+        assertTrue(InstructionPattern.compile("MOV,CONST dst=$a ; INVOKE arg0=$a").match(caller).isEmpty());
+        // DES skips one instruction to reach its invoke, AES none
+        assertEquals(2, InstructionPattern.compile("MOV,CONST dst=$a ; *1 ; INVOKE arg0=$a").match(caller).size());
+        assertEquals(1, InstructionPattern.compile("MOV ; _ ; INVOKE arg0=r1").match(caller).size());
+        assertEquals(1, InstructionPattern.compile("* ; MOV,CONST extra=\"DES\" ; *").match(caller).size());
+        assertEquals(2, InstructionPattern.compile("INVOKE target=javax.crypto.*").match(caller).size());
+        assertTrue(InstructionPattern.compile("MOV,CONST extra=\"a;b\"").match(caller).isEmpty());
+    }
+
+    @Test
+    public void testSearch() {
+        XrefIndex xref = XrefIndex.build(scope);
+        InstructionPattern p = InstructionPattern.compile(CIPHER);
+        List<InstructionPattern.Match> m = p.search(scope, xref);
+        assertEquals(2, m.size());
+        assertSame(caller, m.get(0).method);
+        assertEquals(m.toString(), p.search(scope, null).toString());
+
+        assertFalse(xref.mayContain(other, 1 << Instruction.OP_INVOKE_OP, 0));
+        assertTrue(xref.mayContain(other, 1 << Instruction.OP_MOV, 1L << Instruction.OP_MOV_CONST));
+        List<InstructionPattern.Match> consts = InstructionPattern.compile("MOV,CONST extra=\"AES\"").search(scope, xref);
+        assertEquals(2, consts.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOpcode() {
+        InstructionPattern.compile("FOO ; INVOKE");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyGaps() {
+        InstructionPattern.compile("* ; *3");
+    }
+}
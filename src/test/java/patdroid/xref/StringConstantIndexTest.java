@@ -0,0 +1,109 @@
+package patdroid.xref;
+
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.junit.Test;
+import patdroid.core.ClassInfo;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.smali.SmaliClassDetailLoader;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static patdroid.smali.DexBuilders.classDef;
+import static patdroid.smali.DexBuilders.method;
+
+public class StringConstantIndexTest {
+    private static Instruction constString(String s) {
+        return new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference(s));
+    }
+
+    private final Scope scope = new Scope();
+    private final StringConstantIndex strings = new StringConstantIndex();
+
+    private void load() {
+        ImmutableDexFile dex = new ImmutableDexFile(Opcodes.forApi(19), ImmutableSet.of(
+                classDef("LA;",
+                        method("LA;", "f", constString("http://example.com/api"), constString("secret_key")),
+                        method("LA;", "g", constString("http://example.com/api"))),
+                classDef("LB;", method("LB;", "h", constString("com.example.Hidden"), constString("ok")))));
+        SmaliClassDetailLoader loader = SmaliClassDetailLoader.fromDexfile(dex, true);
+        loader.setStringIndex(strings);
+        loader.loadAll(scope);
+    }
+
+    private MethodInfo findMethod(String owner, String name) {
+        ClassInfo ci = scope.findClass(owner);
+        return ci.findMethodsHere(name)[0];
+    }
+
+    @Test
+    public void testIndexWhileTranslating() {
+        load();
+        assertEquals(4, strings.size());
+        MethodInfo f = findMethod("A", "f");
+        MethodInfo g = findMethod("A", "g");
+        List<XrefIndex.Site> sites = strings.getSites("http://example.com/api");
+        assertEquals(2, sites.size());
+        assertTrue(sites.contains(new XrefIndex.Site(f, 1)));
+        assertTrue(sites.contains(new XrefIndex.Site(g, 1)));
+        // both instructions share the interned literal
+        assertSame(f.insns[1].extra, g.insns[1].extra);
+        assertTrue(strings.getSites("missing").isEmpty());
+    }
+
+    @Test
+    public void testSearch() {
+        load();
+        assertEquals(Collections.singletonList("http://example.com/api"), strings.findLiterals("example.com"));
+        assertEquals(Collections.singletonList("ok"), strings.findLiterals("ok"));
+        assertTrue(strings.findLiterals("nothing").isEmpty());
+        assertEquals(Arrays.asList("com.example.Hidden", "http://example.com/api"),
+                strings.findLiterals(Pattern.compile("example")));
+        assertEquals(Collections.singletonList("com.example.Hidden"),
+                strings.findLiterals(Pattern.compile("^com\\.[a-z]+\\.[A-Z]\\w*$")));
+        assertEquals(Collections.singletonList("secret_key"),
+                strings.findLiterals(Pattern.compile("SECRET", Pattern.CASE_INSENSITIVE)));
+        assertEquals(1, strings.findSites(Pattern.compile("secret_")).size());
+    }
+
+    @Test
+    public void testUnload() {
+        Scope.Layer layer = scope.mark();
+        load();
+        scope.unload(layer);
+        assertTrue(strings.getSites("http://example.com/api").isEmpty());
+        assertTrue(strings.findLiterals("example").isEmpty());
+        assertTrue(strings.findSites(Pattern.compile(".")).isEmpty());
+        assertEquals(4, strings.size());
+        assertEquals(4, strings.prune());
+        assertEquals(0, strings.size());
+        // the index is filled again by the next app
+        load();
+        assertEquals(4, strings.size());
+        assertEquals(Collections.singletonList("ok"), strings.findLiterals("ok"));
+    }
+
+    @Test
+    public void testRequiredText() {
+        assertEquals("://example", StringConstantIndex.requiredText(Pattern.compile("https?://example")));
+        assertEquals("com.", StringConstantIndex.requiredText(Pattern.compile("^com\\.[a-z]+")));
+        assertEquals("abc", StringConstantIndex.requiredText(Pattern.compile("x?abcd*")));
+        assertEquals("a.b", StringConstantIndex.requiredText(Pattern.compile("a.b", Pattern.LITERAL)));
+        assertNull(StringConstantIndex.requiredText(Pattern.compile("foo|bar")));
+        assertNull(StringConstantIndex.requiredText(Pattern.compile("(abc)?")));
+        assertNull(StringConstantIndex.requiredText(Pattern.compile("FOO", Pattern.CASE_INSENSITIVE)));
+    }
+}
@@ -0,0 +1,119 @@
+package patdroid.xref;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+import patdroid.core.ClassDetail;
+import patdroid.core.ClassInfo;
+import patdroid.core.FieldInfo;
+import patdroid.core.FullMethodSignature;
+import patdroid.core.MethodInfo;
+import patdroid.core.Scope;
+import patdroid.core.TestClasses;
+import patdroid.dalvik.Instruction;
+import patdroid.dalvik.Invocation;
+import patdroid.util.Pair;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XrefIndexTest {
+    private final Scope scope = new Scope();
+    private final ClassInfo base = scope.findOrCreateClass("Base");
+    private final ClassInfo sub = scope.findOrCreateClass("Sub");
+    private final ClassInfo main = scope.findOrCreateClass("Main");
+    private MethodInfo target, caller, other;
+
+    private MethodInfo method(ClassInfo owner, String name) {
+        return new MethodInfo(owner, new FullMethodSignature(scope.primitiveVoid, name), Modifier.STATIC, false);
+    }
+
+    private static Instruction insn(byte opcode, byte aux, ClassInfo type, Object extra) {
+        Instruction i = new Instruction();
+        i.opcode = opcode;
+        i.opcode_aux = aux;
+        i.type = type;
+        i.extra = extra;
+        return i;
+    }
+
+    @Before
+    public void setUp() {
+        target = method(base, "target");
+        caller = method(main, "caller");
+        other = method(main, "other");
+        caller.insns = new Instruction[] {
+                insn(Instruction.OP_INVOKE_OP, Instruction.OP_INVOKE_STATIC, null,
+                        new Invocation(true, target, new int[0])),
+                insn(Instruction.OP_NEW, Instruction.OP_NEW_INSTANCE, sub, null),
+                // the field is declared in Base but accessed through Sub
+                insn(Instruction.OP_INSTANCE_OP, Instruction.OP_INSTANCE_PUT_FIELD, null, new FieldInfo(sub, "f")),
+                insn(Instruction.OP_STATIC_OP, Instruction.OP_STATIC_GET_FIELD, null,
+                        new Pair<ClassInfo, String>(base, "s")),
+                insn(Instruction.OP_INVOKE_OP, Instruction.OP_INVOKE_STATIC, null,
+                        new Invocation(true, target, new int[0])),
+        };
+        other.insns = new Instruction[] {
+                insn(Instruction.OP_ARITHETIC, Instruction.OP_A_CHECKCAST, sub, null),
+                insn(Instruction.OP_INSTANCE_OP, Instruction.OP_INSTANCE_GET_FIELD, null, new FieldInfo(base, "f")),
+        };
+        TestClasses.define(base, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Collections.singletonList(target))
+                .setFields(ImmutableMap.of("f", scope.primitiveInt))
+                .setStaticFields(ImmutableMap.of("s", scope.primitiveInt))
+                .setIsFrameworkClass(false)
+                .build());
+        TestClasses.define(sub, new ClassDetail.Builder().setBaseType(base).setIsFrameworkClass(false).build());
+        TestClasses.define(main, new ClassDetail.Builder()
+                .setBaseType(scope.rootObject)
+                .setAllMethods(Arrays.asList(caller, other))
+                .setIsFrameworkClass(false)
+                .build());
+    }
+
+    @Test
+    public void testBuild() {
+        XrefIndex xref = XrefIndex.build(scope);
+        assertEquals(Arrays.asList(new XrefIndex.Site(caller, 0), new XrefIndex.Site(caller, 4)),
+                xref.getCallSites(target));
+        assertEquals(Collections.singletonList(caller), xref.getCallers(target));
+        FieldInfo f = new FieldInfo(base, "f");
+        assertEquals(Collections.singletonList(new XrefIndex.Site(caller, 2)), xref.getWriters(f));
+        assertEquals(Collections.singletonList(new XrefIndex.Site(other, 1)), xref.getReaders(f));
+        assertEquals(Collections.singletonList(new XrefIndex.Site(caller, 3)),
+                xref.getReaders(new FieldInfo(base, "s")));
+        assertEquals(2, xref.getTypeUses(sub).size());
+        assertTrue(xref.getTypeUses(base).isEmpty());
+        assertEquals(7, xref.size());
+    }
+
+    @Test
+    public void testUpdate() {
+        XrefIndex xref = XrefIndex.build(scope);
+        caller.insns = new Instruction[] {
+                insn(Instruction.OP_NEW, Instruction.OP_NEW_INSTANCE, base, null),
+        };
+        XrefIndex updated = xref.update(Collections.singletonList(caller));
+        assertTrue(updated.getCallSites(target).isEmpty());
+        assertEquals(Collections.singletonList(new XrefIndex.Site(caller, 0)), updated.getTypeUses(base));
+        assertEquals(Collections.singletonList(new XrefIndex.Site(other, 0)), updated.getTypeUses(sub));
+        // the old index is unchanged
+        assertEquals(2, xref.getCallSites(target).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStaleIds() {
+        Scope.Layer layer = scope.mark();
+        ClassInfo app = scope.findOrCreateClass("App");
+        TestClasses.define(app, method(app, "m"));
+        XrefIndex xref = XrefIndex.build(scope);
+        scope.unload(layer);
+        // the ids of App may now be given to other classes
+        xref.getCallSites(target);
+    }
+}